@@ -0,0 +1,58 @@
+package com.dfs1;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Checksums of 1 MB: the CRC32C the wire and the store use, CRC32 for comparison, and the
+ * per-block checksums of {@link BlockChecksums}. The score in operations per second is MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class ChecksumBenchmark {
+    private byte[] data;
+
+    @Setup
+    public void setUp() {
+        data = new byte[1024 * 1024];
+        new Random(2).nextBytes(data);
+    }
+
+    @Benchmark
+    public long crc32c() {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public long crc32() {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public BlockChecksums blocks() {
+        BlockChecksums.Builder builder = new BlockChecksums.Builder(BlockChecksums.DEFAULT_BLOCK_SIZE);
+        builder.update(data, 0, data.length);
+        return builder.finish();
+    }
+}
@@ -0,0 +1,90 @@
+package com.dfs1;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The copy loops of the data path, over 1 MB held in memory, with the buffer com.dfs.Server and
+ * the first versions of this package used, with 64 KB, and with the transfer buffer in use now.
+ * Each operation copies the whole megabyte, so the score in operations per second is MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class CopyBenchmark {
+    private static final int COPY_BYTES = 1024 * 1024;
+
+    /** Bytes in the copy buffer; "transfer" is {@link FileTransfer#BUFFER_SIZE}. */
+    @Param({"4096", "65536", "transfer"})
+    public String bufferSize;
+
+    private byte[] source;
+    private byte[] buffer;
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+    private long sink;
+    private final OutputStream discard = new OutputStream() {
+        @Override
+        public void write(int b) {
+            sink += b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            sink += b[off];
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        source = new byte[COPY_BYTES];
+        new Random(1).nextBytes(source);
+        buffer = new byte[bufferSize.equals("transfer") ? FileTransfer.BUFFER_SIZE : Integer.parseInt(bufferSize)];
+        heap = ByteBuffer.wrap(source);
+        direct = ByteBuffer.allocateDirect(buffer.length);
+    }
+
+    @Benchmark
+    public long stream() throws IOException {
+        InputStream in = new ByteArrayInputStream(source);
+        long total = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            discard.write(buffer, 0, read);
+            total += read;
+        }
+        return total + sink;
+    }
+
+    @Benchmark
+    public byte heapToDirect() {
+        heap.clear();
+        while (heap.hasRemaining()) {
+            direct.clear();
+            int length = Math.min(direct.remaining(), heap.remaining());
+            direct.put(heap.array(), heap.position(), length);
+            heap.position(heap.position() + length);
+        }
+        return direct.get(0);
+    }
+}
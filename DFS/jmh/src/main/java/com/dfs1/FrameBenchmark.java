@@ -0,0 +1,71 @@
+package com.dfs1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request parsing: a {@link Frame} header parsed from a buffer, as the nio engine does, and
+ * from a stream, as the thread engines do, encoding one, and for comparison the text command
+ * of com.dfs.Server.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameBenchmark {
+    private Frame frame;
+    private ByteBuffer encoded;
+    private byte[] header;
+    private byte[] command;
+
+    @Setup
+    public void setUp() throws IOException {
+        frame = new Frame(Protocol.UPLOAD, 42, "reports/2024/quarterly-summary.pdf", 0, 1 << 20);
+        encoded = frame.encode();
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        frame.write(new DataOutputStream(written));
+        header = written.toByteArray();
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        new DataOutputStream(legacy).writeUTF("UPLOAD reports/2024/quarterly-summary.pdf");
+        command = legacy.toByteArray();
+    }
+
+    @Benchmark
+    public Frame parseBuffer() throws IOException {
+        return Frame.parse(encoded.duplicate());
+    }
+
+    @Benchmark
+    public Frame parseStream() throws IOException {
+        return Frame.read(new DataInputStream(new ByteArrayInputStream(header)));
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        return frame.encode();
+    }
+
+    @Benchmark
+    public String parseLegacyCommand() throws IOException {
+        String line = new DataInputStream(new ByteArrayInputStream(command)).readUTF();
+        return line.startsWith("UPLOAD") ? line.substring(7) : "";
+    }
+}
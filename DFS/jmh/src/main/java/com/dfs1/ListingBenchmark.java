@@ -0,0 +1,92 @@
+package com.dfs1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Directory listing: the first page of 100,000 names held in memory, all of them and those
+ * matching a glob, and the first page of a {@link FileStore} of 10,000 files.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class ListingBenchmark {
+    private static final int NAMES = 100_000;
+    private static final int FILES = 10_000;
+
+    private Listing memory;
+    private Path directory;
+    private FileStore store;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<String> names = new ArrayList<>(NAMES);
+        Random random = new Random(3);
+        for (int i = 0; i < NAMES; i++) {
+            names.add(String.format("file-%08d.dat", random.nextInt(Integer.MAX_VALUE)));
+        }
+        memory = new Listing(new Listing.Source() {
+            @Override
+            public void forEachName(Consumer<String> consumer) {
+                names.forEach(consumer);
+            }
+
+            @Override
+            public Listing.Entry describe(String name) {
+                return new Listing.Entry(name, 0, 0);
+            }
+        });
+
+        directory = Files.createTempDirectory("dfs-list-bench");
+        for (int i = 0; i < FILES; i++) {
+            Files.write(directory.resolve(String.format("file-%06d", i)), new byte[i % 128]);
+        }
+        store = new FileStore(directory.toFile());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    @Benchmark
+    public Listing.Page select() throws IOException {
+        return memory.page(new Listing.Query("", "", Listing.DEFAULT_PAGE_SIZE, ""));
+    }
+
+    @Benchmark
+    public Listing.Page selectGlob() throws IOException {
+        return memory.page(new Listing.Query("", "*7.dat", Listing.DEFAULT_PAGE_SIZE, ""));
+    }
+
+    @Benchmark
+    public Listing.Page fileStore() throws IOException {
+        return store.listPage(new Listing.Query("", "", Listing.DEFAULT_PAGE_SIZE, ""));
+    }
+}
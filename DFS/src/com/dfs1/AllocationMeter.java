@@ -0,0 +1,134 @@
+package com.dfs1;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Measures how much this process allocates on the heap and how long the collector takes over
+ * a stretch of time, for benchmarks to report. The JVM has no counter of total allocation, so
+ * it is summed from the collector's notifications: whatever the heap grew by between the end
+ * of one collection and the start of the next was allocated in between.
+ */
+final class AllocationMeter implements NotificationListener, AutoCloseable {
+    private final Set<String> heapPools = new HashSet<>();
+    private final long startNanos = System.nanoTime();
+    private final long startCollections;
+    private final long startCollectionMillis;
+    private long allocated;
+    private long usedAfterLast;
+
+    /**
+     * Starts measuring now.
+     */
+    AllocationMeter() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool.getName());
+            }
+        }
+        startCollections = collections();
+        startCollectionMillis = collectionMillis();
+        synchronized (this) {
+            usedAfterLast = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+            }
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+            return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+        long before = heapUsed(info.getGcInfo().getMemoryUsageBeforeGc());
+        long after = heapUsed(info.getGcInfo().getMemoryUsageAfterGc());
+        synchronized (this) {
+            allocated += Math.max(0, before - usedAfterLast);
+            usedAfterLast = after;
+        }
+    }
+
+    private long heapUsed(Map<String, MemoryUsage> usage) {
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> pool : usage.entrySet()) {
+            if (heapPools.contains(pool.getKey())) {
+                used += pool.getValue().getUsed();
+            }
+        }
+        return used;
+    }
+
+    /**
+     * Bytes allocated on the heap since this meter was made.
+     */
+    synchronized long getAllocatedBytes() {
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        return allocated + Math.max(0, used - usedAfterLast);
+    }
+
+    long getCollections() {
+        return collections() - startCollections;
+    }
+
+    long getCollectionMillis() {
+        return collectionMillis() - startCollectionMillis;
+    }
+
+    double getElapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    /**
+     * e.g. "allocated 512.0 MB (85.3 MB/s), 12 collections taking 48 ms (0.8%)".
+     */
+    String summary() {
+        double seconds = getElapsedSeconds();
+        double megabytes = getAllocatedBytes() / (1024.0 * 1024);
+        return String.format("allocated %.1f MB (%.1f MB/s), %d collections taking %d ms (%.1f%%)", megabytes, megabytes / seconds,
+                getCollections(), getCollectionMillis(), getCollectionMillis() / 10.0 / seconds);
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    @Override
+    public void close() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                try {
+                    ((NotificationEmitter) collector).removeNotificationListener(this);
+                } catch (ListenerNotFoundException ignored) {
+                }
+            }
+        }
+    }
+}
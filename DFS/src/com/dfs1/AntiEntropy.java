@@ -0,0 +1,567 @@
+package com.dfs1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Brings a data node's files back in line with its peers after it missed uploads or deletes
+ * while it was down, or when it starts out empty in place of a lost node. In each round the
+ * node asks every other node for a hash tree over the files it owns on the ring and compares
+ * it with its own: the tree XORs a digest of each file's block checksums into one of 4096
+ * leaves by name hash, and each level above XORs 16 children. Matching subtrees are skipped
+ * whole, so two nodes that agree exchange 16 hashes, and only the leaves that differ are
+ * listed name by name ({@link Protocol#SYNC_TREE}, then {@link Protocol#SYNC_ENTRIES}). The
+ * listing carries each file's version, its modification time or for a deleted file when it
+ * was deleted, which {@link FileStore} remembers in tombstones.
+ *
+ * For every name the newest version among the peers wins. A newer copy is fetched and checked
+ * against the peer's block checksums, {@code dfs.antiEntropy.streams} (4) files at a time
+ * spread over the peers holding them, under one budget of {@code dfs.antiEntropy.bytesPerSecond}
+ * (64 MB/s, 0 for none); a newer deletion deletes the local copy. A node only pulls, so the
+ * nodes that missed nothing have nothing to do, and a returning node catches up in its first
+ * round, {@code dfs.antiEntropy.initialDelaySeconds} (5) after it starts and then every
+ * {@code dfs.antiEntropy.intervalSeconds} (60, 0 for no background rounds).
+ *
+ * Tombstones are kept for {@code dfs.antiEntropy.tombstoneSeconds} (a week). A node that was
+ * away for longer should be started empty, or it brings back files deleted meanwhile.
+ */
+final class AntiEntropy implements Closeable {
+    private static final long BYTES_PER_SECOND = Long.getLong("dfs.antiEntropy.bytesPerSecond", 64L * 1024 * 1024);
+    private static final long INITIAL_DELAY_MILLIS = Long.getLong("dfs.antiEntropy.initialDelaySeconds", 5) * 1000;
+    private static final long INTERVAL_MILLIS = Long.getLong("dfs.antiEntropy.intervalSeconds", 60) * 1000;
+    private static final long TOMBSTONE_MILLIS = Long.getLong("dfs.antiEntropy.tombstoneSeconds", 7 * 24 * 3600) * 1000;
+    private static final int STREAMS = Math.max(1, Integer.getInteger("dfs.antiEntropy.streams", 4));
+    /** The tenant the fetches are sent as, so that {@link QosScheduler} can weigh them against clients. */
+    static final String TENANT = "recovery";
+    private static final int FANOUT = 16;
+    private static final int DEPTH = 3;
+    private static final int LEAF_BITS = 12;
+
+    private final FileStore store;
+    private final InetSocketAddress self;
+    private final String selfName;
+    private final Membership membership;
+    private final RateLimiter limiter = new RateLimiter(BYTES_PER_SECOND);
+    private final ConnectionPool pool = new ConnectionPool(1000, STREAMS, TENANT);
+    private final ExecutorService streams;
+    private final Map<String, Digest> digests = new ConcurrentHashMap<>();
+    private final Map<InetSocketAddress, Summary> summaries = new ConcurrentHashMap<>();
+    private final ReentrantLock roundLock = new ReentrantLock();
+    private final LongAdder rounds = new LongAdder();
+    private final LongAdder differences = new LongAdder();
+    private final LongAdder filesFetched = new LongAdder();
+    private final LongAdder filesDeleted = new LongAdder();
+    private final LongAdder bytesFetched = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private volatile Round lastRound;
+    private Thread thread;
+
+    /**
+     * One file as a summary lists it. A deleted file has no digest.
+     */
+    static final class Entry {
+        final String name;
+        final boolean deleted;
+        final long version;
+        final long digest;
+
+        Entry(String name, boolean deleted, long version, long digest) {
+            this.name = name;
+            this.deleted = deleted;
+            this.version = version;
+            this.digest = digest;
+        }
+    }
+
+    private static final class Digest {
+        final long modified;
+        final long value;
+
+        Digest(long modified, long value) {
+            this.modified = modified;
+            this.value = value;
+        }
+    }
+
+    /**
+     * What one node holds of the files another node owns: the entries by leaf and name, and
+     * the hash tree over the live ones.
+     */
+    private static final class Summary {
+        final long round;
+        final long[][] levels = new long[DEPTH + 1][];
+        final Map<Integer, List<Entry>> leaves = new HashMap<>();
+        final Map<String, Entry> byName = new HashMap<>();
+
+        Summary(long round) {
+            this.round = round;
+            for (int level = 0, width = 1; level <= DEPTH; level++, width *= FANOUT) {
+                levels[level] = new long[width];
+            }
+        }
+
+        void add(Entry entry) {
+            int leaf = leafOf(entry.name);
+            leaves.computeIfAbsent(leaf, key -> new ArrayList<>()).add(entry);
+            byName.put(entry.name, entry);
+            if (!entry.deleted) {
+                // With the name in, files with the same contents do not cancel each other out.
+                levels[DEPTH][leaf] ^= entry.digest ^ HashRing.hash(entry.name);
+            }
+        }
+
+        void seal() {
+            for (int level = DEPTH - 1; level >= 0; level--) {
+                for (int child = 0; child < levels[level + 1].length; child++) {
+                    levels[level][child / FANOUT] ^= levels[level + 1][child];
+                }
+            }
+        }
+    }
+
+    /**
+     * What one round found and did.
+     */
+    static final class Round {
+        int peers;
+        int unreachable;
+        int differences;
+        int fetched;
+        int deleted;
+        int failed;
+        long bytesFetched;
+        long bytesExchanged;
+        long nanos;
+
+        int getFetched() {
+            return fetched;
+        }
+
+        int getDeleted() {
+            return deleted;
+        }
+
+        int getFailed() {
+            return failed;
+        }
+
+        long getBytesFetched() {
+            return bytesFetched;
+        }
+
+        long getBytesExchanged() {
+            return bytesExchanged;
+        }
+
+        double getSeconds() {
+            return nanos / 1e9;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d peers (%d unreachable), %d differences: fetched %d files (%d bytes), deleted %d, %d failed;"
+                    + " %d bytes of summaries, %.2f s", peers, unreachable, differences, fetched, bytesFetched, deleted, failed,
+                    bytesExchanged, getSeconds());
+        }
+    }
+
+    AntiEntropy(FileStore store, Membership membership) {
+        this.store = store;
+        this.self = membership.getSelf();
+        this.selfName = ClusterConfig.describe(self);
+        this.membership = membership;
+        this.streams = Executors.newFixedThreadPool(STREAMS, runnable -> {
+            Thread stream = new Thread(runnable, "dfs-anti-entropy-" + self.getPort());
+            stream.setDaemon(true);
+            return stream;
+        });
+    }
+
+    /**
+     * Starts the background rounds, unless the interval is zero.
+     */
+    synchronized void start() {
+        if (INTERVAL_MILLIS <= 0 || thread != null) {
+            return;
+        }
+        thread = new Thread(() -> {
+            try {
+                Thread.sleep(INITIAL_DELAY_MILLIS);
+                while (true) {
+                    sync();
+                    Thread.sleep(INTERVAL_MILLIS);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }, "dfs-anti-entropy-" + self.getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs one round against every other node and returns what it did. Rounds do not overlap.
+     */
+    Round sync() throws InterruptedException {
+        roundLock.lockInterruptibly();
+        try {
+            return round();
+        } finally {
+            roundLock.unlock();
+        }
+    }
+
+    private Round round() throws InterruptedException {
+        long start = System.nanoTime();
+        Round round = new Round();
+        store.expireTombstones(System.currentTimeMillis() - TOMBSTONE_MILLIS);
+        digests.keySet().retainAll(new HashSet<>(Arrays.asList(store.list())));
+        Summary local = summarize(self, start);
+        Map<String, List<Entry>> offered = new HashMap<>();
+        Map<Entry, InetSocketAddress> offeredBy = new HashMap<>();
+        for (InetSocketAddress peer : membership.getRing().nodes()) {
+            if (peer.equals(self)) {
+                continue;
+            }
+            try {
+                for (Entry entry : differences(peer, local, round)) {
+                    offered.computeIfAbsent(entry.name, name -> new ArrayList<>()).add(entry);
+                    offeredBy.put(entry, peer);
+                }
+                round.peers++;
+            } catch (IOException e) {
+                round.unreachable++;
+            }
+        }
+
+        List<Callable<Long>> fetches = new ArrayList<>();
+        for (Map.Entry<String, List<Entry>> named : offered.entrySet()) {
+            String name = named.getKey();
+            Entry mine = local.byName.get(name);
+            Entry newest = null;
+            for (Entry entry : named.getValue()) {
+                if (newest == null || entry.version > newest.version || entry.version == newest.version && newest.deleted && !entry.deleted) {
+                    newest = entry;
+                }
+            }
+            boolean live = mine != null && !mine.deleted;
+            if (mine != null && newest.version <= mine.version || newest.deleted && !live
+                    || live && !newest.deleted && newest.digest == mine.digest) {
+                continue;
+            }
+            round.differences++;
+            if (newest.deleted) {
+                try {
+                    if (store.applyDelete(name, mine.version, newest.version)) {
+                        round.deleted++;
+                    }
+                } catch (IOException e) {
+                    round.failed++;
+                }
+                continue;
+            }
+            List<InetSocketAddress> sources = new ArrayList<>();
+            for (Entry entry : named.getValue()) {
+                if (!entry.deleted && entry.digest == newest.digest) {
+                    sources.add(offeredBy.get(entry));
+                }
+            }
+            // Spreads the files over the peers that have them, so they are all streamed from at once.
+            Collections.rotate(sources, fetches.size() % sources.size());
+            long expectedModified = live ? mine.version : 0;
+            fetches.add(() -> fetch(sources, name, expectedModified));
+        }
+        for (Future<Long> fetch : streams.invokeAll(fetches)) {
+            try {
+                round.bytesFetched += fetch.get();
+                round.fetched++;
+            } catch (ExecutionException e) {
+                round.failed++;
+                Log.warn("sync_fetch_failed", "node", selfName, "error", e.getCause().getMessage());
+            }
+        }
+
+        round.nanos = System.nanoTime() - start;
+        rounds.increment();
+        differences.add(round.differences);
+        filesFetched.add(round.fetched);
+        filesDeleted.add(round.deleted);
+        bytesFetched.add(round.bytesFetched);
+        failures.add(round.failed);
+        lastRound = round;
+        if (round.differences > 0) {
+            Log.info("sync_round", "node", selfName, "peers", round.peers, "unreachable", round.unreachable,
+                    "differences", round.differences, "fetched", round.fetched, "bytes", round.bytesFetched, "deleted", round.deleted,
+                    "failed", round.failed, "summary_bytes", round.bytesExchanged, "micros", round.nanos / 1000);
+        }
+        return round;
+    }
+
+    private long fetch(List<InetSocketAddress> sources, String name, long expectedModified) throws IOException {
+        IOException failure = null;
+        for (InetSocketAddress peer : sources) {
+            try {
+                return Scrubber.fetch(pool, limiter, store, peer, name, expectedModified, null);
+            } catch (IOException e) {
+                failure = new IOException(name + " from " + ClusterConfig.describe(peer) + ": " + e.getMessage(), e);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * The entries of {@code peer} in the leaves where its tree differs from {@code local},
+     * found by descending only into the subtrees whose hashes differ.
+     */
+    private List<Entry> differences(InetSocketAddress peer, Summary local, Round round) throws IOException {
+        return pool.call(peer, connection -> {
+            List<Integer> differing = Collections.singletonList(0);
+            for (int level = 0; level < DEPTH && !differing.isEmpty(); level++) {
+                ByteBuffer children = exchange(connection, Protocol.SYNC_TREE, level, differing, local.round, round);
+                List<Integer> next = new ArrayList<>();
+                for (int index : differing) {
+                    for (int child = index * FANOUT; child < (index + 1) * FANOUT; child++) {
+                        if (children.getLong() != local.levels[level + 1][child]) {
+                            next.add(child);
+                        }
+                    }
+                }
+                differing = next;
+            }
+            if (differing.isEmpty()) {
+                return Collections.<Entry>emptyList();
+            }
+            return decodeEntries(exchange(connection, Protocol.SYNC_ENTRIES, DEPTH, differing, local.round, round));
+        });
+    }
+
+    /**
+     * Sends a request for {@code indices} at {@code level} of the tree and returns the response.
+     * The request's offset numbers the round, so the peer summarizes its files once per round.
+     */
+    private ByteBuffer exchange(DfsConnection connection, byte opcode, int level, List<Integer> indices, long roundId, Round round)
+            throws IOException {
+        int length = 1 + 4 + 4 * indices.size();
+        int requestId = connection.send(opcode, selfName, roundId, length);
+        DataOutputStream out = connection.out();
+        out.writeByte(level);
+        out.writeInt(indices.size());
+        for (int index : indices) {
+            out.writeInt(index);
+        }
+        connection.flush();
+        Frame response = connection.readOk(requestId);
+        byte[] body = new byte[(int) response.getPayloadLength()];
+        connection.in().readFully(body);
+        round.bytesExchanged += length + body.length;
+        return ByteBuffer.wrap(body);
+    }
+
+    /**
+     * Answers a {@link Protocol#SYNC_TREE} or {@link Protocol#SYNC_ENTRIES} from the node the
+     * request names. Both carry a level of the tree and indices at that level: the tree request
+     * is answered with the {@value #FANOUT} child hashes of each index, the entries request,
+     * at the leaf level, with the entries of each leaf.
+     */
+    Response handle(Frame request, ByteBuffer body) throws IOException {
+        Summary summary = summaryFor(ClusterConfig.parseNode(request.getName()), request.getOffset());
+        int level = body.get();
+        int count = body.getInt();
+        boolean tree = request.getOpcode() == Protocol.SYNC_TREE;
+        if (tree ? level < 0 || level >= DEPTH : level != DEPTH) {
+            throw new IOException("No level " + level + " to sync");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int index = body.getInt();
+            if (index < 0 || index >= summary.levels[level].length) {
+                throw new IOException("No index " + index + " at level " + level);
+            }
+            if (tree) {
+                for (int child = index * FANOUT; child < (index + 1) * FANOUT; child++) {
+                    out.writeLong(summary.levels[level + 1][child]);
+                }
+            } else {
+                entries.addAll(summary.leaves.getOrDefault(index, Collections.emptyList()));
+            }
+        }
+        if (!tree) {
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.name);
+                out.writeBoolean(entry.deleted);
+                out.writeLong(entry.version);
+                out.writeLong(entry.digest);
+            }
+        }
+        return Response.bytes(Protocol.STATUS_OK, request.getName(), bytes.toByteArray());
+    }
+
+    private static List<Entry> decodeEntries(ByteBuffer body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array(), body.position(), body.remaining()));
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<>(Math.min(count, body.remaining() / 19));
+        for (int i = 0; i < count; i++) {
+            entries.add(new Entry(in.readUTF(), in.readBoolean(), in.readLong(), in.readLong()));
+        }
+        return entries;
+    }
+
+    private Summary summaryFor(InetSocketAddress requester, long roundId) {
+        Summary summary = summaries.get(requester);
+        if (summary == null || summary.round != roundId) {
+            summary = summarize(requester, roundId);
+            summaries.put(requester, summary);
+        }
+        return summary;
+    }
+
+    /**
+     * This node's entries for the files {@code owner} owns on the ring, live or deleted. A
+     * node that has just come back may not be on this node's ring yet, but it is placed as if
+     * it were.
+     */
+    private Summary summarize(InetSocketAddress owner, long roundId) {
+        HashRing<InetSocketAddress> ring = membership.getRing();
+        if (!ring.nodes().contains(owner)) {
+            List<InetSocketAddress> nodes = new ArrayList<>(ring.nodes());
+            nodes.add(owner);
+            ring = new HashRing<>(nodes, ring.getVirtualNodes(), ClusterConfig::describe);
+        }
+        Set<String> names = new LinkedHashSet<>(Arrays.asList(store.list()));
+        Collections.addAll(names, store.deletedNames());
+        Summary summary = new Summary(roundId);
+        for (String name : names) {
+            if (!FileStore.isValidName(name) || !ring.owners(name, ClusterConfig.REPLICATION_FACTOR).contains(owner)) {
+                continue;
+            }
+            try {
+                long modified = store.modifiedTime(name);
+                long deleted = store.deletedTime(name);
+                if (modified > 0 && modified >= deleted) {
+                    Long digest = digest(name, modified);
+                    if (digest != null) {
+                        summary.add(new Entry(name, false, modified, digest));
+                    }
+                } else if (deleted > 0) {
+                    summary.add(new Entry(name, true, deleted, 0));
+                }
+            } catch (IOException e) {
+                // Left out until it can be read; the scrubber repairs a damaged file.
+                Log.warn("sync_skipped", "node", selfName, "file", name, "error", e.getMessage());
+            }
+        }
+        summary.seal();
+        return summary;
+    }
+
+    /**
+     * A digest of the block checksums of {@code name}, which was last modified at
+     * {@code modified}, or null if it is gone. Digests are remembered until the file changes.
+     */
+    private Long digest(String name, long modified) throws IOException {
+        Digest cached = digests.get(name);
+        if (cached != null && cached.modified == modified) {
+            return cached.value;
+        }
+        BlockChecksums checksums;
+        try {
+            checksums = store.readChecksums(name);
+        } catch (IOException e) {
+            checksums = null;
+        }
+        if (checksums == null) {
+            try (FileChannel channel = store.openForRead(name)) {
+                if (channel == null) {
+                    return null;
+                }
+                checksums = BlockChecksums.compute(channel, BlockChecksums.DEFAULT_BLOCK_SIZE, null);
+            }
+        }
+        long value = ByteBuffer.wrap(ContentChunker.sha256().digest(checksums.encode())).getLong();
+        if (store.modifiedTime(name) == modified) {
+            digests.put(name, new Digest(modified, value));
+        }
+        return value;
+    }
+
+    private static int leafOf(String name) {
+        return (int) (HashRing.hash(name) >>> (64 - LEAF_BITS));
+    }
+
+    long getRounds() {
+        return rounds.sum();
+    }
+
+    long getDifferences() {
+        return differences.sum();
+    }
+
+    long getFilesFetched() {
+        return filesFetched.sum();
+    }
+
+    long getFilesDeleted() {
+        return filesDeleted.sum();
+    }
+
+    long getBytesFetched() {
+        return bytesFetched.sum();
+    }
+
+    long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * The last round, or null before the first.
+     */
+    Round getLastRound() {
+        return lastRound;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (thread != null) {
+                thread.interrupt();
+                thread = null;
+            }
+        }
+        streams.shutdownNow();
+        pool.close();
+    }
+
+    @Override
+    public String toString() {
+        Round last = lastRound;
+        return String.format("anti-entropy rounds=%d differences=%d fetched=%d deleted=%d bytes=%d failures=%d budget=%d B/s last=[%s]",
+                rounds.sum(), differences.sum(), filesFetched.sum(), filesDeleted.sum(), bytesFetched.sum(), failures.sum(),
+                limiter.getBytesPerSecond(), last == null ? "none" : last);
+    }
+}
@@ -0,0 +1,108 @@
+package com.dfs1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Compares moving many small files one request at a time with moving them in batches: the
+ * files are uploaded, downloaded and deleted with a future per file through
+ * {@link DfsClient#upload}, {@link DfsClient#download} and {@link DfsClient#delete}, then with
+ * {@link DfsClient#uploadAll}, {@link DfsClient#downloadAll} and {@link DfsClient#deleteAll}.
+ * The configured cluster is started in this process, as {@link LoadGenerator} does, and the
+ * files per second of each step are printed.
+ *
+ * Usage: BatchBenchmark [files] [sizeKB]
+ */
+public class BatchBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int size = (args.length > 1 ? Integer.parseInt(args[1]) : 4) * 1024;
+
+        Path directory = Files.createTempDirectory("dfs-batch-bench");
+        LoadGenerator.startCluster(directory);
+        Path sources = Files.createDirectories(directory.resolve("sources"));
+        Random random = new Random(5);
+        byte[] contents = new byte[size];
+        List<Path> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            random.nextBytes(contents);
+            files.add(Files.write(sources.resolve("f" + i), contents));
+        }
+
+        System.out.printf("%d files of %d KB%n", count, size / 1024);
+        try (DfsClient client = new DfsClient()) {
+            run("single", client, files, directory.resolve("single"));
+            run("batched", client, files, directory.resolve("batched"));
+        }
+        System.exit(0);
+    }
+
+    private static void run(String label, DfsClient client, List<Path> files, Path downloads) throws IOException {
+        Files.createDirectories(downloads);
+        Map<String, Path> uploads = new LinkedHashMap<>();
+        Map<String, Path> targets = new LinkedHashMap<>();
+        for (Path file : files) {
+            String name = DfsClient.nameOf(label + "/" + file.getFileName());
+            uploads.put(name, file);
+            targets.put(name, downloads.resolve(file.getFileName().toString()));
+        }
+        boolean batched = label.equals("batched");
+
+        long start = System.nanoTime();
+        if (batched) {
+            check(client.uploadAll(uploads, null).join());
+        } else {
+            List<CompletableFuture<FileMetadata>> pending = new ArrayList<>();
+            uploads.forEach((name, file) -> pending.add(client.upload(file.toFile(), name)));
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        }
+        report(label, "upload", files.size(), start);
+
+        start = System.nanoTime();
+        if (batched) {
+            check(client.downloadAll(targets, null).join());
+        } else {
+            List<CompletableFuture<Long>> pending = new ArrayList<>();
+            targets.forEach((name, file) -> pending.add(client.download(name, file.toFile())));
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        }
+        report(label, "download", files.size(), start);
+        for (Path file : files) {
+            File copy = downloads.resolve(file.getFileName().toString()).toFile();
+            if (copy.length() != file.toFile().length()) {
+                throw new IOException("Downloaded " + copy + " has " + copy.length() + " bytes");
+            }
+        }
+
+        start = System.nanoTime();
+        if (batched) {
+            check(client.deleteAll(uploads.keySet(), null).join());
+        } else {
+            List<CompletableFuture<List<Placement.ReplicaResult>>> pending = new ArrayList<>();
+            for (String name : uploads.keySet()) {
+                pending.add(client.delete(name));
+            }
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        }
+        report(label, "delete", files.size(), start);
+    }
+
+    private static void check(DfsClient.BatchProgress progress) throws IOException {
+        if (progress.getFailed() > 0) {
+            throw new IOException(progress.getFailed() + " files failed, e.g. " + progress.getFailures().entrySet().iterator().next());
+        }
+    }
+
+    private static void report(String label, String operation, int count, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-8s %-9s %8.0f files/s (%.2f s)%n", label, operation, count / seconds, seconds);
+    }
+}
@@ -0,0 +1,203 @@
+package com.dfs1;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The client's side of a node's batch operations: many small files uploaded, downloaded or
+ * deleted with one request, so a tree of thousands of them costs a few round trips per node
+ * rather than a few per file. Every file gets a result of its own.
+ */
+final class BatchTransfer {
+    static final class Result {
+        private final byte status;
+        private final String message;
+        private final int checksum;
+        private final byte[] contents;
+
+        Result(byte status, String message, int checksum, byte[] contents) {
+            this.status = status;
+            this.message = message;
+            this.checksum = checksum;
+            this.contents = contents;
+        }
+
+        boolean isOk() {
+            return status == Protocol.STATUS_OK;
+        }
+
+        boolean isNotFound() {
+            return status == Protocol.STATUS_NOT_FOUND;
+        }
+
+        String getMessage() {
+            return message;
+        }
+
+        /**
+         * The CRC32C the node computed of an uploaded file.
+         */
+        int getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * The bytes of a downloaded file.
+         */
+        byte[] getContents() {
+            return contents;
+        }
+    }
+
+    private final ConnectionPool pool;
+
+    BatchTransfer(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Uploads {@code contents[i]} as {@code names.get(i)} to {@code node} with one
+     * {@link Protocol#BATCH_UPLOAD}.
+     */
+    List<Result> upload(InetSocketAddress node, List<String> names, List<byte[]> contents) throws IOException {
+        List<byte[]> encodedNames = new ArrayList<>(names.size());
+        long length = 0;
+        for (int i = 0; i < names.size(); i++) {
+            byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+            if (name.length > Protocol.MAX_NAME_LENGTH) {
+                throw new IOException("Name too long: " + names.get(i));
+            }
+            encodedNames.add(name);
+            length += 2 + name.length + 8 + contents.get(i).length;
+        }
+        long payloadLength = length;
+        return pool.call(node, connection -> {
+            int requestId = connection.send(Protocol.BATCH_UPLOAD, "", payloadLength);
+            DataOutputStream out = connection.out();
+            for (int i = 0; i < encodedNames.size(); i++) {
+                out.writeShort(encodedNames.get(i).length);
+                out.write(encodedNames.get(i));
+                out.writeLong(contents.get(i).length);
+                out.write(contents.get(i));
+            }
+            connection.flush();
+            connection.readOk(requestId);
+            DataInputStream in = connection.in();
+            int count = in.readInt();
+            expectCount(node, count, names.size());
+            List<Result> results = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte status = in.readByte();
+                int checksum = in.readInt();
+                results.add(new Result(status, in.readUTF(), checksum, null));
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Downloads {@code names} from {@code node}, asking again for the files a
+     * {@link Protocol#BATCH_DOWNLOAD} left out for lack of room until every one is answered.
+     */
+    List<Result> download(InetSocketAddress node, List<String> names) throws IOException {
+        List<Result> results = new ArrayList<>(names.size());
+        while (results.size() < names.size()) {
+            List<String> rest = names.subList(results.size(), names.size());
+            List<Result> answered = pool.call(node, connection -> {
+                List<String> asked = sendNames(connection, Protocol.BATCH_DOWNLOAD, rest);
+                DataInputStream in = connection.in();
+                int count = in.readInt();
+                if (count <= 0 || count > asked.size()) {
+                    throw new IOException(ClusterConfig.describe(node) + " answered " + count + " of " + asked.size() + " files");
+                }
+                List<Result> batch = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte status = in.readByte();
+                    if (status == Protocol.STATUS_OK) {
+                        byte[] contents = new byte[(int) in.readLong()];
+                        in.readFully(contents);
+                        batch.add(new Result(status, null, 0, contents));
+                    } else {
+                        batch.add(new Result(status, in.readUTF(), 0, null));
+                    }
+                }
+                return batch;
+            });
+            results.addAll(answered);
+        }
+        return results;
+    }
+
+    /**
+     * Deletes {@code names} from {@code node} with {@link Protocol#BATCH_DELETE} requests.
+     */
+    List<Result> delete(InetSocketAddress node, List<String> names) throws IOException {
+        List<Result> results = new ArrayList<>(names.size());
+        while (results.size() < names.size()) {
+            List<String> rest = names.subList(results.size(), names.size());
+            results.addAll(pool.call(node, connection -> {
+                List<String> asked = sendNames(connection, Protocol.BATCH_DELETE, rest);
+                DataInputStream in = connection.in();
+                int count = in.readInt();
+                expectCount(node, count, asked.size());
+                List<Result> batch = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte status = in.readByte();
+                    batch.add(new Result(status, in.readUTF(), 0, null));
+                }
+                return batch;
+            }));
+        }
+        return results;
+    }
+
+    /**
+     * Sends as many of {@code names} as fit in a request body with {@code opcode}, waits for an
+     * OK and returns the names sent.
+     */
+    private static List<String> sendNames(DfsConnection connection, byte opcode, List<String> names) throws IOException {
+        int count = 0;
+        long length = 4;
+        while (count < names.size()) {
+            long nameLength = 2 + utfLength(names.get(count));
+            if (count > 0 && length + nameLength > RequestHandler.MAX_REQUEST_BODY) {
+                break;
+            }
+            length += nameLength;
+            count++;
+        }
+        List<String> asked = names.subList(0, count);
+        int requestId = connection.send(opcode, "", length);
+        DataOutputStream out = connection.out();
+        out.writeInt(count);
+        for (String name : asked) {
+            out.writeUTF(name);
+        }
+        connection.flush();
+        connection.readOk(requestId);
+        return asked;
+    }
+
+    /**
+     * The length of {@code name} as {@code writeUTF} encodes it, without the two length bytes.
+     */
+    private static int utfLength(String name) {
+        int length = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+        }
+        return length;
+    }
+
+    private static void expectCount(InetSocketAddress node, int count, int expected) throws IOException {
+        if (count != expected) {
+            throw new IOException(ClusterConfig.describe(node) + " answered " + count + " of " + expected + " files");
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.dfs1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32C;
+
+/**
+ * A node's part in a {@link Protocol#BATCH_UPLOAD}: many small files in one payload, each its
+ * name as a two-byte length and UTF-8, its length as a long and its bytes. Every file is
+ * begun as an upload of its own when its header arrives and committed on the batch executor
+ * once its bytes are in, while the next ones still arrive, so the files of a batch are forced
+ * in parallel and share the directory syncs of a group commit (or the force of the packed
+ * segment they were appended to). At most {@code dfs.batch.pendingFiles} (64) commits are
+ * waited for at a time; reading the payload stops until one finishes.
+ *
+ * A file that fails does not fail the others. The answer has a status, a CRC32C and a message
+ * for every file, in the order they were sent.
+ */
+final class BatchUpload implements FileStore.Upload {
+    private static final int MAX_PENDING = Integer.getInteger("dfs.batch.pendingFiles", 64);
+
+    private static final class Result {
+        final byte status;
+        final int checksum;
+        final String message;
+
+        Result(byte status, int checksum, String message) {
+            this.status = status;
+            this.checksum = checksum;
+            this.message = message;
+        }
+    }
+
+    private final Frame request;
+    private final ChainUpload.LocalTarget target;
+    private final Executor executor;
+    private final Semaphore pending = new Semaphore(MAX_PENDING);
+    private final List<CompletableFuture<Result>> results = new ArrayList<>();
+    private final CRC32C crc = new CRC32C();
+    private ByteBuffer header = ByteBuffer.allocate(2);
+    private boolean nameLengthRead;
+    private String name;
+    private FileStore.Upload current;
+    private String error;
+    private long remaining = -1;
+
+    BatchUpload(Frame request, ChainUpload.LocalTarget target, Executor executor) {
+        this.request = request;
+        this.target = target;
+        this.executor = executor;
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        crc.update(data.duplicate());
+        while (data.hasRemaining()) {
+            if (remaining < 0) {
+                int length = Math.min(header.remaining(), data.remaining());
+                ByteBuffer part = data.duplicate();
+                part.limit(part.position() + length);
+                header.put(part);
+                data.position(data.position() + length);
+                if (!header.hasRemaining()) {
+                    readHeader();
+                }
+                continue;
+            }
+            int length = (int) Math.min(remaining, data.remaining());
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + length);
+            data.position(data.position() + length);
+            remaining -= length;
+            if (current != null) {
+                try {
+                    current.write(part);
+                } catch (IOException e) {
+                    current.abort();
+                    current = null;
+                    error = "Upload failed: " + e.getMessage();
+                }
+            }
+            if (remaining == 0) {
+                finishFile();
+            }
+        }
+    }
+
+    /**
+     * Reads the header of the next file: first the length of its name, then the name and the
+     * length of its bytes.
+     */
+    private void readHeader() throws IOException {
+        header.flip();
+        if (!nameLengthRead) {
+            nameLengthRead = true;
+            header = ByteBuffer.allocate((header.getShort() & 0xFFFF) + 8);
+            return;
+        }
+        byte[] nameBytes = new byte[header.capacity() - 8];
+        header.get(nameBytes);
+        name = new String(nameBytes, StandardCharsets.UTF_8);
+        remaining = header.getLong();
+        if (remaining < 0) {
+            throw new IOException("Negative length for " + name + " in batch " + request.getName());
+        }
+        header = ByteBuffer.allocate(2);
+        nameLengthRead = false;
+        error = null;
+        try {
+            current = target.begin(new Frame(Protocol.UPLOAD, request.getRequestId(), name, 0, remaining));
+        } catch (IOException e) {
+            current = null;
+            error = "Upload failed: " + e.getMessage();
+        }
+        if (remaining == 0) {
+            finishFile();
+        }
+    }
+
+    /**
+     * Hands the file just received to the executor to be committed, waiting first if too many
+     * commits are already pending.
+     */
+    private void finishFile() throws IOException {
+        FileStore.Upload upload = current;
+        String fileName = name;
+        current = null;
+        remaining = -1;
+        if (upload == null) {
+            results.add(CompletableFuture.completedFuture(new Result(Protocol.STATUS_ERROR, 0, error)));
+            return;
+        }
+        try {
+            pending.acquire();
+        } catch (InterruptedException e) {
+            upload.abort();
+            Thread.currentThread().interrupt();
+            throw new IOException("Batch " + request.getName() + " interrupted");
+        }
+        results.add(CompletableFuture.supplyAsync(() -> {
+            try {
+                int checksum = upload.commit();
+                Log.info("file_uploaded", "file", fileName);
+                return new Result(Protocol.STATUS_OK, checksum, "File uploaded successfully: " + fileName);
+            } catch (IOException | RuntimeException e) {
+                upload.abort();
+                return new Result(Protocol.STATUS_ERROR, 0, "Upload failed: " + e.getMessage());
+            } finally {
+                pending.release();
+            }
+        }, executor));
+    }
+
+    /**
+     * Waits for every file to be committed and returns the CRC32C of the whole payload. Throws
+     * if the payload ended in the middle of a file, whose commit is then never started.
+     */
+    @Override
+    public int commit() throws IOException {
+        if (remaining >= 0 || header.position() > 0 || nameLengthRead) {
+            abort();
+            throw new IOException("Batch " + request.getName() + " ended in the middle of a file");
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public void abort() {
+        if (current != null) {
+            current.abort();
+            current = null;
+        }
+    }
+
+    /**
+     * The answer to the batch once it is committed: the number of files, then a status, a
+     * checksum and a message for each.
+     */
+    byte[] encodeResults() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(results.size());
+        for (CompletableFuture<Result> future : results) {
+            Result result = future.join();
+            out.writeByte(result.status);
+            out.writeInt(result.checksum);
+            out.writeUTF(result.message);
+        }
+        return bytes.toByteArray();
+    }
+}
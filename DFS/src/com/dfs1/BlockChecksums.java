@@ -0,0 +1,308 @@
+package com.dfs1;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * The CRC32C of every fixed-size block of a stored file ({@code dfs.checksum.blockBytes},
+ * 64 KB by default), kept next to the file so its bytes can be checked after they were
+ * written: by readers, which verify what they receive, and by the {@link Scrubber}. Encoded as
+ * a magic number, the block size, the file size and the block count, then one int per block
+ * and a CRC32C of everything before it, so a damaged sidecar is told apart from damaged data.
+ */
+final class BlockChecksums {
+    static final int DEFAULT_BLOCK_SIZE = Integer.getInteger("dfs.checksum.blockBytes", 64 * 1024);
+    private static final int MAGIC = 0x44465343;
+    private static final int HEADER_LENGTH = 20;
+
+    private final int blockSize;
+    private final long length;
+    private final int[] crcs;
+
+    BlockChecksums(int blockSize, long length, int[] crcs) {
+        if (crcs.length != blockCount(length, blockSize)) {
+            throw new IllegalArgumentException("Expected " + blockCount(length, blockSize) + " blocks, got " + crcs.length);
+        }
+        this.blockSize = blockSize;
+        this.length = length;
+        this.crcs = crcs;
+    }
+
+    static int blockCount(long length, int blockSize) {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    int getBlockCount() {
+        return crcs.length;
+    }
+
+    int crc(int block) {
+        return crcs[block];
+    }
+
+    /**
+     * Returns the first block that differs from {@code other}, or -1 if both describe the
+     * same contents.
+     */
+    int firstMismatch(BlockChecksums other) {
+        if (other.blockSize != blockSize || other.length != length) {
+            return 0;
+        }
+        for (int block = 0; block < crcs.length; block++) {
+            if (crcs[block] != other.crcs[block]) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checksums everything {@code channel} holds, reading through {@code limiter} if one is given.
+     */
+    static BlockChecksums compute(FileChannel channel, int blockSize, RateLimiter limiter) throws IOException {
+        Builder builder = new Builder(blockSize);
+        ByteBuffer buffer = BufferPool.DIRECT.acquire();
+        try {
+            long position = 0;
+            while (true) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    return builder.finish();
+                }
+                if (limiter != null) {
+                    limiter.acquire(read);
+                }
+                position += read;
+                buffer.flip();
+                builder.update(buffer);
+            }
+        } finally {
+            BufferPool.DIRECT.release(buffer);
+        }
+    }
+
+    byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + crcs.length * 4 + 4);
+        buffer.putInt(MAGIC).putInt(blockSize).putLong(length).putInt(crcs.length);
+        for (int crc : crcs) {
+            buffer.putInt(crc);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * Reads a sidecar, throwing {@link FileNotFoundException} if there is none and a plain
+     * {@link IOException} if it is damaged.
+     */
+    static BlockChecksums read(File file) throws IOException {
+        byte[] encoded;
+        try {
+            encoded = Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        if (encoded.length < HEADER_LENGTH + 4 || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a checksum file: " + file);
+        }
+        int blockSize = buffer.getInt();
+        long length = buffer.getLong();
+        int count = buffer.getInt();
+        if (blockSize <= 0 || length < 0 || count != blockCount(length, blockSize) || encoded.length != HEADER_LENGTH + count * 4 + 4) {
+            throw new IOException("Damaged checksum file: " + file);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(encoded, 0, encoded.length - 4);
+        if ((int) crc.getValue() != ByteBuffer.wrap(encoded, encoded.length - 4, 4).getInt()) {
+            throw new IOException("Damaged checksum file: " + file);
+        }
+        int[] crcs = new int[count];
+        for (int i = 0; i < count; i++) {
+            crcs[i] = buffer.getInt();
+        }
+        return new BlockChecksums(blockSize, length, crcs);
+    }
+
+    /**
+     * Encodes the checksums a reader of {@code length} bytes at {@code offset} needs: the file
+     * size, the block size, the first block overlapping the range and the CRC32C of every
+     * block from there to the end of the range.
+     */
+    byte[] encodeRange(long offset, long length) {
+        int first = (int) Math.min(crcs.length, offset / blockSize);
+        long end = Math.min(this.length, offset + Math.min(length, this.length));
+        int last = Math.max(first, blockCount(end, blockSize));
+        ByteBuffer buffer = ByteBuffer.allocate(20 + (last - first) * 4);
+        buffer.putLong(this.length).putInt(blockSize).putInt(first).putInt(last - first);
+        for (int block = first; block < last; block++) {
+            buffer.putInt(crcs[block]);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Computes the checksums of bytes appended in order.
+     */
+    static final class Builder {
+        private final int blockSize;
+        private final CRC32C crc = new CRC32C();
+        private int[] crcs = new int[16];
+        private int count;
+        private int filled;
+        private long length;
+
+        Builder(int blockSize) {
+            this.blockSize = blockSize;
+        }
+
+        void update(ByteBuffer data) {
+            int limit = data.limit();
+            while (data.hasRemaining()) {
+                int take = Math.min(blockSize - filled, data.remaining());
+                data.limit(data.position() + take);
+                crc.update(data);
+                data.limit(limit);
+                filled += take;
+                length += take;
+                if (filled == blockSize) {
+                    endBlock();
+                }
+            }
+        }
+
+        void update(byte[] data, int offset, int length) {
+            update(ByteBuffer.wrap(data, offset, length));
+        }
+
+        private void endBlock() {
+            if (count == crcs.length) {
+                crcs = Arrays.copyOf(crcs, count * 2);
+            }
+            crcs[count++] = (int) crc.getValue();
+            crc.reset();
+            filled = 0;
+        }
+
+        BlockChecksums finish() {
+            if (filled > 0) {
+                endBlock();
+            }
+            return new BlockChecksums(blockSize, length, Arrays.copyOf(crcs, count));
+        }
+    }
+
+    /**
+     * Checks bytes read from {@code offset} against the checksums a server sent with them, as
+     * encoded by {@link #encodeRange}. Blocks the range only partly covers cannot be checked
+     * here and are left to the server's scrubber.
+     */
+    static final class Verifier {
+        private final String name;
+        private final long fileLength;
+        private final int blockSize;
+        private final int firstBlock;
+        private final int[] crcs;
+        private final long start;
+        private final CRC32C crc = new CRC32C();
+        private long position;
+        private long verifiedBytes;
+
+        private Verifier(String name, long fileLength, int blockSize, int firstBlock, int[] crcs, long offset) {
+            this.name = name;
+            this.fileLength = fileLength;
+            this.blockSize = blockSize;
+            this.firstBlock = firstBlock;
+            this.crcs = crcs;
+            this.start = offset;
+            this.position = offset;
+        }
+
+        /**
+         * Reads the encoded checksums and returns a verifier for bytes that start at {@code offset}.
+         */
+        static Verifier read(String name, DataInputStream in, long offset) throws IOException {
+            long fileLength = in.readLong();
+            int blockSize = in.readInt();
+            int firstBlock = in.readInt();
+            int count = in.readInt();
+            if (fileLength < 0 || blockSize <= 0 || count < 0 || count > blockCount(fileLength, blockSize)) {
+                throw new IOException("Invalid checksums for " + name);
+            }
+            int[] crcs = new int[count];
+            for (int i = 0; i < count; i++) {
+                crcs[i] = in.readInt();
+            }
+            return new Verifier(name, fileLength, blockSize, firstBlock, crcs, offset);
+        }
+
+        long getFileLength() {
+            return fileLength;
+        }
+
+        void update(byte[] data, int offset, int length) throws IOException {
+            if (position + length > fileLength) {
+                throw new ChecksumException(name + " is longer than its checksums say (" + fileLength + " bytes)");
+            }
+            while (length > 0) {
+                long blockStart = position - position % blockSize;
+                long blockEnd = Math.min(blockStart + blockSize, fileLength);
+                int take = (int) Math.min(length, blockEnd - position);
+                crc.update(data, offset, take);
+                position += take;
+                offset += take;
+                length -= take;
+                if (position == blockEnd) {
+                    checkBlock(blockStart, blockEnd);
+                }
+            }
+        }
+
+        private void checkBlock(long blockStart, long blockEnd) throws IOException {
+            long block = blockStart / blockSize;
+            if (blockStart >= start && block >= firstBlock && block < firstBlock + crcs.length) {
+                if ((int) crc.getValue() != crcs[(int) (block - firstBlock)]) {
+                    throw new ChecksumException("Checksum mismatch in block " + block + " of " + name);
+                }
+                verifiedBytes += blockEnd - blockStart;
+            }
+            crc.reset();
+        }
+
+        /**
+         * Throws unless the bytes read reached the end of the file, which catches a replica
+         * serving a truncated copy.
+         */
+        void checkComplete() throws IOException {
+            if (position != fileLength) {
+                throw new ChecksumException(name + " ended at " + position + " of " + fileLength + " bytes");
+            }
+        }
+
+        /**
+         * Bytes that matched a checksum so far; the rest of what was read could not be checked.
+         */
+        long getVerifiedBytes() {
+            return verifiedBytes;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.dfs1;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes files as a stream of independently compressed blocks of {@code dfs.compress.blockBytes}
+ * (64 KB by default), so neither side ever holds more than a block of a file, and decodes such
+ * streams. Each block is a codec id, its decoded length and its encoded length, then the
+ * encoded bytes. A block that does not shrink by at least 1/32 is stored as it is, and after
+ * a few such blocks in a row the codec stops trying for a growing number of blocks, so
+ * incompressible data costs hardly more than a copy. Not thread-safe; use one per stream.
+ */
+final class BlockCodec implements Closeable {
+    static final int BLOCK_SIZE = Integer.getInteger("dfs.compress.blockBytes", 64 * 1024);
+    static final int MAX_BLOCK_SIZE = 4 * 1024 * 1024;
+    static final int HEADER_LENGTH = 9;
+    private static final int DEFLATE_LEVEL = Integer.getInteger("dfs.compress.deflateLevel", 6);
+    private static final int MISSES_BEFORE_SKIP = 4;
+    private static final int MAX_SKIPPED_BLOCKS = 64;
+    // A codec is made per chunk, so the hash table, reset for every block anyway, is kept per thread.
+    private static final ThreadLocal<int[]> LZ4_TABLES = ThreadLocal.withInitial(() -> new int[Lz4.HASH_TABLE_SIZE]);
+
+    private final Codec codec;
+    private final byte[] overflow = new byte[1];
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] stored = new byte[0];
+    private byte[] block = new byte[0];
+    private int misses;
+    private int skipRemaining;
+    private int skipLength = 1;
+    private int lastEncodedLength;
+
+    BlockCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * The most bytes {@code rawLength} bytes can take once encoded, which is when no block
+     * compresses.
+     */
+    static long maxEncodedLength(long rawLength) {
+        return rawLength + Math.max(1, BlockChecksums.blockCount(rawLength, BLOCK_SIZE)) * (long) HEADER_LENGTH;
+    }
+
+    /**
+     * Encodes {@code length} bytes as consecutive blocks into {@code dst}, which must have
+     * room for {@link #maxEncodedLength}, and returns the encoded length.
+     */
+    int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int op = dstOffset;
+        int end = offset + length;
+        do {
+            int take = Math.min(BLOCK_SIZE, end - offset);
+            op += encodeBlock(src, offset, take, dst, op);
+            offset += take;
+        } while (offset < end);
+        return op - dstOffset;
+    }
+
+    /**
+     * Encodes one block of at most {@link #MAX_BLOCK_SIZE} bytes, header included, and
+     * returns its encoded length.
+     */
+    int encodeBlock(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int encoded = -1;
+        if (codec != Codec.NONE && length > 0) {
+            if (skipRemaining > 0) {
+                skipRemaining--;
+            } else {
+                encoded = compress(src, offset, length, dst, dstOffset + HEADER_LENGTH, length - length / 32 - 1);
+                if (encoded >= 0) {
+                    misses = 0;
+                    skipLength = 1;
+                } else if (++misses >= MISSES_BEFORE_SKIP) {
+                    misses = 0;
+                    skipRemaining = skipLength;
+                    skipLength = Math.min(MAX_SKIPPED_BLOCKS, skipLength * 2);
+                }
+            }
+        }
+        Codec used = encoded < 0 ? Codec.NONE : codec;
+        if (encoded < 0) {
+            System.arraycopy(src, offset, dst, dstOffset + HEADER_LENGTH, length);
+            encoded = length;
+        }
+        ByteBuffer.wrap(dst, dstOffset, HEADER_LENGTH).put((byte) used.getId()).putInt(length).putInt(encoded);
+        return HEADER_LENGTH + encoded;
+    }
+
+    private int compress(byte[] src, int offset, int length, byte[] dst, int dstOffset, int maxLength) {
+        if (maxLength <= 0) {
+            return -1;
+        }
+        if (codec == Codec.LZ4) {
+            return Lz4.compress(src, offset, length, dst, dstOffset, maxLength, LZ4_TABLES.get());
+        }
+        if (deflater == null) {
+            deflater = new Deflater(DEFLATE_LEVEL, true);
+        }
+        deflater.reset();
+        deflater.setInput(src, offset, length);
+        deflater.finish();
+        int written = 0;
+        while (!deflater.finished() && written < maxLength) {
+            written += deflater.deflate(dst, dstOffset + written, maxLength - written);
+        }
+        return deflater.finished() ? written : -1;
+    }
+
+    /**
+     * Decodes the encoded bytes of one block into exactly {@code rawLength} bytes.
+     */
+    void decode(int codecId, byte[] src, int offset, int encodedLength, byte[] dst, int dstOffset, int rawLength) throws IOException {
+        Codec blockCodec = Codec.byId(codecId);
+        if (blockCodec == Codec.NONE) {
+            if (encodedLength != rawLength) {
+                throw new IOException("Stored block of " + encodedLength + " bytes claims " + rawLength);
+            }
+            System.arraycopy(src, offset, dst, dstOffset, rawLength);
+        } else if (blockCodec == Codec.LZ4) {
+            Lz4.decompress(src, offset, encodedLength, dst, dstOffset, rawLength);
+        } else {
+            if (inflater == null) {
+                inflater = new Inflater(true);
+            }
+            inflater.reset();
+            inflater.setInput(src, offset, encodedLength);
+            int inflated = 0;
+            try {
+                while (!inflater.finished()) {
+                    int count = inflated < rawLength ? inflater.inflate(dst, dstOffset + inflated, rawLength - inflated) : inflater.inflate(overflow);
+                    if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += count;
+                    if (inflated > rawLength) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflate block: " + e.getMessage());
+            }
+            if (inflated != rawLength || !inflater.finished() || inflater.getRemaining() > 0) {
+                throw new IOException("Deflate block does not decode to " + rawLength + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Reads the next block from {@code in} and decodes it into {@link #block()}. Returns the
+     * decoded length; {@link #getLastEncodedLength} then says how many bytes of the stream
+     * the block took.
+     */
+    int readBlock(DataInputStream in) throws IOException {
+        int codecId = in.readUnsignedByte();
+        int rawLength = in.readInt();
+        int encodedLength = in.readInt();
+        checkHeader(rawLength, encodedLength);
+        if (stored.length < encodedLength) {
+            stored = new byte[Math.max(encodedLength, BLOCK_SIZE)];
+        }
+        if (block.length < rawLength) {
+            block = new byte[Math.max(rawLength, BLOCK_SIZE)];
+        }
+        in.readFully(stored, 0, encodedLength);
+        decode(codecId, stored, 0, encodedLength, block, 0, rawLength);
+        lastEncodedLength = HEADER_LENGTH + encodedLength;
+        return rawLength;
+    }
+
+    /**
+     * The bytes of the block {@link #readBlock} decoded last.
+     */
+    byte[] block() {
+        return block;
+    }
+
+    int getLastEncodedLength() {
+        return lastEncodedLength;
+    }
+
+    static void checkHeader(int rawLength, int encodedLength) throws IOException {
+        if (rawLength < 0 || rawLength > MAX_BLOCK_SIZE || encodedLength < 0 || encodedLength > rawLength) {
+            throw new IOException("Invalid block header: " + rawLength + " bytes encoded as " + encodedLength);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+}
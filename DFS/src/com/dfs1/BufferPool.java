@@ -0,0 +1,311 @@
+package com.dfs1;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of equally sized buffers. Direct buffers are expensive to allocate and free,
+ * and heap ones turn into garbage, so transfers borrow one and hand it back instead.
+ *
+ * Direct buffers are cut from slabs of {@code dfs.buffers.slabSize} bytes (4 MB), so the JVM
+ * reserves native memory once per slab rather than per buffer. Each platform thread keeps up to
+ * {@code dfs.buffers.threadCache} (2) released buffers for itself in front of the shared free
+ * list; virtual threads go straight to the shared list. Released buffers beyond
+ * {@code maxPooled} are left to the garbage collector.
+ *
+ * One acquisition in {@code dfs.buffers.trackEvery} (64; 1 tracks all, 0 none) hands out a
+ * tracked view of the buffer. If the view is collected without being released, the leak is
+ * logged with the stack that acquired it and the buffer goes back to the pool. Releasing a
+ * buffer twice throws. {@code -Ddfs.buffers.pooled=false} allocates every buffer afresh, to
+ * compare against.
+ */
+public class BufferPool {
+    /** The size of the buffers file and network transfers copy through. */
+    static final int TRANSFER_SIZE = Integer.getInteger("dfs.transfer.bufferSize", 256 * 1024);
+    private static final int MAX_POOLED = Integer.getInteger("dfs.buffers.maxPooled", 64);
+    private static final int SLAB_SIZE = Integer.getInteger("dfs.buffers.slabSize", 4 * 1024 * 1024);
+    private static final int THREAD_CACHE = Integer.getInteger("dfs.buffers.threadCache", 2);
+    private static final int TRACK_EVERY = Integer.getInteger("dfs.buffers.trackEvery", 64);
+    private static final boolean POOLED = Boolean.parseBoolean(System.getProperty("dfs.buffers.pooled", "true"));
+    private static final int LEAK_FRAMES = 8;
+
+    /** Direct buffers for socket and file channels. */
+    static final BufferPool DIRECT = new BufferPool(TRANSFER_SIZE, MAX_POOLED, true);
+    /** Heap buffers for copy loops over streams and byte arrays. */
+    static final BufferPool HEAP = new BufferPool(TRANSFER_SIZE, MAX_POOLED, false);
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ByteBuffer[] free;
+    private int freeCount;
+    private ByteBuffer slab;
+    private final ThreadLocal<ByteBuffer[]> threadCache;
+
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+    private final Map<Integer, Lease> leases = new HashMap<>();
+    private volatile int leaseCount;
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder leaked = new LongAdder();
+
+    /**
+     * A tracked view handed out in place of a pooled buffer, which notices when it is
+     * collected without having been released. A released lease stays until its view is
+     * collected, so that releasing the view again is caught.
+     */
+    private static final class Lease extends WeakReference<ByteBuffer> {
+        final int key;
+        final ByteBuffer buffer;
+        final Throwable site;
+        Lease next;
+        boolean released;
+
+        Lease(ByteBuffer view, ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(view, queue);
+            this.key = System.identityHashCode(view);
+            this.buffer = buffer;
+            this.site = new Throwable("acquired here");
+        }
+    }
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this(bufferSize, maxPooled, true);
+    }
+
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.free = new ByteBuffer[Math.max(maxPooled, 0)];
+        // A virtual thread's cache would be thrown away with the thread.
+        this.threadCache = ThreadLocal.withInitial(() -> THREAD_CACHE > 0 && !VirtualThreads.isVirtual(Thread.currentThread())
+                ? new ByteBuffer[THREAD_CACHE] : null);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Buffers made so far, rather than reused.
+     */
+    public long getAllocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * Buffers acquired and not yet released.
+     */
+    public long getOutstanding() {
+        return acquisitions.get() - released.sum();
+    }
+
+    /**
+     * Tracked buffers that were collected without being released.
+     */
+    public long getLeaked() {
+        return leaked.sum();
+    }
+
+    /**
+     * A cleared buffer of {@link #getBufferSize} bytes, to be handed back with {@link #release}.
+     */
+    public ByteBuffer acquire() {
+        long acquisition = acquisitions.incrementAndGet();
+        if (!POOLED) {
+            allocated.increment();
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        if (leaseCount > 0) {
+            reclaimLeaks();
+        }
+        ByteBuffer buffer = takeCached();
+        if (buffer == null) {
+            buffer = takeShared();
+        }
+        buffer.clear();
+        if (TRACK_EVERY > 0 && acquisition % TRACK_EVERY == 0) {
+            return track(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Hands back a buffer from {@link #acquire}. Anything else of the wrong size or kind is
+     * ignored, as is null.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        released.increment();
+        if (!POOLED) {
+            return;
+        }
+        if (leaseCount > 0) {
+            ByteBuffer pooled = untrack(buffer);
+            if (pooled != null) {
+                buffer = pooled;
+            }
+        }
+        ByteBuffer[] cache = threadCache.get();
+        if (cache != null) {
+            for (int i = 0; i < cache.length; i++) {
+                if (cache[i] == buffer) {
+                    throw new IllegalStateException("Buffer released twice");
+                }
+            }
+            for (int i = 0; i < cache.length; i++) {
+                if (cache[i] == null) {
+                    cache[i] = buffer;
+                    return;
+                }
+            }
+        }
+        lock.lock();
+        try {
+            for (int i = 0; i < freeCount; i++) {
+                if (free[i] == buffer) {
+                    throw new IllegalStateException("Buffer released twice");
+                }
+            }
+            if (freeCount < free.length) {
+                free[freeCount++] = buffer;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer takeCached() {
+        ByteBuffer[] cache = threadCache.get();
+        if (cache != null) {
+            for (int i = cache.length - 1; i >= 0; i--) {
+                ByteBuffer buffer = cache[i];
+                if (buffer != null) {
+                    cache[i] = null;
+                    return buffer;
+                }
+            }
+        }
+        return null;
+    }
+
+    private ByteBuffer takeShared() {
+        lock.lock();
+        try {
+            if (freeCount > 0) {
+                ByteBuffer buffer = free[--freeCount];
+                free[freeCount] = null;
+                return buffer;
+            }
+            allocated.increment();
+            if (!direct) {
+                return ByteBuffer.allocate(bufferSize);
+            }
+            if (bufferSize * 2 > SLAB_SIZE) {
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+            if (slab == null || slab.remaining() < bufferSize) {
+                // Buffers keep their slab's memory alive, so the pool only holds the one being cut.
+                slab = ByteBuffer.allocateDirect(SLAB_SIZE - SLAB_SIZE % bufferSize);
+            }
+            ByteBuffer buffer = slab.slice(slab.position(), bufferSize);
+            slab.position(slab.position() + bufferSize);
+            return buffer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer track(ByteBuffer buffer) {
+        ByteBuffer view = buffer.duplicate();
+        Lease lease = new Lease(view, buffer, collected);
+        lock.lock();
+        try {
+            lease.next = leases.put(lease.key, lease);
+            leaseCount++;
+        } finally {
+            lock.unlock();
+        }
+        return view;
+    }
+
+    /**
+     * The pooled buffer behind {@code view} if it is a tracked view, otherwise null.
+     */
+    private ByteBuffer untrack(ByteBuffer view) {
+        lock.lock();
+        try {
+            for (Lease lease = leases.get(System.identityHashCode(view)); lease != null; lease = lease.next) {
+                if (lease.get() == view) {
+                    if (lease.released) {
+                        throw new IllegalStateException("Buffer released twice");
+                    }
+                    lease.released = true;
+                    return lease.buffer;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reclaimLeaks() {
+        Lease lease;
+        while ((lease = (Lease) collected.poll()) != null) {
+            boolean wasLeased;
+            lock.lock();
+            try {
+                wasLeased = unlink(lease) && !lease.released;
+            } finally {
+                lock.unlock();
+            }
+            if (wasLeased) {
+                leaked.increment();
+                StackTraceElement[] frames = lease.site.getStackTrace();
+                StringBuilder site = new StringBuilder();
+                // Skips the pool's own frames: the lease, track and acquire.
+                for (int i = 3; i < Math.min(frames.length, LEAK_FRAMES + 3); i++) {
+                    site.append(i > 3 ? " < " : "").append(frames[i].getClassName()).append('.').append(frames[i].getMethodName())
+                            .append(':').append(frames[i].getLineNumber());
+                }
+                Log.warn("buffer_leak", "size", bufferSize, "direct", direct, "acquired_at", site);
+                release(lease.buffer);
+            }
+        }
+    }
+
+    /**
+     * Takes {@code target} out of the leases; false if it was not there.
+     */
+    private boolean unlink(Lease target) {
+        Lease previous = null;
+        for (Lease lease = leases.get(target.key); lease != null; previous = lease, lease = lease.next) {
+            if (lease == target) {
+                if (previous != null) {
+                    previous.next = lease.next;
+                } else if (lease.next != null) {
+                    leases.put(target.key, lease.next);
+                } else {
+                    leases.remove(target.key);
+                }
+                leaseCount--;
+                return true;
+            }
+        }
+        return false;
+    }
+}
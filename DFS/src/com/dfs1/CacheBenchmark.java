@@ -0,0 +1,135 @@
+package com.dfs1;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Serves DOWNLOAD requests straight from a {@link DataNodeHandler}, with and without the file
+ * cache, for a Zipf-skewed read pattern over many small files. A scan that reads every file
+ * once runs between two skewed phases to show the cache keeps its hot files. Prints the hit
+ * rate, the time and the bytes allocated per read.
+ *
+ * Usage: CacheBenchmark [files] [reads] [cacheMB] [zipfExponent]
+ */
+public class CacheBenchmark {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    public static void main(String[] args) throws Exception {
+        int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        long cacheMb = args.length > 2 ? Long.parseLong(args[2]) : 32;
+        double exponent = args.length > 3 ? Double.parseDouble(args[3]) : 1.0;
+
+        Path directory = Files.createTempDirectory("dfs-cache-bench");
+        Random random = new Random(7);
+        String[] names = new String[fileCount];
+        long totalBytes = 0;
+        for (int i = 0; i < fileCount; i++) {
+            names[i] = "bundle-" + i + ".conf";
+            byte[] contents = new byte[4096 + random.nextInt(60 * 1024)];
+            random.nextBytes(contents);
+            Files.write(directory.resolve(names[i]), contents);
+            totalBytes += contents.length;
+        }
+        int[] hotOrder = new int[fileCount];
+        for (int i = 0; i < fileCount; i++) {
+            hotOrder[i] = i;
+        }
+        for (int i = fileCount - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = hotOrder[i];
+            hotOrder[i] = hotOrder[j];
+            hotOrder[j] = swap;
+        }
+        double[] cumulative = zipf(fileCount, exponent);
+        int[] pattern = new int[reads];
+        for (int i = 0; i < reads; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+            pattern[i] = hotOrder[Math.min(fileCount - 1, rank >= 0 ? rank : -rank - 1)];
+        }
+        System.out.printf("%d files, %.1f MB, %d reads per phase, Zipf exponent %.2f, cache %d MB%n",
+                fileCount, totalBytes / 1048576.0, reads, exponent, cacheMb);
+
+        try (FileChannel sink = FileChannel.open(Paths.get("/dev/null"), StandardOpenOption.WRITE)) {
+            FileCache disabled = new FileCache(0, 0);
+            run("no cache  skewed", new DataNodeHandler(new FileStore(directory.toFile(), disabled)), disabled, names, pattern, sink);
+
+            FileCache cache = new FileCache(cacheMb * 1024 * 1024, FileCache.DEFAULT_MAX_FILE_SIZE);
+            DataNodeHandler cached = new DataNodeHandler(new FileStore(directory.toFile(), cache));
+            run("cache     warm-up", cached, cache, names, pattern, sink);
+            run("cache     skewed", cached, cache, names, pattern, sink);
+            int[] scan = new int[fileCount];
+            for (int i = 0; i < fileCount; i++) {
+                scan[i] = i;
+            }
+            run("cache     scan", cached, cache, names, scan, sink);
+            run("cache     skewed", cached, cache, names, pattern, sink);
+            System.out.println(cache);
+        }
+        deleteAll(directory.toFile());
+    }
+
+    private static void run(String label, DataNodeHandler handler, FileCache cache, String[] names, int[] pattern,
+                            FileChannel sink) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int file : pattern) {
+            Response response = handler.handle(new Frame(Protocol.DOWNLOAD, 1, names[file], 0, 0), EMPTY);
+            try {
+                if (response.getFile() != null) {
+                    FileTransfer.send(response.getFile(), response.getFilePosition(), response.getFileLength(), sink, null);
+                } else {
+                    ByteBuffer payload = response.getPayload();
+                    while (payload.hasRemaining()) {
+                        sink.write(payload);
+                    }
+                }
+            } finally {
+                response.close();
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        long allocatedPerRead = (threads.getCurrentThreadAllocatedBytes() - allocated) / pattern.length;
+        long hitCount = cache.getHits() - hits;
+        long total = hitCount + cache.getMisses() - misses;
+        System.out.printf("%-18s hit rate %5.1f%%  %6.2f us/read  %5d B allocated/read%n", label,
+                total == 0 ? 0 : 100.0 * hitCount / total, nanos / 1000.0 / pattern.length, allocatedPerRead);
+    }
+
+    private static double[] zipf(int count, double exponent) {
+        double[] cumulative = new double[count];
+        double sum = 0;
+        for (int rank = 0; rank < count; rank++) {
+            sum += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = sum;
+        }
+        for (int rank = 0; rank < count; rank++) {
+            cumulative[rank] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static void deleteAll(File directory) {
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isDirectory()) {
+                deleteAll(file);
+            } else {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
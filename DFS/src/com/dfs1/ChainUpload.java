@@ -0,0 +1,220 @@
+package com.dfs1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A node's part in a {@link ReplicationPipeline}: it reads the chain header off the front of
+ * the payload, then writes every buffer both to its own copy and to the next node in the
+ * chain. A failure downstream only cuts the chain short; this node still keeps its copy and
+ * reports the failure in its acknowledgements.
+ */
+final class ChainUpload implements FileStore.Upload {
+    interface LocalTarget {
+        FileStore.Upload begin(Frame request) throws IOException;
+    }
+
+    private static final int DOWNSTREAM_TIMEOUT_MILLIS = Integer.getInteger("dfs.chain.timeoutMillis", 60_000);
+
+    private final Frame request;
+    private final LocalTarget target;
+    private final ConnectionPool pool;
+    private ByteBuffer header = ByteBuffer.allocate(2);
+    private boolean headerLengthRead;
+    private byte opcode;
+    private List<String> downstream = Collections.emptyList();
+    private FileStore.Upload local;
+    private DfsConnection next;
+    private int nextRequestId;
+    private String nextNode;
+    private String downstreamError = "No acknowledgement";
+    private final List<ReplicationPipeline.Ack> skipped = new ArrayList<>();
+
+    ChainUpload(Frame request, LocalTarget target, ConnectionPool pool) {
+        this.request = request;
+        this.target = target;
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        while (local == null && data.hasRemaining()) {
+            int length = Math.min(header.remaining(), data.remaining());
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + length);
+            header.put(part);
+            data.position(data.position() + length);
+            if (!header.hasRemaining()) {
+                readHeader();
+            }
+        }
+        if (local == null || !data.hasRemaining()) {
+            return;
+        }
+        if (next != null) {
+            forward(data.duplicate());
+        }
+        local.write(data);
+    }
+
+    private void readHeader() throws IOException {
+        header.flip();
+        if (!headerLengthRead) {
+            headerLengthRead = true;
+            header = ByteBuffer.allocate(header.getShort() & 0xFFFF);
+            if (header.hasRemaining()) {
+                return;
+            }
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header.array()));
+        opcode = in.readByte();
+        if (opcode != Protocol.UPLOAD && opcode != Protocol.UPLOAD_RANGE && opcode != Protocol.CHUNK_PUT && opcode != Protocol.MANIFEST_PUT
+                && opcode != Protocol.UPLOAD_ENCODED) {
+            throw new IOException("Cannot chain " + Protocol.opcodeName(opcode));
+        }
+        int count = in.readUnsignedByte();
+        List<String> nodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            nodes.add(in.readUTF());
+        }
+        downstream = nodes;
+        long dataLength = request.getPayloadLength() - 2 - header.capacity();
+        local = target.begin(new Frame(opcode, request.getRequestId(), request.getName(), request.getOffset(), dataLength));
+        if (!downstream.isEmpty()) {
+            connectDownstream(dataLength);
+        }
+    }
+
+    /**
+     * Connects to the first reachable downstream node, which takes over the rest of the chain.
+     * Nodes that cannot be reached are skipped and acknowledged as failed.
+     */
+    private void connectDownstream(long dataLength) {
+        for (int i = 0; i < downstream.size(); i++) {
+            String node = downstream.get(i);
+            try {
+                List<InetSocketAddress> rest = new ArrayList<>();
+                for (String restNode : downstream.subList(i + 1, downstream.size())) {
+                    rest.add(ClusterConfig.parseNode(restNode));
+                }
+                byte[] nextHeader = ReplicationPipeline.chainHeader(opcode, rest);
+                next = pool.borrowLive(ClusterConfig.parseNode(node));
+                next.setReadTimeout(DOWNSTREAM_TIMEOUT_MILLIS);
+                nextRequestId = next.forward(request, Protocol.UPLOAD_CHAIN, nextHeader.length + dataLength);
+                next.out().write(nextHeader);
+                nextNode = node;
+                return;
+            } catch (IOException | RuntimeException e) {
+                dropDownstream("Forwarding to " + node + " failed: " + e.getMessage());
+                skipped.add(new ReplicationPipeline.Ack(Protocol.STATUS_ERROR, 0, downstreamError));
+            }
+        }
+    }
+
+    private void forward(ByteBuffer data) {
+        try {
+            if (data.hasArray()) {
+                next.out().write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                return;
+            }
+            ByteBuffer copy = BufferPool.HEAP.acquire();
+            try {
+                while (data.hasRemaining()) {
+                    int length = Math.min(copy.capacity(), data.remaining());
+                    data.get(copy.array(), 0, length);
+                    next.out().write(copy.array(), 0, length);
+                }
+            } finally {
+                BufferPool.HEAP.release(copy);
+            }
+        } catch (IOException e) {
+            dropDownstream("Forwarding to " + nextNode + " failed: " + e.getMessage());
+        }
+    }
+
+    private void dropDownstream(String error) {
+        downstreamError = error;
+        if (next != null) {
+            pool.discard(next);
+            next = null;
+        }
+    }
+
+    @Override
+    public int commit() throws IOException {
+        if (local == null) {
+            throw new IOException("Chain header is incomplete");
+        }
+        return local.commit();
+    }
+
+    /**
+     * Commits the local copy, waits for the rest of the chain and returns the acknowledgements
+     * of this node followed by those of every node after it.
+     */
+    byte[] finish() throws IOException {
+        List<ReplicationPipeline.Ack> acks = new ArrayList<>();
+        try {
+            int checksum = commit();
+            if (opcode == Protocol.UPLOAD || opcode == Protocol.MANIFEST_PUT || opcode == Protocol.UPLOAD_ENCODED) {
+                Log.info("file_uploaded", "file", request.getName());
+            }
+            acks.add(new ReplicationPipeline.Ack(Protocol.STATUS_OK, checksum, "File uploaded successfully: " + request.getName()));
+        } catch (IOException e) {
+            abortLocal();
+            acks.add(new ReplicationPipeline.Ack(Protocol.STATUS_ERROR, 0, "Upload failed: " + e.getMessage()));
+        }
+        acks.addAll(downstreamAcks());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(acks.size());
+        for (ReplicationPipeline.Ack ack : acks) {
+            ReplicationPipeline.writeAck(out, ack);
+        }
+        return bytes.toByteArray();
+    }
+
+    private List<ReplicationPipeline.Ack> downstreamAcks() {
+        List<ReplicationPipeline.Ack> acks = new ArrayList<>(skipped);
+        if (next != null) {
+            try {
+                next.flush();
+                next.readOk(nextRequestId);
+                acks.addAll(ReplicationPipeline.readAcks(next.in()));
+                pool.release(next);
+            } catch (DfsServerException e) {
+                pool.release(next);
+                downstreamError = nextNode + ": " + e.getMessage();
+            } catch (IOException e) {
+                pool.discard(next);
+                downstreamError = "No acknowledgement from " + nextNode + ": " + e.getMessage();
+            }
+            next = null;
+        }
+        while (acks.size() < downstream.size()) {
+            acks.add(new ReplicationPipeline.Ack(Protocol.STATUS_ERROR, 0, downstreamError));
+        }
+        return acks;
+    }
+
+    private void abortLocal() {
+        if (local != null) {
+            local.abort();
+            local = null;
+        }
+    }
+
+    @Override
+    public void abort() {
+        abortLocal();
+        dropDownstream("Upload aborted");
+    }
+}
@@ -0,0 +1,15 @@
+package com.dfs1;
+
+import java.io.IOException;
+
+/**
+ * Bytes read from a replica did not match the checksums stored with them. The read is
+ * retried on another replica.
+ */
+public class ChecksumException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ChecksumException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,191 @@
+package com.dfs1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * The chunks of deduplicated files, each stored once under its SHA-256 as
+ * {@code <first two hex digits>/<hash>}. A chunk is written to a temporary file, checked
+ * against its hash and only then moved into place, so a stored chunk is always complete.
+ *
+ * Chunks no manifest refers to are removed by {@link #sweep}, but only once nobody has stored
+ * or asked for them during the grace period ({@code dfs.dedup.gcGraceSeconds}, an hour by
+ * default). That keeps the chunks of an upload alive until its manifest arrives.
+ */
+class ChunkStore {
+    private static final long GRACE_MILLIS = Long.getLong("dfs.dedup.gcGraceSeconds", 3600) * 1000;
+
+    private final File directory;
+    private final File tempDirectory;
+    private final Object[] locks = new Object[256];
+    private final AtomicLong nextTempId = new AtomicLong();
+    private final UploadCommitter committer;
+
+    ChunkStore(File directory, UploadCommitter committer) {
+        this.directory = directory;
+        this.committer = committer;
+        this.tempDirectory = new File(directory, "tmp");
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    static boolean isHash(String name) {
+        if (name.length() != Manifest.HASH_LENGTH * 2) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private File file(String hash) {
+        return new File(new File(directory, hash.substring(0, 2)), hash);
+    }
+
+    private Object lock(String hash) {
+        return locks[Integer.parseInt(hash.substring(0, 2), 16)];
+    }
+
+    /**
+     * Returns true if the chunk is stored, and if so protects it from the next sweeps.
+     */
+    boolean touch(String hash) {
+        File chunk = file(hash);
+        synchronized (lock(hash)) {
+            return chunk.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    FileChannel open(String hash) throws IOException {
+        try {
+            return FileChannel.open(file(hash).toPath(), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            throw new IOException("Missing chunk " + hash);
+        }
+    }
+
+    FileStore.Upload beginPut(String hash, long length) throws IOException {
+        return beginPut(hash, length, false);
+    }
+
+    /**
+     * Stores a chunk that was found damaged, replacing the stored copy once the new one has
+     * been checked against the hash.
+     */
+    FileStore.Upload beginRepair(String hash, long length) throws IOException {
+        return beginPut(hash, length, true);
+    }
+
+    private FileStore.Upload beginPut(String hash, long length, boolean replace) throws IOException {
+        if (!isHash(hash)) {
+            throw new IOException("Invalid chunk hash: " + hash);
+        }
+        if (length > ContentChunker.MAX_SIZE) {
+            throw new IOException("Chunk of " + length + " bytes is larger than " + ContentChunker.MAX_SIZE);
+        }
+        tempDirectory.mkdirs();
+        File temp = new File(tempDirectory, hash + "." + nextTempId.incrementAndGet());
+        FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new FileStore.Upload() {
+            private final MessageDigest sha = ContentChunker.sha256();
+            private final CRC32C crc = new CRC32C();
+
+            @Override
+            public void write(ByteBuffer data) throws IOException {
+                ByteBuffer hashed = data.duplicate();
+                ByteBuffer checksummed = data.duplicate();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                sha.update(hashed);
+                crc.update(checksummed);
+            }
+
+            @Override
+            public int commit() throws IOException {
+                try {
+                    if (!Manifest.hex(sha.digest()).equals(hash)) {
+                        throw new IOException("Chunk does not match its hash " + hash);
+                    }
+                    committer.force(channel);
+                } catch (IOException e) {
+                    abort();
+                    throw e;
+                }
+                channel.close();
+                File target = file(hash);
+                target.getParentFile().mkdirs();
+                try {
+                    committer.publish(lock(hash), () -> {
+                        if (replace || !target.setLastModified(System.currentTimeMillis())) {
+                            Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        }
+                    }, target.getParentFile().toPath());
+                } finally {
+                    temp.delete();
+                }
+                return (int) crc.getValue();
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                temp.delete();
+            }
+        };
+    }
+
+    /**
+     * Deletes the chunks outside {@code live} that are older than the grace period, along
+     * with abandoned temporary files, and returns how many chunks were deleted.
+     */
+    int sweep(Set<String> live) {
+        long cutoff = System.currentTimeMillis() - GRACE_MILLIS;
+        int removed = 0;
+        File[] prefixes = directory.listFiles(File::isDirectory);
+        if (prefixes == null) {
+            return 0;
+        }
+        for (File prefix : prefixes) {
+            if (prefix.equals(tempDirectory)) {
+                File[] temps = prefix.listFiles();
+                for (File temp : temps == null ? new File[0] : temps) {
+                    if (temp.lastModified() < cutoff) {
+                        temp.delete();
+                    }
+                }
+                continue;
+            }
+            File[] chunks = prefix.listFiles();
+            if (chunks == null || chunks.length == 0) {
+                continue;
+            }
+            synchronized (lock(chunks[0].getName())) {
+                for (File chunk : chunks) {
+                    if (!live.contains(chunk.getName()) && chunk.lastModified() < cutoff && chunk.delete()) {
+                        removed++;
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,521 @@
+package com.dfs1;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+/**
+ * Moves large files as fixed-size chunks, several at a time over separate pooled connections.
+ * Both directions are resumable: an upload first asks the server which chunks it already
+ * holds, and a download keeps its progress next to the target file, so after a failure only
+ * the missing chunks are transferred again. Unless the codec is {@link Codec#NONE}, chunks
+ * travel compressed: uploads send each chunk as a {@link BlockCodec} stream, and downloads
+ * take a compressed file's blocks as stored and decode them here.
+ */
+public class ChunkedTransfer {
+    public static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("dfs.chunkSize", 8 * 1024 * 1024);
+    public static final int DEFAULT_PARALLELISM = Integer.getInteger("dfs.transfer.parallelism", 4);
+    static final int MAX_ATTEMPTS = 3;
+    private static final int SAMPLE_BLOCKS = 4;
+
+    interface ChunkTask {
+        void run(int index, int attempt) throws IOException;
+    }
+
+    /**
+     * Receives downloaded bytes in file order.
+     */
+    interface Sink {
+        void accept(byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    private final ConnectionPool pool;
+    private final int chunkSize;
+    private final int parallelism;
+    private final Codec codec;
+
+    public ChunkedTransfer(ConnectionPool pool) {
+        this(pool, DEFAULT_CHUNK_SIZE, DEFAULT_PARALLELISM);
+    }
+
+    public ChunkedTransfer(ConnectionPool pool, int chunkSize, int parallelism) {
+        this(pool, chunkSize, parallelism, Codec.DEFAULT);
+    }
+
+    public ChunkedTransfer(ConnectionPool pool, int chunkSize, int parallelism, Codec codec) {
+        if (chunkSize < PartialFile.MIN_CHUNK_SIZE || chunkSize > PartialFile.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between " + PartialFile.MIN_CHUNK_SIZE
+                    + " and " + PartialFile.MAX_CHUNK_SIZE + " bytes");
+        }
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        this.parallelism = Math.max(1, parallelism);
+        this.codec = codec;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Whether the chunks of {@code file} are uploaded compressed: only if its first blocks
+     * compress, so incompressible files are sent as they are. Chunks are joined block by block
+     * on the server, so they must hold whole blocks.
+     */
+    private boolean encodesChunks(File file) throws IOException {
+        if (codec == Codec.NONE || chunkSize % BlockCodec.BLOCK_SIZE != 0) {
+            return false;
+        }
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long sample = Math.min(in.size(), SAMPLE_BLOCKS * (long) BlockCodec.BLOCK_SIZE);
+            return encode(in, 0, sample, codec).length < sample;
+        }
+    }
+
+    public void upload(InetSocketAddress server, File file, String name) throws IOException {
+        long size = file.length();
+        BitSet present = pool.call(server, connection -> chunkStatus(connection, name, size, false));
+        List<Integer> missing = new ArrayList<>();
+        for (int index = present.nextClearBit(0); index < PartialFile.chunkCount(size, chunkSize); index = present.nextClearBit(index + 1)) {
+            missing.add(index);
+        }
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            runChunks(missing, (index, attempt) -> pool.call(server, connection -> {
+                uploadChunk(connection, in, name, index, size, null, false);
+                return null;
+            }));
+        }
+        pool.call(server, connection -> {
+            int requestId = connection.send(Protocol.COMMIT, name, 0);
+            connection.flush();
+            return connection.readMessage(connection.readOk(requestId));
+        });
+    }
+
+    private BitSet chunkStatus(DfsConnection connection, String name, long size, boolean encoded) throws IOException {
+        int requestId = connection.send(Protocol.CHUNK_STATUS, name, 13);
+        connection.out().writeLong(size);
+        connection.out().writeInt(chunkSize);
+        connection.out().writeBoolean(encoded);
+        connection.flush();
+        connection.readOk(requestId);
+        connection.in().readLong();
+        connection.in().readInt();
+        int count = connection.in().readInt();
+        BitSet present = new BitSet();
+        for (int i = 0; i < count; i++) {
+            present.set(connection.in().readInt());
+            connection.in().readInt();
+        }
+        return present;
+    }
+
+    /**
+     * Uploads {@code file} to every node of {@code chain}, sending each chunk once to the head
+     * of the chain, which forwards it down the {@link ReplicationPipeline}. Chunks every node
+     * already holds are skipped. A node is reported as failed if it missed a chunk or could not
+     * commit; running the upload again resumes it.
+     */
+    public List<Placement.ReplicaResult> uploadChain(List<InetSocketAddress> chain, File file, String name) throws IOException {
+        long size = file.length();
+        boolean encoded = encodesChunks(file);
+        List<Placement.ReplicaResult> results = new ArrayList<>();
+        List<InetSocketAddress> live = new ArrayList<>();
+        BitSet everywhere = null;
+        for (InetSocketAddress node : chain) {
+            try {
+                BitSet present = pool.call(node, connection -> chunkStatus(connection, name, size, encoded));
+                if (everywhere == null) {
+                    everywhere = present;
+                } else {
+                    everywhere.and(present);
+                }
+                live.add(node);
+            } catch (IOException e) {
+                results.add(new Placement.ReplicaResult(node, null, e));
+            }
+        }
+        if (live.isEmpty()) {
+            return results;
+        }
+        List<Integer> missing = new ArrayList<>();
+        for (int index = everywhere.nextClearBit(0); index < PartialFile.chunkCount(size, chunkSize); index = everywhere.nextClearBit(index + 1)) {
+            missing.add(index);
+        }
+        InetSocketAddress head = live.get(0);
+        List<InetSocketAddress> downstream = live.subList(1, live.size());
+        byte[] header = ReplicationPipeline.chainHeader(Protocol.UPLOAD_RANGE, downstream);
+        Map<InetSocketAddress, String> damaged = new ConcurrentHashMap<>();
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            runChunks(missing, (index, attempt) -> {
+                List<ReplicationPipeline.Ack> acks = pool.call(head, connection -> uploadChunk(connection, in, name, index, size, header, encoded));
+                for (int i = 1; i < acks.size() && i <= downstream.size(); i++) {
+                    if (!acks.get(i).isOk()) {
+                        damaged.putIfAbsent(downstream.get(i - 1), "Chunk " + index + " was not stored: " + acks.get(i).message);
+                    }
+                }
+            });
+        }
+        for (InetSocketAddress node : live) {
+            String error = damaged.get(node);
+            if (error != null) {
+                results.add(new Placement.ReplicaResult(node, null, new IOException(error)));
+                continue;
+            }
+            try {
+                String message = pool.call(node, connection -> {
+                    int requestId = connection.send(Protocol.COMMIT, name, 0);
+                    connection.flush();
+                    return connection.readMessage(connection.readOk(requestId));
+                });
+                results.add(new Placement.ReplicaResult(node, message, null));
+            } catch (IOException e) {
+                results.add(new Placement.ReplicaResult(node, null, e));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Sends one chunk, directly or wrapped in {@code chainHeader}, and checks the CRC32C each
+     * node stored against the one computed while sending. An {@code encoded} chunk is
+     * compressed into memory first, as its length must be known before it is sent. Returns
+     * the chain's acknowledgements, or null for a direct upload.
+     */
+    private List<ReplicationPipeline.Ack> uploadChunk(DfsConnection connection, FileChannel in, String name, int index, long size,
+                                                      byte[] chainHeader, boolean encoded) throws IOException {
+        long offset = (long) index * chunkSize;
+        long length = Math.min(chunkSize, size - offset);
+        byte[] encodedChunk = null;
+        long sent = length;
+        if (encoded) {
+            encodedChunk = encode(in, offset, length, codec);
+            sent = encodedChunk.length;
+        }
+        int requestId;
+        if (chainHeader == null) {
+            requestId = connection.send(Protocol.UPLOAD_RANGE, name, offset, sent);
+        } else {
+            requestId = connection.send(Protocol.UPLOAD_CHAIN, name, offset, chainHeader.length + sent);
+            connection.out().write(chainHeader);
+        }
+        CRC32C crc = new CRC32C();
+        if (encodedChunk != null) {
+            crc.update(encodedChunk);
+            connection.out().write(encodedChunk);
+        } else {
+            ByteBuffer wrapped = BufferPool.HEAP.acquire();
+            try {
+                byte[] buffer = wrapped.array();
+                long position = offset;
+                while (position < offset + length) {
+                    wrapped.clear();
+                    wrapped.limit((int) Math.min(buffer.length, offset + length - position));
+                    int read = in.read(wrapped, position);
+                    if (read < 0) {
+                        throw new EOFException("File shrank while chunk " + index + " was being uploaded");
+                    }
+                    crc.update(buffer, 0, read);
+                    connection.out().write(buffer, 0, read);
+                    position += read;
+                    connection.checkAnswered(requestId);
+                }
+            } finally {
+                BufferPool.HEAP.release(wrapped);
+            }
+        }
+        connection.flush();
+        connection.readOk(requestId);
+        if (chainHeader == null) {
+            if (connection.in().readInt() != (int) crc.getValue()) {
+                throw new IOException("Checksum mismatch on chunk " + index + " of " + name);
+            }
+            return null;
+        }
+        List<ReplicationPipeline.Ack> acks = ReplicationPipeline.readAcks(connection.in());
+        for (int i = 0; i < acks.size(); i++) {
+            ReplicationPipeline.Ack ack = acks.get(i);
+            if (ack.isOk() && ack.checksum != (int) crc.getValue()) {
+                acks.set(i, new ReplicationPipeline.Ack(Protocol.STATUS_ERROR, ack.checksum, "checksum mismatch"));
+            }
+        }
+        if (acks.isEmpty() || !acks.get(0).isOk()) {
+            throw new IOException("Chunk " + index + " of " + name + " failed: " + (acks.isEmpty() ? "no acknowledgement" : acks.get(0).message));
+        }
+        return acks;
+    }
+
+    /**
+     * Reads {@code length} bytes of {@code in} from {@code offset} a block at a time and
+     * returns them encoded with {@code codec}.
+     */
+    static byte[] encode(FileChannel in, long offset, long length, Codec codec) throws IOException {
+        byte[] encoded = new byte[(int) BlockCodec.maxEncodedLength(length)];
+        ByteBuffer wrapped = BlockCodec.BLOCK_SIZE <= BufferPool.HEAP.getBufferSize() ? BufferPool.HEAP.acquire()
+                : ByteBuffer.allocate(BlockCodec.BLOCK_SIZE);
+        int encodedLength = 0;
+        try (BlockCodec encoder = new BlockCodec(codec)) {
+            long position = offset;
+            do {
+                int take = (int) Math.min(BlockCodec.BLOCK_SIZE, offset + length - position);
+                wrapped.clear().limit(take);
+                while (wrapped.hasRemaining()) {
+                    if (in.read(wrapped, position + wrapped.position()) < 0) {
+                        throw new EOFException("File shrank while it was being compressed");
+                    }
+                }
+                encodedLength += encoder.encodeBlock(wrapped.array(), 0, take, encoded, encodedLength);
+                position += take;
+            } while (position < offset + length);
+        } finally {
+            BufferPool.HEAP.release(wrapped);
+        }
+        return encodedLength == encoded.length ? encoded : Arrays.copyOf(encoded, encodedLength);
+    }
+
+    /**
+     * Downloads {@code name} into {@code target}. Progress is kept in {@code target.part} and
+     * {@code target.chunks} until the last chunk arrives.
+     */
+    public void download(InetSocketAddress server, String name, File target) throws IOException {
+        List<InetSocketAddress> replicas = Collections.singletonList(server);
+        download(replicas, name, stat(replicas, name), target);
+    }
+
+    /**
+     * Returns the size of {@code name} as reported by the first replica that answers.
+     */
+    public long stat(List<InetSocketAddress> replicas, String name) throws IOException {
+        IOException failure = null;
+        for (InetSocketAddress replica : replicas) {
+            try {
+                return pool.call(replica, connection -> {
+                    int requestId = connection.send(Protocol.STAT, name, 0);
+                    connection.flush();
+                    connection.readOk(requestId);
+                    return connection.in().readLong();
+                });
+            } catch (DfsServerException e) {
+                if (!e.isNotFound() || failure == null) {
+                    failure = e;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure != null ? failure : new IOException("No replicas of " + name);
+    }
+
+    /**
+     * Downloads {@code size} bytes of {@code name} from several replicas at once: chunk
+     * {@code i} comes from replica {@code i mod n}, and a chunk that fails is retried from the
+     * next replica, so throughput grows with the replica count and one slow or failed node
+     * only costs the chunks it was serving. Each chunk is checked against the block checksums
+     * of the replica that sent it, and one that does not match is fetched again elsewhere.
+     */
+    public void download(List<InetSocketAddress> replicas, String name, long size, File target) throws IOException {
+        if (replicas.isEmpty()) {
+            throw new IOException("No replicas of " + name);
+        }
+        File directory = target.getAbsoluteFile().getParentFile();
+        PartialFile partial = PartialFile.open(directory, target.getName(), size, chunkSize);
+        try {
+            runChunks(partial.missingChunks(), (index, attempt) -> pool.call(replicas.get((index + attempt) % replicas.size()), connection -> {
+                downloadChunk(connection, partial, name, index, size);
+                return null;
+            }));
+            partial.publish(target);
+        } catch (IOException e) {
+            partial.close();
+            throw e;
+        }
+    }
+
+    private void downloadChunk(DfsConnection connection, PartialFile partial, String name, int index, long size) throws IOException {
+        long offset = (long) index * chunkSize;
+        long length = Math.min(chunkSize, size - offset);
+        int checksumsId = requestChecksums(connection, name, offset, length);
+        int requestId = requestDownload(connection, name, offset, length);
+        connection.flush();
+        BlockChecksums.Verifier verifier = readChecksums(connection, checksumsId, name, offset);
+        Frame response = connection.readOk(requestId);
+        FileStore.Upload chunk = partial.beginChunk(offset, length);
+        long received = readDownload(connection, response, name, offset, length, (bytes, from, count) -> {
+            if (verifier != null) {
+                verifier.update(bytes, from, count);
+            }
+            chunk.write(ByteBuffer.wrap(bytes, from, count));
+        });
+        if (received != length) {
+            throw new EOFException("Chunk " + index + " of " + name + " ended " + (length - received) + " bytes early");
+        }
+        chunk.commit();
+    }
+
+    /**
+     * Asks for {@code length} bytes of {@code name} from {@code offset} with
+     * {@link Protocol#DOWNLOAD_ENCODED}, offering to decode every codec unless this transfer
+     * does not compress at all.
+     */
+    int requestDownload(DfsConnection connection, String name, long offset, long length) throws IOException {
+        int accepted = Codec.NONE.mask();
+        for (Codec known : Codec.values()) {
+            if (codec != Codec.NONE) {
+                accepted |= known.mask();
+            }
+        }
+        int requestId = connection.send(Protocol.DOWNLOAD_ENCODED, name, offset, 12);
+        connection.out().writeLong(length);
+        connection.out().writeInt(accepted);
+        return requestId;
+    }
+
+    /**
+     * Reads the body of a {@link #requestDownload} answer and passes the bytes of the range
+     * that was asked for to {@code sink}, decoding them if they came as blocks. Returns how
+     * many bytes were passed. Any failure leaves the body partly read, so it is thrown as a
+     * plain {@link IOException} and the connection is not reused.
+     */
+    static long readDownload(DfsConnection connection, Frame response, String name, long offset, long length, Sink sink) throws IOException {
+        DataInputStream in = connection.in();
+        long remaining = response.getPayloadLength() - 1;
+        long position = response.getOffset();
+        long end = offset + Math.min(length, Long.MAX_VALUE - offset);
+        byte encoding = remaining < 0 ? -1 : in.readByte();
+        if (position > offset || (position < offset && remaining > 0 && encoding != Protocol.ENCODING_BLOCKS)) {
+            throw new IOException("Server returned " + response + " for " + name + " from " + offset);
+        }
+        long passed = 0;
+        if (encoding == Protocol.ENCODING_IDENTITY) {
+            ByteBuffer pooled = BufferPool.HEAP.acquire();
+            try {
+                byte[] buffer = pooled.array();
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException(name + " ended " + remaining + " bytes early");
+                    }
+                    sink.accept(buffer, 0, read);
+                    passed += read;
+                    remaining -= read;
+                }
+            } finally {
+                BufferPool.HEAP.release(pooled);
+            }
+        } else if (encoding == Protocol.ENCODING_BLOCKS) {
+            try (BlockCodec decoder = new BlockCodec(Codec.NONE)) {
+                while (remaining > 0) {
+                    int decoded = decoder.readBlock(in);
+                    remaining -= decoder.getLastEncodedLength();
+                    if (remaining < 0) {
+                        throw new IOException("Block overruns the response for " + name);
+                    }
+                    int from = (int) Math.max(0, Math.min(decoded, offset - position));
+                    int to = (int) Math.max(from, Math.min(decoded, end - position));
+                    if (to > from) {
+                        sink.accept(decoder.block(), from, to - from);
+                        passed += to - from;
+                    }
+                    position += decoded;
+                }
+            }
+        } else {
+            throw new IOException("Unknown encoding " + encoding + " for " + name);
+        }
+        return passed;
+    }
+
+    /**
+     * Asks for the checksums of a range ahead of downloading it on the same connection, so
+     * both travel in one round trip.
+     */
+    static int requestChecksums(DfsConnection connection, String name, long offset, long length) throws IOException {
+        int requestId = connection.send(Protocol.CHECKSUMS, name, offset, 8);
+        connection.out().writeLong(length);
+        return requestId;
+    }
+
+    /**
+     * Reads the answer to {@link #requestChecksums}. Returns null if the file has none, as
+     * files stored before checksums were kept do not. Any other error is thrown as a plain
+     * {@link IOException}, since the download pipelined behind it is left unread and the
+     * connection cannot be reused.
+     */
+    static BlockChecksums.Verifier readChecksums(DfsConnection connection, int requestId, String name, long offset) throws IOException {
+        try {
+            connection.readOk(requestId);
+        } catch (DfsServerException e) {
+            if (e.isNotFound()) {
+                return null;
+            }
+            throw new IOException(e.getMessage(), e);
+        }
+        return BlockChecksums.Verifier.read(name, connection.in(), offset);
+    }
+
+    /**
+     * Runs the chunks on up to {@code parallelism} threads, retrying each a few times. Throws
+     * if any chunk still failed; the transfer can then be resumed by calling it again.
+     */
+    void runChunks(List<Integer> chunks, ChunkTask task) throws IOException {
+        if (chunks.isEmpty()) {
+            return;
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(Math.min(parallelism, chunks.size()), VirtualThreads.clientThreads("dfs-chunk"));
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int index : chunks) {
+                results.add(workers.submit(() -> {
+                    IOException last = null;
+                    for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                        try {
+                            task.run(index, attempt);
+                            return null;
+                        } catch (IOException e) {
+                            last = e;
+                        }
+                    }
+                    throw last;
+                }));
+            }
+            int failed = 0;
+            IOException firstFailure = null;
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    failed++;
+                    if (firstFailure == null) {
+                        firstFailure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    }
+                }
+            }
+            if (firstFailure != null) {
+                throw new IOException(failed + " of " + chunks.size() + " chunks failed; retry to resume: " + firstFailure.getMessage(), firstFailure);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfer interrupted");
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+}
@@ -3,17 +3,18 @@ package com.dfs1;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
-import java.io.*;
+import java.io.File;
 import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class Client {
     private JFrame frame;
     private JTextArea serverResponseArea;
     private JTextField fileNameField;
 
-    private static final String[] SERVER_ADDRESSES = {"127.0.0.1", "127.0.0.1", "127.0.0.1"};
-    private static final int[] SERVER_PORTS = {5001, 5002, 5003};
+    private final DfsClient client = new DfsClient();
 
     public static void main(String[] args) {
         SwingUtilities.invokeLater(Client::new);
@@ -61,42 +62,26 @@ public class Client {
         frame.setVisible(true);
     }
 
-    private boolean isServerAvailable(String serverAddress, int port) {
-        try (Socket socket = new Socket()) {
-            socket.connect(new InetSocketAddress(serverAddress, port), 1000);
-            return true; 
-        } catch (IOException e) {
-            return false;
-        }
-    }
-
     private void handleUpload(ActionEvent event) {
         JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
         int result = fileChooser.showOpenDialog(frame);
 
         if (result == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-
-            for (int i = 0; i < SERVER_ADDRESSES.length; i++) {
-                if (isServerAvailable(SERVER_ADDRESSES[i], SERVER_PORTS[i])) {
-                    try (Socket socket = new Socket(SERVER_ADDRESSES[i], SERVER_PORTS[i]);
-                         DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                         FileInputStream fileIn = new FileInputStream(file)) {
-
-                        out.writeUTF("UPLOAD " + file.getName());
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-
-                        while ((bytesRead = fileIn.read(buffer)) != -1) {
-                            out.write(buffer, 0, bytesRead);
-                        }
-                        serverResponseArea.append("File uploaded to server on port " + SERVER_PORTS[i] + ": " + file.getName() + "\n");
-
-                    } catch (IOException e) {
-                        serverResponseArea.append("Error uploading to server on port " + SERVER_PORTS[i] + ": " + e.getMessage() + "\n");
-                    }
-                }
+            if (file.isDirectory()) {
+                append("Uploading folder " + file + "...");
+                client.uploadTree(file.toPath(), file.getName() + "/", null)
+                        .whenComplete((progress, error) -> appendBatch("Upload of " + file.getName(), progress, error));
+                return;
             }
+            client.upload(file, file.getName()).whenComplete((metadata, error) -> {
+                if (error == null) {
+                    append("Metadata updated: " + metadata);
+                } else {
+                    append("Error uploading " + file.getName() + ": " + cause(error).getMessage());
+                }
+            });
         }
     }
 
@@ -107,21 +92,22 @@ public class Client {
             return;
         }
 
-        for (int i = 0; i < SERVER_ADDRESSES.length; i++) {
-            if (isServerAvailable(SERVER_ADDRESSES[i], SERVER_PORTS[i])) {
-                try (Socket socket = new Socket(SERVER_ADDRESSES[i], SERVER_PORTS[i]);
-                     DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                     DataInputStream in = new DataInputStream(socket.getInputStream())) {
-
-                    out.writeUTF("DELETE " + fileName);
-                    String serverResponse = in.readUTF();
-                    serverResponseArea.append("Server on port " + SERVER_PORTS[i] + ": " + serverResponse + "\n");
-
-                } catch (IOException e) {
-                    serverResponseArea.append("Error deleting from server on port " + SERVER_PORTS[i] + ": " + e.getMessage() + "\n");
+        client.delete(fileName).whenComplete((results, error) -> {
+            if (error != null) {
+                append("Error deleting " + fileName + ": " + cause(error).getMessage());
+            } else if (results.isEmpty()) {
+                append("File not found: " + fileName);
+            } else {
+                for (Placement.ReplicaResult replica : results) {
+                    String node = ClusterConfig.describe(replica.getNode());
+                    if (replica.isSuccess()) {
+                        append("Server " + node + ": " + replica.getMessage());
+                    } else {
+                        append("Error deleting from server " + node + ": " + replica.getMessage());
+                    }
                 }
             }
-        }
+        });
     }
 
     private void handleDownload(ActionEvent event) {
@@ -138,55 +124,67 @@ public class Client {
 
         if (result == JFileChooser.APPROVE_OPTION) {
             File selectedDirectory = fileChooser.getSelectedFile();
+            if (fileName.endsWith("/")) {
+                append("Downloading folder " + fileName + "...");
+                client.downloadTree(fileName, selectedDirectory.toPath(), null)
+                        .whenComplete((progress, error) -> appendBatch("Download of " + fileName, progress, error));
+                return;
+            }
             String savePath = selectedDirectory.getAbsolutePath() + File.separator + "downloaded_" + fileName;
-
-            for (int i = 0; i < SERVER_ADDRESSES.length; i++) {
-                if (isServerAvailable(SERVER_ADDRESSES[i], SERVER_PORTS[i])) {
-                    try (Socket socket = new Socket(SERVER_ADDRESSES[i], SERVER_PORTS[i]);
-                         DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                         DataInputStream in = new DataInputStream(socket.getInputStream())) {
-
-                        out.writeUTF("DOWNLOAD " + fileName);
-                        String serverResponse = in.readUTF();
-                        if (serverResponse.equals("READY")) {
-                            try (FileOutputStream fileOut = new FileOutputStream(savePath)) {
-                                byte[] buffer = new byte[4096];
-                                int bytesRead;
-                                while ((bytesRead = in.read(buffer)) != -1) {
-                                    fileOut.write(buffer, 0, bytesRead);
-                                }
-                            }
-                            serverResponseArea.append("File downloaded from server on port " + SERVER_PORTS[i] + ": " + savePath + "\n");
-                            break;
-                        } else {
-                            serverResponseArea.append("Error from server on port " + SERVER_PORTS[i] + ": " + serverResponse + "\n");
-                        }
-                    } catch (IOException e) {
-                        serverResponseArea.append("Error downloading from server on port " + SERVER_PORTS[i] + ": " + e.getMessage() + "\n");
-                    }
+            client.download(fileName, new File(savePath)).whenComplete((size, error) -> {
+                if (error == null) {
+                    append("File downloaded: " + savePath);
+                } else if (cause(error) instanceof DfsServerException) {
+                    append("Error from server: " + cause(error).getMessage());
+                } else {
+                    append("Error downloading " + fileName + ": " + cause(error).getMessage());
                 }
-            }
+            });
         }
     }
 
+    /**
+     * Lists the files whose names match the text field, read as a glob if it has glob
+     * characters and as a prefix otherwise. The listing is read off the event thread.
+     */
     private void handleListFiles(ActionEvent event) {
-        for (int i = 0; i < SERVER_ADDRESSES.length; i++) {
-            if (isServerAvailable(SERVER_ADDRESSES[i], SERVER_PORTS[i])) {
-                try (Socket socket = new Socket(SERVER_ADDRESSES[i], SERVER_PORTS[i]);
-                     DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-                     DataInputStream in = new DataInputStream(socket.getInputStream())) {
-
-                    out.writeUTF("LIST");
-                    serverResponseArea.append("Files on server (port " + SERVER_PORTS[i] + "):\n");
-                    String response;
-                    while (!(response = in.readUTF()).equals("END_OF_LIST")) {
-                        serverResponseArea.append(response + "\n");
-                    }
-
-                } catch (IOException e) {
-                    serverResponseArea.append("Error listing files from server on port " + SERVER_PORTS[i] + ": " + e.getMessage() + "\n");
-                }
+        String filter = fileNameField.getText().trim();
+        boolean glob = filter.chars().anyMatch(c -> "*?[{".indexOf(c) >= 0);
+        String prefix = glob ? "" : filter;
+        String pattern = glob ? filter : "";
+        CompletableFuture.runAsync(() -> {
+            MergedListing listing = client.list(prefix, pattern);
+            StringBuilder text = new StringBuilder("Files in the cluster:\n");
+            if (!listing.hasNext()) {
+                text.append("No files available.\n");
+            }
+            while (listing.hasNext()) {
+                text.append(listing.next().getEntry()).append('\n');
             }
+            for (Map.Entry<InetSocketAddress, String> failure : listing.getFailures().entrySet()) {
+                text.append("Error listing files from server ").append(ClusterConfig.describe(failure.getKey())).append(": ")
+                        .append(failure.getValue()).append('\n');
+            }
+            SwingUtilities.invokeLater(() -> serverResponseArea.append(text.toString()));
+        });
+    }
+
+    private void appendBatch(String what, DfsClient.BatchProgress progress, Throwable error) {
+        if (error != null) {
+            append(what + " failed: " + cause(error).getMessage());
+            return;
         }
+        for (Map.Entry<String, String> failure : progress.getFailures().entrySet()) {
+            append("Error with " + failure.getKey() + ": " + failure.getValue());
+        }
+        append(what + " finished: " + progress);
+    }
+
+    private void append(String line) {
+        SwingUtilities.invokeLater(() -> serverResponseArea.append(line + "\n"));
+    }
+
+    private static Throwable cause(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
     }
 }
@@ -0,0 +1,64 @@
+package com.dfs1;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cluster layout shared by servers and clients, read from system properties:
+ * <ul>
+ *   <li>{@code dfs.nodes}: comma-separated host:port list, by default the three local ports 5001-5003</li>
+ *   <li>{@code dfs.replication}: copies kept of each file, default 3</li>
+ *   <li>{@code dfs.writeQuorum}: replicas that must confirm before an upload succeeds, default all of them</li>
+ *   <li>{@code dfs.virtualNodes}: points per node on the hash ring, default 128</li>
+ *   <li>{@code dfs.metadata}: host:port of the metadata server, default 127.0.0.1:5000</li>
+ *   <li>{@code dfs.seeds}: nodes that new nodes and clients first ask for the cluster's
+ *       {@link Membership}, by default {@code dfs.nodes}</li>
+ *   <li>{@code dfs.tenant}: the tenant a client's requests are scheduled and limited as, see
+ *       {@link QosScheduler}; none by default</li>
+ * </ul>
+ */
+public final class ClusterConfig {
+    public static final List<InetSocketAddress> NODES =
+            parseNodes(System.getProperty("dfs.nodes", "127.0.0.1:5001,127.0.0.1:5002,127.0.0.1:5003"));
+    public static final int REPLICATION_FACTOR = Math.max(1, Integer.getInteger("dfs.replication", 3));
+    public static final int WRITE_QUORUM =
+            Math.max(1, Math.min(REPLICATION_FACTOR, Integer.getInteger("dfs.writeQuorum", REPLICATION_FACTOR)));
+    public static final int VIRTUAL_NODES = Integer.getInteger("dfs.virtualNodes", 128);
+    public static final List<InetSocketAddress> SEEDS =
+            System.getProperty("dfs.seeds") == null ? NODES : parseNodes(System.getProperty("dfs.seeds"));
+    public static final InetSocketAddress METADATA = parseNode(System.getProperty("dfs.metadata", "127.0.0.1:5000"));
+    public static final String TENANT = System.getProperty("dfs.tenant", "");
+
+    private ClusterConfig() {
+    }
+
+    public static List<InetSocketAddress> parseNodes(String spec) {
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            String node = entry.trim();
+            if (node.isEmpty()) {
+                continue;
+            }
+            nodes.add(parseNode(node));
+        }
+        return Collections.unmodifiableList(nodes);
+    }
+
+    public static InetSocketAddress parseNode(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected host:port but got " + node);
+        }
+        return new InetSocketAddress(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1)));
+    }
+
+    public static HashRing<InetSocketAddress> newRing() {
+        return new HashRing<>(NODES, VIRTUAL_NODES, ClusterConfig::describe);
+    }
+
+    public static String describe(InetSocketAddress node) {
+        return node.getHostString() + ":" + node.getPort();
+    }
+}
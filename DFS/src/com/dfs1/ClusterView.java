@@ -0,0 +1,169 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A client's cached copy of the cluster {@link Membership}. The view is fetched from any
+ * node with a {@link Protocol#GOSSIP} request, live nodes first and the seeds last, and
+ * fetched again once it is older than {@code dfs.membership.refreshMillis} (2000). Callers
+ * never wait for a refresh another thread is already making; they use the view they have.
+ *
+ * Nodes join the ring as the view reports them and leave it once they have left the cluster;
+ * nodes that are down stay on it, so files keep their owners, but are tried last.
+ */
+public class ClusterView {
+    private static final long REFRESH_NANOS = Long.getLong("dfs.membership.refreshMillis", 2000) * 1_000_000;
+
+    private final ConnectionPool pool;
+    private final List<InetSocketAddress> seeds;
+    private final HashRing<InetSocketAddress> ring;
+    private final ReentrantLock refreshing = new ReentrantLock();
+    private volatile Map<InetSocketAddress, Byte> states = Collections.emptyMap();
+    private volatile long refreshedAt;
+    private volatile boolean fetched;
+
+    public ClusterView(ConnectionPool pool, List<InetSocketAddress> seeds) {
+        this.pool = pool;
+        this.seeds = new ArrayList<>(seeds);
+        this.ring = new HashRing<>(seeds, ClusterConfig.VIRTUAL_NODES, ClusterConfig::describe);
+    }
+
+    /**
+     * The ring over every node in the view that has not left. It changes as the view is
+     * refreshed.
+     */
+    public HashRing<InetSocketAddress> getRing() {
+        return ring;
+    }
+
+    /**
+     * Whether the cluster sees {@code node} as up. Nodes the view does not mention are
+     * assumed up.
+     */
+    public boolean isAlive(InetSocketAddress node) {
+        refreshIfStale();
+        Byte state = states.get(node);
+        return state == null || state == Membership.ALIVE;
+    }
+
+    public List<InetSocketAddress> liveNodes() {
+        refreshIfStale();
+        List<InetSocketAddress> live = new ArrayList<>();
+        for (InetSocketAddress node : ring.nodes()) {
+            if (isAlive(node)) {
+                live.add(node);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * {@code nodes} with the live ones first, each group in its original order.
+     */
+    public List<InetSocketAddress> liveFirst(List<InetSocketAddress> nodes) {
+        List<InetSocketAddress> ordered = new ArrayList<>(nodes.size());
+        List<InetSocketAddress> down = new ArrayList<>();
+        for (InetSocketAddress node : nodes) {
+            (isAlive(node) ? ordered : down).add(node);
+        }
+        ordered.addAll(down);
+        return ordered;
+    }
+
+    /**
+     * Fetches the view if it is older than the refresh interval and no other thread is
+     * fetching it. The first fetch is waited for, so that callers start from a real view.
+     */
+    public void refreshIfStale() {
+        if (fetched && System.nanoTime() - refreshedAt < REFRESH_NANOS) {
+            return;
+        }
+        if (!fetched) {
+            refreshing.lock();
+        } else if (!refreshing.tryLock()) {
+            return;
+        }
+        try {
+            if (!fetched || System.nanoTime() - refreshedAt >= REFRESH_NANOS) {
+                refresh();
+            }
+        } finally {
+            refreshing.unlock();
+        }
+    }
+
+    /**
+     * Asks the nodes in turn for their view until one answers. If none does, the old view is
+     * kept and the next attempt waits for another interval.
+     */
+    private void refresh() {
+        List<InetSocketAddress> candidates = new ArrayList<>();
+        for (Map.Entry<InetSocketAddress, Byte> entry : states.entrySet()) {
+            if (entry.getValue() == Membership.ALIVE) {
+                candidates.add(entry.getKey());
+            }
+        }
+        Collections.shuffle(candidates);
+        for (InetSocketAddress seed : seeds) {
+            if (!candidates.contains(seed)) {
+                candidates.add(seed);
+            }
+        }
+        try {
+            for (InetSocketAddress node : candidates) {
+                try {
+                    apply(fetch(node));
+                    return;
+                } catch (IOException e) {
+                    pool.evict(node);
+                }
+            }
+        } finally {
+            refreshedAt = System.nanoTime();
+            fetched = true;
+        }
+    }
+
+    private List<Membership.Member> fetch(InetSocketAddress node) throws IOException {
+        return pool.call(node, connection -> {
+            int requestId = connection.send(Protocol.GOSSIP, "", 0);
+            connection.flush();
+            Frame response = connection.readOk(requestId);
+            byte[] body = new byte[(int) response.getPayloadLength()];
+            connection.in().readFully(body);
+            return Membership.decode(ByteBuffer.wrap(body));
+        });
+    }
+
+    private void apply(List<Membership.Member> view) {
+        Map<InetSocketAddress, Byte> updated = new HashMap<>();
+        for (Membership.Member member : view) {
+            updated.put(member.node, member.state);
+            if (member.state == Membership.LEFT) {
+                ring.removeNode(member.node);
+            } else {
+                ring.addNode(member.node);
+            }
+        }
+        states = updated;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("cluster view:");
+        for (Map.Entry<InetSocketAddress, Byte> entry : states.entrySet()) {
+            byte state = entry.getValue();
+            text.append(' ').append(ClusterConfig.describe(entry.getKey()))
+                    .append(state == Membership.ALIVE ? " up" : state == Membership.LEFT ? " left" : " down");
+        }
+        return text.toString();
+    }
+}
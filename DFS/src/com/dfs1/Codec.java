@@ -0,0 +1,55 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * How the blocks of a compressed stream are encoded. {@code dfs.compress} picks the codec
+ * clients upload with: {@code lz4} (the default) for speed, {@code deflate} for ratio, or
+ * {@code none} to send and store files as they are.
+ */
+public enum Codec {
+    NONE(0), LZ4(1), DEFLATE(2);
+
+    public static final Codec DEFAULT = valueOf(System.getProperty("dfs.compress", "lz4").toUpperCase(Locale.ROOT));
+
+    private final int id;
+
+    Codec(int id) {
+        this.id = id;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * This codec's bit in a set of codecs, as a download request lists the ones it can decode.
+     */
+    int mask() {
+        return 1 << id;
+    }
+
+    static Codec byId(int id) throws IOException {
+        for (Codec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IOException("Unknown codec " + id);
+    }
+
+    /**
+     * The codecs in {@code mask}, most expensive to decode first, or "none" if it is empty.
+     */
+    static String describe(int mask) {
+        StringBuilder names = new StringBuilder();
+        Codec[] codecs = values();
+        for (int i = codecs.length - 1; i >= 0; i--) {
+            if ((mask & codecs[i].mask()) != 0 && codecs[i] != NONE) {
+                names.append(names.length() == 0 ? "" : "+").append(codecs[i].name().toLowerCase(Locale.ROOT));
+            }
+        }
+        return names.length() == 0 ? "none" : names.toString();
+    }
+}
@@ -0,0 +1,166 @@
+package com.dfs1;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A compressed file read as one channel over its decoded contents, so plain downloads, the
+ * read cache and the scrubber serve it like any other stored file. The block being read is
+ * decoded once and kept until a read moves past it.
+ */
+final class CompressedChannel extends FileChannel {
+    private final CompressedFile file;
+    private final BlockCodec decoder = new BlockCodec(Codec.NONE);
+    private long position;
+    private int decodedIndex = -1;
+    private int decodedLength;
+
+    CompressedChannel(CompressedFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Decodes the block holding {@code position} and returns where that block starts.
+     */
+    private long decode(long position) throws IOException {
+        int index = (int) (position / file.getBlockSize());
+        if (index != decodedIndex) {
+            decodedIndex = -1;
+            ByteBuffer stored = file.readBlock(index);
+            decodedLength = decoder.readBlock(new DataInputStream(new ByteArrayInputStream(stored.array(), 0, stored.limit())));
+            if (decodedLength != Math.min(file.getBlockSize(), size() - index * (long) file.getBlockSize())) {
+                throw new IOException("Block " + index + " decodes to " + decodedLength + " bytes");
+            }
+            decodedIndex = index;
+        }
+        return index * (long) file.getBlockSize();
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int read = read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            while (dsts[i].hasRemaining()) {
+                int read = read(dsts[i]);
+                if (read <= 0) {
+                    return total == 0 ? read : total;
+                }
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= size()) {
+            return -1;
+        }
+        int within = (int) (position - decode(position));
+        int take = Math.min(dst.remaining(), decodedLength - within);
+        dst.put(decoder.block(), within, take);
+        return take;
+    }
+
+    @Override
+    public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long sent = 0;
+        while (count > 0 && position < size()) {
+            int within = (int) (position - decode(position));
+            int written = target.write(ByteBuffer.wrap(decoder.block(), within, (int) Math.min(count, decodedLength - within)));
+            if (written == 0) {
+                break;
+            }
+            sent += written;
+            position += written;
+            count -= written;
+        }
+        return sent;
+    }
+
+    @Override
+    public synchronized long position() {
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return file.getLength();
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(boolean metaData) {
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("A compressed file cannot be mapped");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("A compressed file cannot be locked");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("A compressed file cannot be locked");
+    }
+
+    @Override
+    protected synchronized void implCloseChannel() throws IOException {
+        decoder.close();
+        file.close();
+    }
+}
@@ -0,0 +1,265 @@
+package com.dfs1;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A file stored compressed: the {@link BlockCodec} stream it was uploaded as, then the
+ * position of every block and a footer with the codecs used, the block size, the block count,
+ * the decoded length and where the positions start. Every block but the last decodes to the
+ * same size, so any range of the file can be served either decoded, through a
+ * {@link CompressedChannel}, or as the encoded blocks that cover it, straight from disk.
+ */
+final class CompressedFile implements Closeable {
+    private static final int MAGIC = 0x4446535A;
+    private static final int FOOTER_LENGTH = 29;
+
+    private final FileChannel channel;
+    private final int codecs;
+    private final int blockSize;
+    private final long length;
+    private final long[] starts;
+
+    private CompressedFile(FileChannel channel, int codecs, int blockSize, long length, long[] starts) {
+        this.channel = channel;
+        this.codecs = codecs;
+        this.blockSize = blockSize;
+        this.length = length;
+        this.starts = starts;
+    }
+
+    static CompressedFile open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < FOOTER_LENGTH) {
+                throw new IOException("Not a compressed file: " + file);
+            }
+            ByteBuffer footer = readFully(channel, size - FOOTER_LENGTH, FOOTER_LENGTH);
+            if (footer.getInt() != MAGIC) {
+                throw new IOException("Not a compressed file: " + file);
+            }
+            int codecs = footer.get() & 0xFF;
+            int blockSize = footer.getInt();
+            int count = footer.getInt();
+            long length = footer.getLong();
+            long indexStart = footer.getLong();
+            if (blockSize <= 0 || length < 0 || count < BlockChecksums.blockCount(length, blockSize) || count > Math.max(1, BlockChecksums.blockCount(length, blockSize))
+                    || indexStart < 0 || indexStart + count * 8L + FOOTER_LENGTH != size) {
+                throw new IOException("Damaged compressed file: " + file);
+            }
+            ByteBuffer index = readFully(channel, indexStart, count * 8);
+            long[] starts = new long[count + 1];
+            for (int i = 0; i < count; i++) {
+                starts[i] = index.getLong();
+                if (starts[i] < (i == 0 ? 0 : starts[i - 1] + BlockCodec.HEADER_LENGTH)) {
+                    throw new IOException("Damaged compressed file: " + file);
+                }
+            }
+            starts[count] = indexStart;
+            if (count > 0 && (starts[0] != 0 || starts[count - 1] + BlockCodec.HEADER_LENGTH > indexStart)) {
+                throw new IOException("Damaged compressed file: " + file);
+            }
+            return new CompressedFile(channel, codecs, blockSize, length, starts);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of compressed file");
+            }
+        }
+        return buffer.flip();
+    }
+
+    FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * The codecs the blocks of this file use, as a mask of {@link Codec#mask}.
+     */
+    int getCodecs() {
+        return codecs;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    int getBlockCount() {
+        return starts.length - 1;
+    }
+
+    /**
+     * Where block {@code block} is stored; the block count gives the end of the last block.
+     */
+    long blockStart(int block) {
+        return starts[block];
+    }
+
+    /**
+     * The stored bytes of {@code block}, header included.
+     */
+    ByteBuffer readBlock(int block) throws IOException {
+        return readFully(channel, starts[block], (int) (starts[block + 1] - starts[block]));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes a block stream as it arrives and completes it into a compressed file. Every block
+     * is decoded on the way, so a stream that is malformed or does not keep to one block size
+     * is refused, and the checksums of the decoded file come out of {@link #finish}.
+     */
+    static final class Writer implements Closeable {
+        private final FileChannel out;
+        private final BlockCodec decoder = new BlockCodec(Codec.NONE);
+        private final BlockChecksums.Builder checksums = new BlockChecksums.Builder(BlockChecksums.DEFAULT_BLOCK_SIZE);
+        private final ByteBuffer header = ByteBuffer.allocate(BlockCodec.HEADER_LENGTH);
+        private byte[] encoded = new byte[0];
+        private byte[] raw = new byte[0];
+        private long[] starts = new long[64];
+        private int count;
+        private int codecId;
+        private int rawLength;
+        private int encodedLength;
+        private int filled;
+        private long streamPosition;
+        private long length;
+        private int blockSize = -1;
+        private boolean ended;
+        private int codecs;
+
+        Writer(FileChannel out) {
+            this.out = out;
+        }
+
+        /**
+         * Decoded bytes in the blocks completed so far.
+         */
+        long getLength() {
+            return length;
+        }
+
+        /**
+         * Bytes of stream written so far.
+         */
+        long getStreamLength() {
+            return streamPosition;
+        }
+
+        void write(ByteBuffer data) throws IOException {
+            ByteBuffer stored = data.duplicate();
+            while (stored.hasRemaining()) {
+                out.write(stored);
+            }
+            while (data.hasRemaining()) {
+                if (header.hasRemaining()) {
+                    int take = Math.min(header.remaining(), data.remaining());
+                    ByteBuffer part = data.duplicate();
+                    part.limit(part.position() + take);
+                    header.put(part);
+                    data.position(data.position() + take);
+                    streamPosition += take;
+                    if (!header.hasRemaining()) {
+                        startBlock();
+                    }
+                    continue;
+                }
+                int take = Math.min(encodedLength - filled, data.remaining());
+                data.get(encoded, filled, take);
+                filled += take;
+                streamPosition += take;
+                if (filled == encodedLength) {
+                    endBlock();
+                }
+            }
+        }
+
+        private void startBlock() throws IOException {
+            header.flip();
+            codecId = header.get() & 0xFF;
+            rawLength = header.getInt();
+            encodedLength = header.getInt();
+            BlockCodec.checkHeader(rawLength, encodedLength);
+            if (ended || (blockSize >= 0 && rawLength > blockSize)) {
+                throw new IOException("Block " + count + " of " + rawLength + " bytes breaks the block size of " + blockSize);
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+            }
+            starts[count] = streamPosition - BlockCodec.HEADER_LENGTH;
+            if (encoded.length < encodedLength) {
+                encoded = new byte[Math.max(encodedLength, BlockCodec.BLOCK_SIZE)];
+            }
+            filled = 0;
+            if (encodedLength == 0) {
+                endBlock();
+            }
+        }
+
+        private void endBlock() throws IOException {
+            if (raw.length < rawLength) {
+                raw = new byte[Math.max(rawLength, BlockCodec.BLOCK_SIZE)];
+            }
+            decoder.decode(codecId, encoded, 0, encodedLength, raw, 0, rawLength);
+            checksums.update(raw, 0, rawLength);
+            if (blockSize < 0) {
+                blockSize = rawLength;
+            } else if (rawLength < blockSize) {
+                ended = true;
+            }
+            codecs |= Codec.byId(codecId).mask();
+            length += rawLength;
+            count++;
+            header.clear();
+        }
+
+        /**
+         * Appends the block positions and the footer, and returns the checksums of the
+         * decoded file.
+         */
+        BlockChecksums finish() throws IOException {
+            if (header.position() > 0) {
+                throw new IOException("Compressed stream ends inside block " + count);
+            }
+            int footerBlockSize = Math.max(1, blockSize);
+            if (count > 1 && blockSize == 0) {
+                throw new IOException("Compressed stream has empty blocks");
+            }
+            ByteBuffer tail = ByteBuffer.allocate(count * 8 + FOOTER_LENGTH);
+            for (int i = 0; i < count; i++) {
+                tail.putLong(starts[i]);
+            }
+            tail.putInt(MAGIC).put((byte) codecs).putInt(footerBlockSize).putInt(count).putLong(length).putLong(streamPosition);
+            tail.flip();
+            while (tail.hasRemaining()) {
+                out.write(tail);
+            }
+            return checksums.finish();
+        }
+
+        @Override
+        public void close() {
+            decoder.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.dfs1;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the {@link Codec}s: first the ratio and the single-thread encode and decode
+ * throughput of {@link BlockCodec} on log lines, JSON records and random bytes, then the
+ * upload and download throughput through a server over loopback, with what each codec
+ * leaves on disk.
+ *
+ * Usage: CompressionBenchmark [sizeMB] [rounds]
+ */
+public class CompressionBenchmark {
+    private static final int PORT = 5221;
+    private static final String[] LEVELS = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+    private static final String[] PATHS = {"/api/v1/items", "/api/v1/users", "/api/v2/orders", "/health", "/api/v1/search"};
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int size = sizeMb * 1024 * 1024;
+
+        byte[] logs = logLines(size, 1);
+        byte[] json = jsonRecords(size, 2);
+        byte[] random = new byte[size];
+        new Random(3).nextBytes(random);
+
+        System.out.printf("%d MB per data set, best of %d rounds, %d KB blocks%n", sizeMb, rounds, BlockCodec.BLOCK_SIZE / 1024);
+        System.out.printf("%-8s %-8s %8s %12s %12s%n", "data", "codec", "ratio", "encode MB/s", "decode MB/s");
+        for (Object[] data : new Object[][] {{"logs", logs}, {"json", json}, {"random", random}}) {
+            for (Codec codec : Codec.values()) {
+                measureCodec((String) data[0], (byte[]) data[1], codec, rounds);
+            }
+        }
+
+        Path directory = Files.createTempDirectory("dfs-compress-bench");
+        Thread server = new Thread(() -> DistributedServer.startServer(PORT, directory.resolve("server").toString(), 0));
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+        File source = directory.resolve("logs.txt").toFile();
+        Files.write(source.toPath(), logs);
+        List<InetSocketAddress> chain = Collections.singletonList(new InetSocketAddress("127.0.0.1", PORT));
+        ConnectionPool pool = new ConnectionPool(1000, 8);
+
+        System.out.printf("%nlogs through one server over loopback%n");
+        System.out.printf("%-8s %12s %14s %14s%n", "codec", "stored MB", "upload MB/s", "download MB/s");
+        for (Codec codec : Codec.values()) {
+            ChunkedTransfer transfer = new ChunkedTransfer(pool, ChunkedTransfer.DEFAULT_CHUNK_SIZE, ChunkedTransfer.DEFAULT_PARALLELISM, codec);
+            ReplicationPipeline pipeline = new ReplicationPipeline(pool, transfer);
+            String name = "logs-" + codec.name().toLowerCase();
+            double bestUpload = 0;
+            double bestDownload = 0;
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                for (Placement.ReplicaResult result : pipeline.upload(chain, source, name)) {
+                    if (!result.isSuccess()) {
+                        throw new IllegalStateException("Upload failed: " + result);
+                    }
+                }
+                bestUpload = Math.max(bestUpload, size / ((System.nanoTime() - start) / 1e9) / (1024 * 1024));
+                File target = directory.resolve("download-" + name).toFile();
+                start = System.nanoTime();
+                transfer.download(chain, name, size, target);
+                bestDownload = Math.max(bestDownload, size / ((System.nanoTime() - start) / 1e9) / (1024 * 1024));
+                if (!Arrays.equals(Files.readAllBytes(target.toPath()), logs)) {
+                    throw new IllegalStateException("Download of " + name + " differs from the upload");
+                }
+                target.delete();
+            }
+            File compressed = directory.resolve("server").resolve(".dfs-compressed").resolve(name).toFile();
+            long stored = compressed.exists() ? compressed.length() : directory.resolve("server").resolve(name).toFile().length();
+            System.out.printf("%-8s %12.1f %14.1f %14.1f%n", codec.name().toLowerCase(), stored / (1024.0 * 1024), bestUpload, bestDownload);
+        }
+        DistributedServer.shutdownServer(0);
+        System.exit(0);
+    }
+
+    private static void measureCodec(String label, byte[] data, Codec codec, int rounds) throws Exception {
+        byte[] encoded = new byte[(int) BlockCodec.maxEncodedLength(data.length)];
+        byte[] decoded = new byte[data.length];
+        long bestEncode = Long.MAX_VALUE;
+        long bestDecode = Long.MAX_VALUE;
+        int encodedLength = 0;
+        try (BlockCodec blocks = new BlockCodec(codec)) {
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                encodedLength = blocks.encode(data, 0, data.length, encoded, 0);
+                bestEncode = Math.min(bestEncode, System.nanoTime() - start);
+                start = System.nanoTime();
+                int in = 0;
+                int out = 0;
+                while (in < encodedLength) {
+                    ByteBuffer header = ByteBuffer.wrap(encoded, in, BlockCodec.HEADER_LENGTH);
+                    int codecId = header.get() & 0xFF;
+                    int rawLength = header.getInt();
+                    int storedLength = header.getInt();
+                    blocks.decode(codecId, encoded, in + BlockCodec.HEADER_LENGTH, storedLength, decoded, out, rawLength);
+                    in += BlockCodec.HEADER_LENGTH + storedLength;
+                    out += rawLength;
+                }
+                bestDecode = Math.min(bestDecode, System.nanoTime() - start);
+            }
+        }
+        if (!Arrays.equals(data, decoded)) {
+            throw new IllegalStateException(codec + " did not round-trip " + label);
+        }
+        double megabytes = data.length / (1024.0 * 1024);
+        System.out.printf("%-8s %-8s %8.2f %12.1f %12.1f%n", label, codec.name().toLowerCase(), (double) data.length / encodedLength,
+                megabytes / (bestEncode / 1e9), megabytes / (bestDecode / 1e9));
+    }
+
+    private static byte[] logLines(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(size + 256);
+        long millis = 1_790_000_000_000L;
+        while (text.length() < size) {
+            millis += random.nextInt(50);
+            text.append(millis).append(' ').append(LEVELS[random.nextInt(LEVELS.length)])
+                    .append(" [worker-").append(random.nextInt(32)).append("] ")
+                    .append("GET ").append(PATHS[random.nextInt(PATHS.length)]).append('/').append(random.nextInt(10_000))
+                    .append(" status=").append(random.nextInt(20) == 0 ? 500 : 200)
+                    .append(" bytes=").append(random.nextInt(100_000))
+                    .append(" took=").append(random.nextInt(900)).append("ms\n");
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.US_ASCII), size);
+    }
+
+    private static byte[] jsonRecords(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(size + 512);
+        while (text.length() < size) {
+            text.append("{\"id\":").append(random.nextInt(1_000_000))
+                    .append(",\"user\":{\"name\":\"user").append(random.nextInt(5000)).append("\",\"active\":").append(random.nextBoolean()).append('}')
+                    .append(",\"path\":\"").append(PATHS[random.nextInt(PATHS.length)]).append('"')
+                    .append(",\"tags\":[\"a").append(random.nextInt(20)).append("\",\"b").append(random.nextInt(20)).append("\"]")
+                    .append(",\"score\":").append(random.nextInt(10_000) / 100.0).append("}\n");
+        }
+        return Arrays.copyOf(text.toString().getBytes(StandardCharsets.US_ASCII), size);
+    }
+}
@@ -0,0 +1,176 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Keeps idle {@link DfsConnection}s per server so that operations reuse sockets instead of
+ * dialing a new connection for every call. Its connections send their requests for one tenant.
+ */
+public class ConnectionPool implements AutoCloseable {
+    public interface Call<T> {
+        T run(DfsConnection connection) throws IOException;
+    }
+
+    private static final int BUSY_RETRIES = Integer.getInteger("dfs.client.busyRetries", 6);
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final int connectTimeoutMillis;
+    private final int maxIdlePerServer;
+    private final String tenant;
+    private final Map<InetSocketAddress, ConcurrentLinkedDeque<DfsConnection>> idle = new ConcurrentHashMap<>();
+
+    public ConnectionPool(int connectTimeoutMillis, int maxIdlePerServer) {
+        this(connectTimeoutMillis, maxIdlePerServer, ClusterConfig.TENANT);
+    }
+
+    public ConnectionPool(int connectTimeoutMillis, int maxIdlePerServer, String tenant) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.maxIdlePerServer = maxIdlePerServer;
+        this.tenant = tenant;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    public DfsConnection borrow(InetSocketAddress address) throws IOException {
+        ConcurrentLinkedDeque<DfsConnection> connections = idle.get(address);
+        if (connections != null) {
+            DfsConnection connection;
+            while ((connection = connections.pollFirst()) != null) {
+                if (connection.isOpen()) {
+                    connection.markReused();
+                    return connection;
+                }
+            }
+        }
+        return DfsConnection.open(address, connectTimeoutMillis, tenant);
+    }
+
+    /**
+     * Borrows a connection that is known to be alive, for requests that stream data and so
+     * cannot be retried like {@link #call}. A reused connection is checked with a PING first
+     * and replaced by a fresh one if the server has gone away.
+     */
+    public DfsConnection borrowLive(InetSocketAddress address) throws IOException {
+        DfsConnection connection = borrow(address);
+        if (!connection.isReused()) {
+            return connection;
+        }
+        try {
+            int requestId = connection.send(Protocol.PING, "", 0);
+            connection.flush();
+            connection.readMessage(connection.readOk(requestId));
+            return connection;
+        } catch (IOException e) {
+            discard(connection);
+            evict(address);
+            return DfsConnection.open(address, connectTimeoutMillis, tenant);
+        }
+    }
+
+    public void release(DfsConnection connection) {
+        ConcurrentLinkedDeque<DfsConnection> connections =
+                idle.computeIfAbsent(connection.getAddress(), a -> new ConcurrentLinkedDeque<>());
+        if (connection.isOpen() && connections.size() < maxIdlePerServer) {
+            connections.offerFirst(connection);
+        } else {
+            discard(connection);
+        }
+    }
+
+    public void discard(DfsConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Runs a request on a pooled connection. A reused connection may have been closed by
+     * the server while idle, so a failure on one is retried once on a freshly dialed socket.
+     * A {@link DfsServerException} leaves the connection usable and is not retried, unless the
+     * server was busy: then the call is run again after the wait the server asked for, growing
+     * with every attempt, up to {@code dfs.client.busyRetries} (6) times.
+     */
+    public <T> T call(InetSocketAddress address, Call<T> call) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return callOnce(address, call);
+            } catch (DfsServerException e) {
+                if (!e.isBusy() || attempt >= BUSY_RETRIES) {
+                    throw e;
+                }
+                backOff(e.getRetryAfterMillis(), attempt);
+            }
+        }
+    }
+
+    /**
+     * Sleeps for at least {@code retryAfterMillis}, and for longer with every attempt, with some
+     * jitter so that the clients a server refused together do not all come back together.
+     */
+    private static void backOff(long retryAfterMillis, int attempt) throws InterruptedIOException {
+        long millis = Math.min(MAX_BACKOFF_MILLIS, Math.max(retryAfterMillis, 10L << Math.min(attempt, 16)));
+        millis += ThreadLocalRandom.current().nextLong(millis / 2 + 1);
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a busy server");
+        }
+    }
+
+    private <T> T callOnce(InetSocketAddress address, Call<T> call) throws IOException {
+        DfsConnection connection = borrow(address);
+        try {
+            T result = call.run(connection);
+            release(connection);
+            return result;
+        } catch (DfsServerException e) {
+            release(connection);
+            throw e;
+        } catch (IOException e) {
+            discard(connection);
+            if (!connection.isReused()) {
+                throw e;
+            }
+        } catch (RuntimeException e) {
+            discard(connection);
+            throw e;
+        }
+        evict(address);
+        DfsConnection fresh = DfsConnection.open(address, connectTimeoutMillis, tenant);
+        try {
+            T result = call.run(fresh);
+            release(fresh);
+            return result;
+        } catch (DfsServerException e) {
+            release(fresh);
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            discard(fresh);
+            throw e;
+        }
+    }
+
+    public void evict(InetSocketAddress address) {
+        ConcurrentLinkedDeque<DfsConnection> connections = idle.remove(address);
+        if (connections != null) {
+            connections.forEach(this::discard);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (InetSocketAddress address : idle.keySet()) {
+            evict(address);
+        }
+    }
+}
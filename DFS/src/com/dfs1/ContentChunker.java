@@ -0,0 +1,115 @@
+package com.dfs1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Splits files into content-defined chunks with a gear rolling hash, as in FastCDC. A chunk
+ * ends where the hash of its last 64 bytes matches a mask, so an insertion or deletion only
+ * changes the chunks around it and the rest of the file still deduplicates against earlier
+ * versions. A stricter mask below the average size and a looser one above it keep chunk sizes
+ * close to the average. Every client must split with the same parameters for their chunks to
+ * be shared.
+ */
+final class ContentChunker {
+    static final int MIN_SIZE = 16 * 1024;
+    static final int AVERAGE_SIZE = 64 * 1024;
+    static final int MAX_SIZE = 256 * 1024;
+    private static final long MASK_BELOW_AVERAGE = topBits(Integer.numberOfTrailingZeros(AVERAGE_SIZE) + 2);
+    private static final long MASK_ABOVE_AVERAGE = topBits(Integer.numberOfTrailingZeros(AVERAGE_SIZE) - 2);
+    private static final long[] GEAR = new long[256];
+
+    static {
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = mix(i + 1);
+        }
+    }
+
+    private ContentChunker() {
+    }
+
+    /**
+     * Reads the whole of {@code file} and returns the manifest of its chunks.
+     */
+    static Manifest split(FileChannel file) throws IOException {
+        MessageDigest sha = sha256();
+        ByteBuffer buffer = ByteBuffer.allocate(4 * MAX_SIZE);
+        ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+        int[] lengths = new int[16];
+        int count = 0;
+        boolean eof = false;
+        while (true) {
+            while (!eof && buffer.hasRemaining()) {
+                eof = file.read(buffer) == -1;
+            }
+            buffer.flip();
+            while (buffer.remaining() >= MAX_SIZE || (eof && buffer.hasRemaining())) {
+                int length = cut(buffer.array(), buffer.position(), buffer.remaining());
+                sha.update(buffer.array(), buffer.position(), length);
+                hashes.write(sha.digest());
+                if (count == lengths.length) {
+                    lengths = Arrays.copyOf(lengths, count * 2);
+                }
+                lengths[count++] = length;
+                buffer.position(buffer.position() + length);
+            }
+            if (eof) {
+                return new Manifest(hashes.toByteArray(), Arrays.copyOf(lengths, count));
+            }
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Returns the length of the chunk starting at {@code offset}. Unless the data ends within
+     * {@code length}, at least {@link #MAX_SIZE} bytes must be available.
+     */
+    static int cut(byte[] data, int offset, int length) {
+        if (length <= MIN_SIZE) {
+            return length;
+        }
+        int average = Math.min(length, AVERAGE_SIZE);
+        int end = Math.min(length, MAX_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < average; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & MASK_BELOW_AVERAGE) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & MASK_ABOVE_AVERAGE) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static long topBits(int bits) {
+        return -1L << (64 - bits);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
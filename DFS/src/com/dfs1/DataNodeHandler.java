@@ -0,0 +1,416 @@
+package com.dfs1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The file operations a data node serves on top of its {@link FileStore}.
+ */
+class DataNodeHandler implements RequestHandler {
+    private static final byte[] IDENTITY = {Protocol.ENCODING_IDENTITY};
+    private static final byte[] BLOCKS = {Protocol.ENCODING_BLOCKS};
+    // Read for a file that does not fit in what is left of a batch download.
+    private static final ByteBuffer NO_ROOM = ByteBuffer.allocate(0);
+    private static final int MAX_BATCH_RESPONSE = Integer.getInteger("dfs.batch.maxResponseBytes", 16 * 1024 * 1024);
+    // Commits and deletes of the files in batches, shared by the nodes of a process.
+    private static final ExecutorService BATCH_WORKERS = Executors.newFixedThreadPool(Integer.getInteger("dfs.batch.threads", 8), runnable -> {
+        Thread thread = new Thread(runnable, "dfs-batch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final FileStore store;
+    private final Membership membership;
+    private final AntiEntropy antiEntropy;
+    private final ConnectionPool downstreamPool = new ConnectionPool(1000, 8);
+
+    DataNodeHandler(FileStore store) {
+        this(store, null);
+    }
+
+    DataNodeHandler(FileStore store, Membership membership) {
+        this(store, membership, null);
+    }
+
+    DataNodeHandler(FileStore store, Membership membership, AntiEntropy antiEntropy) {
+        this.store = store;
+        this.membership = membership;
+        this.antiEntropy = antiEntropy;
+    }
+
+    @Override
+    public FileStore.Upload beginUpload(Frame request) throws IOException {
+        if (request.getOpcode() == Protocol.UPLOAD_CHAIN) {
+            return new ChainUpload(request, this::beginUpload, downstreamPool);
+        }
+        if (request.getOpcode() == Protocol.BATCH_UPLOAD) {
+            return new BatchUpload(request, this::beginUpload, BATCH_WORKERS);
+        }
+        if (request.getOpcode() == Protocol.UPLOAD_RANGE) {
+            return store.beginRangeUpload(request.getName(), request.getOffset(), request.getPayloadLength());
+        }
+        if (request.getOpcode() == Protocol.CHUNK_PUT) {
+            return store.getChunks().beginPut(request.getName(), request.getPayloadLength());
+        }
+        if (request.getOpcode() == Protocol.MANIFEST_PUT) {
+            return store.beginManifest(request.getName(), request.getPayloadLength());
+        }
+        if (request.getOpcode() == Protocol.UPLOAD_ENCODED) {
+            return store.beginEncodedUpload(request.getName());
+        }
+        if (request.getOpcode() == Protocol.UPLOAD && store.isPackable(request.getPayloadLength())) {
+            return store.beginPackedUpload(request.getName(), request.getPayloadLength());
+        }
+        return store.beginUpload(request.getName());
+    }
+
+    @Override
+    public Response finishUpload(Frame request, FileStore.Upload upload) {
+        String fileName = request.getName();
+        if (upload instanceof ChainUpload) {
+            try {
+                return Response.bytes(Protocol.STATUS_OK, fileName, ((ChainUpload) upload).finish());
+            } catch (IOException e) {
+                return Response.message(Protocol.STATUS_ERROR, fileName, "Upload failed: " + e.getMessage());
+            }
+        }
+        if (upload instanceof BatchUpload) {
+            try {
+                upload.commit();
+                return Response.bytes(Protocol.STATUS_OK, fileName, ((BatchUpload) upload).encodeResults());
+            } catch (IOException e) {
+                return Response.message(Protocol.STATUS_ERROR, fileName, "Batch upload failed: " + e.getMessage());
+            }
+        }
+        int checksum;
+        try {
+            checksum = upload.commit();
+        } catch (IOException e) {
+            upload.abort();
+            return Response.message(Protocol.STATUS_ERROR, fileName, "Upload failed: " + e.getMessage());
+        }
+        if (request.getOpcode() == Protocol.UPLOAD_RANGE || request.getOpcode() == Protocol.CHUNK_PUT) {
+            return Response.bytes(Protocol.STATUS_OK, fileName, ByteBuffer.allocate(4).putInt(checksum).array());
+        }
+        Log.info("file_uploaded", "file", fileName);
+        return Response.message(Protocol.STATUS_OK, fileName, "File uploaded successfully: " + fileName);
+    }
+
+    @Override
+    public Response handle(Frame request, ByteBuffer body) {
+        String fileName = request.getName();
+        try {
+            switch (request.getOpcode()) {
+                case Protocol.DOWNLOAD:
+                    return download(fileName, 0, Long.MAX_VALUE);
+                case Protocol.DOWNLOAD_RANGE:
+                    return download(fileName, request.getOffset(), body.getLong());
+                case Protocol.READ:
+                    return read(fileName, request.getOffset(), body.getLong());
+                case Protocol.DOWNLOAD_ENCODED:
+                    return downloadEncoded(fileName, request.getOffset(), body.getLong(), body.getInt());
+                case Protocol.CHECKSUMS:
+                    return checksums(fileName, request.getOffset(), body.getLong());
+                case Protocol.STAT:
+                    return stat(fileName);
+                case Protocol.DELETE:
+                    return delete(fileName);
+                case Protocol.BATCH_DOWNLOAD:
+                    return batchDownload(fileName, readNames(body));
+                case Protocol.BATCH_DELETE:
+                    return batchDelete(fileName, readNames(body));
+                case Protocol.LIST:
+                    return Response.bytes(Protocol.STATUS_OK, fileName, DistributedServer.encodeNames(store.list()));
+                case Protocol.LIST_PAGE:
+                    return Response.bytes(Protocol.STATUS_OK, fileName, store.listPage(Listing.Query.read(request, body)).encode());
+                case Protocol.PING:
+                    return Response.message(Protocol.STATUS_OK, fileName, "PONG");
+                case Protocol.GOSSIP:
+                    if (membership == null) {
+                        return Response.message(Protocol.STATUS_ERROR, fileName, "This node does not gossip.");
+                    }
+                    membership.merge(Membership.decode(body));
+                    return Response.bytes(Protocol.STATUS_OK, fileName, membership.encode());
+                case Protocol.SYNC_TREE:
+                case Protocol.SYNC_ENTRIES:
+                    if (antiEntropy == null) {
+                        return Response.message(Protocol.STATUS_ERROR, fileName, "This node does not sync.");
+                    }
+                    return antiEntropy.handle(request, body);
+                case Protocol.CHUNK_STATUS:
+                    PartialFile partial = store.openPartial(fileName, body.getLong(), body.getInt(), body.hasRemaining() && body.get() != 0);
+                    return Response.bytes(Protocol.STATUS_OK, fileName, partial.encodeStatus());
+                case Protocol.CHUNK_QUERY:
+                    return Response.bytes(Protocol.STATUS_OK, fileName, queryChunks(body));
+                case Protocol.COMMIT:
+                    if (!store.commitPartial(fileName)) {
+                        return Response.message(Protocol.STATUS_ERROR, fileName, "Chunks are still missing: " + fileName);
+                    }
+                    Log.info("file_uploaded", "file", fileName);
+                    return Response.message(Protocol.STATUS_OK, fileName, "File uploaded successfully: " + fileName);
+                default:
+                    return Response.message(Protocol.STATUS_ERROR, fileName, "Invalid command!");
+            }
+        } catch (IOException | RuntimeException e) {
+            return Response.message(Protocol.STATUS_ERROR, fileName, Protocol.opcodeName(request.getOpcode()) + " failed: " + e.getMessage());
+        }
+    }
+
+    private Response download(String fileName, long offset, long length) throws IOException {
+        FileCache cache = store.getCache();
+        ByteBuffer cached = cache.get(fileName);
+        if (cached != null) {
+            return cachedRange(fileName, cached, offset, length);
+        }
+        long stamp = cache.stamp();
+        FileChannel file = store.openForRead(fileName);
+        if (file == null) {
+            return Response.message(Protocol.STATUS_NOT_FOUND, fileName, "File not found.");
+        }
+        try {
+            long size = file.size();
+            if (cache.shouldLoad(fileName, size)) {
+                try {
+                    return cachedRange(fileName, cache.load(fileName, file, stamp), offset, length);
+                } finally {
+                    file.close();
+                }
+            }
+            long start = Math.min(offset, size);
+            return Response.file(fileName, file, start, Math.min(length, size - start));
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Answers a {@link Protocol#READ} from the file's mapped segments, with at most the bytes up
+     * to the end of the segment holding {@code offset}; the reader asks again for the rest. A
+     * file that cannot be mapped is read as a ranged download.
+     */
+    private Response read(String fileName, long offset, long length) throws IOException {
+        long limited = Math.min(length, MappedFiles.DEFAULT_SEGMENT_SIZE);
+        ByteBuffer mapped = store.getMappings().read(fileName, offset, limited);
+        if (mapped != null) {
+            return Response.buffer(fileName, offset, mapped);
+        }
+        return download(fileName, offset, limited);
+    }
+
+    /**
+     * Answers a download from a client that can decode the codecs in {@code accepted}. A file
+     * stored compressed with only those codecs is sent as the stored blocks covering the range,
+     * straight from disk, with the offset of the first block; anything else is sent as a plain
+     * download would send it.
+     */
+    private Response downloadEncoded(String fileName, long offset, long length, int accepted) throws IOException {
+        CompressedFile compressed = store.openCompressed(fileName);
+        if (compressed == null || (compressed.getCodecs() & ~accepted & ~Codec.NONE.mask()) != 0) {
+            if (compressed != null) {
+                compressed.close();
+            }
+            Response plain = download(fileName, offset, length);
+            return plain.getStatus() == Protocol.STATUS_OK ? plain.prefixed(IDENTITY) : plain;
+        }
+        try {
+            long size = compressed.getLength();
+            int blockSize = compressed.getBlockSize();
+            long start = Math.min(offset, size);
+            long end = start + Math.min(length, size - start);
+            int first = (int) Math.min(start / blockSize, compressed.getBlockCount());
+            int last = end == start ? first : (int) ((end - 1) / blockSize) + 1;
+            long position = compressed.blockStart(first);
+            return Response.fileRegion(fileName, first * (long) blockSize, compressed.getChannel(), position, compressed.blockStart(last) - position)
+                    .prefixed(BLOCKS);
+        } catch (RuntimeException e) {
+            compressed.close();
+            throw e;
+        }
+    }
+
+    private static Response cachedRange(String fileName, ByteBuffer contents, long offset, long length) {
+        int start = (int) Math.min(offset, contents.limit());
+        contents.limit(start + (int) Math.min(length, contents.limit() - start));
+        contents.position(start);
+        return Response.buffer(fileName, start, contents);
+    }
+
+    /**
+     * Answers which of the hashes in {@code body} are stored, as a bit set in request order.
+     */
+    private byte[] queryChunks(ByteBuffer body) {
+        int count = body.getInt();
+        BitSet present = new BitSet(count);
+        byte[] hash = new byte[Manifest.HASH_LENGTH];
+        for (int i = 0; i < count; i++) {
+            body.get(hash);
+            if (store.getChunks().touch(Manifest.hex(hash))) {
+                present.set(i);
+            }
+        }
+        return present.toByteArray();
+    }
+
+    /**
+     * Answers with the block checksums covering a range of {@code fileName}, which the reader
+     * checks the bytes it downloads against.
+     */
+    private Response checksums(String fileName, long offset, long length) throws IOException {
+        BlockChecksums checksums = store.readChecksums(fileName);
+        if (checksums == null) {
+            return Response.message(Protocol.STATUS_NOT_FOUND, fileName, "No checksums for " + fileName);
+        }
+        return Response.bytes(Protocol.STATUS_OK, fileName, checksums.encodeRange(offset, length));
+    }
+
+    private Response stat(String fileName) throws IOException {
+        long cachedSize = store.getCache().peekSize(fileName);
+        if (cachedSize >= 0) {
+            return Response.bytes(Protocol.STATUS_OK, fileName, ByteBuffer.allocate(8).putLong(cachedSize).array());
+        }
+        try (FileChannel file = store.openForRead(fileName)) {
+            if (file == null) {
+                return Response.message(Protocol.STATUS_NOT_FOUND, fileName, "File not found.");
+            }
+            return Response.bytes(Protocol.STATUS_OK, fileName, ByteBuffer.allocate(8).putLong(file.size()).array());
+        }
+    }
+
+    /**
+     * Answers a {@link Protocol#BATCH_DOWNLOAD} with the files of {@code names} read whole, in
+     * order, while they fit in {@code dfs.batch.maxResponseBytes} (16 MB): the number of files
+     * answered, then for each its status and either its length and bytes or an error message.
+     * The client asks again for the files left out. A file too large for any batch is answered
+     * with an error, and is downloaded on its own.
+     */
+    private Response batchDownload(String batchName, List<String> names) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int answered = 0;
+        for (String name : names) {
+            ByteBuffer contents;
+            try {
+                contents = readWhole(name, answered == 0 ? MAX_BATCH_RESPONSE : MAX_BATCH_RESPONSE - bytes.size());
+            } catch (IOException | RuntimeException e) {
+                out.writeByte(Protocol.STATUS_ERROR);
+                out.writeUTF("DOWNLOAD failed: " + e.getMessage());
+                answered++;
+                continue;
+            }
+            if (contents == null) {
+                out.writeByte(Protocol.STATUS_NOT_FOUND);
+                out.writeUTF("File not found.");
+            } else if (contents == NO_ROOM) {
+                break;
+            } else {
+                out.writeByte(Protocol.STATUS_OK);
+                out.writeLong(contents.remaining());
+                out.write(contents.array(), contents.arrayOffset() + contents.position(), contents.remaining());
+            }
+            answered++;
+        }
+        return Response.bytes(Protocol.STATUS_OK, batchName, ByteBuffer.allocate(4 + bytes.size()).putInt(answered).put(bytes.toByteArray()).array());
+    }
+
+    /**
+     * Reads all of {@code fileName} into a heap buffer, or returns null if it does not exist.
+     * Returns {@link #NO_ROOM} if it is longer than {@code room}, and throws if it is longer
+     * than any batch may be.
+     */
+    private ByteBuffer readWhole(String fileName, long room) throws IOException {
+        ByteBuffer cached = store.getCache().get(fileName);
+        if (cached != null) {
+            if (cached.remaining() > room) {
+                return tooLarge(fileName, cached.remaining());
+            }
+            return ByteBuffer.allocate(cached.remaining()).put(cached).flip();
+        }
+        try (FileChannel file = store.openForRead(fileName)) {
+            if (file == null) {
+                return null;
+            }
+            long size = file.size();
+            if (size > room) {
+                return tooLarge(fileName, size);
+            }
+            ByteBuffer contents = ByteBuffer.allocate((int) size);
+            while (contents.hasRemaining()) {
+                if (file.read(contents, contents.position()) < 0) {
+                    throw new IOException(fileName + " ended after " + contents.position() + " of " + size + " bytes");
+                }
+            }
+            return contents.flip();
+        }
+    }
+
+    private static ByteBuffer tooLarge(String fileName, long size) throws IOException {
+        if (size > MAX_BATCH_RESPONSE) {
+            throw new IOException(fileName + " is too large for a batch (" + size + " bytes)");
+        }
+        return NO_ROOM;
+    }
+
+    /**
+     * Answers a {@link Protocol#BATCH_DELETE} by deleting the files of {@code names} on the
+     * batch executor, in parallel: the number of files, then a status and a message for each.
+     */
+    private Response batchDelete(String batchName, List<String> names) throws IOException {
+        List<CompletableFuture<Response>> deletes = new ArrayList<>(names.size());
+        for (String name : names) {
+            deletes.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return delete(name);
+                } catch (IOException | RuntimeException e) {
+                    return Response.message(Protocol.STATUS_ERROR, name, "DELETE failed: " + e.getMessage());
+                }
+            }, BATCH_WORKERS));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(names.size());
+        for (CompletableFuture<Response> delete : deletes) {
+            Response response = delete.join();
+            out.writeByte(response.getStatus());
+            out.writeUTF(StandardCharsets.UTF_8.decode(response.getPayload()).toString());
+        }
+        return Response.bytes(Protocol.STATUS_OK, batchName, bytes.toByteArray());
+    }
+
+    /**
+     * The names of a batch request, as {@link DistributedServer#encodeNames} writes them.
+     */
+    private static List<String> readNames(ByteBuffer body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array(), body.arrayOffset() + body.position(), body.remaining()));
+        int count = in.readInt();
+        List<String> names = new ArrayList<>(Math.min(count, body.remaining() / 2));
+        for (int i = 0; i < count; i++) {
+            names.add(in.readUTF());
+        }
+        return names;
+    }
+
+    private Response delete(String fileName) throws IOException {
+        switch (store.delete(fileName)) {
+            case DELETED:
+                Log.info("file_deleted", "file", fileName);
+                return Response.message(Protocol.STATUS_OK, fileName, "File deleted successfully: " + fileName);
+            case FAILED:
+                return Response.message(Protocol.STATUS_ERROR, fileName, "Failed to delete the file: " + fileName);
+            default:
+                return Response.message(Protocol.STATUS_NOT_FOUND, fileName, "File not found.");
+        }
+    }
+}
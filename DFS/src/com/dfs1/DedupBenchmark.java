@@ -0,0 +1,137 @@
+package com.dfs1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Uploads successive versions of a build artifact, each a few percent different from the last
+ * (bytes replaced, inserted and removed at random places), to a server storing whole files
+ * and to one storing deduplicated chunks. Prints the time and bytes sent per version and the
+ * disk space each server ends up using, then checks the last version downloads intact.
+ *
+ * Usage: DedupBenchmark [fileMB] [versions] [changePercent]
+ */
+public class DedupBenchmark {
+    private static final int PLAIN_PORT = 5261;
+    private static final int DEDUP_PORT = 5262;
+
+    public static void main(String[] args) throws Exception {
+        int fileMb = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int versions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        double changePercent = args.length > 2 ? Double.parseDouble(args[2]) : 5;
+
+        Path plainDirectory = Files.createTempDirectory("dfs-dedup-plain");
+        Path dedupDirectory = Files.createTempDirectory("dfs-dedup-chunks");
+        start(PLAIN_PORT, plainDirectory, 0);
+        start(DEDUP_PORT, dedupDirectory, 1);
+        Thread.sleep(500);
+        List<InetSocketAddress> plainNode = Collections.singletonList(new InetSocketAddress("127.0.0.1", PLAIN_PORT));
+        List<InetSocketAddress> dedupNode = Collections.singletonList(new InetSocketAddress("127.0.0.1", DEDUP_PORT));
+
+        ConnectionPool pool = new ConnectionPool(1000, 8);
+        ChunkedTransfer chunkedTransfer = new ChunkedTransfer(pool);
+        ReplicationPipeline pipeline = new ReplicationPipeline(pool, chunkedTransfer);
+        DedupUpload dedup = new DedupUpload(pool, chunkedTransfer);
+
+        Random random = new Random(42);
+        byte[] contents = new byte[fileMb * 1024 * 1024];
+        random.nextBytes(contents);
+        File artifact = Files.createTempFile("dfs-artifact", ".bin").toFile();
+        long plainSent = 0;
+        System.out.printf("%d versions of a %d MB artifact, %.1f%% changed each time%n", versions, fileMb, changePercent);
+        System.out.println("version  plain ms  dedup ms  dedup MB sent");
+        for (int version = 1; version <= versions; version++) {
+            if (version > 1) {
+                contents = mutate(contents, changePercent, random);
+            }
+            Files.write(artifact.toPath(), contents);
+            String name = "artifact-v" + version;
+            long start = System.nanoTime();
+            check(pipeline.upload(plainNode, artifact, name));
+            long plainMillis = (System.nanoTime() - start) / 1_000_000;
+            plainSent += contents.length;
+            long sentBefore = dedup.getBytesSent();
+            start = System.nanoTime();
+            check(dedup.upload(dedupNode, artifact, name));
+            long dedupMillis = (System.nanoTime() - start) / 1_000_000;
+            System.out.printf("%7d  %8d  %8d  %13.1f%n", version, plainMillis, dedupMillis,
+                    (dedup.getBytesSent() - sentBefore) / 1048576.0);
+        }
+        System.out.printf("sent:  plain %.1f MB, dedup %.1f MB%n", plainSent / 1048576.0, dedup.getBytesSent() / 1048576.0);
+        System.out.printf("disk:  plain %.1f MB, dedup %.1f MB%n", diskUsage(plainDirectory) / 1048576.0, diskUsage(dedupDirectory) / 1048576.0);
+
+        File downloaded = Files.createTempFile("dfs-artifact", ".download").toFile();
+        chunkedTransfer.download(dedupNode, "artifact-v" + versions, contents.length, downloaded);
+        System.out.println("last version downloads intact: " + Arrays.equals(contents, Files.readAllBytes(downloaded.toPath())));
+        artifact.delete();
+        downloaded.delete();
+        System.exit(0);
+    }
+
+    private static void start(int port, Path directory, int index) {
+        Thread server = new Thread(() -> DistributedServer.startServer(port, directory.toString(), index));
+        server.setDaemon(true);
+        server.start();
+    }
+
+    private static void check(List<Placement.ReplicaResult> results) throws IOException {
+        for (Placement.ReplicaResult result : results) {
+            if (!result.isSuccess()) {
+                throw new IOException(result.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Changes about {@code percent} of {@code contents} through edits of up to 256 KB, each
+     * replacing, inserting or removing bytes, like the few rebuilt sections of a new build.
+     */
+    private static byte[] mutate(byte[] contents, double percent, Random random) {
+        int edits = Math.max(1, (int) (contents.length * percent / 100 / (128 * 1024)));
+        int[] positions = new int[edits];
+        for (int i = 0; i < edits; i++) {
+            positions[i] = random.nextInt(contents.length);
+        }
+        Arrays.sort(positions);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(contents.length + 64 * 1024);
+        int copied = 0;
+        for (int position : positions) {
+            if (position < copied) {
+                continue;
+            }
+            out.write(contents, copied, position - copied);
+            int length = 1 + random.nextInt(256 * 1024);
+            byte[] fresh = new byte[length];
+            random.nextBytes(fresh);
+            switch (random.nextInt(3)) {
+                case 0:
+                    out.write(fresh, 0, length);
+                    copied = Math.min(contents.length, position + length);
+                    break;
+                case 1:
+                    out.write(fresh, 0, length);
+                    copied = position;
+                    break;
+                default:
+                    copied = Math.min(contents.length, position + length);
+            }
+        }
+        out.write(contents, copied, contents.length - copied);
+        return out.toByteArray();
+    }
+
+    private static long diskUsage(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        }
+    }
+}
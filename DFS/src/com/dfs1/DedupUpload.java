@@ -0,0 +1,263 @@
+package com.dfs1;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Uploads a file as content-defined chunks so that nodes store each distinct chunk only once.
+ * The file is split by {@link ContentChunker} and every node is asked which of the chunks it
+ * already holds. Each chunk that is missing somewhere is sent once, down a replication chain
+ * made of just the nodes that lack it. Finally, the manifest goes down a chain over all nodes;
+ * a node publishes it only once it holds every chunk. An interrupted upload resumes where it
+ * stopped, since the chunks already stored are not sent again.
+ */
+public class DedupUpload {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("dfs.dedup", "true"));
+    public static final long MIN_FILE_SIZE = Long.getLong("dfs.dedup.minBytes", 1024 * 1024);
+    private static final int QUERY_BATCH = 16 * 1024;
+    private static final int BATCH_BYTES = 2 * 1024 * 1024;
+
+    private final ConnectionPool pool;
+    private final ChunkedTransfer chunkedTransfer;
+    private final LongAdder bytesSent = new LongAdder();
+
+    public DedupUpload(ConnectionPool pool, ChunkedTransfer chunkedTransfer) {
+        this.pool = pool;
+        this.chunkedTransfer = chunkedTransfer;
+    }
+
+    /**
+     * Chunk bytes sent by this uploader so far; a chunk sent down a chain counts once.
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public List<Placement.ReplicaResult> upload(List<InetSocketAddress> chain, File file, String name) throws IOException {
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Manifest manifest = ContentChunker.split(in);
+            List<Integer> distinct = new ArrayList<>();
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < manifest.getChunkCount(); i++) {
+                if (seen.add(manifest.hashHex(i))) {
+                    distinct.add(i);
+                }
+            }
+
+            List<Placement.ReplicaResult> results = new ArrayList<>();
+            List<InetSocketAddress> live = new ArrayList<>();
+            Map<InetSocketAddress, BitSet> missing = new HashMap<>();
+            Map<InetSocketAddress, Long> newBytes = new HashMap<>();
+            for (InetSocketAddress node : chain) {
+                try {
+                    BitSet lacking = pool.call(node, connection -> query(connection, manifest, distinct, name));
+                    long bytes = 0;
+                    for (int j = lacking.nextSetBit(0); j >= 0; j = lacking.nextSetBit(j + 1)) {
+                        bytes += manifest.length(distinct.get(j));
+                    }
+                    missing.put(node, lacking);
+                    newBytes.put(node, bytes);
+                    live.add(node);
+                } catch (IOException e) {
+                    results.add(new Placement.ReplicaResult(node, null, e));
+                }
+            }
+            if (live.isEmpty()) {
+                return results;
+            }
+
+            Map<InetSocketAddress, String> damaged = new ConcurrentHashMap<>();
+            List<List<Integer>> batches = batches(manifest, distinct, live, missing);
+            List<Integer> batchIndexes = new ArrayList<>();
+            for (int b = 0; b < batches.size(); b++) {
+                batchIndexes.add(b);
+            }
+            chunkedTransfer.runChunks(batchIndexes, (b, attempt) -> {
+                List<Integer> batch = batches.get(b);
+                List<InetSocketAddress> targets = new ArrayList<>();
+                for (InetSocketAddress node : live) {
+                    if (missing.get(node).get(batch.get(0)) && !damaged.containsKey(node)) {
+                        targets.add(node);
+                    }
+                }
+                List<byte[]> data = new ArrayList<>(batch.size());
+                List<String> hashes = new ArrayList<>(batch.size());
+                for (int j : batch) {
+                    data.add(read(in, manifest, distinct.get(j)));
+                    hashes.add(manifest.hashHex(distinct.get(j)));
+                }
+                while (!targets.isEmpty()) {
+                    try {
+                        sendChain(targets, Protocol.CHUNK_PUT, hashes, data, damaged);
+                        for (byte[] chunk : data) {
+                            bytesSent.add(chunk.length);
+                        }
+                        return;
+                    } catch (IOException e) {
+                        if (attempt + 1 < ChunkedTransfer.MAX_ATTEMPTS) {
+                            throw e;
+                        }
+                        damaged.put(targets.remove(0), "Chunks were not stored: " + e.getMessage());
+                    }
+                }
+            });
+
+            List<InetSocketAddress> complete = new ArrayList<>();
+            for (InetSocketAddress node : live) {
+                if (!damaged.containsKey(node)) {
+                    complete.add(node);
+                }
+            }
+            Map<InetSocketAddress, String> published = new HashMap<>();
+            byte[] encoded = manifest.encode();
+            while (!complete.isEmpty()) {
+                try {
+                    published.putAll(sendChain(complete, Protocol.MANIFEST_PUT, Collections.singletonList(name),
+                            Collections.singletonList(encoded), damaged));
+                    break;
+                } catch (IOException e) {
+                    damaged.put(complete.remove(0), e.getMessage());
+                }
+            }
+            for (InetSocketAddress node : live) {
+                String message = published.get(node);
+                if (message == null) {
+                    results.add(new Placement.ReplicaResult(node, null, new IOException(damaged.getOrDefault(node, "No acknowledgement"))));
+                } else {
+                    results.add(new Placement.ReplicaResult(node, message + " (" + newBytes.get(node) + " new of " + manifest.getSize()
+                            + " bytes)", null));
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Returns the indexes into {@code distinct} of the chunks the node does not hold.
+     */
+    private static BitSet query(DfsConnection connection, Manifest manifest, List<Integer> distinct, String name) throws IOException {
+        BitSet lacking = new BitSet(distinct.size());
+        for (int start = 0; start < distinct.size(); start += QUERY_BATCH) {
+            int count = Math.min(QUERY_BATCH, distinct.size() - start);
+            int requestId = connection.send(Protocol.CHUNK_QUERY, name, 4 + (long) count * Manifest.HASH_LENGTH);
+            connection.out().writeInt(count);
+            for (int i = 0; i < count; i++) {
+                connection.out().write(manifest.hash(distinct.get(start + i)));
+            }
+            connection.flush();
+            Frame response = connection.readOk(requestId);
+            byte[] bits = new byte[(int) response.getPayloadLength()];
+            connection.in().readFully(bits);
+            BitSet present = BitSet.valueOf(bits);
+            for (int i = 0; i < count; i++) {
+                if (!present.get(i)) {
+                    lacking.set(start + i);
+                }
+            }
+        }
+        return lacking;
+    }
+
+    private static byte[] read(FileChannel in, Manifest manifest, int chunk) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(manifest.length(chunk));
+        long position = manifest.offset(chunk);
+        while (data.hasRemaining()) {
+            int read = in.read(data, position + data.position());
+            if (read == -1) {
+                throw new EOFException("File shrank while it was being uploaded");
+            }
+        }
+        return data.array();
+    }
+
+    /**
+     * Groups the chunks some node lacks into batches of up to {@link #BATCH_BYTES} that go to
+     * the same nodes, in file order.
+     */
+    private static List<List<Integer>> batches(Manifest manifest, List<Integer> distinct, List<InetSocketAddress> live,
+                                               Map<InetSocketAddress, BitSet> missing) {
+        List<List<Integer>> batches = new ArrayList<>();
+        List<Integer> batch = new ArrayList<>();
+        BitSet batchTargets = null;
+        long batchBytes = 0;
+        for (int j = 0; j < distinct.size(); j++) {
+            BitSet targets = new BitSet(live.size());
+            for (int n = 0; n < live.size(); n++) {
+                if (missing.get(live.get(n)).get(j)) {
+                    targets.set(n);
+                }
+            }
+            if (targets.isEmpty()) {
+                continue;
+            }
+            int length = manifest.length(distinct.get(j));
+            if (!batch.isEmpty() && (!targets.equals(batchTargets) || batchBytes + length > BATCH_BYTES)) {
+                batches.add(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.add(j);
+            batchTargets = targets;
+            batchBytes += length;
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        return batches;
+    }
+
+    /**
+     * Sends each of {@code data} wrapped in {@code opcode} down a chain over {@code nodes},
+     * pipelined on one connection. Records the nodes that failed to store any of them in
+     * {@code damaged} and returns the last message of each node that stored them all. Throws if
+     * the head of the chain could not be reached.
+     */
+    private Map<InetSocketAddress, String> sendChain(List<InetSocketAddress> nodes, byte opcode, List<String> names, List<byte[]> data,
+                                                     Map<InetSocketAddress, String> damaged) throws IOException {
+        byte[] header = ReplicationPipeline.chainHeader(opcode, nodes.subList(1, nodes.size()));
+        List<List<ReplicationPipeline.Ack>> replies = pool.call(nodes.get(0), connection -> {
+            int[] requestIds = new int[data.size()];
+            for (int i = 0; i < data.size(); i++) {
+                requestIds[i] = connection.send(Protocol.UPLOAD_CHAIN, names.get(i), header.length + data.get(i).length);
+                connection.out().write(header);
+                connection.out().write(data.get(i));
+            }
+            connection.flush();
+            List<List<ReplicationPipeline.Ack>> acks = new ArrayList<>(data.size());
+            for (int requestId : requestIds) {
+                connection.readOk(requestId);
+                acks.add(ReplicationPipeline.readAcks(connection.in()));
+            }
+            return acks;
+        });
+        Map<InetSocketAddress, String> stored = new HashMap<>();
+        for (int d = 0; d < data.size(); d++) {
+            CRC32C crc = new CRC32C();
+            crc.update(data.get(d));
+            List<ReplicationPipeline.Ack> acks = replies.get(d);
+            for (int i = 0; i < nodes.size(); i++) {
+                ReplicationPipeline.Ack ack = i < acks.size() ? acks.get(i) : null;
+                if (ack == null) {
+                    damaged.putIfAbsent(nodes.get(i), "No acknowledgement for " + names.get(d));
+                } else if (!ack.isOk()) {
+                    damaged.putIfAbsent(nodes.get(i), ack.message);
+                } else if (ack.checksum != (int) crc.getValue()) {
+                    damaged.putIfAbsent(nodes.get(i), "Checksum mismatch on " + names.get(d));
+                } else {
+                    stored.put(nodes.get(i), ack.message);
+                }
+            }
+        }
+        stored.keySet().removeAll(damaged.keySet());
+        return stored;
+    }
+}
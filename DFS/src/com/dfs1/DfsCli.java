@@ -0,0 +1,248 @@
+package com.dfs1;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Command-line client, configured like the servers through {@code dfs.*} system properties:
+ *
+ * <pre>
+ * put &lt;file&gt; [name]          upload a file
+ * put &lt;dir&gt; [prefix]         upload a directory tree, names prefixed with prefix
+ * get &lt;name&gt; &lt;file&gt;          download a file
+ * get -r &lt;prefix&gt; &lt;dir&gt;      download every file under prefix into dir
+ * cat &lt;name&gt; [offset] [length] write part of a file to standard output, a negative offset counting from the end
+ * rm &lt;name&gt;...              delete files
+ * rm -r &lt;prefix&gt;            delete every file under prefix, in batches
+ * ls [prefix] [--glob g]     list files, by their paths as put stored them
+ * metrics [host:port...]     print server metrics, by default of every live node and the metadata server
+ * </pre>
+ *
+ * Exits with status 1 if anything failed.
+ */
+public class DfsCli {
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            usage();
+            return;
+        }
+        boolean ok;
+        try (DfsClient client = new DfsClient()) {
+            ok = run(client, args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            usage();
+            ok = false;
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: DfsCli put <file|dir> [name|prefix]");
+        System.err.println("       DfsCli get <name> <file> | get -r <prefix> <dir>");
+        System.err.println("       DfsCli cat <name> [offset] [length]");
+        System.err.println("       DfsCli rm <name>... | rm -r <prefix>");
+        System.err.println("       DfsCli ls [prefix] [--glob pattern]");
+        System.err.println("       DfsCli metrics [host:port...]");
+    }
+
+    static boolean run(DfsClient client, String[] args) {
+        switch (args[0]) {
+            case "put":
+                require(args, 2, 3);
+                return put(client, new File(args[1]), args.length > 2 ? args[2] : null);
+            case "get":
+                if (args.length == 4 && args[1].equals("-r")) {
+                    return batch(client.downloadTree(args[2], Path.of(args[3]), progressPrinter()));
+                }
+                require(args, 3, 3);
+                return report(client.download(args[1], new File(args[2])), size -> "Downloaded " + args[1] + " (" + size + " bytes)");
+            case "cat":
+                require(args, 2, 4);
+                return cat(client, args[1], args.length > 2 ? Long.parseLong(args[2]) : 0, args.length > 3 ? Long.parseLong(args[3]) : Long.MAX_VALUE);
+            case "rm":
+                if (args.length == 3 && args[1].equals("-r")) {
+                    return batch(client.deleteTree(args[2], progressPrinter()));
+                }
+                require(args, 2, Integer.MAX_VALUE);
+                return remove(client, args);
+            case "ls":
+                return list(client, args);
+            case "metrics":
+                return metrics(client, args);
+            default:
+                throw new IllegalArgumentException("Unknown command: " + args[0]);
+        }
+    }
+
+    private static void require(String[] args, int min, int max) {
+        if (args.length < min || args.length > max) {
+            throw new IllegalArgumentException("Wrong number of arguments for " + args[0]);
+        }
+    }
+
+    private static boolean put(DfsClient client, File source, String name) {
+        if (source.isDirectory()) {
+            String prefix = name == null ? source.getName() + "/" : name;
+            return batch(client.uploadTree(source.toPath(), prefix, progressPrinter()));
+        }
+        if (!Files.isRegularFile(source.toPath())) {
+            System.err.println("No such file: " + source);
+            return false;
+        }
+        return report(client.upload(source, name == null ? source.getName() : name), metadata -> "Uploaded " + metadata);
+    }
+
+    private static boolean cat(DfsClient client, String name, long offset, long length) {
+        try (RemoteFileChannel channel = client.open(name).join()) {
+            channel.position(offset < 0 ? Math.max(0, channel.size() + offset) : offset);
+            ByteBuffer buffer = ByteBuffer.allocate(RemoteFileChannel.READ_AHEAD);
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                System.out.write(buffer.array(), 0, read);
+                remaining -= read;
+            }
+            System.out.flush();
+            return true;
+        } catch (CompletionException e) {
+            System.err.println(e.getCause().getMessage());
+            return false;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean remove(DfsClient client, String[] args) {
+        List<CompletableFuture<List<Placement.ReplicaResult>>> deletes = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            deletes.add(client.delete(args[i]));
+        }
+        boolean ok = true;
+        for (int i = 0; i < deletes.size(); i++) {
+            String name = args[i + 1];
+            // A file that is not there fails the command, as a failed delete does.
+            ok &= report(deletes.get(i).thenApply(results -> {
+                if (results.isEmpty()) {
+                    throw new CompletionException(new FileNotFoundException("File not found: " + name));
+                }
+                return results;
+            }), results -> {
+                StringBuilder line = new StringBuilder("Deleted " + name + ":");
+                for (Placement.ReplicaResult result : results) {
+                    line.append(' ').append(ClusterConfig.describe(result.getNode())).append(' ').append(result.getMessage());
+                }
+                return line.toString();
+            });
+        }
+        return ok;
+    }
+
+    private static boolean list(DfsClient client, String[] args) {
+        String prefix = "";
+        String glob = "";
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--glob") && i + 1 < args.length) {
+                glob = args[++i];
+            } else {
+                prefix = args[i];
+            }
+        }
+        // Stored names encode the slashes of paths, as put, get -r and rm -r do.
+        MergedListing listing = client.list(DfsClient.nameOf(prefix), DfsClient.nameOf(glob));
+        long count = 0;
+        while (listing.hasNext()) {
+            Listing.Entry entry = listing.next().getEntry();
+            System.out.println(entry.getSize() + "\t" + DfsClient.pathOf(entry.getName()));
+            count++;
+        }
+        System.out.println(count + " files");
+        for (Map.Entry<InetSocketAddress, String> failure : listing.getFailures().entrySet()) {
+            System.err.println("Error listing files from " + ClusterConfig.describe(failure.getKey()) + ": " + failure.getValue());
+        }
+        return listing.getFailures().isEmpty();
+    }
+
+    private static boolean metrics(DfsClient client, String[] args) {
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            nodes.add(ClusterConfig.parseNode(args[i]));
+        }
+        if (nodes.isEmpty()) {
+            nodes.addAll(client.getClusterView().liveNodes());
+            nodes.add(ClusterConfig.METADATA);
+        }
+        boolean ok = true;
+        for (InetSocketAddress node : nodes) {
+            ok &= report(client.metrics(node), report -> report.isEmpty() ? "# no requests yet on " + ClusterConfig.describe(node) : report.trim());
+        }
+        return ok;
+    }
+
+    private interface Describer<T> {
+        String describe(T value);
+    }
+
+    private static <T> boolean report(CompletableFuture<T> future, Describer<T> describer) {
+        try {
+            System.out.println(describer.describe(future.get()));
+            return true;
+        } catch (ExecutionException e) {
+            System.err.println(e.getCause().getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static boolean batch(CompletableFuture<DfsClient.BatchProgress> future) {
+        DfsClient.BatchProgress progress;
+        try {
+            progress = future.join();
+        } catch (CompletionException e) {
+            System.err.println(e.getCause().getMessage());
+            return false;
+        }
+        for (Map.Entry<String, String> failure : progress.getFailures().entrySet()) {
+            System.err.println("Failed " + failure.getKey() + ": " + failure.getValue());
+        }
+        System.out.println("Done: " + progress);
+        return progress.getFailed() == 0;
+    }
+
+    /**
+     * A progress callback that prints at most once per interval.
+     */
+    private static Consumer<DfsClient.BatchProgress> progressPrinter() {
+        long[] lastPrinted = {System.currentTimeMillis()};
+        return progress -> {
+            synchronized (lastPrinted) {
+                long now = System.currentTimeMillis();
+                if (now - lastPrinted[0] >= PROGRESS_INTERVAL_MILLIS) {
+                    lastPrinted[0] = now;
+                    System.out.println(progress);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,934 @@
+package com.dfs1;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * The client library: uploads, downloads, deletes and listings against the whole cluster,
+ * each returning a {@link CompletableFuture}. Operations run on a fixed pool of
+ * {@code concurrency} threads ({@code dfs.client.concurrency}, 16 by default) and share one
+ * {@link ConnectionPool}, which keeps idle connections per node; where files go follows the
+ * cluster's gossiped {@link ClusterView}. With {@code dfs.client.virtualThreads} those threads
+ * are virtual, so a high concurrency costs little more than the connections it opens.
+ *
+ * A directory tree is moved with {@link #uploadTree} and {@link #downloadTree}. Names cannot
+ * hold a path separator, so a file's path relative to the tree is stored with '/' written as
+ * "%2F" (and '%' as "%25"); {@link #nameOf} and {@link #pathOf} convert between the two.
+ *
+ * Trees and the lists given to {@link #uploadAll}, {@link #downloadAll} and {@link #deleteAll}
+ * move their small files in batches of up to {@code dfs.client.batchFiles} (256) files and
+ * {@code dfs.client.batchBytes} (4 MB): one request to each node involved and one to the
+ * metadata server for the whole batch, rather than a few per file. Files larger than
+ * {@code dfs.client.batchFileBytes} (256 KB) go on their own, as does any file its batch could
+ * not handle, such as one whose replicas did not all take it.
+ */
+public class DfsClient implements AutoCloseable {
+    public static final int DEFAULT_CONCURRENCY = Integer.getInteger("dfs.client.concurrency", 16);
+    public static final int BATCH_FILES = Integer.getInteger("dfs.client.batchFiles", 256);
+    public static final long BATCH_BYTES = Long.getLong("dfs.client.batchBytes", 4L * 1024 * 1024);
+    public static final long BATCH_FILE_BYTES = Long.getLong("dfs.client.batchFileBytes", 256 * 1024);
+
+    /**
+     * How far a batch has got. Progress callbacks receive the live object; read it there or
+     * take a {@link #toString} of it.
+     */
+    public static final class BatchProgress {
+        private final AtomicInteger files = new AtomicInteger();
+        private final AtomicInteger done = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final LongAdder bytesDone = new LongAdder();
+        private final LongAdder bytesTotal = new LongAdder();
+        private final ConcurrentMap<String, String> failures = new ConcurrentSkipListMap<>();
+        private final long startNanos = System.nanoTime();
+        private volatile boolean listed;
+
+        public int getFiles() {
+            return files.get();
+        }
+
+        public int getDone() {
+            return done.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        public long getBytesDone() {
+            return bytesDone.sum();
+        }
+
+        public long getBytesTotal() {
+            return bytesTotal.sum();
+        }
+
+        /**
+         * Whether every file of the batch has been found, so {@link #getFiles} is final.
+         */
+        public boolean isListed() {
+            return listed;
+        }
+
+        /**
+         * The files that failed, by name, with their errors.
+         */
+        public Map<String, String> getFailures() {
+            return Collections.unmodifiableMap(failures);
+        }
+
+        public double getSeconds() {
+            return (System.nanoTime() - startNanos) / 1e9;
+        }
+
+        @Override
+        public String toString() {
+            double seconds = getSeconds();
+            return String.format("%d/%d%s files, %.1f/%.1f MB, %d failed, %.1f files/s, %.1f MB/s", getDone(), getFiles(),
+                    listed ? "" : "+", getBytesDone() / (1024.0 * 1024), getBytesTotal() / (1024.0 * 1024), getFailed(),
+                    getDone() / seconds, getBytesDone() / (1024.0 * 1024) / seconds);
+        }
+    }
+
+    /**
+     * A file of a batch: its name, its path on the local disk and its size, or -1 if that is
+     * not known.
+     */
+    private static final class BatchFile {
+        final String name;
+        final Path path;
+        final long size;
+
+        BatchFile(String name, Path path, long size) {
+            this.name = name;
+            this.path = path;
+            this.size = size;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final ExecutorService operations;
+    private final ExecutorService background = Executors.newCachedThreadPool(VirtualThreads.clientThreads("dfs-client-io"));
+    private final int concurrency;
+    private final ChunkedTransfer chunkedTransfer;
+    private final ClusterView clusterView;
+    private final Placement placement;
+    private final ReplicationPipeline replicationPipeline;
+    private final DedupUpload dedupUpload;
+    private final ReplicaReader replicaReader;
+    private final MetadataClient metadataClient;
+    private final BatchTransfer batchTransfer;
+
+    public DfsClient() {
+        this(ClusterConfig.SEEDS, ClusterConfig.METADATA, DEFAULT_CONCURRENCY);
+    }
+
+    public DfsClient(List<InetSocketAddress> seeds, InetSocketAddress metadata, int concurrency) {
+        this(seeds, metadata, concurrency, ClusterConfig.TENANT);
+    }
+
+    /**
+     * A client whose requests are scheduled and limited by the servers as {@code tenant}'s.
+     */
+    public DfsClient(List<InetSocketAddress> seeds, InetSocketAddress metadata, int concurrency, String tenant) {
+        this.concurrency = Math.max(1, concurrency);
+        this.pool = new ConnectionPool(1000, Math.max(this.concurrency, ChunkedTransfer.DEFAULT_PARALLELISM), tenant);
+        this.operations = Executors.newFixedThreadPool(this.concurrency, VirtualThreads.clientThreads("dfs-client"));
+        this.chunkedTransfer = new ChunkedTransfer(pool);
+        this.clusterView = new ClusterView(pool, seeds);
+        this.placement = new Placement(clusterView, ClusterConfig.REPLICATION_FACTOR, background);
+        this.replicationPipeline = new ReplicationPipeline(pool, chunkedTransfer);
+        this.dedupUpload = new DedupUpload(pool, chunkedTransfer);
+        this.replicaReader = new ReplicaReader(pool, chunkedTransfer, background);
+        this.metadataClient = new MetadataClient(pool, metadata);
+        this.batchTransfer = new BatchTransfer(pool);
+    }
+
+    public ClusterView getClusterView() {
+        return clusterView;
+    }
+
+    public ReplicaReader getReplicaReader() {
+        return replicaReader;
+    }
+
+    /**
+     * Uploads {@code file} as {@code name} to its replicas and records it with the metadata
+     * server. Fails if fewer than the write quorum of replicas confirm.
+     */
+    public CompletableFuture<FileMetadata> upload(File file, String name) {
+        return supply(() -> uploadNow(file, name));
+    }
+
+    /**
+     * Downloads {@code name} into {@code target} and completes with its size.
+     */
+    public CompletableFuture<Long> download(String name, File target) {
+        return supply(() -> downloadNow(name, target));
+    }
+
+    /**
+     * Opens {@code name} for reading at random positions, completing with a
+     * {@link FileNotFoundException} if it does not exist.
+     */
+    public CompletableFuture<RemoteFileChannel> open(String name) {
+        return supply(() -> openNow(name));
+    }
+
+    /**
+     * Deletes {@code name} from the nodes that hold it and completes with one result per node.
+     * Completes with an empty list if the file does not exist.
+     */
+    public CompletableFuture<List<Placement.ReplicaResult>> delete(String name) {
+        return supply(() -> deleteNow(name));
+    }
+
+    /**
+     * The metrics report of {@code node}, a data node or the metadata server, as
+     * {@link ServerMetrics#report} renders it.
+     */
+    public CompletableFuture<String> metrics(InetSocketAddress node) {
+        return supply(() -> pool.call(node, connection -> {
+            int requestId = connection.send(Protocol.METRICS, "", 0);
+            connection.flush();
+            return connection.readMessage(connection.readResponse(requestId));
+        }));
+    }
+
+    /**
+     * Lists the files under {@code prefix} matching {@code glob} (empty for all) from the
+     * metadata server, or merged from the live data nodes if it cannot be reached. The
+     * listing is read a page at a time as it is iterated, on the caller's thread.
+     */
+    public MergedListing list(String prefix, String glob) {
+        MergedListing fromMetadata = new MergedListing(pool, Collections.singletonList(metadataClient.getAddress()), prefix, glob,
+                Listing.DEFAULT_PAGE_SIZE);
+        fromMetadata.hasNext();
+        if (fromMetadata.getFailures().isEmpty()) {
+            return fromMetadata;
+        }
+        return new MergedListing(pool, clusterView.liveNodes(), prefix, glob, Listing.DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Uploads every regular file under {@code root}, each named {@code prefix} followed by its
+     * path relative to {@code root}, with at most {@code concurrency} files in flight. The tree
+     * is walked as the uploads proceed. {@code progress} is called after each file and the
+     * future completes with the final progress once every file is done; failed files are
+     * listed there rather than failing the batch.
+     */
+    public CompletableFuture<BatchProgress> uploadTree(Path root, String prefix, Consumer<BatchProgress> progress) {
+        BatchProgress batch = new BatchProgress();
+        return CompletableFuture.supplyAsync(() -> {
+            try (Stream<Path> files = Files.walk(root)) {
+                Iterator<BatchFile> paths = files.filter(Files::isRegularFile).map(path -> {
+                    String relative = root.relativize(path).toString().replace(File.separatorChar, '/');
+                    return new BatchFile(nameOf(prefix + relative), path, path.toFile().length());
+                }).iterator();
+                runBatch(batch, progress, grouped(paths, file -> file.size), group -> uploadTask(batch, group));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return batch;
+        }, background);
+    }
+
+    /**
+     * Uploads every file of {@code files}, by the name it is to be stored under, as
+     * {@link #uploadTree} uploads a tree.
+     */
+    public CompletableFuture<BatchProgress> uploadAll(Map<String, Path> files, Consumer<BatchProgress> progress) {
+        BatchProgress batch = new BatchProgress();
+        return CompletableFuture.supplyAsync(() -> {
+            Iterator<BatchFile> items = files.entrySet().stream()
+                    .map(file -> new BatchFile(file.getKey(), file.getValue(), file.getValue().toFile().length())).iterator();
+            runBatch(batch, progress, grouped(items, file -> file.size), group -> uploadTask(batch, group));
+            return batch;
+        }, background);
+    }
+
+    /**
+     * Downloads every file whose name starts with {@code nameOf(prefix)} into {@code target},
+     * at the path the rest of its name stands for, with at most {@code concurrency} files in
+     * flight. Progress and completion work as for {@link #uploadTree}.
+     */
+    public CompletableFuture<BatchProgress> downloadTree(String prefix, Path target, Consumer<BatchProgress> progress) {
+        BatchProgress batch = new BatchProgress();
+        String namePrefix = nameOf(prefix);
+        return CompletableFuture.supplyAsync(() -> {
+            MergedListing listing = list(namePrefix, "");
+            Iterator<Listing.Entry> entries = new Iterator<Listing.Entry>() {
+                @Override
+                public boolean hasNext() {
+                    return listing.hasNext();
+                }
+
+                @Override
+                public Listing.Entry next() {
+                    return listing.next().getEntry();
+                }
+            };
+            runBatch(batch, progress, grouped(entries, Listing.Entry::getSize), group -> {
+                List<BatchFile> files = new ArrayList<>();
+                Map<String, Exception> refused = new LinkedHashMap<>();
+                for (Listing.Entry entry : group) {
+                    Path destination = target.resolve(pathOf(entry.getName().substring(namePrefix.length()))).normalize();
+                    if (destination.startsWith(target.normalize())) {
+                        files.add(new BatchFile(entry.getName(), destination, entry.getSize()));
+                    } else {
+                        refused.put(entry.getName(), new IOException("Name " + entry.getName() + " points outside " + target));
+                    }
+                }
+                Task download = downloadTask(batch, files);
+                return () -> {
+                    Map<String, Exception> outcomes = new LinkedHashMap<>(refused);
+                    outcomes.putAll(download.run());
+                    return outcomes;
+                };
+            });
+            for (Map.Entry<InetSocketAddress, String> failure : listing.getFailures().entrySet()) {
+                batch.failures.put("listing from " + ClusterConfig.describe(failure.getKey()), failure.getValue());
+                batch.failed.incrementAndGet();
+            }
+            return batch;
+        }, background);
+    }
+
+    /**
+     * Downloads every file of {@code targets} to the path given for it, as {@link #downloadTree}
+     * downloads a tree.
+     */
+    public CompletableFuture<BatchProgress> downloadAll(Map<String, Path> targets, Consumer<BatchProgress> progress) {
+        BatchProgress batch = new BatchProgress();
+        return CompletableFuture.supplyAsync(() -> {
+            Iterator<BatchFile> items = targets.entrySet().stream().map(target -> new BatchFile(target.getKey(), target.getValue(), -1)).iterator();
+            runBatch(batch, progress, grouped(items, file -> 0), group -> downloadTask(batch, group));
+            return batch;
+        }, background);
+    }
+
+    /**
+     * Deletes every file of {@code names}, in batches, and completes with the progress once
+     * every one is done; a file that does not exist counts as failed.
+     */
+    public CompletableFuture<BatchProgress> deleteAll(Collection<String> names, Consumer<BatchProgress> progress) {
+        BatchProgress batch = new BatchProgress();
+        return CompletableFuture.supplyAsync(() -> {
+            runBatch(batch, progress, grouped(names.iterator(), name -> 0), group -> () -> deleteGroup(group));
+            return batch;
+        }, background);
+    }
+
+    /**
+     * Deletes every file whose name starts with {@code nameOf(prefix)}, as listed when the
+     * delete begins.
+     */
+    public CompletableFuture<BatchProgress> deleteTree(String prefix, Consumer<BatchProgress> progress) {
+        BatchProgress batch = new BatchProgress();
+        return CompletableFuture.supplyAsync(() -> {
+            MergedListing listing = list(nameOf(prefix), "");
+            Iterator<String> names = new Iterator<String>() {
+                @Override
+                public boolean hasNext() {
+                    return listing.hasNext();
+                }
+
+                @Override
+                public String next() {
+                    return listing.next().getEntry().getName();
+                }
+            };
+            runBatch(batch, progress, grouped(names, name -> 0), group -> () -> deleteGroup(group));
+            for (Map.Entry<InetSocketAddress, String> failure : listing.getFailures().entrySet()) {
+                batch.failures.put("listing from " + ClusterConfig.describe(failure.getKey()), failure.getValue());
+                batch.failed.incrementAndGet();
+            }
+            return batch;
+        }, background);
+    }
+
+    private interface Task {
+        /**
+         * Runs the task and returns the outcome of each file it handled, by name: null if the
+         * file is done, otherwise its error.
+         */
+        Map<String, Exception> run() throws IOException;
+    }
+
+    private interface Planner<T> {
+        Task plan(List<T> group) throws IOException;
+    }
+
+    /**
+     * Submits a task for each group of items as the groups are produced, keeping at most
+     * twice {@code concurrency} submitted and unfinished, and waits for them all. A task that
+     * throws fails every file of its group.
+     */
+    private <T> void runBatch(BatchProgress batch, Consumer<BatchProgress> progress, Iterator<List<T>> groups, Planner<T> planner) {
+        Semaphore inFlight = new Semaphore(2 * concurrency);
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        while (groups.hasNext()) {
+            List<T> group = groups.next();
+            batch.files.addAndGet(group.size());
+            Task task;
+            try {
+                task = planner.plan(group);
+            } catch (IOException e) {
+                for (T item : group) {
+                    finish(batch, progress, String.valueOf(item), e);
+                }
+                continue;
+            }
+            inFlight.acquireUninterruptibly();
+            pending.add(CompletableFuture.runAsync(() -> {
+                try {
+                    task.run().forEach((name, failure) -> finish(batch, progress, name, failure));
+                } catch (IOException | RuntimeException e) {
+                    for (T item : group) {
+                        finish(batch, progress, String.valueOf(item), e);
+                    }
+                } finally {
+                    inFlight.release();
+                }
+            }, operations));
+            pending.removeIf(CompletableFuture::isDone);
+        }
+        batch.listed = true;
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**
+     * Groups {@code items} as they are produced into batches of small files, each at most
+     * {@link #BATCH_FILES} of them and {@link #BATCH_BYTES} together, and puts every larger
+     * file in a group of its own.
+     */
+    private static <T> Iterator<List<T>> grouped(Iterator<T> items, ToLongFunction<T> size) {
+        return new Iterator<List<T>>() {
+            private T held;
+
+            @Override
+            public boolean hasNext() {
+                return held != null || items.hasNext();
+            }
+
+            @Override
+            public List<T> next() {
+                List<T> group = new ArrayList<>();
+                long bytes = 0;
+                while (group.size() < BATCH_FILES && (held != null || items.hasNext())) {
+                    T item = held != null ? held : items.next();
+                    held = null;
+                    long length = size.applyAsLong(item);
+                    if (length > BATCH_FILE_BYTES && group.isEmpty()) {
+                        group.add(item);
+                        break;
+                    }
+                    if (length > BATCH_FILE_BYTES || (!group.isEmpty() && bytes + length > BATCH_BYTES)) {
+                        held = item;
+                        break;
+                    }
+                    group.add(item);
+                    bytes += length;
+                }
+                return group;
+            }
+        };
+    }
+
+    private Task uploadTask(BatchProgress batch, List<BatchFile> files) {
+        for (BatchFile file : files) {
+            batch.bytesTotal.add(file.size);
+        }
+        return () -> {
+            Map<String, Exception> outcomes;
+            if (files.size() == 1) {
+                uploadNow(files.get(0).path.toFile(), files.get(0).name);
+                outcomes = Collections.singletonMap(files.get(0).name, null);
+            } else {
+                outcomes = uploadBatchNow(files);
+            }
+            for (BatchFile file : files) {
+                if (outcomes.get(file.name) == null) {
+                    batch.bytesDone.add(file.size);
+                }
+            }
+            return outcomes;
+        };
+    }
+
+    private Task downloadTask(BatchProgress batch, List<BatchFile> files) {
+        for (BatchFile file : files) {
+            batch.bytesTotal.add(Math.max(0, file.size));
+        }
+        return () -> {
+            for (BatchFile file : files) {
+                Path parent = file.path.toAbsolutePath().getParent();
+                if (parent != null) {
+                    Files.createDirectories(parent);
+                }
+            }
+            Map<String, Exception> outcomes;
+            if (files.size() == 1) {
+                downloadNow(files.get(0).name, files.get(0).path.toFile());
+                outcomes = Collections.singletonMap(files.get(0).name, null);
+            } else {
+                outcomes = downloadBatchNow(files);
+            }
+            for (BatchFile file : files) {
+                if (outcomes.get(file.name) == null) {
+                    long size = file.path.toFile().length();
+                    if (file.size < 0) {
+                        batch.bytesTotal.add(size);
+                    }
+                    batch.bytesDone.add(size);
+                }
+            }
+            return outcomes;
+        };
+    }
+
+    private Map<String, Exception> deleteGroup(List<String> names) throws IOException {
+        if (names.size() == 1) {
+            deleteOne(names.get(0));
+            return Collections.singletonMap(names.get(0), null);
+        }
+        return deleteBatchNow(names);
+    }
+
+    private static void finish(BatchProgress batch, Consumer<BatchProgress> progress, String name, Exception failure) {
+        if (failure == null) {
+            batch.done.incrementAndGet();
+        } else {
+            batch.failed.incrementAndGet();
+            batch.failures.put(name, String.valueOf(failure.getMessage()));
+        }
+        if (progress != null) {
+            progress.accept(batch);
+        }
+    }
+
+    private interface Operation<T> {
+        T run() throws IOException;
+    }
+
+    private <T> CompletableFuture<T> supply(Operation<T> operation) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            operations.execute(() -> {
+                try {
+                    result.complete(operation.run());
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    FileMetadata uploadNow(File file, String name) throws IOException {
+        if (!FileStore.isValidName(name)) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        List<Placement.ReplicaResult> results = placement.writeChain(name, chain -> {
+            if (DedupUpload.ENABLED && file.length() >= DedupUpload.MIN_FILE_SIZE) {
+                return dedupUpload.upload(chain, file, name);
+            }
+            return replicationPipeline.upload(chain, file, name);
+        });
+        List<String> nodes = new ArrayList<>();
+        StringBuilder errors = new StringBuilder();
+        for (Placement.ReplicaResult replica : results) {
+            if (replica.isSuccess()) {
+                nodes.add(ClusterConfig.describe(replica.getNode()));
+            } else {
+                errors.append("; ").append(ClusterConfig.describe(replica.getNode())).append(": ").append(replica.getMessage());
+            }
+        }
+        // The quorum is of the configured replicas, however few nodes are live.
+        if (nodes.size() < ClusterConfig.WRITE_QUORUM) {
+            throw new IOException("Upload of " + name + " failed: only " + nodes.size() + " of " + ClusterConfig.WRITE_QUORUM
+                    + " required replicas confirmed" + errors);
+        }
+        return metadataClient.register(name, file.length(), checksum(file), nodes);
+    }
+
+    long downloadNow(String name, File target) throws IOException {
+        List<InetSocketAddress> sources = locate(name, false);
+        if (sources == null) {
+            throw new FileNotFoundException("File not found: " + name);
+        }
+        replicaReader.download(sources, name, target);
+        return target.length();
+    }
+
+    RemoteFileChannel openNow(String name) throws IOException {
+        List<InetSocketAddress> sources = locate(name, false);
+        if (sources == null) {
+            throw new FileNotFoundException("File not found: " + name);
+        }
+        return new RemoteFileChannel(pool, sources, name, chunkedTransfer.stat(sources, name));
+    }
+
+    List<Placement.ReplicaResult> deleteNow(String name) throws IOException {
+        List<InetSocketAddress> holders = locate(name, true);
+        if (holders == null) {
+            return Collections.emptyList();
+        }
+        try {
+            return placement.runOn(holders, node -> pool.call(node, connection -> {
+                int requestId = connection.send(Protocol.DELETE, name, 0);
+                connection.flush();
+                return connection.readMessage(connection.readResponse(requestId));
+            }));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Delete of " + name + " interrupted");
+        }
+    }
+
+    /**
+     * Uploads {@code files} with one {@link Protocol#BATCH_UPLOAD} to each node that is to hold
+     * some of them, every file going to the first nodes of its preference list, and records
+     * them with one batch to the metadata server. A file some of whose replicas failed, or
+     * returned another checksum than it has, is uploaded again on its own.
+     */
+    Map<String, Exception> uploadBatchNow(List<BatchFile> files) throws IOException {
+        Map<String, Exception> outcomes = new LinkedHashMap<>();
+        List<BatchFile> ready = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        List<Integer> checksums = new ArrayList<>();
+        for (BatchFile file : files) {
+            outcomes.put(file.name, null);
+            try {
+                if (!FileStore.isValidName(file.name)) {
+                    throw new IOException("Invalid file name: " + file.name);
+                }
+                byte[] bytes = Files.readAllBytes(file.path);
+                CRC32C crc = new CRC32C();
+                crc.update(bytes);
+                ready.add(file);
+                contents.add(bytes);
+                checksums.add((int) crc.getValue());
+            } catch (IOException e) {
+                outcomes.put(file.name, e);
+            }
+        }
+        int replicas = placement.getReplicationFactor();
+        Map<InetSocketAddress, List<Integer>> byNode = new LinkedHashMap<>();
+        List<List<String>> stored = new ArrayList<>();
+        for (int i = 0; i < ready.size(); i++) {
+            List<InetSocketAddress> candidates = placement.candidates(ready.get(i).name);
+            for (InetSocketAddress node : candidates.subList(0, Math.min(replicas, candidates.size()))) {
+                byNode.computeIfAbsent(node, key -> new ArrayList<>()).add(i);
+            }
+            stored.add(Collections.synchronizedList(new ArrayList<>()));
+        }
+        runOnNodes(byNode, (node, indexes) -> {
+            List<String> names = new ArrayList<>(indexes.size());
+            List<byte[]> bodies = new ArrayList<>(indexes.size());
+            for (int i : indexes) {
+                names.add(ready.get(i).name);
+                bodies.add(contents.get(i));
+            }
+            List<BatchTransfer.Result> results = batchTransfer.upload(node, names, bodies);
+            for (int j = 0; j < results.size(); j++) {
+                int i = indexes.get(j);
+                if (results.get(j).isOk() && results.get(j).getChecksum() == checksums.get(i)) {
+                    stored.get(i).add(ClusterConfig.describe(node));
+                }
+            }
+        });
+        List<FileMetadata> entries = new ArrayList<>();
+        for (int i = 0; i < ready.size(); i++) {
+            BatchFile file = ready.get(i);
+            if (stored.get(i).size() == replicas) {
+                entries.add(new FileMetadata(file.name, contents.get(i).length, 0, checksums.get(i), new ArrayList<>(stored.get(i))));
+                continue;
+            }
+            try {
+                uploadNow(file.path.toFile(), file.name);
+            } catch (IOException e) {
+                outcomes.put(file.name, e);
+            }
+        }
+        if (!entries.isEmpty()) {
+            try {
+                metadataClient.registerAll(entries);
+            } catch (IOException e) {
+                for (FileMetadata entry : entries) {
+                    outcomes.put(entry.getName(), e);
+                }
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * Downloads {@code files} with one {@link Protocol#BATCH_DOWNLOAD} to the first live holder
+     * of each, found with one batch to the metadata server. A file whose bytes do not match the
+     * size and checksum it was recorded with, or that its node could not send, is downloaded
+     * on its own.
+     */
+    Map<String, Exception> downloadBatchNow(List<BatchFile> files) throws IOException {
+        Map<String, Exception> outcomes = new LinkedHashMap<>();
+        List<String> names = new ArrayList<>(files.size());
+        for (BatchFile file : files) {
+            outcomes.put(file.name, null);
+            names.add(file.name);
+        }
+        List<FileMetadata> entries;
+        try {
+            entries = metadataClient.lookupAll(names);
+        } catch (DfsServerException e) {
+            throw e;
+        } catch (IOException e) {
+            entries = Collections.nCopies(files.size(), null);
+        }
+        Map<InetSocketAddress, List<Integer>> byNode = new LinkedHashMap<>();
+        boolean[] done = new boolean[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            FileMetadata entry = entries.get(i);
+            if (entry != null && !entry.getNodes().isEmpty()) {
+                byNode.computeIfAbsent(placement.preferLive(nodesOf(entry)).get(0), key -> new ArrayList<>()).add(i);
+            }
+        }
+        List<FileMetadata> found = entries;
+        runOnNodes(byNode, (node, indexes) -> {
+            List<String> asked = new ArrayList<>(indexes.size());
+            for (int i : indexes) {
+                asked.add(names.get(i));
+            }
+            List<BatchTransfer.Result> results = batchTransfer.download(node, asked);
+            for (int j = 0; j < results.size(); j++) {
+                int i = indexes.get(j);
+                byte[] bytes = results.get(j).getContents();
+                if (!results.get(j).isOk() || bytes.length != found.get(i).getSize()) {
+                    continue;
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(bytes);
+                if ((int) crc.getValue() == found.get(i).getChecksum()) {
+                    Path destination = files.get(i).path.toAbsolutePath();
+                    Path temporary = destination.resolveSibling(destination.getFileName() + ".tmp");
+                    Files.write(temporary, bytes);
+                    Files.move(temporary, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    done[i] = true;
+                }
+            }
+        });
+        for (int i = 0; i < files.size(); i++) {
+            if (done[i]) {
+                continue;
+            }
+            try {
+                downloadNow(names.get(i), files.get(i).path.toFile());
+            } catch (IOException e) {
+                outcomes.put(names.get(i), e);
+            }
+        }
+        return outcomes;
+    }
+
+    /**
+     * Removes {@code names} from the namespace with one batch to the metadata server, then
+     * deletes them from their nodes with one {@link Protocol#BATCH_DELETE} to each. If the
+     * metadata server cannot be reached, every file is deleted on its own.
+     */
+    Map<String, Exception> deleteBatchNow(List<String> names) throws IOException {
+        Map<String, Exception> outcomes = new LinkedHashMap<>();
+        List<FileMetadata> entries;
+        try {
+            entries = metadataClient.removeAll(names);
+        } catch (DfsServerException e) {
+            throw e;
+        } catch (IOException e) {
+            for (String name : names) {
+                try {
+                    deleteOne(name);
+                    outcomes.put(name, null);
+                } catch (IOException failure) {
+                    outcomes.put(name, failure);
+                }
+            }
+            return outcomes;
+        }
+        Map<InetSocketAddress, List<Integer>> byNode = new LinkedHashMap<>();
+        for (int i = 0; i < names.size(); i++) {
+            outcomes.put(names.get(i), null);
+            if (entries.get(i) == null) {
+                outcomes.put(names.get(i), new FileNotFoundException("File not found: " + names.get(i)));
+                continue;
+            }
+            for (InetSocketAddress node : nodesOf(entries.get(i))) {
+                byNode.computeIfAbsent(node, key -> new ArrayList<>()).add(i);
+            }
+        }
+        Map<String, StringBuilder> errors = new ConcurrentHashMap<>();
+        Map<InetSocketAddress, IOException> failedNodes = runOnNodes(byNode, (node, indexes) -> {
+            List<String> asked = new ArrayList<>(indexes.size());
+            for (int i : indexes) {
+                asked.add(names.get(i));
+            }
+            List<BatchTransfer.Result> results = batchTransfer.delete(node, asked);
+            for (int j = 0; j < results.size(); j++) {
+                if (!results.get(j).isOk() && !results.get(j).isNotFound()) {
+                    addError(errors, asked.get(j), node, results.get(j).getMessage());
+                }
+            }
+        });
+        for (Map.Entry<InetSocketAddress, IOException> failed : failedNodes.entrySet()) {
+            for (int i : byNode.get(failed.getKey())) {
+                addError(errors, names.get(i), failed.getKey(), failed.getValue().getMessage());
+            }
+        }
+        errors.forEach((name, error) -> outcomes.put(name, new IOException("Delete of " + name + " failed on " + error)));
+        return outcomes;
+    }
+
+    private static void addError(Map<String, StringBuilder> errors, String name, InetSocketAddress node, String message) {
+        StringBuilder error = errors.computeIfAbsent(name, key -> new StringBuilder());
+        synchronized (error) {
+            error.append(error.length() == 0 ? "" : "; ").append(ClusterConfig.describe(node)).append(": ").append(message);
+        }
+    }
+
+    /**
+     * Deletes {@code name} alone, failing if it does not exist or a node holding it failed.
+     */
+    private void deleteOne(String name) throws IOException {
+        List<Placement.ReplicaResult> results = deleteNow(name);
+        if (results.isEmpty()) {
+            throw new FileNotFoundException("File not found: " + name);
+        }
+        StringBuilder errors = new StringBuilder();
+        for (Placement.ReplicaResult result : results) {
+            if (!result.isSuccess()) {
+                errors.append(errors.length() == 0 ? "" : "; ").append(ClusterConfig.describe(result.getNode())).append(": ").append(result.getMessage());
+            }
+        }
+        if (errors.length() > 0) {
+            throw new IOException("Delete of " + name + " failed on " + errors);
+        }
+    }
+
+    private interface NodeBatch {
+        void run(InetSocketAddress node, List<Integer> indexes) throws IOException;
+    }
+
+    /**
+     * Runs {@code call} with the files of each node of {@code byNode}, on all the nodes in
+     * parallel, and returns the error of each node that failed.
+     */
+    private Map<InetSocketAddress, IOException> runOnNodes(Map<InetSocketAddress, List<Integer>> byNode, NodeBatch call) throws IOException {
+        Map<InetSocketAddress, IOException> failures = new LinkedHashMap<>();
+        try {
+            for (Placement.ReplicaResult result : placement.runOn(new ArrayList<>(byNode.keySet()), node -> {
+                call.run(node, byNode.get(node));
+                return "";
+            })) {
+                if (!result.isSuccess()) {
+                    failures.put(result.getNode(), new IOException(result.getMessage()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Batch of " + byNode.size() + " nodes interrupted");
+        }
+        return failures;
+    }
+
+    private static List<InetSocketAddress> nodesOf(FileMetadata metadata) {
+        List<InetSocketAddress> nodes = new ArrayList<>();
+        for (String node : metadata.getNodes()) {
+            nodes.add(ClusterConfig.parseNode(node));
+        }
+        return nodes;
+    }
+
+    /**
+     * The nodes holding {@code name}, live ones first, or null if the file does not exist. If
+     * the metadata server cannot be reached, every node in preference order.
+     */
+    private List<InetSocketAddress> locate(String name, boolean remove) throws IOException {
+        FileMetadata metadata;
+        try {
+            metadata = remove ? metadataClient.remove(name) : metadataClient.lookup(name);
+        } catch (DfsServerException e) {
+            throw e;
+        } catch (IOException e) {
+            return placement.candidates(name);
+        }
+        if (metadata == null) {
+            return null;
+        }
+        return placement.preferLive(nodesOf(metadata));
+    }
+
+    static int checksum(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            CRC32C crc = new CRC32C();
+            ByteBuffer buffer = BufferPool.DIRECT.acquire();
+            try {
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip();
+                    crc.update(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                BufferPool.DIRECT.release(buffer);
+            }
+            return (int) crc.getValue();
+        }
+    }
+
+    /**
+     * The file name a slash-separated path is stored under.
+     */
+    public static String nameOf(String path) {
+        return path.replace("%", "%25").replace("/", "%2F");
+    }
+
+    /**
+     * The slash-separated path a file name stands for; the inverse of {@link #nameOf}.
+     */
+    public static String pathOf(String name) {
+        return name.replace("%2F", "/").replace("%25", "%");
+    }
+
+    @Override
+    public void close() {
+        operations.shutdownNow();
+        background.shutdownNow();
+        pool.close();
+    }
+}
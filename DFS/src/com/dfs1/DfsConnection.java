@@ -0,0 +1,150 @@
+package com.dfs1;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+
+/**
+ * A persistent connection to one server. Several requests may be written before their
+ * responses are read; the server answers them in order and echoes each request id. Requests
+ * name the connection's tenant, if it has one.
+ */
+public class DfsConnection implements Closeable {
+    private final InetSocketAddress address;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final String tenant;
+    private int nextRequestId = 1;
+    private boolean reused;
+
+    private DfsConnection(InetSocketAddress address, Socket socket, String tenant) throws IOException {
+        this.address = address;
+        this.socket = socket;
+        this.tenant = tenant;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+    }
+
+    public static DfsConnection open(InetSocketAddress address, int connectTimeoutMillis) throws IOException {
+        return open(address, connectTimeoutMillis, ClusterConfig.TENANT);
+    }
+
+    public static DfsConnection open(InetSocketAddress address, int connectTimeoutMillis, String tenant) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(address, connectTimeoutMillis);
+            return new DfsConnection(address, socket, tenant);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public boolean isReused() {
+        return reused;
+    }
+
+    void markReused() {
+        reused = true;
+    }
+
+    public boolean isOpen() {
+        return !socket.isClosed() && socket.isConnected();
+    }
+
+    public void setReadTimeout(int timeoutMillis) throws IOException {
+        socket.setSoTimeout(timeoutMillis);
+    }
+
+    /**
+     * Writes a request header and returns its request id. The caller writes exactly
+     * {@code payloadLength} bytes to {@link #out()} afterwards and flushes when done.
+     */
+    public int send(byte opcode, String name, long payloadLength) throws IOException {
+        return send(opcode, name, 0, payloadLength);
+    }
+
+    public int send(byte opcode, String name, long offset, long payloadLength) throws IOException {
+        int requestId = nextRequestId++;
+        new Frame(opcode, requestId, name, offset, payloadLength, tenant, false).write(out);
+        return requestId;
+    }
+
+    /**
+     * Writes the header of a request this node passes on for {@code request}, such as the next
+     * hop of a replication chain: it keeps the tenant of the original and is marked forwarded,
+     * so the next node does not schedule or charge it again.
+     */
+    public int forward(Frame request, byte opcode, long payloadLength) throws IOException {
+        int requestId = nextRequestId++;
+        new Frame(opcode, requestId, request.getName(), request.getOffset(), payloadLength, request.getTenant(), true).write(out);
+        return requestId;
+    }
+
+    public Frame readResponse(int expectedRequestId) throws IOException {
+        Frame response = Frame.read(in);
+        if (response == null) {
+            throw new EOFException("Connection to " + address + " closed by server");
+        }
+        if (response.getRequestId() != expectedRequestId) {
+            throw new ProtocolException("Expected response to request " + expectedRequestId + " but got " + response);
+        }
+        return response;
+    }
+
+    public String readMessage(Frame response) throws IOException {
+        return Frame.readMessage(in, response);
+    }
+
+    /**
+     * Reads the response and throws a {@link DfsServerException} carrying the server's
+     * message unless its status is OK. The payload of an OK response is left to the caller.
+     */
+    public Frame readOk(int expectedRequestId) throws IOException {
+        Frame response = readResponse(expectedRequestId);
+        if (response.getOpcode() != Protocol.STATUS_OK) {
+            throw new DfsServerException(response.getOpcode(), readMessage(response), response.getOffset());
+        }
+        return response;
+    }
+
+    /**
+     * Called between blocks of a long payload: if the server already answered
+     * {@code requestId}, as it does when it refuses an upload as busy, throws that answer. The
+     * rest of the payload is not sent then, so the connection is closed.
+     */
+    public void checkAnswered(int requestId) throws IOException {
+        if (in.available() == 0) {
+            return;
+        }
+        Frame response = readResponse(requestId);
+        String message = readMessage(response);
+        close();
+        throw new DfsServerException(response.getOpcode(), message, response.getOffset());
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public DataInputStream in() {
+        return in;
+    }
+
+    public DataOutputStream out() {
+        return out;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,44 @@
+package com.dfs1;
+
+import java.io.IOException;
+
+/**
+ * An error status returned by a server. The response has been read in full, so the connection
+ * it arrived on is still usable.
+ */
+public class DfsServerException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final byte status;
+    private final long retryAfterMillis;
+
+    public DfsServerException(byte status, String message) {
+        this(status, message, 0);
+    }
+
+    public DfsServerException(byte status, String message, long retryAfterMillis) {
+        super(message);
+        this.status = status;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    public boolean isNotFound() {
+        return status == Protocol.STATUS_NOT_FOUND;
+    }
+
+    /**
+     * Whether the server refused the request for now, to be retried after
+     * {@link #getRetryAfterMillis}.
+     */
+    public boolean isBusy() {
+        return status == Protocol.STATUS_BUSY;
+    }
+
+    public long getRetryAfterMillis() {
+        return status == Protocol.STATUS_BUSY ? retryAfterMillis : 0;
+    }
+}
@@ -2,15 +2,45 @@ package com.dfs1;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 
 public class DistributedServer {
-    private static final int THREAD_POOL_SIZE = 10;
-    private static boolean[] serverStatus = {false, false, false};
-    private static ServerSocket[] serverSockets = new ServerSocket[3];
-    private static ExecutorService threadPool = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+    private static final int THREAD_POOL_SIZE = Integer.getInteger("dfs.server.threads", 64);
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String ENGINE = System.getProperty("dfs.server.engine", "pool");
+    private static final int IO_THREADS = Integer.getInteger("dfs.server.ioThreads", Runtime.getRuntime().availableProcessors());
+    private static final int NODE_COUNT = ClusterConfig.NODES.size();
+    private static final int METADATA_INDEX = -1;
+    private static final String METADATA_DIRECTORY = System.getProperty("dfs.metadata.dir", "metadata_files");
+    private static final Set<Integer> running = ConcurrentHashMap.newKeySet();
+    private static final Map<Integer, ServerSocket> serverSockets = new ConcurrentHashMap<>();
+    private static final Map<Integer, FileStore> fileStores = new ConcurrentHashMap<>();
+    private static final Map<Integer, Scrubber> scrubbers = new ConcurrentHashMap<>();
+    private static final Map<Integer, AntiEntropy> antiEntropies = new ConcurrentHashMap<>();
+    private static final Map<Integer, Membership> memberships = new ConcurrentHashMap<>();
+    private static final Map<Integer, ServerMetrics> metrics = new ConcurrentHashMap<>();
 
     public static void startServer(int port, String directory, int serverIndex) {
+        startServer(port, directory, serverIndex, ENGINE);
+    }
+
+    /**
+     * Runs a server until it is shut down. The engine is "pool", which serves each connection
+     * on a thread of the fixed pool; "virtual", which gives each connection a virtual thread
+     * (on Java 21, falling back to "pool" before that); "thread", a platform thread per
+     * connection as {@code com.dfs.Server} does; or "nio", which multiplexes all connections
+     * over a few selector threads and handles their requests on up to as many workers as the
+     * pool has threads ({@code dfs.server.threads}).
+     */
+    public static void startServer(int port, String directory, int serverIndex, String engine) {
         System.out.println("Starting server on port " + port + "...");
         File dir = new File(directory);
         if (!dir.exists()) {
@@ -21,17 +51,119 @@ public class DistributedServer {
             }
         }
 
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            serverSockets[serverIndex] = serverSocket;
-            serverStatus[serverIndex] = true;
+        FileStore store = new FileStore(dir);
+        Membership membership = new Membership(nodeAddress(port, serverIndex), ClusterConfig.SEEDS);
+        ServerMetrics serverMetrics = new ServerMetrics(ClusterConfig.describe(membership.getSelf()));
+        serverMetrics.watchStore(store);
+        Scrubber scrubber = new Scrubber(store, membership, Scrubber.BYTES_PER_SECOND);
+        AntiEntropy antiEntropy = new AntiEntropy(store, membership);
+        serverMetrics.watchAntiEntropy(antiEntropy);
+        fileStores.put(serverIndex, store);
+        scrubbers.put(serverIndex, scrubber);
+        antiEntropies.put(serverIndex, antiEntropy);
+        memberships.put(serverIndex, membership);
+        membership.start();
+        scrubber.start();
+        antiEntropy.start();
+        try {
+            serve(port, new DataNodeHandler(store, membership, antiEntropy), serverIndex, engine, serverMetrics);
+        } finally {
+            antiEntropy.close();
+            scrubber.close();
+            membership.close();
+            fileStores.remove(serverIndex);
+            scrubbers.remove(serverIndex);
+            antiEntropies.remove(serverIndex);
+            memberships.remove(serverIndex);
+        }
+    }
+
+    /**
+     * The anti-entropy of the running data node {@code serverIndex}, or null if it is not running.
+     */
+    static AntiEntropy getAntiEntropy(int serverIndex) {
+        return antiEntropies.get(serverIndex);
+    }
+
+    /**
+     * The address other nodes know this server by: its entry in the cluster configuration, or
+     * the local address for a server started on a port outside it.
+     */
+    private static InetSocketAddress nodeAddress(int port, int serverIndex) {
+        if (serverIndex < NODE_COUNT && ClusterConfig.NODES.get(serverIndex).getPort() == port) {
+            return ClusterConfig.NODES.get(serverIndex);
+        }
+        return new InetSocketAddress("127.0.0.1", port);
+    }
+
+    /**
+     * The port of the configured node for {@code serverIndex}, or for an index past the
+     * configuration, one of the local ports following the last configured one.
+     */
+    private static long consolePort(int serverIndex) {
+        if (serverIndex < NODE_COUNT) {
+            return ClusterConfig.NODES.get(serverIndex).getPort();
+        }
+        int lastPort = NODE_COUNT == 0 ? 5000 : ClusterConfig.NODES.get(NODE_COUNT - 1).getPort();
+        return lastPort + (long) serverIndex - NODE_COUNT + 1;
+    }
+
+    /**
+     * Runs the metadata server, which keeps the namespace in memory and on disk under
+     * {@code directory}, until it is shut down.
+     */
+    public static void startMetadataServer(int port, String directory) {
+        System.out.println("Starting metadata server on port " + port + "...");
+        try (MetadataStore store = MetadataStore.open(new File(directory))) {
+            System.out.println("Metadata loaded: " + store.size() + " files.");
+            serve(port, new MetadataHandler(store), METADATA_INDEX, ENGINE, new ServerMetrics("metadata:" + port));
+        } catch (IOException e) {
+            System.out.println("Error opening metadata in " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private static void serve(int port, RequestHandler handler, int serverIndex, String engine, ServerMetrics serverMetrics) {
+        // The nio engine is meant to serve many connections on few threads, so rather than park
+        // a worker for every request that must wait, its scheduler refuses them.
+        QosScheduler scheduler = new QosScheduler(!engine.equals("nio"));
+        serverMetrics.watchQos(scheduler);
+        RequestHandler metered = new MeteredHandler(new QosHandler(handler, scheduler), serverMetrics);
+        metrics.put(serverIndex, serverMetrics);
+        serverMetrics.register();
+        try {
+            if (engine.equals("nio")) {
+                startSelectorServer(port, metered, serverIndex, serverMetrics);
+            } else {
+                startThreadServer(port, metered, serverIndex, engine, serverMetrics);
+            }
+        } finally {
+            serverMetrics.unregister();
+            metrics.remove(serverIndex);
+        }
+    }
+
+    private static void startThreadServer(int port, RequestHandler handler, int serverIndex, String engine, ServerMetrics serverMetrics) {
+        // Each server gets its own threads, so that connections a replication chain holds open on
+        // one node cannot starve another node running in the same process.
+        ExecutorService threadPool = connectionExecutor(port, engine);
+        Set<Socket> clients = ConcurrentHashMap.newKeySet();
+        serverMetrics.watchPool(threadPool);
+        serverMetrics.watchConnections(clients::size);
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            // Sockets accepted through a channel have one of their own, which lets downloads use transferTo.
+            ServerSocket serverSocket = serverChannel.socket();
+            serverSocket.bind(new InetSocketAddress(port));
+            serverSockets.put(serverIndex, serverSocket);
+            running.add(serverIndex);
             System.out.println("Server on port " + port + " started.");
 
-            while (serverStatus[serverIndex]) {
+            while (running.contains(serverIndex)) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    threadPool.execute(() -> handleClient(clientSocket, directory));
-                } catch (SocketException e) {
-                    if (serverStatus[serverIndex]) {
+                    clients.add(clientSocket);
+                    threadPool.execute(() -> handleClient(clientSocket, handler, clients));
+                } catch (SocketException | ClosedChannelException e) {
+                    if (running.contains(serverIndex)) {
                         System.out.println("Server socket closed unexpectedly.");
                     }
                 }
@@ -41,27 +173,64 @@ public class DistributedServer {
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
-            serverSockets[serverIndex] = null;
+            serverSockets.remove(serverIndex);
+            threadPool.shutdown();
+            // A node that is shut down stops serving the connections it has too, as it would if it crashed.
+            for (Socket client : clients) {
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static ExecutorService connectionExecutor(int port, String engine) {
+        if (engine.equals("virtual")) {
+            if (VirtualThreads.AVAILABLE) {
+                return VirtualThreads.newPerTaskExecutor("dfs-" + port);
+            }
+            System.out.println("Virtual threads need Java 21; server on port " + port + " uses the thread pool.");
+        } else if (engine.equals("thread")) {
+            return Executors.newCachedThreadPool();
+        }
+        return Executors.newFixedThreadPool(THREAD_POOL_SIZE);
+    }
+
+    private static void startSelectorServer(int port, RequestHandler handler, int serverIndex, ServerMetrics serverMetrics) {
+        try (NioServer server = new NioServer(port, handler, IO_THREADS, THREAD_POOL_SIZE)) {
+            serverMetrics.watchConnections(server::getOpenConnections);
+            serverSockets.put(serverIndex, server.socket());
+            running.add(serverIndex);
+            System.out.println("Server on port " + port + " started with " + IO_THREADS + " I/O threads.");
+            server.run();
+            System.out.println("Server on port " + port + " has shut down.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            serverSockets.remove(serverIndex);
         }
     }
 
     private static void listenForCommands() {
         try (BufferedReader consoleReader = new BufferedReader(new InputStreamReader(System.in))) {
             System.out.println("Type command to control servers:");
-            System.out.println("startserver1, startserver2, startserver3");
-            System.out.println("startall, shutdown1, shutdown2, shutdown3, shutdownall");
+            System.out.println("startserver1 ... startserver" + NODE_COUNT + " (higher numbers add local nodes on the following ports)");
+            System.out.println("startall, shutdown1 ... shutdown" + NODE_COUNT + ", shutdownall, stats, members, sync1 ... sync" + NODE_COUNT);
+            System.out.println("startmeta, shutdownmeta");
 
             while (true) {
                 String command = consoleReader.readLine();
 
                 if (command.equals("startall")) {
                     boolean anyStarted = false;
-                    for (int i = 0; i < 3; i++) {
-                        if (!serverStatus[i]) {
-                            String directory = "server_files" + (i + 1);
-                            int port = 5001 + i;
-                            final int index = i;
-                            new Thread(() -> startServer(port, directory, index)).start();
+                    if (!running.contains(METADATA_INDEX)) {
+                        new Thread(() -> startMetadataServer(ClusterConfig.METADATA.getPort(), METADATA_DIRECTORY)).start();
+                        anyStarted = true;
+                    }
+                    for (int i = 0; i < NODE_COUNT; i++) {
+                        if (!running.contains(i)) {
+                            startConsoleServer(i);
                             anyStarted = true;
                             System.out.println("Server " + (i + 1) + " started.");
                         }
@@ -70,35 +239,77 @@ public class DistributedServer {
                         System.out.println("All servers are already running.");
                     }
                 } else if (command.equals("shutdownall")) {
-                    boolean anyShutdown = false;
-                    for (int i = 0; i < 3; i++) {
-                        if (serverStatus[i]) {
-                            shutdownServer(i);
-                            anyShutdown = true;
-                        }
-                    }
-                    if (!anyShutdown) {
+                    if (running.isEmpty()) {
                         System.out.println("No servers are currently running.");
                     }
+                    for (int index : running.toArray(new Integer[0])) {
+                        shutdownServer(index);
+                    }
+                } else if (command.equals("startmeta")) {
+                    if (!running.contains(METADATA_INDEX)) {
+                        new Thread(() -> startMetadataServer(ClusterConfig.METADATA.getPort(), METADATA_DIRECTORY)).start();
+                    } else {
+                        System.out.println("Metadata server is already running.");
+                    }
+                } else if (command.equals("shutdownmeta")) {
+                    if (running.contains(METADATA_INDEX)) {
+                        shutdownServer(METADATA_INDEX);
+                    } else {
+                        System.out.println("Metadata server is not running.");
+                    }
                 } else if (command.startsWith("startserver")) {
-                    int serverNumber = Integer.parseInt(command.substring(11)) - 1;
-                    if (!serverStatus[serverNumber]) {
-                        String directory = "server_files" + (serverNumber + 1);
-                        int port = 5001 + serverNumber;
-                        new Thread(() -> startServer(port, directory, serverNumber)).start();
+                    int serverNumber = parseServerNumber(command.substring(11));
+                    if (serverNumber < 0) {
+                        System.out.println("Invalid start command! Please specify a server number from 1.");
+                    } else if (!running.contains(serverNumber)) {
+                        startConsoleServer(serverNumber);
                     } else {
                         System.out.println("Server " + (serverNumber + 1) + " is already running.");
                     }
                 } else if (command.startsWith("shutdown")) {
-                    try {
-                        int serverNumber = Integer.parseInt(command.substring(8)) - 1;
-                        if (serverStatus[serverNumber]) {
-                            shutdownServer(serverNumber);
-                        } else {
-                            System.out.println("Server " + (serverNumber + 1) + " is not running.");
-                        }
-                    } catch (NumberFormatException e) {
-                        System.out.println("Invalid shutdown command! Please specify a valid server number (e.g., shutdown1, shutdown2, shutdown3).");
+                    int serverNumber = parseServerNumber(command.substring(8));
+                    if (serverNumber < 0) {
+                        System.out.println("Invalid shutdown command! Please specify a server number from 1.");
+                    } else if (running.contains(serverNumber)) {
+                        shutdownServer(serverNumber);
+                    } else {
+                        System.out.println("Server " + (serverNumber + 1) + " is not running.");
+                    }
+                } else if (command.equals("stats")) {
+                    System.out.print(TransferStats.report());
+                    for (ServerMetrics serverMetrics : metrics.values()) {
+                        System.out.print(serverMetrics.report());
+                    }
+                    for (Map.Entry<Integer, FileStore> entry : fileStores.entrySet()) {
+                        System.out.println("Server " + (entry.getKey() + 1) + " " + entry.getValue().getCache());
+                        System.out.println("Server " + (entry.getKey() + 1) + " " + entry.getValue().getMappings());
+                        System.out.println("Server " + (entry.getKey() + 1) + " " + entry.getValue().getPacked());
+                    }
+                    for (Map.Entry<Integer, Scrubber> entry : scrubbers.entrySet()) {
+                        System.out.println("Server " + (entry.getKey() + 1) + " " + entry.getValue());
+                    }
+                    for (Map.Entry<Integer, AntiEntropy> entry : antiEntropies.entrySet()) {
+                        System.out.println("Server " + (entry.getKey() + 1) + " " + entry.getValue());
+                    }
+                } else if (command.startsWith("sync")) {
+                    int serverNumber = parseServerNumber(command.substring(4));
+                    AntiEntropy antiEntropy = serverNumber < 0 ? null : antiEntropies.get(serverNumber);
+                    if (antiEntropy == null) {
+                        System.out.println("Invalid sync command! Please specify a running server from 1.");
+                    } else {
+                        new Thread(() -> {
+                            try {
+                                System.out.println("Server " + (serverNumber + 1) + " synced: " + antiEntropy.sync());
+                            } catch (InterruptedException ignored) {
+                            }
+                        }).start();
+                    }
+                } else if (command.equals("members")) {
+                    if (memberships.isEmpty()) {
+                        System.out.println("No servers are currently running.");
+                    }
+                    for (Map.Entry<Integer, Membership> entry : memberships.entrySet()) {
+                        System.out.println("Server " + (entry.getKey() + 1) + " " + entry.getValue());
                     }
                 } else {
                     System.out.println("Invalid command! Try again.");
@@ -109,94 +320,190 @@ public class DistributedServer {
         }
     }
 
-    private static void shutdownServer(int serverIndex) {
-        serverStatus[serverIndex] = false;
-        System.out.println("Server " + (serverIndex + 1) + " is shutting down...");
-        if (serverSockets[serverIndex] != null) {
+    private static void startConsoleServer(int serverIndex) {
+        String directory = "server_files" + (serverIndex + 1);
+        int port = (int) consolePort(serverIndex);
+        new Thread(() -> startServer(port, directory, serverIndex)).start();
+    }
+
+    /**
+     * Returns the zero-based index for a 1-based server number, or -1 if it is not a valid
+     * number. Numbers past the configured nodes start extra local nodes.
+     */
+    private static int parseServerNumber(String number) {
+        try {
+            int index = Integer.parseInt(number.trim()) - 1;
+            return index >= 0 && consolePort(index) <= 0xFFFF ? index : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static void shutdownMetadataServer() {
+        shutdownServer(METADATA_INDEX);
+    }
+
+    static void shutdownServer(int serverIndex) {
+        String server = serverIndex == METADATA_INDEX ? "Metadata server" : "Server " + (serverIndex + 1);
+        running.remove(serverIndex);
+        System.out.println(server + " is shutting down...");
+        ServerSocket socket = serverSockets.get(serverIndex);
+        if (socket != null) {
             try {
-                serverSockets[serverIndex].close();
+                socket.close();
             } catch (IOException e) {
-                System.out.println("Error closing server socket for Server " + (serverIndex + 1) + ": " + e.getMessage());
+                System.out.println("Error closing server socket for " + server + ": " + e.getMessage());
             }
         }
     }
 
-    private static void handleClient(Socket clientSocket, String directory) {
-        try (DataInputStream in = new DataInputStream(clientSocket.getInputStream());
-             DataOutputStream out = new DataOutputStream(clientSocket.getOutputStream())) {
-            String command = in.readUTF();
-
-            if (command.startsWith("UPLOAD")) {
-                uploadFile(command.substring(7), in, directory, out);
-            } else if (command.startsWith("DOWNLOAD")) {
-                downloadFile(command.substring(9), out, directory);
-            } else if (command.startsWith("DELETE")) {
-                deleteFile(command.substring(7), out, directory);
-            } else if (command.equals("LIST")) {
-                listFiles(out, directory);
-            } else {
-                out.writeUTF("Invalid command!");
+    private static void handleClient(Socket clientSocket, RequestHandler handler, Set<Socket> clients) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream(), BUFFER_SIZE));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream(), BUFFER_SIZE))) {
+            clientSocket.setTcpNoDelay(true);
+            Frame request;
+            while ((request = Frame.read(in)) != null) {
+                if (request.isForwarded() && !isPeer(clientSocket.getInetAddress())) {
+                    request = request.notForwarded();
+                }
+                Response response;
+                if (RequestHandler.isUpload(request.getOpcode())) {
+                    response = receiveUpload(request, in, out, clientSocket.getChannel(), handler);
+                    if (response == null) {
+                        continue;
+                    }
+                } else if (request.getPayloadLength() > RequestHandler.MAX_REQUEST_BODY) {
+                    in.skipNBytes(request.getPayloadLength());
+                    response = Response.message(Protocol.STATUS_ERROR, request.getName(), "Request body too large.");
+                } else {
+                    byte[] body = new byte[(int) request.getPayloadLength()];
+                    in.readFully(body);
+                    response = handler.handle(request, ByteBuffer.wrap(body));
+                }
+                sendResponse(request, response, out, clientSocket.getChannel());
+                // Pipelined requests already buffered are answered before flushing the responses together.
+                if (in.available() == 0) {
+                    out.flush();
+                }
             }
         } catch (IOException e) {
-            System.out.println("Error handling client: " + e.getMessage());
+            // A socket closed under it was closed by the server shutting down.
+            if (!clientSocket.isClosed()) {
+                Log.warn("client_error", "remote", clientSocket.getRemoteSocketAddress(), "error", e.getMessage());
+            }
+        } finally {
+            clients.remove(clientSocket);
+            try {
+                clientSocket.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 
-    private static void uploadFile(String fileName, DataInputStream in, String directory, DataOutputStream out) throws IOException {
-        File file = new File(directory, fileName);
-        try (FileOutputStream fileOut = new FileOutputStream(file)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            while ((bytesRead = in.read(buffer)) != -1) {
-                fileOut.write(buffer, 0, bytesRead);
+    /**
+     * Receives an upload's payload and returns the response to it, or null if it was refused as
+     * busy: that is answered before the payload is read, so the client can stop sending it.
+     */
+    private static Response receiveUpload(Frame request, DataInputStream in, DataOutputStream out, SocketChannel channel,
+                                          RequestHandler handler) throws IOException {
+        String fileName = request.getName();
+        FileStore.Upload upload;
+        try {
+            upload = handler.beginUpload(request);
+        } catch (QosScheduler.BusyException e) {
+            sendResponse(request, QosHandler.busy(request, e), out, channel);
+            out.flush();
+            try {
+                in.skipNBytes(request.getPayloadLength());
+            } catch (EOFException closed) {
+                // The client hung up rather than send the rest; the next read ends the connection.
             }
+            return null;
+        } catch (IOException e) {
+            in.skipNBytes(request.getPayloadLength());
+            return Response.message(Protocol.STATUS_ERROR, fileName, "Upload failed: " + e.getMessage());
         }
-        out.writeUTF("File uploaded successfully: " + fileName);
-        System.out.println("File uploaded: " + fileName);
+        ByteBuffer buffer = BufferPool.HEAP.acquire();
+        // Until the upload is handed to finishUpload, every way out of here must abort it, or
+        // its staging file, admission ticket and downstream connection are never released.
+        boolean received = false;
+        try {
+            long remaining = request.getPayloadLength();
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), remaining));
+                if (bytesRead == -1) {
+                    throw new EOFException("Upload of " + fileName + " ended " + remaining + " bytes early");
+                }
+                remaining -= bytesRead;
+                try {
+                    upload.write(buffer.clear().limit(bytesRead));
+                } catch (IOException e) {
+                    upload.abort();
+                    received = true;
+                    in.skipNBytes(remaining);
+                    return Response.message(Protocol.STATUS_ERROR, fileName, "Upload failed: " + e.getMessage());
+                }
+            }
+            received = true;
+        } finally {
+            if (!received) {
+                upload.abort();
+            }
+            BufferPool.HEAP.release(buffer);
+        }
+        return handler.finishUpload(request, upload);
     }
 
-    private static void downloadFile(String fileName, DataOutputStream out, String directory) throws IOException {
-        File file = new File(directory, fileName);
-        if (file.exists()) {
-            out.writeUTF("READY");
-            try (FileInputStream fileIn = new FileInputStream(file)) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fileIn.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                }
+    /**
+     * Whether {@code address} is the host of a cluster node, the only clients whose requests
+     * may be marked forwarded and so skip admission.
+     */
+    static boolean isPeer(InetAddress address) {
+        for (InetSocketAddress node : ClusterConfig.NODES) {
+            if (address.equals(node.getAddress())) {
+                return true;
             }
-            out.writeUTF("Download complete: " + fileName);
-        } else {
-            out.writeUTF("File not found.");
         }
+        for (Membership membership : memberships.values()) {
+            if (membership.isPeerHost(address)) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private static void deleteFile(String fileName, DataOutputStream out, String directory) throws IOException {
-        File file = new File(directory, fileName);
-        if (file.exists()) {
-            if (file.delete()) {
-                out.writeUTF("File deleted successfully: " + fileName);
-                System.out.println("File deleted: " + fileName);
+    private static void sendResponse(Frame request, Response response, DataOutputStream out, SocketChannel channel) throws IOException {
+        try {
+            response.header(request.getRequestId()).write(out);
+            out.write(response.getPrefix());
+            if (response.getFile() == null) {
+                ByteBuffer payload = response.getPayload();
+                if (payload.hasArray()) {
+                    out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+                } else {
+                    out.flush();
+                    WritableByteChannel target = channel != null ? channel : Channels.newChannel(out);
+                    while (payload.hasRemaining()) {
+                        target.write(payload);
+                    }
+                }
             } else {
-                out.writeUTF("Failed to delete the file: " + fileName);
+                out.flush();
+                FileTransfer.send(response.getFile(), response.getFilePosition(), response.getFileLength(), channel, out);
             }
-        } else {
-            out.writeUTF("File not found.");
+        } finally {
+            response.close();
         }
     }
 
-    private static void listFiles(DataOutputStream out, String directory) throws IOException {
-        File dir = new File(directory);
-        File[] files = dir.listFiles();
-        if (files != null && files.length > 0) {
-            for (File file : files) {
-                out.writeUTF(file.getName());
-            }
-        } else {
-            out.writeUTF("No files available.");
+    static byte[] encodeNames(String[] names) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream namesOut = new DataOutputStream(bytes);
+        namesOut.writeInt(names.length);
+        for (String name : names) {
+            namesOut.writeUTF(name);
         }
-        out.writeUTF("END_OF_LIST");
+        return bytes.toByteArray();
     }
 
     public static void main(String[] args) {
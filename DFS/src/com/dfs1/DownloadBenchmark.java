@@ -0,0 +1,92 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Downloads one large file over loopback with each {@link FileTransfer.Mode} and reports the
+ * client-observed throughput and the server's CPU time per gigabyte sent.
+ *
+ * Usage: DownloadBenchmark [fileSizeMB] [rounds] [pool|nio]
+ */
+public class DownloadBenchmark {
+    private static final int PORT = 5211;
+
+    public static void main(String[] args) throws Exception {
+        int fileSizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        String engine = args.length > 2 ? args[2] : "pool";
+
+        Path directory = Files.createTempDirectory("dfs-download-bench");
+        long fileSize = (long) fileSizeMb * 1024 * 1024;
+        try (RandomAccessFile file = new RandomAccessFile(directory.resolve("bench.bin").toFile(), "rw")) {
+            byte[] block = new byte[1024 * 1024];
+            for (int i = 0; i < block.length; i++) {
+                block[i] = (byte) (i * 31);
+            }
+            for (long written = 0; written < fileSize; written += block.length) {
+                file.write(block);
+            }
+        }
+
+        Thread server = new Thread(() -> DistributedServer.startServer(PORT, directory.toString(), 0, engine));
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", PORT);
+        System.out.printf("engine=%s file=%d MB rounds=%d%n", engine, fileSizeMb, rounds);
+        System.out.printf("%-13s %12s %14s%n", "mode", "MB/s", "server ms/GB");
+        FileTransfer.Mode[] modes = {FileTransfer.Mode.HEAP_COPY, FileTransfer.Mode.DIRECT_BUFFER, FileTransfer.Mode.ZERO_COPY};
+        for (FileTransfer.Mode mode : modes) {
+            FileTransfer.setMode(mode);
+            download(address, fileSize);
+            TransferStats stats = TransferStats.of(mode);
+            stats.reset();
+            long start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                download(address, fileSize);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-13s %12.1f %14.1f%n", mode, rounds * fileSize / seconds / (1024 * 1024), stats.getCpuMillisPerGigabyte());
+        }
+        DistributedServer.shutdownServer(0);
+        System.exit(0);
+    }
+
+    private static void download(InetSocketAddress address, long expected) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            ByteBuffer request = new Frame(Protocol.DOWNLOAD, 1, "bench.bin", 0).encode();
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+            Frame response = null;
+            while (response == null) {
+                if (channel.read(buffer) < 0) {
+                    throw new IOException("Server closed the connection");
+                }
+                buffer.flip();
+                response = Frame.parse(buffer);
+                buffer.compact();
+            }
+            if (response.getPayloadLength() != expected) {
+                throw new IOException("Unexpected response " + response);
+            }
+            long received = buffer.position();
+            while (received < expected) {
+                buffer.clear();
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new IOException("Download ended after " + received + " bytes");
+                }
+                received += read;
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.dfs1;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The contents of a node's most read files, held off-heap in direct buffers and served without
+ * touching the file system. The byte budget ({@code dfs.cache.bytes}, 64 MB by default, 0 to
+ * disable) is split as in W-TinyLFU: new entries enter a small LRU window, and an entry leaving
+ * the window only joins the main segmented LRU if the {@link FrequencySketch} says it is read
+ * more often than the entry it would push out. A file is loaded on its second miss, so a scan
+ * that reads every file once leaves the cache alone.
+ *
+ * Lookups are lock-free. Reads update the eviction order under a lock that is only tried, so a
+ * busy cache skips some reorderings rather than making readers wait for each other.
+ */
+public class FileCache {
+    public static final long DEFAULT_BUDGET = Long.getLong("dfs.cache.bytes", 64L * 1024 * 1024);
+    public static final long DEFAULT_MAX_FILE_SIZE = Long.getLong("dfs.cache.maxFileBytes", 1024 * 1024);
+    private static final double WINDOW_FRACTION = 0.01;
+    private static final double PROTECTED_FRACTION = 0.8;
+    private static final int EXPECTED_FILE_SIZE = 16 * 1024;
+
+    private enum Segment { WINDOW, PROBATION, PROTECTED }
+
+    private static final class Entry {
+        final String name;
+        final ByteBuffer contents;
+        Segment segment = Segment.WINDOW;
+
+        Entry(String name, ByteBuffer contents) {
+            this.name = name;
+            this.contents = contents;
+        }
+
+        int size() {
+            return contents.capacity();
+        }
+    }
+
+    private final long budget;
+    private final long maxFileSize;
+    private final long windowBudget;
+    private final long protectedBudget;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+    private final FrequencySketch sketch;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    public FileCache(long budget, long maxFileSize) {
+        this.budget = Math.max(0, budget);
+        this.maxFileSize = Math.min(maxFileSize, this.budget);
+        this.windowBudget = (long) (this.budget * WINDOW_FRACTION);
+        this.protectedBudget = (long) ((this.budget - windowBudget) * PROTECTED_FRACTION);
+        this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(1024, this.budget / EXPECTED_FILE_SIZE)));
+    }
+
+    public boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * Returns a view of the cached contents of {@code name}, positioned at the start, or null
+     * if it is not cached.
+     */
+    public ByteBuffer get(String name) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (lock.tryLock()) {
+            try {
+                onAccess(entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return entry.contents.duplicate();
+    }
+
+    /**
+     * Returns the size of {@code name} if it is cached, or -1, without counting a read.
+     */
+    public long peekSize(String name) {
+        Entry entry = entries.get(name);
+        return entry == null ? -1 : entry.size();
+    }
+
+    /**
+     * Marks the point after which a load must not be cached because the file may have changed.
+     * Taken before opening the file that is passed to {@link #load}.
+     */
+    public long stamp() {
+        return invalidations.get();
+    }
+
+    /**
+     * Records a miss on {@code name} and returns true if its contents should be loaded: it is
+     * small enough to cache, has been read before, and once the cache is full, is read more
+     * often than the entry that would make room for it. The last check is the one the entry
+     * will face on leaving the window, made up front to save loading files that would lose it.
+     */
+    public boolean shouldLoad(String name, long size) {
+        if (budget == 0 || size > maxFileSize) {
+            return false;
+        }
+        int hash = name.hashCode();
+        lock.lock();
+        try {
+            sketch.increment(hash);
+            int frequency = sketch.frequency(hash);
+            if (frequency < 2) {
+                return false;
+            }
+            if (windowBytes + probationBytes + protectedBytes + size <= budget) {
+                return true;
+            }
+            LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protectedEntries : probation;
+            return segment.isEmpty() || frequency > sketch.frequency(segment.keySet().iterator().next().hashCode());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads all of {@code file} into a direct buffer and caches it as {@code name}, unless the
+     * cache was invalidated since {@code stamp}. Returns a view of the contents either way.
+     */
+    public ByteBuffer load(String name, FileChannel file, long stamp) throws IOException {
+        ByteBuffer contents = ByteBuffer.allocateDirect((int) file.size());
+        while (contents.hasRemaining()) {
+            if (file.read(contents, contents.position()) == -1) {
+                throw new EOFException(name + " shrank while it was being cached");
+            }
+        }
+        contents.flip();
+        Entry entry = new Entry(name, contents.asReadOnlyBuffer());
+        lock.lock();
+        try {
+            if (invalidations.get() == stamp) {
+                Entry previous = entries.put(name, entry);
+                if (previous != null) {
+                    unlink(previous);
+                }
+                window.put(name, entry);
+                windowBytes += entry.size();
+                loads.increment();
+                evictFromWindow();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return entry.contents.duplicate();
+    }
+
+    /**
+     * Drops {@code name}, and keeps loads that started earlier from caching its old contents.
+     */
+    public void invalidate(String name) {
+        invalidations.incrementAndGet();
+        if (!entries.containsKey(name)) {
+            return;
+        }
+        lock.lock();
+        try {
+            Entry entry = entries.remove(name);
+            if (entry != null) {
+                unlink(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onAccess(Entry entry) {
+        if (entries.get(entry.name) != entry) {
+            return;
+        }
+        sketch.increment(entry.name.hashCode());
+        switch (entry.segment) {
+            case WINDOW:
+                window.get(entry.name);
+                break;
+            case PROBATION:
+                probation.remove(entry.name);
+                probationBytes -= entry.size();
+                entry.segment = Segment.PROTECTED;
+                protectedEntries.put(entry.name, entry);
+                protectedBytes += entry.size();
+                while (protectedBytes > protectedBudget) {
+                    Entry demoted = removeEldest(protectedEntries);
+                    protectedBytes -= demoted.size();
+                    demoted.segment = Segment.PROBATION;
+                    probation.put(demoted.name, demoted);
+                    probationBytes += demoted.size();
+                }
+                break;
+            default:
+                protectedEntries.get(entry.name);
+        }
+    }
+
+    private void evictFromWindow() {
+        while (windowBytes > windowBudget && !window.isEmpty()) {
+            Entry candidate = removeEldest(window);
+            windowBytes -= candidate.size();
+            admit(candidate);
+        }
+    }
+
+    /**
+     * Moves an entry leaving the window into the main segments, evicting the least recently
+     * used main entries to make room as long as each is read less often than the candidate.
+     */
+    private void admit(Entry candidate) {
+        int candidateFrequency = sketch.frequency(candidate.name.hashCode());
+        while (probationBytes + protectedBytes + candidate.size() > budget - windowBudget) {
+            LinkedHashMap<String, Entry> segment = probation.isEmpty() ? protectedEntries : probation;
+            if (segment.isEmpty() || candidateFrequency <= sketch.frequency(segment.keySet().iterator().next().hashCode())) {
+                entries.remove(candidate.name, candidate);
+                rejections.increment();
+                return;
+            }
+            Entry victim = removeEldest(segment);
+            if (victim.segment == Segment.PROBATION) {
+                probationBytes -= victim.size();
+            } else {
+                protectedBytes -= victim.size();
+            }
+            entries.remove(victim.name, victim);
+            evictions.increment();
+        }
+        candidate.segment = Segment.PROBATION;
+        probation.put(candidate.name, candidate);
+        probationBytes += candidate.size();
+    }
+
+    private void unlink(Entry entry) {
+        switch (entry.segment) {
+            case WINDOW:
+                if (window.remove(entry.name, entry)) {
+                    windowBytes -= entry.size();
+                }
+                break;
+            case PROBATION:
+                if (probation.remove(entry.name, entry)) {
+                    probationBytes -= entry.size();
+                }
+                break;
+            default:
+                if (protectedEntries.remove(entry.name, entry)) {
+                    protectedBytes -= entry.size();
+                }
+        }
+    }
+
+    private static Entry removeEldest(LinkedHashMap<String, Entry> segment) {
+        Iterator<Entry> eldest = segment.values().iterator();
+        Entry entry = eldest.next();
+        eldest.remove();
+        return entry;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getCachedBytes() {
+        lock.lock();
+        try {
+            return windowBytes + probationBytes + protectedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return String.format("cache files=%d bytes=%d/%d hits=%d misses=%d hit rate=%.1f%% loads=%d evictions=%d rejected=%d",
+                entries.size(), getCachedBytes(), budget, hitCount, misses.sum(), total == 0 ? 0 : 100.0 * hitCount / total,
+                loads.sum(), evictions.sum(), rejections.sum());
+    }
+}
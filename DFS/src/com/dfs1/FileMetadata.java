@@ -0,0 +1,85 @@
+package com.dfs1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the metadata server knows about one file: its size, a version that increases with
+ * every write, the CRC32C of its contents and the data nodes ("host:port") holding a replica.
+ */
+public final class FileMetadata {
+    private final String name;
+    private final long size;
+    private final long version;
+    private final int checksum;
+    private final List<String> nodes;
+
+    public FileMetadata(String name, long size, long version, int checksum, List<String> nodes) {
+        this.name = name;
+        this.size = size;
+        this.version = version;
+        this.checksum = checksum;
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Writes everything but the name, which travels in the frame header.
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeLong(size);
+        out.writeLong(version);
+        out.writeInt(checksum);
+        out.writeByte(nodes.size());
+        for (String node : nodes) {
+            out.writeUTF(node);
+        }
+    }
+
+    public byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    public static FileMetadata read(String name, DataInputStream in) throws IOException {
+        long size = in.readLong();
+        long version = in.readLong();
+        int checksum = in.readInt();
+        int count = in.readUnsignedByte();
+        List<String> nodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            nodes.add(in.readUTF());
+        }
+        return new FileMetadata(name, size, version, checksum, nodes);
+    }
+
+    @Override
+    public String toString() {
+        return name + " size=" + size + " version=" + version + " crc32c=" + Integer.toHexString(checksum) + " nodes=" + nodes;
+    }
+}
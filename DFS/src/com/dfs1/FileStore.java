@@ -0,0 +1,940 @@
+package com.dfs1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * The files held by one server node, shared by the blocking and the selector engines. A file
+ * is either stored whole; compressed, as the {@link CompressedFile} its uploader encoded; or
+ * deduplicated: a manifest listing chunks kept once each in the node's {@link ChunkStore}.
+ * Publishing one form of a file removes the others.
+ */
+public class FileStore {
+    public enum DeleteResult { DELETED, NOT_FOUND, FAILED }
+
+    /**
+     * An upload in progress. Bytes are appended with {@link #write} and the file is
+     * published by {@link #commit}, or discarded by {@link #abort}.
+     */
+    public interface Upload {
+        void write(ByteBuffer data) throws IOException;
+
+        /**
+         * Publishes the upload and returns the CRC32C of the bytes written.
+         */
+        int commit() throws IOException;
+
+        void abort();
+    }
+
+    private static final String RESERVED_PREFIX = ".dfs";
+    private static final int MAX_MANIFEST_BYTES = 64 * 1024 * 1024;
+    private static final ExecutorService SWEEPER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dfs-chunk-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final int NAME_LOCK_STRIPES = 256;
+
+    private final File directory;
+    private final File partialDirectory;
+    private final File manifestDirectory;
+    private final File stagingDirectory;
+    private final File checksumDirectory;
+    private final File compressedDirectory;
+    private final File tombstoneDirectory;
+    private final UploadCommitter committer;
+    private final ChunkStore chunks;
+    private final FileCache cache;
+    // Made on first use, as both call back into the store, which must not escape its constructor.
+    private volatile MappedFiles mappings;
+    private volatile Listing listing;
+    private final PackedFiles packed;
+    private final Map<String, PartialFile> partials = new ConcurrentHashMap<>();
+    private final Object[] nameLocks = new Object[NAME_LOCK_STRIPES];
+    private final AtomicLong nextStagingId = new AtomicLong();
+    private final AtomicBoolean sweepPending = new AtomicBoolean();
+
+    public FileStore(File directory) {
+        this(directory, new FileCache(FileCache.DEFAULT_BUDGET, FileCache.DEFAULT_MAX_FILE_SIZE), UploadCommitter.DEFAULT_MODE);
+    }
+
+    public FileStore(File directory, FileCache cache) {
+        this(directory, cache, UploadCommitter.DEFAULT_MODE);
+    }
+
+    /**
+     * Opens the store in {@code directory}, discarding uploads a crash left half staged.
+     */
+    FileStore(File directory, FileCache cache, UploadCommitter.SyncMode syncMode) {
+        this.directory = directory;
+        this.cache = cache;
+        this.partialDirectory = new File(directory, RESERVED_PREFIX + "-partial");
+        this.manifestDirectory = new File(directory, RESERVED_PREFIX + "-manifests");
+        this.stagingDirectory = new File(directory, RESERVED_PREFIX + "-staging");
+        this.checksumDirectory = new File(directory, RESERVED_PREFIX + "-checksums");
+        this.compressedDirectory = new File(directory, RESERVED_PREFIX + "-compressed");
+        this.tombstoneDirectory = new File(directory, RESERVED_PREFIX + "-tombstones");
+        this.committer = new UploadCommitter(syncMode);
+        this.chunks = new ChunkStore(new File(directory, RESERVED_PREFIX + "-chunks"), committer);
+        this.packed = new PackedFiles(new File(directory, RESERVED_PREFIX + "-packed"), committer);
+        for (int i = 0; i < nameLocks.length; i++) {
+            nameLocks[i] = new Object();
+        }
+        File[] staged = stagingDirectory.listFiles();
+        for (File file : staged == null ? new File[0] : staged) {
+            file.delete();
+        }
+    }
+
+    UploadCommitter getCommitter() {
+        return committer;
+    }
+
+    /**
+     * The lock that serializes publishing and deleting {@code fileName}. Names are striped over
+     * a fixed set of locks, so uploads of unrelated files rarely wait for each other.
+     */
+    private Object lockFor(String fileName) {
+        return nameLocks[(fileName.hashCode() & 0x7fffffff) % NAME_LOCK_STRIPES];
+    }
+
+    private File stagingFile() {
+        stagingDirectory.mkdirs();
+        return new File(stagingDirectory, "upload-" + nextStagingId.incrementAndGet());
+    }
+
+    /**
+     * Writes {@code contents} to a new staging file, forced as the sync mode asks.
+     */
+    private File stage(byte[] contents) throws IOException {
+        File staged = stagingFile();
+        try (FileChannel channel = FileChannel.open(staged.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            committer.force(channel);
+        } catch (IOException e) {
+            staged.delete();
+            throw e;
+        }
+        return staged;
+    }
+
+    private File checksumFile(String fileName) {
+        return new File(checksumDirectory, fileName);
+    }
+
+    /**
+     * Returns the block checksums stored with {@code fileName}, or null if it has none, as
+     * files written before checksums were kept do not. Throws if they are damaged.
+     */
+    BlockChecksums readChecksums(String fileName) throws IOException {
+        PackedFiles.Entry entry = packedIfNewest(fileName, newestForm(fileName));
+        if (entry != null) {
+            // A packed file is at most one block, checksummed by its record.
+            long length = entry.getLength();
+            return new BlockChecksums(BlockChecksums.DEFAULT_BLOCK_SIZE, length, length == 0 ? new int[0] : new int[] {entry.getCrc()});
+        }
+        try {
+            return BlockChecksums.read(checksumFile(fileName));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the checksums of {@code fileName}, unless the file changed since it was last
+     * modified at {@code expectedModified}.
+     */
+    void rewriteChecksums(String fileName, BlockChecksums checksums, long expectedModified) throws IOException {
+        if (packedIfNewest(fileName, newestForm(fileName)) != null) {
+            return;
+        }
+        File sums = stage(checksums.encode());
+        checksumDirectory.mkdirs();
+        try {
+            committer.publish(lockFor(fileName), () -> {
+                if (modifiedTime(fileName) == expectedModified) {
+                    Files.move(sums.toPath(), checksumFile(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }, checksumDirectory.toPath());
+        } finally {
+            sums.delete();
+        }
+    }
+
+    /**
+     * When {@code fileName} was last published in any form, or 0 if it does not exist.
+     */
+    long modifiedTime(String fileName) throws IOException {
+        PackedFiles.Entry entry = packed.get(fileName);
+        long modified = Math.max(resolve(fileName).lastModified(), Math.max(manifestFile(fileName).lastModified(), compressedFile(fileName).lastModified()));
+        return entry == null ? modified : Math.max(modified, entry.getModified());
+    }
+
+    boolean isDeduplicated(String fileName) {
+        return manifestFile(fileName).isFile();
+    }
+
+    Manifest readManifest(String fileName) throws IOException {
+        return Manifest.read(manifestFile(fileName));
+    }
+
+    ChunkStore getChunks() {
+        return chunks;
+    }
+
+    /**
+     * The read cache in front of this store. Every change to a file made through the store
+     * invalidates it.
+     */
+    public FileCache getCache() {
+        return cache;
+    }
+
+    /**
+     * The files of this store mapped into memory for ranged reads, invalidated with the cache.
+     */
+    MappedFiles getMappings() {
+        MappedFiles current = mappings;
+        if (current == null) {
+            synchronized (this) {
+                current = mappings;
+                if (current == null) {
+                    current = new MappedFiles(this, MappedFiles.DEFAULT_BUDGET, MappedFiles.DEFAULT_SEGMENT_SIZE);
+                    mappings = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    PackedFiles getPacked() {
+        return packed;
+    }
+
+    /**
+     * Whether an upload of {@code length} bytes is small enough to be packed.
+     */
+    boolean isPackable(long length) {
+        return PackedFiles.isPackable(length);
+    }
+
+    private void invalidate(String fileName) {
+        cache.invalidate(fileName);
+        MappedFiles current = mappings;
+        if (current != null) {
+            current.invalidate(fileName);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public static boolean isValidName(String fileName) {
+        return !fileName.isEmpty() && !fileName.startsWith(RESERVED_PREFIX) && !fileName.equals(".") && !fileName.equals("..")
+                && fileName.indexOf('/') < 0 && fileName.indexOf('\\') < 0 && fileName.indexOf('\0') < 0;
+    }
+
+    public File resolve(String fileName) throws IOException {
+        if (!isValidName(fileName)) {
+            throw new IOException("Invalid file name: " + fileName);
+        }
+        return new File(directory, fileName);
+    }
+
+    /**
+     * Starts an upload, which is staged in a temporary file and replaces {@code fileName} in one
+     * rename when committed. Readers see either the old or the new contents, never a mix, and of
+     * two concurrent uploads of the same name the last to commit wins. The block checksums of
+     * the upload are computed as it arrives and published with it.
+     */
+    public Upload beginUpload(String fileName) throws IOException {
+        return beginUpload(fileName, -1);
+    }
+
+    /**
+     * Starts the upload of a copy fetched to repair {@code fileName}. It is only published if
+     * the file was not changed since it was last modified at {@code expectedModified}, so a
+     * repair never overwrites a newer upload.
+     */
+    Upload beginRepair(String fileName, long expectedModified) throws IOException {
+        return beginUpload(fileName, expectedModified);
+    }
+
+    private Upload beginUpload(String fileName, long expectedModified) throws IOException {
+        File file = resolve(fileName);
+        File staged = stagingFile();
+        FileChannel channel = FileChannel.open(staged.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        return new Upload() {
+            private final CRC32C crc = new CRC32C();
+            private final BlockChecksums.Builder checksums = new BlockChecksums.Builder(BlockChecksums.DEFAULT_BLOCK_SIZE);
+
+            @Override
+            public void write(ByteBuffer data) throws IOException {
+                ByteBuffer checksummed = data.duplicate();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                crc.update(checksummed.duplicate());
+                checksums.update(checksummed);
+            }
+
+            @Override
+            public int commit() throws IOException {
+                try {
+                    committer.force(channel);
+                } finally {
+                    channel.close();
+                }
+                File sums = null;
+                try {
+                    sums = stage(checksums.finish().encode());
+                    File stagedSums = sums;
+                    checksumDirectory.mkdirs();
+                    committer.publish(lockFor(fileName), () -> {
+                        if (expectedModified >= 0 && modifiedTime(fileName) != expectedModified) {
+                            return;
+                        }
+                        Files.move(stagedSums.toPath(), checksumFile(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        Files.move(staged.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        dropOtherForms(fileName, file);
+                        invalidate(fileName);
+                    }, directory.toPath(), checksumDirectory.toPath());
+                } finally {
+                    staged.delete();
+                    if (sums != null) {
+                        sums.delete();
+                    }
+                }
+                return (int) crc.getValue();
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                staged.delete();
+            }
+        };
+    }
+
+    /**
+     * Starts an upload of a small file of {@code length} bytes, kept in memory until it is
+     * committed and then appended to the packed segments in place of any other form.
+     */
+    Upload beginPackedUpload(String fileName, long length) throws IOException {
+        resolve(fileName);
+        if (!isPackable(length)) {
+            throw new IOException("Upload of " + length + " bytes is too large to pack");
+        }
+        ByteBuffer contents = ByteBuffer.allocate((int) length);
+        return new Upload() {
+            private final CRC32C crc = new CRC32C();
+
+            @Override
+            public void write(ByteBuffer data) throws IOException {
+                if (data.remaining() > contents.remaining()) {
+                    throw new IOException("Upload of " + fileName + " is longer than " + length + " bytes");
+                }
+                crc.update(data.duplicate());
+                contents.put(data);
+            }
+
+            @Override
+            public int commit() throws IOException {
+                if (contents.hasRemaining()) {
+                    throw new IOException("Upload of " + fileName + " ended after " + contents.position() + " of " + length + " bytes");
+                }
+                synchronized (lockFor(fileName)) {
+                    packed.put(fileName, contents.flip(), (int) crc.getValue());
+                    dropOtherForms(fileName, null);
+                    checksumFile(fileName).delete();
+                    invalidate(fileName);
+                }
+                packed.force();
+                return (int) crc.getValue();
+            }
+
+            @Override
+            public void abort() {
+            }
+        };
+    }
+
+    /**
+     * Starts an upload of a file its uploader already encoded as a {@link BlockCodec} stream.
+     * The stream is stored as it arrives and published as a compressed file like
+     * {@link #beginUpload} publishes a plain one; the CRC32C returned covers the stream.
+     */
+    public Upload beginEncodedUpload(String fileName) throws IOException {
+        resolve(fileName);
+        File staged = stagingFile();
+        FileChannel channel = FileChannel.open(staged.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        CompressedFile.Writer writer = new CompressedFile.Writer(channel);
+        return new Upload() {
+            private final CRC32C crc = new CRC32C();
+
+            @Override
+            public void write(ByteBuffer data) throws IOException {
+                crc.update(data.duplicate());
+                writer.write(data);
+            }
+
+            @Override
+            public int commit() throws IOException {
+                BlockChecksums checksums;
+                try {
+                    checksums = writer.finish();
+                    committer.force(channel);
+                } finally {
+                    writer.close();
+                    channel.close();
+                }
+                try {
+                    publishCompressed(fileName, staged, checksums);
+                } finally {
+                    staged.delete();
+                }
+                return (int) crc.getValue();
+            }
+
+            @Override
+            public void abort() {
+                writer.close();
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                staged.delete();
+            }
+        };
+    }
+
+    private void publishCompressed(String fileName, File staged, BlockChecksums checksums) throws IOException {
+        File target = compressedFile(fileName);
+        File sums = stage(checksums.encode());
+        compressedDirectory.mkdirs();
+        checksumDirectory.mkdirs();
+        try {
+            committer.publish(lockFor(fileName), () -> {
+                Files.move(sums.toPath(), checksumFile(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(staged.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                dropOtherForms(fileName, target);
+                invalidate(fileName);
+            }, compressedDirectory.toPath(), checksumDirectory.toPath());
+        } finally {
+            sums.delete();
+        }
+    }
+
+    /**
+     * Starts or resumes a chunked upload, whose chunks are block streams if it is
+     * {@code encoded}. A staged upload of a different size, chunk size or kind is discarded
+     * and started over.
+     */
+    public PartialFile openPartial(String fileName, long totalSize, int chunkSize, boolean encoded) throws IOException {
+        resolve(fileName);
+        synchronized (lockFor(fileName)) {
+            PartialFile partial = partials.get(fileName);
+            if (partial != null) {
+                if (partial.matches(totalSize, chunkSize, encoded)) {
+                    return partial;
+                }
+                partial.close();
+            }
+            partial = PartialFile.open(partialDirectory, fileName, totalSize, chunkSize, encoded);
+            partials.put(fileName, partial);
+            return partial;
+        }
+    }
+
+    public Upload beginRangeUpload(String fileName, long offset, long length) throws IOException {
+        PartialFile partial = partials.get(fileName);
+        if (partial == null) {
+            throw new IOException("No chunked upload in progress for " + fileName);
+        }
+        return partial.beginChunk(offset, length);
+    }
+
+    /**
+     * Publishes a chunked upload once every chunk has arrived. Returns false if chunks are
+     * still missing. The chunks of an encoded upload are joined into one compressed file; if
+     * they do not make a valid one the upload is discarded, so a retry starts it over.
+     */
+    public boolean commitPartial(String fileName) throws IOException {
+        File file = resolve(fileName);
+        PartialFile partial;
+        synchronized (lockFor(fileName)) {
+            partial = partials.get(fileName);
+            if (partial == null) {
+                throw new IOException("No chunked upload in progress for " + fileName);
+            }
+            if (!partial.isComplete()) {
+                return false;
+            }
+            partials.remove(fileName);
+        }
+        if (partial.isEncoded()) {
+            File assembled = stagingFile();
+            try {
+                publishCompressed(fileName, assembled, joinEncodedChunks(partial, assembled));
+            } finally {
+                assembled.delete();
+            }
+            partial.deleteChunkLog();
+            return true;
+        }
+        File assembled = partial.seal();
+        BlockChecksums checksums;
+        try (FileChannel channel = FileChannel.open(assembled.toPath(), StandardOpenOption.READ)) {
+            checksums = BlockChecksums.compute(channel, BlockChecksums.DEFAULT_BLOCK_SIZE, null);
+        }
+        File sums = stage(checksums.encode());
+        checksumDirectory.mkdirs();
+        try {
+            committer.publish(lockFor(fileName), () -> {
+                Files.move(sums.toPath(), checksumFile(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(assembled.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                dropOtherForms(fileName, file);
+                invalidate(fileName);
+            }, directory.toPath(), checksumDirectory.toPath());
+        } finally {
+            sums.delete();
+        }
+        partial.deleteChunkLog();
+        return true;
+    }
+
+    /**
+     * Joins the chunks of an encoded upload into the compressed file {@code assembled} and
+     * returns its checksums. Each chunk must decode to exactly its share of the file.
+     */
+    private BlockChecksums joinEncodedChunks(PartialFile partial, File assembled) throws IOException {
+        partial.close();
+        ByteBuffer buffer = BufferPool.DIRECT.acquire();
+        try (FileChannel out = FileChannel.open(assembled.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                CompressedFile.Writer writer = new CompressedFile.Writer(out)) {
+            for (int index = 0; index < partial.getChunkCount(); index++) {
+                try (FileChannel chunk = FileChannel.open(partial.encodedChunk(index).toPath(), StandardOpenOption.READ)) {
+                    while (chunk.read(buffer.clear()) >= 0) {
+                        writer.write(buffer.flip());
+                    }
+                }
+                long expected = Math.min(partial.getTotalSize(), (index + 1L) * partial.getChunkSize());
+                if (writer.getLength() != expected) {
+                    throw new IOException("Chunk " + index + " ends at " + writer.getLength() + " instead of " + expected);
+                }
+            }
+            BlockChecksums checksums = writer.finish();
+            committer.force(out);
+            return checksums;
+        } catch (IOException e) {
+            partial.discard();
+            throw e;
+        } finally {
+            BufferPool.DIRECT.release(buffer);
+        }
+    }
+
+    /**
+     * Receives the manifest of a deduplicated file. It is published only if every chunk it
+     * lists is already stored.
+     */
+    public Upload beginManifest(String fileName, long length) throws IOException {
+        resolve(fileName);
+        if (length > MAX_MANIFEST_BYTES) {
+            throw new IOException("Manifest of " + length + " bytes is too large");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) length);
+        return new Upload() {
+            @Override
+            public void write(ByteBuffer data) throws IOException {
+                Channels.newChannel(bytes).write(data);
+            }
+
+            @Override
+            public int commit() throws IOException {
+                byte[] encoded = bytes.toByteArray();
+                Manifest manifest = Manifest.read(new DataInputStream(new ByteArrayInputStream(encoded)));
+                for (int i = 0; i < manifest.getChunkCount(); i++) {
+                    if (!chunks.touch(manifest.hashHex(i))) {
+                        throw new IOException("Missing chunk " + manifest.hashHex(i));
+                    }
+                }
+                BlockChecksums checksums;
+                try (FileChannel channel = new ManifestChannel(chunks, manifest)) {
+                    checksums = BlockChecksums.compute(channel, BlockChecksums.DEFAULT_BLOCK_SIZE, null);
+                }
+                File staged = stage(encoded);
+                File sums = stage(checksums.encode());
+                File target = manifestFile(fileName);
+                boolean replaced = target.exists();
+                manifestDirectory.mkdirs();
+                checksumDirectory.mkdirs();
+                try {
+                    committer.publish(lockFor(fileName), () -> {
+                        Files.move(sums.toPath(), checksumFile(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        Files.move(staged.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        dropOtherForms(fileName, target);
+                        invalidate(fileName);
+                    }, manifestDirectory.toPath(), checksumDirectory.toPath());
+                } finally {
+                    staged.delete();
+                    sums.delete();
+                }
+                if (replaced) {
+                    scheduleSweep();
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(encoded);
+                return (int) crc.getValue();
+            }
+
+            @Override
+            public void abort() {
+            }
+        };
+    }
+
+    private File manifestFile(String fileName) {
+        return new File(manifestDirectory, fileName);
+    }
+
+    private File compressedFile(String fileName) {
+        return new File(compressedDirectory, fileName);
+    }
+
+    /**
+     * Removes every stored form of {@code fileName} but {@code kept}, which is null when the
+     * packed form is kept.
+     */
+    private void dropOtherForms(String fileName, File kept) throws IOException {
+        if (kept != null) {
+            packed.delete(fileName);
+        }
+        // A file staged before it was last deleted is still the newer version once published.
+        if (tombstoneFile(fileName).delete() && kept != null) {
+            kept.setLastModified(Math.max(kept.lastModified(), System.currentTimeMillis()));
+        }
+        for (File form : new File[] {resolve(fileName), compressedFile(fileName)}) {
+            if (!form.equals(kept)) {
+                form.delete();
+            }
+        }
+        if (!manifestFile(fileName).equals(kept) && manifestFile(fileName).delete()) {
+            scheduleSweep();
+        }
+    }
+
+    /**
+     * The form of {@code fileName} published last, which is the one to read if a crash left
+     * more than one behind, or null if the file does not exist.
+     */
+    private File newestForm(String fileName) throws IOException {
+        File newest = null;
+        for (File form : new File[] {manifestFile(fileName), compressedFile(fileName), resolve(fileName)}) {
+            if (form.isFile() && (newest == null || form.lastModified() > newest.lastModified())) {
+                newest = form;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * The packed form of {@code fileName} if it is newer than {@code form}, the newest of the
+     * others, or null.
+     */
+    private PackedFiles.Entry packedIfNewest(String fileName, File form) {
+        PackedFiles.Entry entry = packed.get(fileName);
+        return entry != null && (form == null || entry.getModified() >= form.lastModified()) ? entry : null;
+    }
+
+    /**
+     * Opens a stored file for reading, or returns null if there is no such file. A compressed
+     * file reads as its decoded contents.
+     */
+    public FileChannel openForRead(String fileName) throws IOException {
+        for (int attempt = 0; attempt < 2; attempt++) {
+            File form = newestForm(fileName);
+            if (packedIfNewest(fileName, form) != null) {
+                FileChannel channel = packed.open(fileName);
+                if (channel != null) {
+                    return channel;
+                }
+                continue;
+            }
+            if (form == null) {
+                return null;
+            }
+            try {
+                if (form.equals(manifestFile(fileName))) {
+                    return new ManifestChannel(chunks, Manifest.read(form));
+                }
+                if (form.equals(compressedFile(fileName))) {
+                    return new CompressedChannel(CompressedFile.open(form));
+                }
+                return FileChannel.open(form.toPath(), StandardOpenOption.READ);
+            } catch (FileNotFoundException | NoSuchFileException e) {
+                // Replaced by another form since it was picked; look again.
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens {@code fileName} as it is stored if it is stored compressed, so its blocks can be
+     * sent without decoding them, or returns null if it is not.
+     */
+    CompressedFile openCompressed(String fileName) throws IOException {
+        File form = newestForm(fileName);
+        if (form == null || !form.equals(compressedFile(fileName)) || packedIfNewest(fileName, form) != null) {
+            return null;
+        }
+        try {
+            return CompressedFile.open(form);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes every form of {@code fileName} and leaves a tombstone recording when, so that
+     * {@link AntiEntropy} can tell a file this node missed from one it deleted. A file that
+     * was not here leaves none: the nodes that had it remember the deletion.
+     */
+    public DeleteResult delete(String fileName) throws IOException {
+        return delete(fileName, System.currentTimeMillis());
+    }
+
+    /**
+     * Deletes {@code fileName} as another node did at {@code deletedAt}, unless the file
+     * changed since it was last modified at {@code expectedModified}. Returns whether it was
+     * deleted.
+     */
+    boolean applyDelete(String fileName, long expectedModified, long deletedAt) throws IOException {
+        synchronized (lockFor(fileName)) {
+            return modifiedTime(fileName) == expectedModified && delete(fileName, deletedAt) == DeleteResult.DELETED;
+        }
+    }
+
+    private File tombstoneFile(String fileName) {
+        return new File(tombstoneDirectory, fileName);
+    }
+
+    private void bury(String fileName, long deletedAt) throws IOException {
+        tombstoneDirectory.mkdirs();
+        File tombstone = tombstoneFile(fileName);
+        tombstone.createNewFile();
+        tombstone.setLastModified(deletedAt);
+    }
+
+    /**
+     * When {@code fileName} was last deleted, or 0 if no deletion of it is remembered.
+     */
+    long deletedTime(String fileName) {
+        return tombstoneFile(fileName).lastModified();
+    }
+
+    /**
+     * The names of the files whose deletion is remembered, some of which may exist again.
+     */
+    String[] deletedNames() {
+        String[] names = tombstoneDirectory.list();
+        return names == null ? new String[0] : names;
+    }
+
+    /**
+     * Forgets the deletions made before {@code before}, and returns how many there were.
+     */
+    int expireTombstones(long before) {
+        int expired = 0;
+        File[] tombstones = tombstoneDirectory.listFiles();
+        for (File tombstone : tombstones == null ? new File[0] : tombstones) {
+            if (tombstone.lastModified() < before && tombstone.delete()) {
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    private DeleteResult delete(String fileName, long deletedAt) throws IOException {
+        File file = resolve(fileName);
+        File manifest = manifestFile(fileName);
+        File compressed = compressedFile(fileName);
+        boolean deleted;
+        boolean unpacked;
+        boolean manifestDeleted;
+        synchronized (lockFor(fileName)) {
+            unpacked = packed.delete(fileName);
+            if (!unpacked && !file.exists() && !manifest.exists() && !compressed.exists()) {
+                return DeleteResult.NOT_FOUND;
+            }
+            manifestDeleted = manifest.exists() && manifest.delete();
+            deleted = (!file.exists() || file.delete()) & (manifestDeleted || !manifest.exists()) & (!compressed.exists() || compressed.delete());
+            checksumFile(fileName).delete();
+            invalidate(fileName);
+            if (deleted) {
+                // Under the lock, so that an upload published after the deletion is newer than its tombstone.
+                bury(fileName, deletedAt);
+            }
+        }
+        if (unpacked) {
+            packed.force();
+        }
+        if (manifestDeleted) {
+            scheduleSweep();
+        }
+        return deleted ? DeleteResult.DELETED : DeleteResult.FAILED;
+    }
+
+    public String[] list() {
+        Set<String> names = new LinkedHashSet<>(packed.names());
+        for (File listed : new File[] {directory, manifestDirectory, compressedDirectory}) {
+            String[] found = listed.list((dir, name) -> !name.startsWith(RESERVED_PREFIX));
+            if (found != null) {
+                Collections.addAll(names, found);
+            }
+        }
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * One page of the files matching {@code query}, found by streaming the directories of every
+     * form rather than reading them into memory.
+     */
+    Listing.Page listPage(Listing.Query query) throws IOException {
+        Listing current = listing;
+        if (current == null) {
+            synchronized (this) {
+                current = listing;
+                if (current == null) {
+                    current = new Listing(new Listing.Source() {
+                        @Override
+                        public void forEachName(Consumer<String> consumer) throws IOException {
+                            FileStore.this.forEachName(consumer);
+                        }
+
+                        @Override
+                        public Listing.Entry describe(String name) throws IOException {
+                            return FileStore.this.describe(name);
+                        }
+                    });
+                    listing = current;
+                }
+            }
+        }
+        return current.page(query);
+    }
+
+    private void forEachName(Consumer<String> consumer) throws IOException {
+        packed.names().forEach(consumer);
+        for (File listed : new File[] {directory, manifestDirectory, compressedDirectory}) {
+            try (DirectoryStream<Path> names = Files.newDirectoryStream(listed.toPath())) {
+                for (Path path : names) {
+                    String name = path.getFileName().toString();
+                    if (!name.startsWith(RESERVED_PREFIX)) {
+                        consumer.accept(name);
+                    }
+                }
+            } catch (NoSuchFileException ignored) {
+            }
+        }
+    }
+
+    /**
+     * The size and modification time of {@code fileName} as readers see it, or null if it has
+     * been deleted.
+     */
+    private Listing.Entry describe(String fileName) throws IOException {
+        File form = newestForm(fileName);
+        PackedFiles.Entry entry = packedIfNewest(fileName, form);
+        if (entry != null) {
+            return new Listing.Entry(fileName, entry.getLength(), entry.getModified());
+        }
+        if (form == null) {
+            return null;
+        }
+        try {
+            long size;
+            if (form.equals(manifestFile(fileName))) {
+                size = Manifest.read(form).getSize();
+            } else if (form.equals(compressedFile(fileName))) {
+                try (CompressedFile compressed = CompressedFile.open(form)) {
+                    size = compressed.getLength();
+                }
+            } else {
+                size = form.length();
+            }
+            return new Listing.Entry(fileName, size, form.lastModified());
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private void scheduleSweep() {
+        if (sweepPending.compareAndSet(false, true)) {
+            SWEEPER.execute(() -> {
+                sweepPending.set(false);
+                sweepChunks();
+            });
+        }
+    }
+
+    /**
+     * Deletes the chunks no manifest refers to any more, once their grace period is over.
+     * Nothing is deleted if a manifest cannot be read.
+     */
+    public int sweepChunks() {
+        Set<String> live = new HashSet<>();
+        File[] manifests = manifestDirectory.listFiles((dir, name) -> !name.startsWith(RESERVED_PREFIX));
+        for (File manifestFile : manifests == null ? new File[0] : manifests) {
+            try {
+                Manifest manifest = Manifest.read(manifestFile);
+                for (int i = 0; i < manifest.getChunkCount(); i++) {
+                    live.add(manifest.hashHex(i));
+                }
+            } catch (FileNotFoundException ignored) {
+            } catch (IOException e) {
+                Log.warn("chunk_sweep_skipped", "directory", directory, "manifest", manifestFile.getName(), "error", e.getMessage());
+                return 0;
+            }
+        }
+        int removed = chunks.sweep(live);
+        if (removed > 0) {
+            Log.info("chunk_sweep", "directory", directory, "removed", removed);
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,171 @@
+package com.dfs1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+
+/**
+ * Sends file bodies to a socket. By default bytes go from the page cache straight to the
+ * socket with {@link FileChannel#transferTo} (sendfile on Linux); when that cannot be used
+ * they are copied through a pooled direct buffer. HEAP_COPY keeps the original heap array
+ * loop for comparison.
+ */
+public final class FileTransfer {
+    public enum Mode { ZERO_COPY, DIRECT_BUFFER, HEAP_COPY }
+
+    static final int BUFFER_SIZE = BufferPool.TRANSFER_SIZE;
+    private static final BufferPool BUFFERS = BufferPool.DIRECT;
+    private static volatile Mode mode = Mode.valueOf(System.getProperty("dfs.transfer.mode", "ZERO_COPY").toUpperCase(Locale.ROOT));
+
+    private FileTransfer() {
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    public static void setMode(Mode newMode) {
+        mode = newMode;
+    }
+
+    /**
+     * Blocking send of {@code count} bytes starting at {@code position}. {@code channel} is
+     * the socket's own channel when it has one, otherwise the stream is used.
+     */
+    public static void send(FileChannel file, long position, long count, WritableByteChannel channel, OutputStream out) throws IOException {
+        WritableByteChannel target = channel != null ? channel : Channels.newChannel(out);
+        try (Send send = new Send(file, position, count, target, false)) {
+            while (!send.writeTo(target)) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * One file body being sent, possibly over several calls on a non-blocking channel.
+     */
+    public static final class Send implements Closeable {
+        private final FileChannel file;
+        private final boolean closeFile;
+        private final long start;
+        private final long end;
+        private long position;
+        private long sent;
+        private Mode sendMode;
+        private ByteBuffer buffer;
+        private TransferStats stats;
+
+        public Send(FileChannel file, long position, long count, WritableByteChannel target, boolean closeFile) {
+            this.file = file;
+            this.closeFile = closeFile;
+            this.start = position;
+            this.position = position;
+            this.end = position + count;
+            Mode requested = mode;
+            boolean canTransfer = target instanceof SelectableChannel || target instanceof FileChannel;
+            useMode(requested == Mode.ZERO_COPY && !canTransfer ? Mode.DIRECT_BUFFER : requested);
+            stats.countTransfer();
+        }
+
+        private void useMode(Mode newMode) {
+            sendMode = newMode;
+            stats = TransferStats.of(newMode);
+            if (newMode == Mode.DIRECT_BUFFER) {
+                buffer = BUFFERS.acquire();
+            } else if (newMode == Mode.HEAP_COPY) {
+                buffer = ByteBuffer.allocate(64 * 1024);
+            }
+            if (buffer != null) {
+                buffer.flip();
+            }
+        }
+
+        public Mode getMode() {
+            return sendMode;
+        }
+
+        /**
+         * Returns true once every byte has been written, false if the target would block.
+         */
+        public boolean writeTo(WritableByteChannel target) throws IOException {
+            long startNanos = System.nanoTime();
+            long startCpu = TransferStats.cpuTime();
+            sent = 0;
+            try {
+                if (sendMode == Mode.ZERO_COPY) {
+                    try {
+                        return transfer(target);
+                    } catch (IOException e) {
+                        if (position != start) {
+                            throw e;
+                        }
+                        // transferTo is not supported for this file or socket; copy instead.
+                        useMode(Mode.DIRECT_BUFFER);
+                    }
+                }
+                return copy(target);
+            } finally {
+                stats.record(sent, startNanos, startCpu);
+            }
+        }
+
+        private boolean transfer(WritableByteChannel target) throws IOException {
+            while (position < end) {
+                long written = file.transferTo(position, end - position, target);
+                if (written == 0) {
+                    if (position >= file.size()) {
+                        throw new IOException("File shrank while it was being sent");
+                    }
+                    return false;
+                }
+                position += written;
+                sent += written;
+            }
+            return true;
+        }
+
+        private boolean copy(WritableByteChannel target) throws IOException {
+            while (true) {
+                if (buffer.hasRemaining()) {
+                    int written = target.write(buffer);
+                    if (written == 0) {
+                        return false;
+                    }
+                    sent += written;
+                    continue;
+                }
+                if (position >= end) {
+                    return true;
+                }
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = file.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File shrank while it was being sent");
+                }
+                position += read;
+                buffer.flip();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (sendMode == Mode.DIRECT_BUFFER) {
+                BUFFERS.release(buffer);
+            }
+            buffer = null;
+            if (closeFile) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
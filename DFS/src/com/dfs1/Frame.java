@@ -0,0 +1,251 @@
+package com.dfs1;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Header of a request or response on the wire:
+ * version (1), opcode (1), request id (4), name length (2), name (UTF-8), offset (8), payload length (8).
+ * The offset is the file position of a ranged request and is zero otherwise.
+ * The payload itself follows the header and is read or written by the caller.
+ *
+ * A request that names a tenant is sent with {@link Protocol#VERSION_TENANT} and three more
+ * fields after the payload length: flags (1), tenant length (2) and tenant (UTF-8). The only
+ * flag marks a request a node forwards for another, such as the next hop of a replication
+ * chain. Every other frame keeps the shorter header, so servers and clients that do not use
+ * tenants still understand each other.
+ */
+public class Frame {
+    public static final int FIXED_HEADER_LENGTH = 24;
+    private static final int TENANT_FIELDS_LENGTH = 3;
+    private static final int FLAG_FORWARDED = 1;
+    static final int MAX_MESSAGE_BYTES = Integer.getInteger("dfs.frame.maxMessageBytes", 4 * 1024 * 1024);
+
+    private final byte opcode;
+    private final int requestId;
+    private final String name;
+    private final long offset;
+    private final long payloadLength;
+    private final String tenant;
+    private final boolean forwarded;
+
+    public Frame(byte opcode, int requestId, String name, long payloadLength) {
+        this(opcode, requestId, name, 0, payloadLength);
+    }
+
+    public Frame(byte opcode, int requestId, String name, long offset, long payloadLength) {
+        this(opcode, requestId, name, offset, payloadLength, "", false);
+    }
+
+    public Frame(byte opcode, int requestId, String name, long offset, long payloadLength, String tenant, boolean forwarded) {
+        this.opcode = opcode;
+        this.requestId = requestId;
+        this.name = name == null ? "" : name;
+        this.offset = offset;
+        this.payloadLength = payloadLength;
+        this.tenant = tenant == null ? "" : tenant;
+        this.forwarded = forwarded;
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * The tenant the request was sent for, empty if it names none.
+     */
+    public String getTenant() {
+        return tenant;
+    }
+
+    public boolean isForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * This request without its forwarded flag, for one from a client that may not claim it.
+     */
+    public Frame notForwarded() {
+        return new Frame(opcode, requestId, name, offset, payloadLength, tenant, false);
+    }
+
+    private boolean hasTenantFields() {
+        return forwarded || !tenant.isEmpty();
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        byte[] nameBytes = encodeString(name);
+        out.writeByte(hasTenantFields() ? Protocol.VERSION_TENANT : Protocol.VERSION);
+        out.writeByte(opcode);
+        out.writeInt(requestId);
+        out.writeShort(nameBytes.length);
+        out.write(nameBytes);
+        out.writeLong(offset);
+        out.writeLong(payloadLength);
+        if (hasTenantFields()) {
+            byte[] tenantBytes = encodeString(tenant);
+            out.writeByte(forwarded ? FLAG_FORWARDED : 0);
+            out.writeShort(tenantBytes.length);
+            out.write(tenantBytes);
+        }
+    }
+
+    private static byte[] encodeString(String value) throws ProtocolException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > Protocol.MAX_NAME_LENGTH) {
+            throw new ProtocolException("Name too long: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns null when the peer closed the connection cleanly between frames.
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int version = in.read();
+        if (version == -1) {
+            return null;
+        }
+        if (version != Protocol.VERSION && version != Protocol.VERSION_TENANT) {
+            throw new ProtocolException("Unsupported protocol version: " + version);
+        }
+        byte opcode = in.readByte();
+        int requestId = in.readInt();
+        byte[] nameBytes = new byte[in.readUnsignedShort()];
+        in.readFully(nameBytes);
+        long offset = in.readLong();
+        long payloadLength = in.readLong();
+        if (offset < 0 || payloadLength < 0) {
+            throw new ProtocolException("Negative offset or payload length: " + offset + ", " + payloadLength);
+        }
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+        if (version == Protocol.VERSION) {
+            return new Frame(opcode, requestId, name, offset, payloadLength);
+        }
+        int flags = in.readUnsignedByte();
+        byte[] tenantBytes = new byte[in.readUnsignedShort()];
+        in.readFully(tenantBytes);
+        return new Frame(opcode, requestId, name, offset, payloadLength, new String(tenantBytes, StandardCharsets.UTF_8),
+                (flags & FLAG_FORWARDED) != 0);
+    }
+
+    public ByteBuffer encode() throws ProtocolException {
+        byte[] nameBytes = encodeString(name);
+        byte[] tenantBytes = hasTenantFields() ? encodeString(tenant) : null;
+        int length = FIXED_HEADER_LENGTH + nameBytes.length + (tenantBytes == null ? 0 : TENANT_FIELDS_LENGTH + tenantBytes.length);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(tenantBytes == null ? Protocol.VERSION : Protocol.VERSION_TENANT).put(opcode).putInt(requestId)
+                .putShort((short) nameBytes.length).put(nameBytes).putLong(offset).putLong(payloadLength);
+        if (tenantBytes != null) {
+            buffer.put((byte) (forwarded ? FLAG_FORWARDED : 0)).putShort((short) tenantBytes.length).put(tenantBytes);
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Parses a header from the front of {@code buffer}. Returns null, leaving the position
+     * untouched, if the buffer does not yet hold the whole header. A header that would not fit
+     * in the buffer even when full is refused, as waiting for the rest of it could never end.
+     */
+    public static Frame parse(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < FIXED_HEADER_LENGTH) {
+            return null;
+        }
+        int start = buffer.position();
+        int version = buffer.get(start) & 0xFF;
+        if (version != Protocol.VERSION && version != Protocol.VERSION_TENANT) {
+            throw new ProtocolException("Unsupported protocol version: " + version);
+        }
+        int nameLength = buffer.getShort(start + 6) & 0xFFFF;
+        checkFits(buffer, FIXED_HEADER_LENGTH + nameLength + (version == Protocol.VERSION_TENANT ? TENANT_FIELDS_LENGTH : 0));
+        int tenantLength = 0;
+        if (version == Protocol.VERSION_TENANT) {
+            int tenantStart = start + FIXED_HEADER_LENGTH + nameLength;
+            if (buffer.remaining() < FIXED_HEADER_LENGTH + nameLength + TENANT_FIELDS_LENGTH) {
+                return null;
+            }
+            tenantLength = TENANT_FIELDS_LENGTH + (buffer.getShort(tenantStart + 1) & 0xFFFF);
+            checkFits(buffer, FIXED_HEADER_LENGTH + nameLength + tenantLength);
+        }
+        if (buffer.remaining() < FIXED_HEADER_LENGTH + nameLength + tenantLength) {
+            return null;
+        }
+        byte opcode = buffer.get(start + 1);
+        int requestId = buffer.getInt(start + 2);
+        byte[] nameBytes = new byte[nameLength];
+        buffer.position(start + 8);
+        buffer.get(nameBytes);
+        long offset = buffer.getLong();
+        long payloadLength = buffer.getLong();
+        if (offset < 0 || payloadLength < 0) {
+            throw new ProtocolException("Negative offset or payload length: " + offset + ", " + payloadLength);
+        }
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+        if (version == Protocol.VERSION) {
+            return new Frame(opcode, requestId, name, offset, payloadLength);
+        }
+        int flags = buffer.get() & 0xFF;
+        byte[] tenantBytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(tenantBytes);
+        return new Frame(opcode, requestId, name, offset, payloadLength, new String(tenantBytes, StandardCharsets.UTF_8),
+                (flags & FLAG_FORWARDED) != 0);
+    }
+
+    private static void checkFits(ByteBuffer buffer, int headerLength) throws ProtocolException {
+        if (headerLength > buffer.capacity()) {
+            throw new ProtocolException("Header of at least " + headerLength + " bytes exceeds the buffer of " + buffer.capacity());
+        }
+    }
+
+    public static ByteBuffer encodeMessage(byte status, int requestId, String name, String message) throws ProtocolException {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = new Frame(status, requestId, name, payload.length).encode();
+        ByteBuffer buffer = ByteBuffer.allocate(header.remaining() + payload.length);
+        return buffer.put(header).put(payload).flip();
+    }
+
+    public static void writeMessage(DataOutputStream out, byte status, int requestId, String name, String message) throws IOException {
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+        new Frame(status, requestId, name, payload.length).write(out);
+        out.write(payload);
+    }
+
+    /**
+     * Reads the payload of {@code frame} as a text message. A message longer than
+     * {@code dfs.frame.maxMessageBytes} is skipped, so the stream stays in step, and refused
+     * with {@link Protocol#STATUS_ERROR} rather than buffered.
+     */
+    public static String readMessage(DataInputStream in, Frame frame) throws IOException {
+        if (frame.getPayloadLength() > MAX_MESSAGE_BYTES) {
+            in.skipNBytes(frame.getPayloadLength());
+            throw new DfsServerException(Protocol.STATUS_ERROR, "Message of " + frame.getPayloadLength()
+                    + " bytes exceeds the limit of " + MAX_MESSAGE_BYTES + ": " + frame);
+        }
+        byte[] payload = new byte[(int) frame.getPayloadLength()];
+        in.readFully(payload);
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return Protocol.opcodeName(opcode) + "#" + requestId + " " + name + "@" + offset + " (" + payloadLength + " bytes)";
+    }
+}
@@ -0,0 +1,57 @@
+package com.dfs1;
+
+/**
+ * Approximate access counts for the keys of a cache: a count-min sketch of four rows of 4-bit
+ * counters, packed sixteen to a long. Once the number of increments reaches ten times the
+ * width, every counter is halved, so the counts follow recent popularity rather than all-time
+ * totals.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int expectedKeys) {
+        int counters = Integer.highestOneBit(Math.max(64, expectedKeys - 1) << 1);
+        table = new long[counters / 16];
+        mask = counters - 1;
+        sampleSize = 10 * counters;
+    }
+
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = index(hash, row);
+            frequency = Math.min(frequency, (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xF));
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int index = index(hash, row);
+            int shift = (index & 15) << 2;
+            if (((table[index >>> 4] >>> shift) & 0xF) < MAX_COUNT) {
+                table[index >>> 4] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            }
+            additions /= 2;
+        }
+    }
+
+    private int index(int hash, int row) {
+        long mixed = (hash + SEEDS[row]) * SEEDS[(row + 1) & 3];
+        return (int) (mixed >>> 32) & mask;
+    }
+}
@@ -0,0 +1,147 @@
+package com.dfs1;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Consistent-hash ring with virtual nodes. Each node is placed on the ring at
+ * {@code virtualNodes} points; a key belongs to the first distinct nodes found walking
+ * clockwise from its hash, so adding or removing a node only moves the keys next to its points.
+ * Lookups read an immutable snapshot and need no locking.
+ */
+public class HashRing<N> {
+    private static final class Snapshot<N> {
+        final long[] points;
+        final N[] owners;
+        final List<N> nodes;
+
+        Snapshot(long[] points, N[] owners, List<N> nodes) {
+            this.points = points;
+            this.owners = owners;
+            this.nodes = nodes;
+        }
+    }
+
+    private final int virtualNodes;
+    private final Function<N, String> nodeKey;
+    private volatile Snapshot<N> snapshot;
+
+    public HashRing(Collection<N> nodes, int virtualNodes) {
+        this(nodes, virtualNodes, String::valueOf);
+    }
+
+    /**
+     * @param nodeKey stable name of a node, hashed to place its virtual nodes; every client
+     *                must derive the same name for the same node
+     */
+    public HashRing(Collection<N> nodes, int virtualNodes, Function<N, String> nodeKey) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("virtualNodes must be positive");
+        }
+        this.virtualNodes = virtualNodes;
+        this.nodeKey = nodeKey;
+        this.snapshot = build(new ArrayList<>(new LinkedHashSet<>(nodes)));
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    public List<N> nodes() {
+        return snapshot.nodes;
+    }
+
+    public synchronized boolean addNode(N node) {
+        List<N> nodes = new ArrayList<>(snapshot.nodes);
+        if (nodes.contains(node)) {
+            return false;
+        }
+        nodes.add(node);
+        snapshot = build(nodes);
+        return true;
+    }
+
+    public synchronized boolean removeNode(N node) {
+        List<N> nodes = new ArrayList<>(snapshot.nodes);
+        if (!nodes.remove(node)) {
+            return false;
+        }
+        snapshot = build(nodes);
+        return true;
+    }
+
+    /**
+     * Returns up to {@code count} distinct nodes for {@code key} in ring order. The first
+     * replication-factor entries are the key's owners; later ones are where writes go when
+     * owners are down.
+     */
+    public List<N> preferenceList(String key, int count) {
+        Snapshot<N> current = snapshot;
+        int wanted = Math.min(count, current.nodes.size());
+        List<N> result = new ArrayList<>(wanted);
+        if (wanted == 0) {
+            return result;
+        }
+        int start = Arrays.binarySearch(current.points, hash(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        for (int i = 0; i < current.points.length && result.size() < wanted; i++) {
+            N owner = current.owners[(start + i) % current.points.length];
+            if (!result.contains(owner)) {
+                result.add(owner);
+            }
+        }
+        return result;
+    }
+
+    public List<N> owners(String key, int replicationFactor) {
+        return preferenceList(key, replicationFactor);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Snapshot<N> build(List<N> nodes) {
+        int size = nodes.size() * virtualNodes;
+        long[] points = new long[size];
+        Object[] owners = new Object[size];
+        Map<Long, Object> byPoint = new TreeMap<>();
+        for (N node : nodes) {
+            for (int v = 0; v < virtualNodes; v++) {
+                long point = hash(nodeKey.apply(node) + "#" + v);
+                // Keep the first claimant on the rare collision so placement stays deterministic.
+                byPoint.putIfAbsent(point, node);
+            }
+        }
+        int i = 0;
+        for (Map.Entry<Long, Object> entry : byPoint.entrySet()) {
+            points[i] = entry.getKey();
+            owners[i] = entry.getValue();
+            i++;
+        }
+        return new Snapshot<>(Arrays.copyOf(points, i), (N[]) Arrays.copyOf(owners, i),
+                Collections.unmodifiableList(nodes));
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer so that similar
+     * names land far apart on the ring.
+     */
+    static long hash(String key) {
+        return hash(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static long hash(byte[] key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,364 @@
+package com.dfs1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+/**
+ * A name-ordered listing read one page at a time with {@link Protocol#LIST_PAGE}. The request
+ * names a prefix in the frame and carries a glob (empty for none), a page size and the
+ * continuation token of the previous page (empty for the first). The reply is a batch of
+ * entries, each name stored as the length it shares with the previous name plus the rest,
+ * with size and modification time as variable-length numbers, followed by the token for the
+ * next page, empty after the last.
+ *
+ * The token is the last name of the page, so a server keeps nothing between pages. To find a
+ * page it passes over its names once and keeps only the smallest ones after the token, which
+ * bounds memory by the page rather than the directory. Each pass keeps
+ * {@code dfs.list.readAheadPages} (8) pages' worth and holds the rest back for the requests
+ * that follow, so a full listing passes over the names once per eight pages.
+ */
+public final class Listing {
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+    static final int MAX_PAGE_SIZE = 10_000;
+    private static final int READ_AHEAD_PAGES = Math.max(1, Integer.getInteger("dfs.list.readAheadPages", 8));
+    private static final int MAX_CURSORS = 64;
+    private static final long CURSOR_TTL_MILLIS = 60_000;
+
+    /**
+     * One listed file. Its modification time is 0 where the server does not know it.
+     */
+    public static final class Entry {
+        private final String name;
+        private final long size;
+        private final long modified;
+
+        public Entry(String name, long size, long modified) {
+            this.name = name;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + size + " bytes)";
+        }
+    }
+
+    public static final class Page {
+        private final List<Entry> entries;
+        private final String next;
+
+        Page(List<Entry> entries, String next) {
+            this.entries = entries;
+            this.next = next;
+        }
+
+        public List<Entry> getEntries() {
+            return entries;
+        }
+
+        /**
+         * The token that continues after this page, or null if this is the last one.
+         */
+        public String getNext() {
+            return next.isEmpty() ? null : next;
+        }
+
+        byte[] encode() {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + entries.size() * 24);
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(entries.size());
+                byte[] previous = new byte[0];
+                for (Entry entry : entries) {
+                    byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+                    int shared = 0;
+                    int limit = Math.min(previous.length, name.length);
+                    while (shared < limit && previous[shared] == name[shared]) {
+                        shared++;
+                    }
+                    writeVarLong(out, shared);
+                    writeVarLong(out, name.length - shared);
+                    out.write(name, shared, name.length - shared);
+                    writeVarLong(out, entry.size);
+                    writeVarLong(out, entry.modified);
+                    previous = name;
+                }
+                out.writeUTF(next);
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static Page decode(DataInputStream in) throws IOException {
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(Math.min(count, MAX_PAGE_SIZE));
+            byte[] previous = new byte[0];
+            for (int i = 0; i < count; i++) {
+                int shared = (int) readVarLong(in);
+                int rest = (int) readVarLong(in);
+                if (shared > previous.length || rest < 0) {
+                    throw new IOException("Corrupt listing entry " + i);
+                }
+                byte[] name = new byte[shared + rest];
+                System.arraycopy(previous, 0, name, 0, shared);
+                in.readFully(name, shared, rest);
+                entries.add(new Entry(new String(name, StandardCharsets.UTF_8), readVarLong(in), readVarLong(in)));
+                previous = name;
+            }
+            return new Page(entries, in.readUTF());
+        }
+    }
+
+    /**
+     * What a LIST_PAGE request asks for.
+     */
+    static final class Query {
+        final String prefix;
+        final String glob;
+        final int pageSize;
+        final String after;
+        private final PathMatcher matcher;
+
+        Query(String prefix, String glob, int pageSize, String after) {
+            this.prefix = prefix;
+            this.glob = glob;
+            this.pageSize = Math.max(1, Math.min(MAX_PAGE_SIZE, pageSize));
+            this.after = after;
+            this.matcher = glob.isEmpty() ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        }
+
+        static Query read(Frame request, ByteBuffer body) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array(),
+                    body.arrayOffset() + body.position(), body.remaining()));
+            return new Query(request.getName(), in.readUTF(), in.readInt(), in.readUTF());
+        }
+
+        byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(glob);
+            out.writeInt(pageSize);
+            out.writeUTF(after);
+            return bytes.toByteArray();
+        }
+
+        boolean matches(String name) {
+            if (!name.startsWith(prefix) || (!after.isEmpty() && name.compareTo(after) <= 0)) {
+                return false;
+            }
+            try {
+                return matcher == null || matcher.matches(Path.of(name));
+            } catch (InvalidPathException e) {
+                return false;
+            }
+        }
+
+        private String key(String after) {
+            return prefix + '\0' + glob + '\0' + after;
+        }
+    }
+
+    /**
+     * Where a page's names come from: a pass that hands every name it holds to the consumer,
+     * in any order, and turns a selected name into its entry, or null if it has gone since.
+     */
+    interface Source {
+        void forEachName(Consumer<String> consumer) throws IOException;
+
+        Entry describe(String name) throws IOException;
+    }
+
+    private static final class Cursor {
+        final ArrayDeque<String> names;
+        final boolean complete;
+        final long created = System.currentTimeMillis();
+
+        Cursor(ArrayDeque<String> names, boolean complete) {
+            this.names = names;
+            this.complete = complete;
+        }
+    }
+
+    private final Source source;
+    private final Map<String, Cursor> cursors = new LinkedHashMap<String, Cursor>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cursor> eldest) {
+            return size() > MAX_CURSORS;
+        }
+    };
+
+    Listing(Source source) {
+        this.source = source;
+    }
+
+    /**
+     * Answers {@code query} from the names held back by an earlier pass if it continues one,
+     * or else from a new pass.
+     */
+    Page page(Query query) throws IOException {
+        Cursor cursor;
+        synchronized (cursors) {
+            cursor = cursors.remove(query.key(query.after));
+        }
+        if (cursor == null || System.currentTimeMillis() - cursor.created > CURSOR_TTL_MILLIS) {
+            cursor = select(query, query.pageSize * READ_AHEAD_PAGES);
+        }
+        List<Entry> entries = new ArrayList<>(Math.min(query.pageSize, cursor.names.size()));
+        String last = null;
+        for (int taken = 0; taken < query.pageSize && !cursor.names.isEmpty(); taken++) {
+            last = cursor.names.pollFirst();
+            Entry entry = source.describe(last);
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        boolean more = !cursor.names.isEmpty() || !cursor.complete;
+        if (last == null || !more) {
+            return new Page(entries, "");
+        }
+        if (!cursor.names.isEmpty()) {
+            synchronized (cursors) {
+                cursors.put(query.key(last), cursor);
+            }
+        }
+        return new Page(entries, last);
+    }
+
+    /**
+     * One pass over the source, keeping the first {@code limit} matching names in order.
+     */
+    private Cursor select(Query query, int limit) throws IOException {
+        TreeSet<String> selected = new TreeSet<>();
+        boolean[] overflowed = new boolean[1];
+        source.forEachName(name -> {
+            if (selected.size() == limit && name.compareTo(selected.last()) >= 0) {
+                overflowed[0] |= name.compareTo(selected.last()) > 0 && query.matches(name);
+                return;
+            }
+            if (query.matches(name) && selected.add(name) && selected.size() > limit) {
+                selected.pollLast();
+                overflowed[0] = true;
+            }
+        });
+        return new Cursor(new ArrayDeque<>(selected), !overflowed[0]);
+    }
+
+    /**
+     * Fetches one page from {@code node}, a data node or the metadata server.
+     */
+    public static Page fetch(ConnectionPool pool, InetSocketAddress node, String prefix, String glob, int pageSize, String after)
+            throws IOException {
+        byte[] body = new Query(prefix, glob, pageSize, after == null ? "" : after).encode();
+        return pool.call(node, connection -> {
+            int requestId = connection.send(Protocol.LIST_PAGE, prefix, body.length);
+            connection.out().write(body);
+            connection.flush();
+            connection.readOk(requestId);
+            return Page.decode(connection.in());
+        });
+    }
+
+    /**
+     * Every entry {@code node} lists under {@code prefix} and {@code glob}, fetched a page at a
+     * time as the iterator reaches it.
+     */
+    public static Iterator<Entry> stream(ConnectionPool pool, InetSocketAddress node, String prefix, String glob, int pageSize) {
+        return new Iterator<Entry>() {
+            private Iterator<Entry> page;
+            private String next = "";
+
+            @Override
+            public boolean hasNext() {
+                while ((page == null || !page.hasNext()) && next != null) {
+                    try {
+                        Page fetched = fetch(pool, node, prefix, glob, pageSize, next);
+                        page = fetched.getEntries().iterator();
+                        next = fetched.getNext();
+                    } catch (IOException e) {
+                        throw new ListingException(node, e);
+                    }
+                }
+                return page != null && page.hasNext();
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return page.next();
+            }
+        };
+    }
+
+    /**
+     * Thrown by a listing iterator when a node stops answering partway through.
+     */
+    public static final class ListingException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final InetSocketAddress node;
+
+        ListingException(InetSocketAddress node, IOException cause) {
+            super("Listing from " + ClusterConfig.describe(node) + " failed: " + cause.getMessage(), cause);
+            this.node = node;
+        }
+
+        public InetSocketAddress getNode() {
+            return node;
+        }
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length number");
+    }
+}
@@ -0,0 +1,397 @@
+package com.dfs1;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a mixed workload of uploads, downloads, listings and deletes through
+ * {@link DfsClient} against the configured cluster, which it starts in this process on
+ * loopback unless {@code dfs.load.external} is set. Operations are drawn from {@code mix} and
+ * upload sizes from {@code sizes}, both lists of value:weight pairs. Every client runs one
+ * operation at a time.
+ *
+ * A table is printed at the end and the same results are written as JSON to {@code output}:
+ * per operation the count, rate, throughput, latency percentiles and errors, for a CI job to
+ * compare between runs. With the cluster in this process, the heap allocation rate, time spent
+ * collecting garbage and transfer buffers allocated are given as well, with the servers'
+ * share included; {@code -Ddfs.buffers.pooled=false} gives the same without buffer pooling.
+ *
+ * Usage: LoadGenerator [clients] [seconds] [mix] [sizes] [output]
+ * e.g. LoadGenerator 16 30 upload:30,download:50,list:10,delete:10 4k:70,256k:25,8m:5 load.json
+ */
+public class LoadGenerator {
+    private static final boolean EXTERNAL = Boolean.getBoolean("dfs.load.external");
+    private static final int INITIAL_FILES = 50;
+    private static final int VARIANTS_PER_SIZE = 4;
+    private static final int LISTED_PER_OPERATION = Listing.DEFAULT_PAGE_SIZE;
+    private static final String PREFIX = "load-";
+
+    enum Operation { UPLOAD, DOWNLOAD, LIST, DELETE }
+
+    private static final class Stats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder notFound = new LongAdder();
+    }
+
+    /**
+     * Weighted choices parsed from "value:weight,value:weight".
+     */
+    private static final class Weighted<T> {
+        private final List<T> values = new ArrayList<>();
+        private final List<Integer> cumulative = new ArrayList<>();
+        private int total;
+
+        void add(T value, int weight) {
+            if (weight > 0) {
+                total += weight;
+                values.add(value);
+                cumulative.add(total);
+            }
+        }
+
+        T pick(Random random) {
+            int point = random.nextInt(total);
+            for (int i = 0; i < values.size(); i++) {
+                if (point < cumulative.get(i)) {
+                    return values.get(i);
+                }
+            }
+            throw new IllegalStateException();
+        }
+    }
+
+    private final DfsClient client;
+    private final Weighted<Operation> mix;
+    private final Weighted<File[]> files;
+    private final List<String> live = new ArrayList<>();
+    private final Path downloads;
+    private final AtomicLong nextName = new AtomicLong();
+    private final Map<Operation, Stats> stats = new LinkedHashMap<>();
+
+    private LoadGenerator(DfsClient client, Weighted<Operation> mix, Weighted<File[]> files, Path downloads) {
+        this.client = client;
+        this.mix = mix;
+        this.files = files;
+        this.downloads = downloads;
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new Stats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        String mixSpec = args.length > 2 ? args[2] : "upload:30,download:50,list:10,delete:10";
+        String sizeSpec = args.length > 3 ? args[3] : "4k:70,256k:25,8m:5";
+        File output = new File(args.length > 4 ? args[4] : "load-results.json");
+
+        Path directory = Files.createTempDirectory("dfs-load");
+        if (!EXTERNAL) {
+            startCluster(directory);
+        }
+        Weighted<Operation> mix = new Weighted<>();
+        for (String[] pair : pairs(mixSpec)) {
+            mix.add(Operation.valueOf(pair[0].toUpperCase(Locale.ROOT)), Integer.parseInt(pair[1]));
+        }
+        Weighted<File[]> files = new Weighted<>();
+        Random random = new Random(7);
+        for (String[] pair : pairs(sizeSpec)) {
+            files.add(sampleFiles(directory.resolve("samples"), parseSize(pair[0]), random), Integer.parseInt(pair[1]));
+        }
+        Files.createDirectories(directory.resolve("downloads"));
+
+        try (DfsClient client = new DfsClient(ClusterConfig.SEEDS, ClusterConfig.METADATA, clients)) {
+            LoadGenerator generator = new LoadGenerator(client, mix, files, directory.resolve("downloads"));
+            generator.seed(random);
+            System.err.printf("Running %d clients for %d s: %s, sizes %s%n", clients, seconds, mixSpec, sizeSpec);
+            String json;
+            try (AllocationMeter meter = new AllocationMeter()) {
+                double elapsed = generator.run(clients, seconds);
+                json = generator.report(clients, elapsed, mixSpec, sizeSpec, meter);
+            }
+            Files.write(output.toPath(), json.getBytes(StandardCharsets.UTF_8));
+            System.err.println("Results written to " + output.getAbsolutePath());
+        }
+        System.exit(0);
+    }
+
+    static void startCluster(Path directory) throws InterruptedException {
+        for (int i = 0; i < ClusterConfig.NODES.size(); i++) {
+            int index = i;
+            int port = ClusterConfig.NODES.get(i).getPort();
+            String nodeDirectory = directory.resolve("node-" + (i + 1)).toString();
+            Thread server = new Thread(() -> DistributedServer.startServer(port, nodeDirectory, index));
+            server.setDaemon(true);
+            server.start();
+        }
+        Thread metadata = new Thread(() -> DistributedServer.startMetadataServer(ClusterConfig.METADATA.getPort(),
+                directory.resolve("metadata").toString()));
+        metadata.setDaemon(true);
+        metadata.start();
+        for (InetSocketAddress node : ClusterConfig.NODES) {
+            waitForServer(node);
+        }
+        waitForServer(ClusterConfig.METADATA);
+        // Let gossip spread the membership before placing files.
+        Thread.sleep(3L * Membership.INTERVAL_MILLIS + 500);
+    }
+
+    private static List<String[]> pairs(String spec) {
+        List<String[]> pairs = new ArrayList<>();
+        for (String item : spec.split(",")) {
+            String[] pair = item.trim().split(":");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected value:weight, got " + item);
+            }
+            pairs.add(pair);
+        }
+        return pairs;
+    }
+
+    static long parseSize(String size) {
+        String lower = size.trim().toLowerCase(Locale.ROOT);
+        char unit = lower.charAt(lower.length() - 1);
+        long scale = unit == 'k' ? 1024 : unit == 'm' ? 1024 * 1024 : unit == 'g' ? 1024L * 1024 * 1024 : 1;
+        return Long.parseLong(scale == 1 ? lower : lower.substring(0, lower.length() - 1)) * scale;
+    }
+
+    private static File[] sampleFiles(Path directory, long size, Random random) throws IOException {
+        Files.createDirectories(directory);
+        File[] samples = new File[VARIANTS_PER_SIZE];
+        byte[] block = new byte[(int) Math.min(size, 1024 * 1024)];
+        for (int v = 0; v < samples.length; v++) {
+            samples[v] = directory.resolve(size + "-" + v).toFile();
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(samples[v]))) {
+                for (long written = 0; written < size; written += block.length) {
+                    random.nextBytes(block);
+                    out.write(block, 0, (int) Math.min(block.length, size - written));
+                }
+            }
+        }
+        return samples;
+    }
+
+    private void seed(Random random) {
+        System.err.println("Uploading " + INITIAL_FILES + " initial files...");
+        for (int i = 0; i < INITIAL_FILES; i++) {
+            upload(random);
+        }
+        for (Stats stat : stats.values()) {
+            stat.latency.reset();
+            stat.bytes.reset();
+            stat.errors.reset();
+            stat.notFound.reset();
+        }
+    }
+
+    private double run(int clients, int seconds) throws InterruptedException {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            threads[c] = new Thread(() -> {
+                Random random = ThreadLocalRandom.current();
+                while (System.nanoTime() < deadline) {
+                    Operation operation = mix.pick(random);
+                    switch (operation) {
+                        case UPLOAD:
+                            upload(random);
+                            break;
+                        case DOWNLOAD:
+                            download(random);
+                            break;
+                        case LIST:
+                            list();
+                            break;
+                        case DELETE:
+                            delete(random);
+                            break;
+                    }
+                }
+            }, "load-" + c);
+            threads[c].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    private void upload(Random random) {
+        File[] variants = files.pick(random);
+        File file = variants[random.nextInt(variants.length)];
+        String name = PREFIX + nextName.incrementAndGet();
+        if (time(Operation.UPLOAD, file.length(), () -> client.upload(file, name).join())) {
+            synchronized (live) {
+                live.add(name);
+            }
+        }
+    }
+
+    private void download(Random random) {
+        String name = pick(random, false);
+        if (name == null) {
+            return;
+        }
+        File target = downloads.resolve(Thread.currentThread().getName()).toFile();
+        long[] size = new long[1];
+        time(Operation.DOWNLOAD, 0, () -> size[0] = client.download(name, target).join());
+        stats.get(Operation.DOWNLOAD).bytes.add(size[0]);
+        target.delete();
+    }
+
+    private void list() {
+        time(Operation.LIST, 0, () -> {
+            MergedListing listing = client.list(PREFIX, "");
+            for (int i = 0; i < LISTED_PER_OPERATION && listing.hasNext(); i++) {
+                listing.next();
+            }
+            if (!listing.getFailures().isEmpty()) {
+                throw new IOException("Listing failed: " + listing.getFailures());
+            }
+        });
+    }
+
+    private void delete(Random random) {
+        String name = pick(random, true);
+        if (name != null) {
+            time(Operation.DELETE, 0, () -> client.delete(name).join());
+        }
+    }
+
+    /**
+     * A random live file, taken out of the live set if {@code remove}.
+     */
+    private String pick(Random random, boolean remove) {
+        synchronized (live) {
+            if (live.isEmpty()) {
+                return null;
+            }
+            int index = random.nextInt(live.size());
+            String name = live.get(index);
+            if (remove) {
+                live.set(index, live.get(live.size() - 1));
+                live.remove(live.size() - 1);
+            }
+            return name;
+        }
+    }
+
+    private interface Call {
+        void run() throws IOException;
+    }
+
+    private boolean time(Operation operation, long bytes, Call call) {
+        Stats stat = stats.get(operation);
+        long start = System.nanoTime();
+        try {
+            call.run();
+            stat.latency.record(System.nanoTime() - start);
+            stat.bytes.add(bytes);
+            return true;
+        } catch (IOException | CompletionException e) {
+            Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+            if (cause instanceof FileNotFoundException) {
+                // Deleted by another client after it was picked.
+                stat.notFound.increment();
+            } else {
+                stat.errors.increment();
+            }
+            return false;
+        }
+    }
+
+    private String report(int clients, double elapsed, String mixSpec, String sizeSpec, AllocationMeter meter) {
+        System.out.printf("%-9s %9s %9s %9s %9s %9s %9s %9s %7s%n", "operation", "count", "ops/s", "MB/s", "p50 ms", "p90 ms",
+                "p99 ms", "max ms", "errors");
+        List<String> operations = new ArrayList<>();
+        for (Map.Entry<Operation, Stats> entry : stats.entrySet()) {
+            LatencyHistogram latency = entry.getValue().latency;
+            double megabytesPerSecond = entry.getValue().bytes.sum() / elapsed / (1024 * 1024);
+            System.out.printf("%-9s %9d %9.1f %9.1f %9.2f %9.2f %9.2f %9.2f %7d%n", entry.getKey().name().toLowerCase(Locale.ROOT),
+                    latency.getCount(), latency.getCount() / elapsed, megabytesPerSecond, latency.getPercentileNanos(50) / 1e6,
+                    latency.getPercentileNanos(90) / 1e6, latency.getPercentileNanos(99) / 1e6, latency.getMaxNanos() / 1e6,
+                    entry.getValue().errors.sum());
+            Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("operation", entry.getKey().name().toLowerCase(Locale.ROOT));
+            fields.put("count", latency.getCount());
+            fields.put("perSecond", latency.getCount() / elapsed);
+            fields.put("mbPerSecond", megabytesPerSecond);
+            fields.put("p50Ms", latency.getPercentileNanos(50) / 1e6);
+            fields.put("p90Ms", latency.getPercentileNanos(90) / 1e6);
+            fields.put("p99Ms", latency.getPercentileNanos(99) / 1e6);
+            fields.put("p999Ms", latency.getPercentileNanos(99.9) / 1e6);
+            fields.put("maxMs", latency.getMaxNanos() / 1e6);
+            fields.put("errors", entry.getValue().errors.sum());
+            fields.put("notFound", entry.getValue().notFound.sum());
+            operations.add(toJson(fields));
+        }
+        System.out.printf("memory: %s, %d direct and %d heap transfer buffers allocated%n", meter.summary(),
+                BufferPool.DIRECT.getAllocated(), BufferPool.HEAP.getAllocated());
+        Map<String, Object> run = new LinkedHashMap<>();
+        run.put("clients", clients);
+        run.put("seconds", elapsed);
+        run.put("mix", mixSpec);
+        run.put("sizes", sizeSpec);
+        run.put("allocatedMbPerSecond", meter.getAllocatedBytes() / meter.getElapsedSeconds() / (1024 * 1024));
+        run.put("gcCount", meter.getCollections());
+        run.put("gcMillis", meter.getCollectionMillis());
+        run.put("directBuffersAllocated", BufferPool.DIRECT.getAllocated());
+        run.put("heapBuffersAllocated", BufferPool.HEAP.getAllocated());
+        String header = toJson(run);
+        return header.substring(0, header.length() - 1) + ", \"operations\": [\n  " + String.join(",\n  ", operations) + "\n]}\n";
+    }
+
+    private static String toJson(Map<String, Object> fields) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append('"').append(field.getKey()).append("\": ");
+            Object value = field.getValue();
+            if (value instanceof Double) {
+                json.append(String.format(Locale.ROOT, "%.3f", (Double) value));
+            } else if (value instanceof Number) {
+                json.append(value);
+            } else {
+                json.append('"').append(String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+        }
+        return json.append('}').toString();
+    }
+
+    static void waitForServer(InetSocketAddress address) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 200);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server on " + address + " did not start");
+    }
+}
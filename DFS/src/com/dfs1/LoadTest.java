@@ -0,0 +1,151 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the thread-pool and selector engines on loopback. Each engine first gets a burst of
+ * idle persistent connections, then a set of active clients upload and download files while
+ * those connections stay open.
+ *
+ * Usage: LoadTest [idleConnections] [activeClients] [fileSizeBytes] [seconds]
+ */
+public class LoadTest {
+    private static final int BASE_PORT = 5201;
+
+    public static void main(String[] args) throws Exception {
+        int idleConnections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int activeClients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        int fileSize = args.length > 2 ? Integer.parseInt(args[2]) : 64 * 1024;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        System.out.printf("idle=%d active=%d fileSize=%d seconds=%d%n", idleConnections, activeClients, fileSize, seconds);
+        System.out.printf("%-6s %12s %10s %10s %12s %8s%n", "engine", "held/idle", "ops", "ops/s", "MB/s", "errors");
+        String[] engines = {"pool", "nio"};
+        for (int i = 0; i < engines.length; i++) {
+            run(engines[i], BASE_PORT + i, i, idleConnections, activeClients, fileSize, seconds);
+        }
+        System.exit(0);
+    }
+
+    private static void run(String engine, int port, int serverIndex, int idleConnections, int activeClients,
+                            int fileSize, int seconds) throws Exception {
+        String directory = Files.createTempDirectory("dfs-load-" + engine).toString();
+        Thread server = new Thread(() -> DistributedServer.startServer(port, directory, serverIndex, engine));
+        server.setDaemon(true);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        waitForServer(address);
+
+        List<DfsConnection> idle = new ArrayList<>();
+        int held = 0;
+        try {
+            held = openIdleConnections(address, idleConnections, idle);
+
+            AtomicLong ops = new AtomicLong();
+            AtomicLong bytes = new AtomicLong();
+            AtomicLong errors = new AtomicLong();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            ExecutorService clients = Executors.newFixedThreadPool(activeClients);
+            byte[] payload = new byte[fileSize];
+            for (int c = 0; c < activeClients; c++) {
+                String fileName = "load-" + c;
+                clients.execute(() -> drive(address, fileName, payload, deadline, ops, bytes, errors));
+            }
+            clients.shutdown();
+            clients.awaitTermination(seconds + 30L, TimeUnit.SECONDS);
+
+            System.out.printf("%-6s %12s %10d %10.0f %12.1f %8d%n", engine, held + "/" + idleConnections,
+                    ops.get(), ops.get() / (double) seconds, bytes.get() / (double) seconds / (1024 * 1024), errors.get());
+        } finally {
+            for (DfsConnection connection : idle) {
+                connection.close();
+            }
+            DistributedServer.shutdownServer(serverIndex);
+        }
+    }
+
+    /**
+     * Opens idle connections and counts how many of them the server actually serves.
+     */
+    private static int openIdleConnections(InetSocketAddress address, int count, List<DfsConnection> idle) throws IOException {
+        int[] requestIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            DfsConnection connection = DfsConnection.open(address, 5000);
+            requestIds[i] = connection.send(Protocol.PING, "", 0);
+            connection.flush();
+            idle.add(connection);
+        }
+        int served = 0;
+        long deadline = System.currentTimeMillis() + 5000;
+        for (int i = 0; i < count; i++) {
+            DfsConnection connection = idle.get(i);
+            try {
+                connection.setReadTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+                connection.readMessage(connection.readResponse(requestIds[i]));
+                served++;
+            } catch (IOException e) {
+                // Not served in time; keep the connection open so it still occupies the server.
+            }
+        }
+        return served;
+    }
+
+    private static void drive(InetSocketAddress address, String fileName, byte[] payload, long deadline,
+                              AtomicLong ops, AtomicLong bytes, AtomicLong errors) {
+        byte[] buffer = new byte[payload.length];
+        DfsConnection connection = null;
+        while (System.nanoTime() < deadline) {
+            try {
+                if (connection == null) {
+                    connection = DfsConnection.open(address, 5000);
+                    connection.setReadTimeout(5000);
+                }
+                int uploadId = connection.send(Protocol.UPLOAD, fileName, payload.length);
+                connection.out().write(payload);
+                connection.flush();
+                connection.readMessage(connection.readResponse(uploadId));
+
+                int downloadId = connection.send(Protocol.DOWNLOAD, fileName, 0);
+                connection.flush();
+                Frame response = connection.readResponse(downloadId);
+                connection.in().readFully(buffer, 0, (int) response.getPayloadLength());
+                ops.addAndGet(2);
+                bytes.addAndGet(2L * payload.length);
+            } catch (IOException e) {
+                errors.incrementAndGet();
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (IOException ignored) {
+                    }
+                    connection = null;
+                }
+            }
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void waitForServer(InetSocketAddress address) throws InterruptedException {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 200);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server on " + address + " did not start");
+    }
+}
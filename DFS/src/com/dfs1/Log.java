@@ -0,0 +1,110 @@
+package com.dfs1;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Structured logging off the request path. An event is a name and key/value pairs, written as
+ * one line of {@code time level event key=value ...} with values quoted where needed, so the
+ * lines can be read by eye or parsed. Lines are queued and printed by a background thread; if
+ * the queue ({@code dfs.log.queue}, 8192 lines) is full the line is dropped and counted rather
+ * than making a request wait for the console. {@code dfs.log.sync} prints on the caller's
+ * thread instead.
+ */
+final class Log {
+    private static final boolean SYNC = Boolean.getBoolean("dfs.log.sync");
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(Integer.getInteger("dfs.log.queue", 8192));
+    private static final LongAdder dropped = new LongAdder();
+
+    static {
+        if (!SYNC) {
+            Thread writer = new Thread(Log::drain, "dfs-log");
+            writer.setDaemon(true);
+            writer.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "dfs-log-flush"));
+        }
+    }
+
+    private Log() {
+    }
+
+    static void info(String event, Object... keyValues) {
+        log("INFO", event, keyValues);
+    }
+
+    static void warn(String event, Object... keyValues) {
+        log("WARN", event, keyValues);
+    }
+
+    static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static void log(String level, String event, Object[] keyValues) {
+        StringBuilder line = new StringBuilder(64 + keyValues.length * 16);
+        line.append(Instant.now()).append(' ').append(level).append(' ').append(event);
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            line.append(' ').append(keyValues[i]).append('=');
+            appendValue(line, String.valueOf(keyValues[i + 1]));
+        }
+        if (SYNC) {
+            System.out.println(line);
+        } else if (!queue.offer(line.toString())) {
+            dropped.increment();
+        }
+    }
+
+    private static void appendValue(StringBuilder line, String value) {
+        boolean quote = value.isEmpty();
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c <= ' ' || c == '"' || c == '=';
+        }
+        if (!quote) {
+            line.append(value);
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+
+    private static void drain() {
+        List<String> batch = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, 255);
+            for (String line : batch) {
+                text.append(line).append(System.lineSeparator());
+            }
+            System.out.print(text);
+            batch.clear();
+            text.setLength(0);
+        }
+    }
+
+    private static void flush() {
+        String line;
+        while ((line = queue.poll()) != null) {
+            System.out.println(line);
+        }
+    }
+}
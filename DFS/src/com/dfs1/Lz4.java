@@ -0,0 +1,209 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The LZ4 block format: a sequence of tokens, each a run of literals followed by a copy of
+ * at least four earlier bytes at most 64 KB back. The compressor is the greedy single-probe
+ * one of the reference implementation; it moves faster through data where matches keep
+ * failing, so incompressible input costs little.
+ */
+final class Lz4 {
+    static final int HASH_TABLE_SIZE = 1 << 14;
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int SKIP_TRIGGER = 6;
+    private static final VarHandle INTS = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private Lz4() {
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> 18;
+    }
+
+    private static int readInt(byte[] bytes, int index) {
+        return (int) INTS.get(bytes, index);
+    }
+
+    /**
+     * How many bytes from {@code at} equal those from {@code ref}, counting no further than
+     * {@code limit}. Compares eight bytes at a time.
+     */
+    private static int commonLength(byte[] bytes, int at, int ref, int limit) {
+        int start = at;
+        while (at + 8 <= limit) {
+            long difference = (long) LONGS.get(bytes, at) ^ (long) LONGS.get(bytes, ref);
+            if (difference != 0) {
+                return at - start + (Long.numberOfTrailingZeros(difference) >>> 3);
+            }
+            at += 8;
+            ref += 8;
+        }
+        while (at < limit && bytes[at] == bytes[ref]) {
+            at++;
+            ref++;
+        }
+        return at - start;
+    }
+
+    /**
+     * Compresses {@code srcLength} bytes into {@code dst} from {@code dstOffset}, using
+     * {@code table} ({@link #HASH_TABLE_SIZE} ints) as scratch space. Returns the compressed
+     * length, or -1 if it would need more than {@code maxLength} bytes.
+     */
+    static int compress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int maxLength, int[] table) {
+        int end = srcOffset + srcLength;
+        int dstLimit = dstOffset + maxLength;
+        int anchor = srcOffset;
+        int op = dstOffset;
+        if (srcLength > MATCH_FIND_LIMIT) {
+            Arrays.fill(table, -1);
+            int matchLimit = end - LAST_LITERALS;
+            int findLimit = end - MATCH_FIND_LIMIT;
+            int ip = srcOffset;
+            int attempts = 1 << SKIP_TRIGGER;
+            while (ip < findLimit) {
+                int sequence = readInt(src, ip);
+                int slot = hash(sequence);
+                int ref = table[slot];
+                table[slot] = ip;
+                if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip += attempts++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                while (ip > anchor && ref > srcOffset && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH + commonLength(src, ip + MIN_MATCH, ref + MIN_MATCH, matchLimit);
+                op = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, op, dstLimit);
+                if (op < 0) {
+                    return -1;
+                }
+                ip += matchLength;
+                anchor = ip;
+                attempts = 1 << SKIP_TRIGGER;
+                if (ip < findLimit) {
+                    table[hash(readInt(src, ip - 2))] = ip - 2;
+                }
+            }
+        }
+        op = writeSequence(src, anchor, end - anchor, 0, 0, dst, op, dstLimit);
+        return op < 0 ? -1 : op - dstOffset;
+    }
+
+    /**
+     * Writes one token: {@code literals} bytes from {@code anchor}, then, unless
+     * {@code matchLength} is zero, a match of that length {@code distance} bytes back.
+     * Returns the new output position, or -1 if the output would pass {@code dstLimit}.
+     */
+    private static int writeSequence(byte[] src, int anchor, int literals, int distance, int matchLength, byte[] dst, int op, int dstLimit) {
+        if (op + 1 + literals + literals / 255 + 1 + (matchLength > 0 ? 2 + matchLength / 255 + 1 : 0) > dstLimit) {
+            return -1;
+        }
+        int token = op++;
+        int matchCode = matchLength > 0 ? matchLength - MIN_MATCH : 0;
+        dst[token] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchCode, 15));
+        op = writeLength(literals, dst, op);
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+        if (matchLength > 0) {
+            dst[op++] = (byte) distance;
+            dst[op++] = (byte) (distance >>> 8);
+            op = writeLength(matchCode, dst, op);
+        }
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op) {
+        if (length >= 15) {
+            int rest = length - 15;
+            while (rest >= 255) {
+                dst[op++] = (byte) 255;
+                rest -= 255;
+            }
+            dst[op++] = (byte) rest;
+        }
+        return op;
+    }
+
+    /**
+     * Decompresses {@code srcLength} bytes into exactly {@code dstLength} bytes, throwing if
+     * the input is malformed or does not decode to that length.
+     */
+    static void decompress(byte[] src, int srcOffset, int srcLength, byte[] dst, int dstOffset, int dstLength) throws IOException {
+        int ip = srcOffset;
+        int end = srcOffset + srcLength;
+        int op = dstOffset;
+        int dstEnd = dstOffset + dstLength;
+        while (true) {
+            if (ip >= end) {
+                throw new IOException("Truncated LZ4 block");
+            }
+            int token = src[ip++] & 0xFF;
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int extra;
+                do {
+                    if (ip >= end) {
+                        throw new IOException("Truncated LZ4 block");
+                    }
+                    extra = src[ip++] & 0xFF;
+                    literals += extra;
+                } while (extra == 255);
+            }
+            if (literals > end - ip || literals > dstEnd - op) {
+                throw new IOException("Corrupt LZ4 block: literals overrun");
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == end) {
+                break;
+            }
+            if (end - ip < 2) {
+                throw new IOException("Truncated LZ4 block");
+            }
+            int distance = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+            ip += 2;
+            if (distance == 0 || distance > op - dstOffset) {
+                throw new IOException("Corrupt LZ4 block: match distance " + distance);
+            }
+            int matchLength = token & 15;
+            if (matchLength == 15) {
+                int extra;
+                do {
+                    if (ip >= end) {
+                        throw new IOException("Truncated LZ4 block");
+                    }
+                    extra = src[ip++] & 0xFF;
+                    matchLength += extra;
+                } while (extra == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - op) {
+                throw new IOException("Corrupt LZ4 block: match overrun");
+            }
+            int from = op - distance;
+            if (distance >= matchLength) {
+                System.arraycopy(dst, from, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[from + i];
+                }
+            }
+        }
+        if (op != dstEnd) {
+            throw new IOException("LZ4 block decoded to " + (op - dstOffset) + " bytes, expected " + dstLength);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.dfs1;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * The chunk list of a deduplicated file: the SHA-256 and length of each of its chunks, in
+ * file order. Encoded as a magic number, the file size and the chunk count, followed by a
+ * 32-byte hash and an int length per chunk.
+ */
+final class Manifest {
+    static final int HASH_LENGTH = 32;
+    private static final int MAGIC = 0x4446534D;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final byte[] hashes;
+    private final int[] lengths;
+    private final long[] offsets;
+
+    Manifest(byte[] hashes, int[] lengths) {
+        if (hashes.length != lengths.length * HASH_LENGTH) {
+            throw new IllegalArgumentException("Expected " + lengths.length + " hashes");
+        }
+        this.hashes = hashes;
+        this.lengths = lengths;
+        this.offsets = new long[lengths.length + 1];
+        for (int i = 0; i < lengths.length; i++) {
+            offsets[i + 1] = offsets[i] + lengths[i];
+        }
+    }
+
+    int getChunkCount() {
+        return lengths.length;
+    }
+
+    long getSize() {
+        return offsets[lengths.length];
+    }
+
+    long offset(int chunk) {
+        return offsets[chunk];
+    }
+
+    int length(int chunk) {
+        return lengths[chunk];
+    }
+
+    byte[] hash(int chunk) {
+        return Arrays.copyOfRange(hashes, chunk * HASH_LENGTH, (chunk + 1) * HASH_LENGTH);
+    }
+
+    String hashHex(int chunk) {
+        return HEX.formatHex(hashes, chunk * HASH_LENGTH, (chunk + 1) * HASH_LENGTH);
+    }
+
+    static String hex(byte[] hash) {
+        return HEX.formatHex(hash);
+    }
+
+    /**
+     * Returns the chunk holding byte {@code position} of the file.
+     */
+    int chunkAt(long position) {
+        int index = Arrays.binarySearch(offsets, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    int encodedLength() {
+        return 16 + lengths.length * (HASH_LENGTH + 4);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeLong(getSize());
+        out.writeInt(lengths.length);
+        for (int i = 0; i < lengths.length; i++) {
+            out.write(hashes, i * HASH_LENGTH, HASH_LENGTH);
+            out.writeInt(lengths[i]);
+        }
+    }
+
+    byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(encodedLength());
+        write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    static Manifest read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a manifest");
+        }
+        long size = in.readLong();
+        int count = in.readInt();
+        if (count < 0 || count > Integer.MAX_VALUE / HASH_LENGTH) {
+            throw new IOException("Invalid manifest chunk count: " + count);
+        }
+        byte[] hashes = new byte[count * HASH_LENGTH];
+        int[] lengths = new int[count];
+        for (int i = 0; i < count; i++) {
+            in.readFully(hashes, i * HASH_LENGTH, HASH_LENGTH);
+            lengths[i] = in.readInt();
+            if (lengths[i] <= 0) {
+                throw new IOException("Invalid manifest chunk length: " + lengths[i]);
+            }
+        }
+        Manifest manifest = new Manifest(hashes, lengths);
+        if (manifest.getSize() != size) {
+            throw new IOException("Manifest chunks add up to " + manifest.getSize() + " bytes, not " + size);
+        }
+        return manifest;
+    }
+
+    static Manifest read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return read(in);
+        }
+    }
+}
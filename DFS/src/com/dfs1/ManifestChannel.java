@@ -0,0 +1,174 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A deduplicated file read as one channel over its chunks, so downloads, ranged downloads and
+ * {@code transferTo} serve it like any other stored file. Chunk files are opened one at a
+ * time as reads reach them.
+ */
+final class ManifestChannel extends FileChannel {
+    private final ChunkStore chunks;
+    private final Manifest manifest;
+    private long position;
+    private int openIndex = -1;
+    private FileChannel openChunk;
+
+    ManifestChannel(ChunkStore chunks, Manifest manifest) {
+        this.chunks = chunks;
+        this.manifest = manifest;
+    }
+
+    private FileChannel chunk(int index) throws IOException {
+        if (index != openIndex) {
+            if (openChunk != null) {
+                openChunk.close();
+                openChunk = null;
+            }
+            openChunk = chunks.open(manifest.hashHex(index));
+            openIndex = index;
+        }
+        return openChunk;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        int read = read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            while (dsts[i].hasRemaining()) {
+                int read = read(dsts[i]);
+                if (read <= 0) {
+                    return total == 0 ? read : total;
+                }
+                total += read;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= size()) {
+            return -1;
+        }
+        int index = manifest.chunkAt(position);
+        long within = position - manifest.offset(index);
+        int limit = dst.limit();
+        if (dst.remaining() > manifest.length(index) - within) {
+            dst.limit(dst.position() + (int) (manifest.length(index) - within));
+        }
+        try {
+            int read = chunk(index).read(dst, within);
+            if (read < 0) {
+                throw new IOException("Chunk " + manifest.hashHex(index) + " is shorter than its manifest says");
+            }
+            return read;
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long sent = 0;
+        while (count > 0 && position < size()) {
+            int index = manifest.chunkAt(position);
+            long within = position - manifest.offset(index);
+            long written = chunk(index).transferTo(within, Math.min(count, manifest.length(index) - within), target);
+            if (written == 0) {
+                break;
+            }
+            sent += written;
+            position += written;
+            count -= written;
+        }
+        return sent;
+    }
+
+    @Override
+    public synchronized long position() {
+        return position;
+    }
+
+    @Override
+    public synchronized FileChannel position(long newPosition) {
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return manifest.getSize();
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public FileChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public void force(boolean metaData) {
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException("A deduplicated file cannot be mapped");
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("A deduplicated file cannot be locked");
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException("A deduplicated file cannot be locked");
+    }
+
+    @Override
+    protected synchronized void implCloseChannel() throws IOException {
+        if (openChunk != null) {
+            openChunk.close();
+            openChunk = null;
+        }
+    }
+}
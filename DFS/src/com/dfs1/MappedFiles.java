@@ -0,0 +1,251 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stored files mapped into memory a segment at a time ({@code dfs.mmap.segmentBytes}, 16 MB),
+ * so a {@link Protocol#READ} of a slice of a hot file is a lookup and a view of the page cache,
+ * with no read call and no copy into the heap. Only files stored whole can be mapped; deduplicated,
+ * compressed and packed files are read through their channels as before.
+ *
+ * Mappings are bounded by a budget of mapped bytes ({@code dfs.mmap.bytes}, 1 GB, 0 to disable),
+ * least recently read segments going first, and a segment not read for {@code dfs.mmap.idleMillis}
+ * (60 s) is dropped too. Java cannot unmap a buffer that may still be in use, so a dropped
+ * segment is unmapped when it is collected. A published file is never written in place, only
+ * replaced by a rename or deleted, so an old mapping keeps reading the old contents; every
+ * change {@link #invalidate}s the name so that later reads map the new file.
+ */
+final class MappedFiles {
+    static final long DEFAULT_BUDGET = Long.getLong("dfs.mmap.bytes", 1024L * 1024 * 1024);
+    static final int DEFAULT_SEGMENT_SIZE = Integer.getInteger("dfs.mmap.segmentBytes", 16 * 1024 * 1024);
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("dfs.mmap.idleMillis", 60_000));
+
+    /**
+     * The segments of one file mapped so far.
+     */
+    private static final class MappedFile {
+        final long size;
+        final AtomicReferenceArray<Segment> segments;
+
+        MappedFile(long size, int segmentSize) {
+            this.size = size;
+            this.segments = new AtomicReferenceArray<>((int) ((size + segmentSize - 1) / segmentSize));
+        }
+
+        boolean isEmpty() {
+            for (int i = 0; i < segments.length(); i++) {
+                if (segments.get(i) != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Segment {
+        final MappedFile file;
+        final int index;
+        final MappedByteBuffer buffer;
+        volatile long lastRead = System.nanoTime();
+
+        Segment(MappedFile file, int index, MappedByteBuffer buffer) {
+            this.file = file;
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    private final FileStore store;
+    private final long budget;
+    private final int segmentSize;
+    private final Map<String, MappedFile> files = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Segment, String> order = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong invalidations = new AtomicLong();
+    private long mappedBytes;
+    private volatile long lastSweep = System.nanoTime();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder maps = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+
+    MappedFiles(FileStore store, long budget, int segmentSize) {
+        this.store = store;
+        this.budget = Math.max(0, budget);
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Returns a view of up to {@code length} bytes of {@code name} from {@code offset}, ending at
+     * the end of the file or of the segment holding {@code offset}, whichever comes first. Returns
+     * null if the file does not exist, cannot be mapped or has no bytes from {@code offset}, for
+     * the caller to answer another way.
+     */
+    ByteBuffer read(String name, long offset, long length) throws IOException {
+        if (budget == 0 || offset < 0) {
+            return null;
+        }
+        MappedFile file = files.get(name);
+        Segment segment = file == null || offset >= file.size ? null : file.segments.get((int) (offset / segmentSize));
+        if (segment == null) {
+            segment = map(name, offset);
+            if (segment == null) {
+                return null;
+            }
+        } else {
+            hits.increment();
+            if (lock.tryLock()) {
+                try {
+                    order.get(segment);
+                    if (System.nanoTime() - lastSweep > IDLE_NANOS / 4) {
+                        dropIdleAndOverBudget();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        segment.lastRead = System.nanoTime();
+        int start = (int) (offset - (long) segment.index * segmentSize);
+        int end = (int) Math.min(segment.buffer.capacity(), start + Math.min(length, Integer.MAX_VALUE));
+        return segment.buffer.duplicate().limit(Math.max(start, end)).position(start);
+    }
+
+    /**
+     * Maps the segment of {@code name} holding {@code offset} and keeps it, unless the file
+     * changed since it was opened.
+     */
+    private Segment map(String name, long offset) throws IOException {
+        long stamp = invalidations.get();
+        FileChannel channel = store.openForRead(name);
+        if (channel == null) {
+            return null;
+        }
+        long size;
+        int index = (int) (offset / segmentSize);
+        MappedByteBuffer buffer;
+        try (channel) {
+            if (channel instanceof ManifestChannel || channel instanceof CompressedChannel || channel instanceof PackedChannel) {
+                return null;
+            }
+            size = channel.size();
+            if (offset >= size) {
+                return null;
+            }
+            long position = (long) index * segmentSize;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(segmentSize, size - position));
+        }
+        maps.increment();
+        lock.lock();
+        try {
+            if (invalidations.get() != stamp) {
+                return new Segment(null, index, buffer);
+            }
+            MappedFile file = files.get(name);
+            if (file == null || file.size != size) {
+                if (file != null) {
+                    forget(file);
+                }
+                file = new MappedFile(size, segmentSize);
+                files.put(name, file);
+            }
+            Segment current = file.segments.get(index);
+            if (current != null) {
+                return current;
+            }
+            Segment segment = new Segment(file, index, buffer);
+            file.segments.set(index, segment);
+            order.put(segment, name);
+            mappedBytes += buffer.capacity();
+            dropIdleAndOverBudget();
+            return segment;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the least recently read segments while over budget or idle for too long, and files
+     * left with none.
+     */
+    private void dropIdleAndOverBudget() {
+        long now = System.nanoTime();
+        lastSweep = now;
+        Iterator<Map.Entry<Segment, String>> eldest = order.entrySet().iterator();
+        while (eldest.hasNext()) {
+            Map.Entry<Segment, String> entry = eldest.next();
+            Segment segment = entry.getKey();
+            if (mappedBytes <= budget && now - segment.lastRead < IDLE_NANOS) {
+                break;
+            }
+            eldest.remove();
+            mappedBytes -= segment.buffer.capacity();
+            drops.increment();
+            segment.file.segments.compareAndSet(segment.index, segment, null);
+            if (segment.file.isEmpty()) {
+                files.remove(entry.getValue(), segment.file);
+            }
+        }
+    }
+
+    private void forget(MappedFile file) {
+        for (int i = 0; i < file.segments.length(); i++) {
+            Segment segment = file.segments.getAndSet(i, null);
+            if (segment != null && order.remove(segment) != null) {
+                mappedBytes -= segment.buffer.capacity();
+            }
+        }
+    }
+
+    /**
+     * Drops {@code name}'s mappings, and keeps mappings of it made from earlier opens from being
+     * kept.
+     */
+    void invalidate(String name) {
+        invalidations.incrementAndGet();
+        MappedFile file = files.remove(name);
+        if (file == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            forget(file);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMappedBytes() {
+        lock.lock();
+        try {
+            return mappedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMaps() {
+        return maps.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("mmap files=%d bytes=%d/%d segment=%d hits=%d maps=%d dropped=%d",
+                files.size(), getMappedBytes(), budget, segmentSize, hits.sum(), maps.sum(), drops.sum());
+    }
+}
@@ -0,0 +1,371 @@
+package com.dfs1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A data node's view of the cluster, kept current by gossip. Every
+ * {@code dfs.gossip.intervalMillis} (500) the node bumps its own heartbeat and sends its whole
+ * view to one random live peer, and now and then to a node it believes down or to a seed, in a
+ * {@link Protocol#GOSSIP} request; the peer merges it and answers with its own view, which is
+ * merged in turn. Each entry carries the node's generation (its start time) and heartbeat
+ * counter, and the newer pair wins, so news of a node spreads to everyone in a few rounds
+ * whichever way it travels.
+ *
+ * Every other node has a {@link PhiAccrualDetector} fed with the moments its heartbeat is
+ * seen to advance; a node is down once phi passes {@code dfs.gossip.phiThreshold} (8). A node
+ * that shuts down cleanly gossips that it left, so the others drop it at once. The seeds
+ * ({@code dfs.seeds}, by default the configured nodes) start out in the view as nodes not yet
+ * heard from; any node that gossips with a seed joins the cluster, so it can grow past the
+ * configured list.
+ *
+ * A view on the wire is a count followed by, per node: host:port, generation, heartbeat and
+ * the state the sender sees it in.
+ */
+final class Membership implements Closeable {
+    static final byte ALIVE = 0;
+    static final byte DOWN = 1;
+    static final byte LEFT = 2;
+
+    static final long INTERVAL_MILLIS = Long.getLong("dfs.gossip.intervalMillis", 500);
+    private static final double PHI_THRESHOLD = Double.parseDouble(System.getProperty("dfs.gossip.phiThreshold", "8"));
+    private static final long ACCEPTABLE_PAUSE_MILLIS = Long.getLong("dfs.gossip.acceptablePauseMillis", 2 * INTERVAL_MILLIS);
+    private static final int WINDOW = 200;
+
+    /**
+     * One node as a view describes it.
+     */
+    static final class Member {
+        final InetSocketAddress node;
+        final long generation;
+        final long heartbeat;
+        final byte state;
+
+        Member(InetSocketAddress node, long generation, long heartbeat, byte state) {
+            this.node = node;
+            this.generation = generation;
+            this.heartbeat = heartbeat;
+            this.state = state;
+        }
+
+        boolean isNewerThan(long generation, long heartbeat) {
+            return this.generation > generation || (this.generation == generation && this.heartbeat > heartbeat);
+        }
+    }
+
+    private static final class Peer {
+        long generation;
+        long heartbeat;
+        boolean left;
+        PhiAccrualDetector detector = newDetector();
+        byte reported = DOWN;
+    }
+
+    private final InetSocketAddress self;
+    private final long generation = System.currentTimeMillis();
+    private final List<InetSocketAddress> seeds;
+    private final Map<InetSocketAddress, Peer> peers = new LinkedHashMap<>();
+    private final HashRing<InetSocketAddress> ring;
+    private final ConnectionPool pool = new ConnectionPool((int) Math.min(1000, 2 * INTERVAL_MILLIS), 2);
+    private long heartbeat;
+    private boolean left;
+    private Thread thread;
+
+    Membership(InetSocketAddress self, List<InetSocketAddress> seeds) {
+        this.self = self;
+        this.seeds = new ArrayList<>(seeds);
+        this.seeds.remove(self);
+        for (InetSocketAddress seed : this.seeds) {
+            peers.put(seed, new Peer());
+        }
+        List<InetSocketAddress> nodes = new ArrayList<>(this.seeds);
+        nodes.add(self);
+        ring = new HashRing<>(nodes, ClusterConfig.VIRTUAL_NODES, ClusterConfig::describe);
+    }
+
+    private static PhiAccrualDetector newDetector() {
+        return new PhiAccrualDetector(WINDOW, INTERVAL_MILLIS, ACCEPTABLE_PAUSE_MILLIS, INTERVAL_MILLIS / 2);
+    }
+
+    InetSocketAddress getSelf() {
+        return self;
+    }
+
+    /**
+     * Every node that has not left, this one included, placed as clients place them.
+     */
+    HashRing<InetSocketAddress> getRing() {
+        return ring;
+    }
+
+    /**
+     * Whether {@code address} is the host of this node or of one it has heard of.
+     */
+    synchronized boolean isPeerHost(InetAddress address) {
+        if (address.equals(self.getAddress())) {
+            return true;
+        }
+        for (InetSocketAddress node : peers.keySet()) {
+            if (address.equals(node.getAddress())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized boolean isAlive(InetSocketAddress node) {
+        if (node.equals(self)) {
+            return !left;
+        }
+        Peer peer = peers.get(node);
+        return peer == null || isAlive(peer, System.currentTimeMillis());
+    }
+
+    private static boolean isAlive(Peer peer, long now) {
+        return !peer.left && peer.detector.hasHeartbeat() && peer.detector.phi(now) < PHI_THRESHOLD;
+    }
+
+    /**
+     * Gossips in the background until {@link #close}.
+     */
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(() -> {
+            try {
+                while (true) {
+                    round();
+                    Thread.sleep(INTERVAL_MILLIS);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }, "dfs-gossip-" + self.getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * One gossip round: a live peer, with probability down/(live + 1) a down node, and a seed
+     * whenever the round has not reached one, with probability 1/(live + 1).
+     */
+    private void round() {
+        List<InetSocketAddress> live = new ArrayList<>();
+        List<InetSocketAddress> down = new ArrayList<>();
+        synchronized (this) {
+            heartbeat++;
+            long now = System.currentTimeMillis();
+            for (Map.Entry<InetSocketAddress, Peer> entry : peers.entrySet()) {
+                Peer peer = entry.getValue();
+                byte state = peer.left ? LEFT : isAlive(peer, now) ? ALIVE : DOWN;
+                if (state != peer.reported) {
+                    report(entry.getKey(), peer, state, now);
+                }
+                if (state == ALIVE) {
+                    live.add(entry.getKey());
+                } else if (state == DOWN) {
+                    down.add(entry.getKey());
+                }
+            }
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<InetSocketAddress> targets = new ArrayList<>(3);
+        if (!live.isEmpty()) {
+            targets.add(live.get(random.nextInt(live.size())));
+        }
+        if (!down.isEmpty() && random.nextDouble() < (double) down.size() / (live.size() + 1)) {
+            targets.add(down.get(random.nextInt(down.size())));
+        }
+        if (!seeds.isEmpty() && Collections.disjoint(targets, seeds) && random.nextDouble() < 1.0 / (live.size() + 1)) {
+            targets.add(seeds.get(random.nextInt(seeds.size())));
+        }
+        for (InetSocketAddress target : targets) {
+            gossip(target);
+        }
+    }
+
+    private void report(InetSocketAddress node, Peer peer, byte state, long now) {
+        String selfName = ClusterConfig.describe(self);
+        String peerName = ClusterConfig.describe(node);
+        if (state == ALIVE) {
+            Log.info(peer.reported == LEFT ? "member_rejoined" : "member_up", "node", selfName, "peer", peerName);
+        } else if (state == LEFT) {
+            Log.info("member_left", "node", selfName, "peer", peerName);
+        } else if (peer.detector.hasHeartbeat()) {
+            Log.warn("member_down", "node", selfName, "peer", peerName, "phi", String.format(Locale.ROOT, "%.1f", peer.detector.phi(now)));
+        }
+        peer.reported = state;
+    }
+
+    private void gossip(InetSocketAddress target) {
+        try {
+            byte[] view = encode();
+            ByteBuffer reply = pool.call(target, connection -> {
+                connection.setReadTimeout((int) Math.max(1000, 4 * INTERVAL_MILLIS));
+                int requestId = connection.send(Protocol.GOSSIP, "", view.length);
+                connection.out().write(view);
+                connection.flush();
+                Frame response = connection.readOk(requestId);
+                byte[] body = new byte[(int) response.getPayloadLength()];
+                connection.in().readFully(body);
+                return ByteBuffer.wrap(body);
+            });
+            merge(decode(reply));
+        } catch (IOException e) {
+            pool.evict(target);
+        }
+    }
+
+    /**
+     * Takes in what another node knows: for each node, the newer of its entry and ours.
+     * Entries about this node are ignored; only it speaks for itself.
+     */
+    synchronized void merge(List<Member> view) {
+        long now = System.currentTimeMillis();
+        for (Member member : view) {
+            if (member.node.equals(self)) {
+                continue;
+            }
+            Peer peer = peers.get(member.node);
+            if (peer == null) {
+                peer = new Peer();
+                peer.generation = member.generation;
+                peer.heartbeat = member.heartbeat;
+                peer.left = member.state == LEFT;
+                peers.put(member.node, peer);
+                if (!peer.left) {
+                    ring.addNode(member.node);
+                    if (member.state == ALIVE) {
+                        peer.detector.heartbeat(now);
+                    }
+                }
+                continue;
+            }
+            if (!member.isNewerThan(peer.generation, peer.heartbeat)) {
+                continue;
+            }
+            if (member.generation != peer.generation) {
+                peer.detector = newDetector();
+            }
+            peer.generation = member.generation;
+            peer.heartbeat = member.heartbeat;
+            peer.left = member.state == LEFT;
+            if (peer.left) {
+                ring.removeNode(member.node);
+            } else {
+                ring.addNode(member.node);
+                peer.detector.heartbeat(now);
+            }
+        }
+    }
+
+    /**
+     * This node's view, with the state it currently sees each node in.
+     */
+    synchronized byte[] encode() {
+        long now = System.currentTimeMillis();
+        List<Member> view = new ArrayList<>(peers.size() + 1);
+        view.add(new Member(self, generation, heartbeat, left ? LEFT : ALIVE));
+        for (Map.Entry<InetSocketAddress, Peer> entry : peers.entrySet()) {
+            Peer peer = entry.getValue();
+            view.add(new Member(entry.getKey(), peer.generation, peer.heartbeat, peer.left ? LEFT : isAlive(peer, now) ? ALIVE : DOWN));
+        }
+        return encode(view);
+    }
+
+    static byte[] encode(List<Member> view) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(view.size());
+            for (Member member : view) {
+                out.writeUTF(ClusterConfig.describe(member.node));
+                out.writeLong(member.generation);
+                out.writeLong(member.heartbeat);
+                out.writeByte(member.state);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a view; an empty body, as clients send, is an empty view.
+     */
+    static List<Member> decode(ByteBuffer body) {
+        if (!body.hasRemaining()) {
+            return Collections.emptyList();
+        }
+        int count = body.getInt();
+        List<Member> view = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[body.getShort() & 0xFFFF];
+            body.get(name);
+            InetSocketAddress node = ClusterConfig.parseNode(new String(name, StandardCharsets.UTF_8));
+            view.add(new Member(node, body.getLong(), body.getLong(), body.get()));
+        }
+        return view;
+    }
+
+    /**
+     * Stops gossiping and tells a few live peers that this node is leaving, so that they stop
+     * sending it work without waiting for the detector.
+     */
+    @Override
+    public void close() {
+        Thread stopping;
+        List<InetSocketAddress> live = new ArrayList<>();
+        synchronized (this) {
+            stopping = thread;
+            thread = null;
+            left = true;
+            heartbeat++;
+            long now = System.currentTimeMillis();
+            peers.forEach((node, peer) -> {
+                if (isAlive(peer, now)) {
+                    live.add(node);
+                }
+            });
+        }
+        if (stopping != null) {
+            stopping.interrupt();
+            Collections.shuffle(live);
+            for (InetSocketAddress node : live.subList(0, Math.min(3, live.size()))) {
+                gossip(node);
+            }
+        }
+        pool.close();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long now = System.currentTimeMillis();
+        StringBuilder text = new StringBuilder("membership ").append(ClusterConfig.describe(self)).append(" up");
+        for (Map.Entry<InetSocketAddress, Peer> entry : peers.entrySet()) {
+            Peer peer = entry.getValue();
+            text.append(", ").append(ClusterConfig.describe(entry.getKey()));
+            if (peer.left) {
+                text.append(" left");
+            } else if (isAlive(peer, now)) {
+                text.append(" up");
+            } else {
+                text.append(peer.detector.hasHeartbeat() ? String.format(" down (phi %.1f)", peer.detector.phi(now)) : " unknown");
+            }
+        }
+        return text.toString();
+    }
+}
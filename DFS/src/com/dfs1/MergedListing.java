@@ -0,0 +1,113 @@
+package com.dfs1;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * The listings of several nodes merged into one, in name order and with each name once. Every
+ * node's listing is read a page at a time and only the head entry of each is held, so a node
+ * is asked for its next page only when the merge reaches the end of its current one. A file
+ * held by several nodes is reported with the newest copy's size and the nodes holding it.
+ *
+ * A node that fails is dropped from the merge and its error kept for {@link #getFailures}.
+ */
+public class MergedListing implements Iterator<MergedListing.Item> {
+    public static final class Item {
+        private final Listing.Entry entry;
+        private final List<InetSocketAddress> nodes;
+
+        Item(Listing.Entry entry, List<InetSocketAddress> nodes) {
+            this.entry = entry;
+            this.nodes = Collections.unmodifiableList(nodes);
+        }
+
+        public Listing.Entry getEntry() {
+            return entry;
+        }
+
+        public List<InetSocketAddress> getNodes() {
+            return nodes;
+        }
+    }
+
+    private static final class Head {
+        final InetSocketAddress node;
+        final Iterator<Listing.Entry> stream;
+        Listing.Entry entry;
+
+        Head(InetSocketAddress node, Iterator<Listing.Entry> stream) {
+            this.node = node;
+            this.stream = stream;
+        }
+    }
+
+    private final List<Head> pending = new ArrayList<>();
+    private final PriorityQueue<Head> heads = new PriorityQueue<>(Comparator.comparing((Head head) -> head.entry.getName()));
+    private final Map<InetSocketAddress, String> failures = new LinkedHashMap<>();
+
+    public MergedListing(ConnectionPool pool, List<InetSocketAddress> nodes, String prefix, String glob, int pageSize) {
+        for (InetSocketAddress node : nodes) {
+            pending.add(new Head(node, Listing.stream(pool, node, prefix, glob, pageSize)));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!pending.isEmpty()) {
+            for (Head head : pending) {
+                advance(head);
+            }
+            pending.clear();
+        }
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public Item next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<Head> same = new ArrayList<>();
+        same.add(heads.poll());
+        String name = same.get(0).entry.getName();
+        while (!heads.isEmpty() && heads.peek().entry.getName().equals(name)) {
+            same.add(heads.poll());
+        }
+        Listing.Entry newest = same.get(0).entry;
+        List<InetSocketAddress> holders = new ArrayList<>(same.size());
+        for (Head head : same) {
+            if (head.entry.getModified() > newest.getModified()) {
+                newest = head.entry;
+            }
+            holders.add(head.node);
+            advance(head);
+        }
+        return new Item(newest, holders);
+    }
+
+    private void advance(Head head) {
+        try {
+            if (head.stream.hasNext()) {
+                head.entry = head.stream.next();
+                heads.add(head);
+            }
+        } catch (Listing.ListingException e) {
+            failures.put(head.node, e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * The nodes dropped from the merge so far, with the error each failed with.
+     */
+    public Map<InetSocketAddress, String> getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,95 @@
+package com.dfs1;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fills a {@link MetadataIndex} and reports heap versus off-heap footprint and lookup rate,
+ * then measures durable puts through {@link MetadataStore} from several threads, and the time
+ * to snapshot and to reopen the store.
+ *
+ * Usage: MetadataBenchmark [entries] [writerThreads] [writeSeconds]
+ */
+public class MetadataBenchmark {
+    private static final List<String> NODES = Arrays.asList("10.0.0.1:5001", "10.0.0.2:5001", "10.0.0.3:5001");
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int writeSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        long heapBefore = usedHeap();
+        MetadataIndex index = new MetadataIndex();
+        long start = System.nanoTime();
+        for (int i = 0; i < entries; i++) {
+            index.put(new FileMetadata(name(i), i, 1, i, NODES));
+        }
+        double loadSeconds = (System.nanoTime() - start) / 1e9;
+        long heapAfter = usedHeap();
+        System.out.printf("entries=%d load=%.1fs (%.0f puts/s)%n", entries, loadSeconds, entries / loadSeconds);
+        System.out.printf("heap +%.1f MB, off-heap %.1f MB (%.1f bytes/entry)%n", (heapAfter - heapBefore) / 1048576.0,
+                index.offHeapBytes() / 1048576.0, (double) index.offHeapBytes() / entries);
+
+        int lookups = Math.min(entries, 2_000_000);
+        start = System.nanoTime();
+        long found = 0;
+        for (int i = 0; i < lookups; i++) {
+            if (index.get(name(ThreadLocalRandom.current().nextInt(entries))) != null) {
+                found++;
+            }
+        }
+        double lookupSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("lookups=%d found=%d (%.0f lookups/s)%n", lookups, found, lookups / lookupSeconds);
+        index = null;
+
+        File directory = Files.createTempDirectory("dfs-metadata-bench").toFile();
+        MetadataStore store = MetadataStore.open(directory);
+        AtomicLong puts = new AtomicLong();
+        long deadline = System.nanoTime() + writeSeconds * 1_000_000_000L;
+        Thread[] threads = new Thread[writers];
+        for (int t = 0; t < writers; t++) {
+            final int writer = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; System.nanoTime() < deadline; i++) {
+                        store.put("w" + writer + "/" + i, i, i, NODES);
+                        puts.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        System.out.printf("durable puts: %d writers, %.0f puts/s%n", writers, puts.get() / (double) writeSeconds);
+
+        start = System.nanoTime();
+        store.snapshot();
+        System.out.printf("snapshot of %d entries: %.2fs%n", store.size(), (System.nanoTime() - start) / 1e9);
+        store.close();
+        start = System.nanoTime();
+        try (MetadataStore reopened = MetadataStore.open(directory)) {
+            System.out.printf("reopen: %d entries in %.2fs%n", reopened.size(), (System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    private static String name(int i) {
+        return "dir" + (i % 1000) + "/file-" + i + ".dat";
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
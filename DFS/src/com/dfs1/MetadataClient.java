@@ -0,0 +1,170 @@
+package com.dfs1;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Client side of the metadata server. One round trip tells where a file lives, so reads go
+ * straight to a replica instead of probing every data node.
+ */
+public class MetadataClient {
+    private final ConnectionPool pool;
+    private final InetSocketAddress address;
+
+    public MetadataClient(ConnectionPool pool, InetSocketAddress address) {
+        this.pool = pool;
+        this.address = address;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the metadata of {@code name}, or null if the namespace has no such file.
+     */
+    public FileMetadata lookup(String name) throws IOException {
+        return entryCall(Protocol.META_LOOKUP, name, null);
+    }
+
+    /**
+     * Records that {@code nodes} now hold {@code name} and returns the entry with its new version.
+     */
+    public FileMetadata register(String name, long size, int checksum, List<String> nodes) throws IOException {
+        byte[] body = new FileMetadata(name, size, 0, checksum, nodes).encode();
+        return entryCall(Protocol.META_PUT, name, body);
+    }
+
+    /**
+     * Removes {@code name} from the namespace and returns the entry it had, or null if there was none.
+     */
+    public FileMetadata remove(String name) throws IOException {
+        return entryCall(Protocol.META_REMOVE, name, null);
+    }
+
+    /**
+     * Looks up many files at once; the list holds null for those the namespace does not have.
+     */
+    public List<FileMetadata> lookupAll(List<String> names) throws IOException {
+        return batchCall(Protocol.META_LOOKUP, names, null);
+    }
+
+    /**
+     * Records many files at once, with one force of the metadata log, and returns their entries
+     * with their new versions.
+     */
+    public List<FileMetadata> registerAll(List<FileMetadata> entries) throws IOException {
+        List<String> names = new ArrayList<>(entries.size());
+        for (FileMetadata entry : entries) {
+            names.add(entry.getName());
+        }
+        return batchCall(Protocol.META_PUT, names, entries);
+    }
+
+    /**
+     * Removes many files at once and returns the entries they had, null for those there were none.
+     */
+    public List<FileMetadata> removeAll(List<String> names) throws IOException {
+        return batchCall(Protocol.META_REMOVE, names, null);
+    }
+
+    /**
+     * Sends {@code opcode} for every name as META_BATCH requests of at most the largest request
+     * body, pipelined on one connection, and reads the answers in order.
+     */
+    private List<FileMetadata> batchCall(byte opcode, List<String> names, List<FileMetadata> entries) throws IOException {
+        List<byte[]> bodies = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        ByteArrayOutputStream items = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(items);
+        int count = 0;
+        for (int i = 0; i < names.size(); i++) {
+            int before = items.size();
+            out.writeByte(opcode);
+            out.writeUTF(names.get(i));
+            if (entries != null) {
+                entries.get(i).write(out);
+            }
+            if (count > 0 && 4 + items.size() > RequestHandler.MAX_REQUEST_BODY) {
+                byte[] item = Arrays.copyOfRange(items.toByteArray(), before, items.size());
+                bodies.add(batchBody(count, Arrays.copyOf(items.toByteArray(), before)));
+                counts.add(count);
+                items.reset();
+                items.write(item);
+                count = 0;
+            }
+            count++;
+        }
+        if (count > 0) {
+            bodies.add(batchBody(count, items.toByteArray()));
+            counts.add(count);
+        }
+        return pool.call(address, connection -> {
+            int[] requestIds = new int[bodies.size()];
+            for (int i = 0; i < bodies.size(); i++) {
+                requestIds[i] = connection.send(Protocol.META_BATCH, "", bodies.get(i).length);
+                connection.out().write(bodies.get(i));
+            }
+            connection.flush();
+            List<FileMetadata> results = new ArrayList<>(names.size());
+            DataInputStream in = connection.in();
+            for (int i = 0; i < bodies.size(); i++) {
+                connection.readOk(requestIds[i]);
+                int answered = in.readInt();
+                if (answered != counts.get(i)) {
+                    throw new IOException("Metadata server answered " + answered + " of " + counts.get(i) + " batched requests");
+                }
+                for (int j = 0; j < answered; j++) {
+                    String name = names.get(results.size());
+                    results.add(in.readByte() == Protocol.STATUS_OK ? FileMetadata.read(name, in) : null);
+                }
+            }
+            return results;
+        });
+    }
+
+    private static byte[] batchBody(int count, byte[] items) {
+        return ByteBuffer.allocate(4 + items.length).putInt(count).put(items).array();
+    }
+
+    public List<String> list() throws IOException {
+        return pool.call(address, connection -> {
+            int requestId = connection.send(Protocol.META_LIST, "", 0);
+            connection.flush();
+            connection.readOk(requestId);
+            DataInputStream in = connection.in();
+            int count = in.readInt();
+            List<String> names = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                names.add(in.readUTF());
+            }
+            return names;
+        });
+    }
+
+    private FileMetadata entryCall(byte opcode, String name, byte[] body) throws IOException {
+        return pool.call(address, connection -> {
+            int requestId = connection.send(opcode, name, body == null ? 0 : body.length);
+            if (body != null) {
+                connection.out().write(body);
+            }
+            connection.flush();
+            try {
+                connection.readOk(requestId);
+            } catch (DfsServerException e) {
+                if (e.isNotFound()) {
+                    return null;
+                }
+                throw e;
+            }
+            return FileMetadata.read(name, connection.in());
+        });
+    }
+}
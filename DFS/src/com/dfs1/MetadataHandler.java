@@ -0,0 +1,110 @@
+package com.dfs1;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The operations of the metadata server: looking up, recording and removing where files live.
+ * It holds no file contents, so uploads are refused.
+ */
+class MetadataHandler implements RequestHandler {
+    private final MetadataStore store;
+
+    MetadataHandler(MetadataStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public FileStore.Upload beginUpload(Frame request) throws IOException {
+        throw new IOException("The metadata server does not store file contents");
+    }
+
+    @Override
+    public Response finishUpload(Frame request, FileStore.Upload upload) {
+        upload.abort();
+        return Response.message(Protocol.STATUS_ERROR, request.getName(), "The metadata server does not store file contents");
+    }
+
+    @Override
+    public Response handle(Frame request, ByteBuffer body) {
+        String fileName = request.getName();
+        try {
+            switch (request.getOpcode()) {
+                case Protocol.META_LOOKUP:
+                    return found(fileName, store.get(fileName));
+                case Protocol.META_PUT:
+                    FileMetadata written = FileMetadata.read(fileName, new DataInputStream(
+                            new ByteArrayInputStream(body.array(), body.arrayOffset() + body.position(), body.remaining())));
+                    FileMetadata stored = store.put(fileName, written.getSize(), written.getChecksum(), written.getNodes());
+                    return Response.bytes(Protocol.STATUS_OK, fileName, stored.encode());
+                case Protocol.META_REMOVE:
+                    return found(fileName, store.remove(fileName));
+                case Protocol.META_BATCH:
+                    return Response.bytes(Protocol.STATUS_OK, fileName, batch(body));
+                case Protocol.META_LIST:
+                    return Response.bytes(Protocol.STATUS_OK, fileName, DistributedServer.encodeNames(store.list().toArray(new String[0])));
+                case Protocol.LIST_PAGE:
+                    return Response.bytes(Protocol.STATUS_OK, fileName, store.listPage(Listing.Query.read(request, body)).encode());
+                case Protocol.PING:
+                    return Response.message(Protocol.STATUS_OK, fileName, "PONG");
+                default:
+                    return Response.message(Protocol.STATUS_ERROR, fileName, "Invalid command!");
+            }
+        } catch (IOException | RuntimeException e) {
+            return Response.message(Protocol.STATUS_ERROR, fileName, Protocol.opcodeName(request.getOpcode()) + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Answers a {@link Protocol#META_BATCH}: a count, then for each item its opcode, one of
+     * META_LOOKUP, META_PUT and META_REMOVE, its name and, for a put, the entry as
+     * {@link FileMetadata#write} writes it. The puts and removes are made with one force of the
+     * log. The answer is the count, then for each item a status and, if it is OK, the entry.
+     */
+    private byte[] batch(ByteBuffer body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array(), body.arrayOffset() + body.position(), body.remaining()));
+        int count = in.readInt();
+        List<Byte> opcodes = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<MetadataStore.Change> changes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte opcode = in.readByte();
+            String name = in.readUTF();
+            if (opcode == Protocol.META_PUT) {
+                changes.add(new MetadataStore.Change(name, FileMetadata.read(name, in)));
+            } else if (opcode == Protocol.META_REMOVE) {
+                changes.add(new MetadataStore.Change(name, null));
+            } else if (opcode != Protocol.META_LOOKUP) {
+                throw new IOException("Cannot batch " + Protocol.opcodeName(opcode));
+            }
+            opcodes.add(opcode);
+            names.add(name);
+        }
+        List<FileMetadata> changed = store.apply(changes);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(count);
+        int next = 0;
+        for (int i = 0; i < count; i++) {
+            FileMetadata entry = opcodes.get(i) == Protocol.META_LOOKUP ? store.get(names.get(i)) : changed.get(next++);
+            out.writeByte(entry == null ? Protocol.STATUS_NOT_FOUND : Protocol.STATUS_OK);
+            if (entry != null) {
+                entry.write(out);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Response found(String fileName, FileMetadata metadata) throws IOException {
+        if (metadata == null) {
+            return Response.message(Protocol.STATUS_NOT_FOUND, fileName, "File not found.");
+        }
+        return Response.bytes(Protocol.STATUS_OK, fileName, metadata.encode());
+    }
+}
@@ -0,0 +1,310 @@
+package com.dfs1;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Namespace index kept outside the Java heap, so that tens of millions of entries give the
+ * garbage collector nothing to trace. Entries are fixed-size slots of open-addressing tables
+ * in direct buffers, split by hash into segments that are locked and grown independently.
+ * Names are stored UTF-8 encoded in per-segment arenas and replicas as short node ids. A
+ * removed entry leaves a tombstone and its name bytes behind until its segment is rebuilt.
+ */
+final class MetadataIndex {
+    static final int MAX_REPLICAS = 8;
+
+    private static final int SEGMENT_BITS = 6;
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_CAPACITY = 1 << 25;
+    private static final int MIN_ARENA_BLOCK = 64 * 1024;
+    private static final int MAX_ARENA_BLOCK = 16 * 1024 * 1024;
+
+    private static final int SLOT_SIZE = 56;
+    private static final int HASH = 0;
+    private static final int NAME = 8;
+    private static final int SIZE = 16;
+    private static final int VERSION = 24;
+    private static final int CHECKSUM = 32;
+    private static final int STATE = 36;
+    private static final int REPLICA_COUNT = 37;
+    private static final int REPLICAS = 38;
+
+    private static final byte EMPTY = 0;
+    private static final byte LIVE = 1;
+    private static final byte REMOVED = 2;
+
+    private static final class Segment {
+        ByteBuffer table;
+        int capacity;
+        int live;
+        int used;
+        List<ByteBuffer> arena = new ArrayList<>();
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.table = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        }
+    }
+
+    private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+    private final List<String> nodeNames = new ArrayList<>();
+    private final Map<String, Short> nodeIds = new HashMap<>();
+
+    MetadataIndex() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(INITIAL_CAPACITY);
+        }
+    }
+
+    FileMetadata get(String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        long hash = HashRing.hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = find(segment, hash, key);
+            return slot < 0 ? null : decode(segment, slot, name);
+        }
+    }
+
+    /**
+     * Stores {@code metadata}, replacing any entry with the same name, and returns the entry it replaced.
+     */
+    FileMetadata put(FileMetadata metadata) {
+        if (metadata.getNodes().size() > MAX_REPLICAS) {
+            throw new IllegalArgumentException("At most " + MAX_REPLICAS + " replicas can be recorded per file");
+        }
+        short[] replicas = new short[metadata.getNodes().size()];
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i] = nodeId(metadata.getNodes().get(i));
+        }
+        byte[] key = metadata.getName().getBytes(StandardCharsets.UTF_8);
+        long hash = HashRing.hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            FileMetadata previous = null;
+            int slot = find(segment, hash, key);
+            if (slot >= 0) {
+                previous = decode(segment, slot, metadata.getName());
+            } else {
+                if ((segment.used + 1) * 4L > segment.capacity * 3L) {
+                    rebuild(segment, segment.live + 1);
+                }
+                slot = freeSlot(segment, hash);
+                int base = slot * SLOT_SIZE;
+                if (segment.table.get(base + STATE) == EMPTY) {
+                    segment.used++;
+                }
+                segment.live++;
+                segment.table.putLong(base + HASH, hash);
+                segment.table.putLong(base + NAME, appendName(segment, key));
+                segment.table.put(base + STATE, LIVE);
+            }
+            int base = slot * SLOT_SIZE;
+            segment.table.putLong(base + SIZE, metadata.getSize());
+            segment.table.putLong(base + VERSION, metadata.getVersion());
+            segment.table.putInt(base + CHECKSUM, metadata.getChecksum());
+            segment.table.put(base + REPLICA_COUNT, (byte) replicas.length);
+            for (int i = 0; i < replicas.length; i++) {
+                segment.table.putShort(base + REPLICAS + 2 * i, replicas[i]);
+            }
+            return previous;
+        }
+    }
+
+    FileMetadata remove(String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        long hash = HashRing.hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = find(segment, hash, key);
+            if (slot < 0) {
+                return null;
+            }
+            FileMetadata previous = decode(segment, slot, name);
+            segment.table.put(slot * SLOT_SIZE + STATE, REMOVED);
+            segment.live--;
+            return previous;
+        }
+    }
+
+    long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.live;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Bytes of direct memory held by the tables and name arenas.
+     */
+    long offHeapBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                bytes += segment.table.capacity();
+                for (ByteBuffer block : segment.arena) {
+                    bytes += block.capacity();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Visits every entry, one segment at a time. Each segment is locked while it is visited,
+     * so an entry changed concurrently is seen either before or after the change.
+     */
+    void forEach(Consumer<FileMetadata> action) {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.capacity; slot++) {
+                    int base = slot * SLOT_SIZE;
+                    if (segment.table.get(base + STATE) == LIVE) {
+                        action.accept(decode(segment, slot, readName(segment, segment.table.getLong(base + NAME))));
+                    }
+                }
+            }
+        }
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static int find(Segment segment, long hash, byte[] key) {
+        int mask = segment.capacity - 1;
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            int base = slot * SLOT_SIZE;
+            byte state = segment.table.get(base + STATE);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == LIVE && segment.table.getLong(base + HASH) == hash
+                    && nameEquals(segment, segment.table.getLong(base + NAME), key)) {
+                return slot;
+            }
+        }
+    }
+
+    private static int freeSlot(Segment segment, long hash) {
+        int mask = segment.capacity - 1;
+        for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+            if (segment.table.get(slot * SLOT_SIZE + STATE) != LIVE) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Copies the live entries into a table sized for {@code entries} at no more than half full
+     * and a fresh arena, dropping tombstones and the names of removed entries.
+     */
+    private static void rebuild(Segment segment, int entries) {
+        int capacity = INITIAL_CAPACITY;
+        while (entries * 2L > capacity) {
+            if (capacity == MAX_CAPACITY) {
+                throw new IllegalStateException("Metadata index segment is full");
+            }
+            capacity <<= 1;
+        }
+        ByteBuffer oldTable = segment.table;
+        List<ByteBuffer> oldArena = segment.arena;
+        int oldCapacity = segment.capacity;
+        Segment rebuilt = new Segment(capacity);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int base = slot * SLOT_SIZE;
+            if (oldTable.get(base + STATE) != LIVE) {
+                continue;
+            }
+            byte[] name = readNameBytes(oldArena, oldTable.getLong(base + NAME));
+            int target = freeSlot(rebuilt, oldTable.getLong(base + HASH)) * SLOT_SIZE;
+            for (int i = 0; i < SLOT_SIZE; i++) {
+                rebuilt.table.put(target + i, oldTable.get(base + i));
+            }
+            rebuilt.table.putLong(target + NAME, appendName(rebuilt, name));
+            rebuilt.live++;
+            rebuilt.used++;
+        }
+        segment.table = rebuilt.table;
+        segment.capacity = capacity;
+        segment.arena = rebuilt.arena;
+        segment.live = rebuilt.live;
+        segment.used = rebuilt.used;
+    }
+
+    private static long appendName(Segment segment, byte[] name) {
+        int needed = 2 + name.length;
+        ByteBuffer block = segment.arena.isEmpty() ? null : segment.arena.get(segment.arena.size() - 1);
+        if (block == null || block.remaining() < needed) {
+            int size = block == null ? MIN_ARENA_BLOCK : Math.min(MAX_ARENA_BLOCK, block.capacity() * 2);
+            block = ByteBuffer.allocateDirect(Math.max(size, needed));
+            segment.arena.add(block);
+        }
+        long reference = ((long) (segment.arena.size() - 1) << 32) | block.position();
+        block.putShort((short) name.length);
+        block.put(name);
+        return reference;
+    }
+
+    private static boolean nameEquals(Segment segment, long reference, byte[] key) {
+        ByteBuffer block = segment.arena.get((int) (reference >>> 32));
+        int position = (int) reference;
+        if ((block.getShort(position) & 0xFFFF) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (block.get(position + 2 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] readNameBytes(List<ByteBuffer> arena, long reference) {
+        ByteBuffer block = arena.get((int) (reference >>> 32));
+        int position = (int) reference;
+        byte[] name = new byte[block.getShort(position) & 0xFFFF];
+        block.get(position + 2, name);
+        return name;
+    }
+
+    private static String readName(Segment segment, long reference) {
+        return new String(readNameBytes(segment.arena, reference), StandardCharsets.UTF_8);
+    }
+
+    private FileMetadata decode(Segment segment, int slot, String name) {
+        int base = slot * SLOT_SIZE;
+        int count = segment.table.get(base + REPLICA_COUNT);
+        List<String> nodes = new ArrayList<>(count);
+        synchronized (nodeIds) {
+            for (int i = 0; i < count; i++) {
+                nodes.add(nodeNames.get(segment.table.getShort(base + REPLICAS + 2 * i)));
+            }
+        }
+        return new FileMetadata(name, segment.table.getLong(base + SIZE), segment.table.getLong(base + VERSION),
+                segment.table.getInt(base + CHECKSUM), nodes);
+    }
+
+    private short nodeId(String node) {
+        synchronized (nodeIds) {
+            Short id = nodeIds.get(node);
+            if (id == null) {
+                if (nodeNames.size() > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Too many distinct data nodes");
+                }
+                id = (short) nodeNames.size();
+                nodeNames.add(node);
+                nodeIds.put(node, id);
+            }
+            return id;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.dfs1;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead log of namespace changes. Every record is framed by its length and CRC32C, so
+ * replay stops cleanly at a record torn by a crash and the tail after it is cut off. Appends
+ * are buffered; {@link #sync} forces them to disk, and callers that append concurrently share
+ * a single force.
+ */
+final class MetadataLog implements Closeable {
+    interface Visitor {
+        void put(FileMetadata metadata);
+
+        void remove(String name);
+    }
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int MAX_RECORD = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final DataOutputStream out;
+    // Not a monitor, so that callers waiting through a force do not pin virtual threads.
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private long appended;
+    private volatile long synced;
+    private long length;
+
+    private MetadataLog(FileChannel channel, long length) {
+        this.channel = channel;
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+        this.length = length;
+    }
+
+    /**
+     * Replays {@code file} into {@code visitor} and opens it for appending after the last intact record.
+     */
+    static MetadataLog open(Path file, Visitor visitor) throws IOException {
+        long valid = replay(file, visitor);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(valid);
+        channel.position(valid);
+        return new MetadataLog(channel, valid);
+    }
+
+    /**
+     * Feeds every intact record of {@code file} to {@code visitor} and returns the length of
+     * the intact prefix.
+     */
+    static long replay(Path file, Visitor visitor) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            while (true) {
+                byte[] body;
+                int checksum;
+                try {
+                    int recordLength = in.readInt();
+                    if (recordLength <= 0 || recordLength > MAX_RECORD) {
+                        break;
+                    }
+                    checksum = in.readInt();
+                    body = new byte[recordLength];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                CRC32C crc = new CRC32C();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                byte type = record.readByte();
+                String name = record.readUTF();
+                if (type == PUT) {
+                    visitor.put(FileMetadata.read(name, record));
+                } else if (type == REMOVE) {
+                    visitor.remove(name);
+                } else {
+                    throw new IOException("Unknown metadata record type " + type + " in " + file);
+                }
+                valid += 8 + body.length;
+            }
+        }
+        return valid;
+    }
+
+    static byte[] putRecord(FileMetadata metadata) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(PUT);
+        record.writeUTF(metadata.getName());
+        metadata.write(record);
+        return bytes.toByteArray();
+    }
+
+    static byte[] removeRecord(String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(REMOVE);
+        record.writeUTF(name);
+        return bytes.toByteArray();
+    }
+
+    static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.writeInt((int) crc.getValue());
+        out.write(record);
+    }
+
+    /**
+     * Buffers {@code record} and returns its sequence number for {@link #sync}.
+     */
+    synchronized long append(byte[] record) throws IOException {
+        writeRecord(out, record);
+        length += 8 + record.length;
+        return ++appended;
+    }
+
+    /**
+     * Returns once the record with sequence number {@code sequence} is on disk. A caller that
+     * finds a force already in progress waits for it and usually finds its record covered.
+     */
+    void sync(long sequence) throws IOException {
+        syncLock.lock();
+        try {
+            if (synced >= sequence) {
+                return;
+            }
+            long target;
+            synchronized (this) {
+                out.flush();
+                target = appended;
+            }
+            channel.force(false);
+            synced = target;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    synchronized long length() {
+        return length;
+    }
+
+    /**
+     * Empties the log once a snapshot holds everything it recorded.
+     */
+    void reset() throws IOException {
+        syncLock.lock();
+        try {
+            synchronized (this) {
+                out.flush();
+                channel.truncate(0);
+                channel.position(0);
+                channel.force(true);
+                length = 0;
+                synced = appended;
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        syncLock.lock();
+        try {
+            synchronized (this) {
+                out.flush();
+                channel.force(false);
+                channel.close();
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+}
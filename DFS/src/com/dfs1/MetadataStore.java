@@ -0,0 +1,283 @@
+package com.dfs1;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * The namespace served by the metadata server. It is held in a {@link MetadataIndex} and made
+ * durable by a snapshot plus a {@link MetadataLog} of the changes made since the snapshot was
+ * taken. Opening the store loads the snapshot and replays the log. Once the log grows past
+ * {@code dfs.metadata.snapshotBytes} (64 MB), a new snapshot is written and the log starts over.
+ */
+public class MetadataStore implements Closeable {
+    private static final long SNAPSHOT_THRESHOLD = Long.getLong("dfs.metadata.snapshotBytes", 64L * 1024 * 1024);
+    private static final int STRIPES = 64;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * A put of {@code entry}, whose version is ignored, or a remove if it is null, for
+     * {@link #apply}.
+     */
+    static final class Change {
+        final String name;
+        final FileMetadata entry;
+
+        Change(String name, FileMetadata entry) {
+            this.name = name;
+            this.entry = entry;
+        }
+    }
+
+    private final Path snapshotFile;
+    private final MetadataIndex index;
+    private final MetadataLog log;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+    private final Listing listing = new Listing(new Listing.Source() {
+        @Override
+        public void forEachName(Consumer<String> consumer) {
+            index.forEach(metadata -> consumer.accept(metadata.getName()));
+        }
+
+        @Override
+        public Listing.Entry describe(String name) {
+            FileMetadata metadata = index.get(name);
+            return metadata == null ? null : new Listing.Entry(name, metadata.getSize(), 0);
+        }
+    });
+
+    private MetadataStore(Path snapshotFile, MetadataIndex index, MetadataLog log) {
+        this.snapshotFile = snapshotFile;
+        this.index = index;
+        this.log = log;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public static MetadataStore open(File directory) throws IOException {
+        Path dir = directory.toPath();
+        Files.createDirectories(dir);
+        MetadataIndex index = new MetadataIndex();
+        MetadataLog.Visitor loader = new MetadataLog.Visitor() {
+            @Override
+            public void put(FileMetadata metadata) {
+                index.put(metadata);
+            }
+
+            @Override
+            public void remove(String name) {
+                index.remove(name);
+            }
+        };
+        Path snapshotFile = dir.resolve("metadata.snapshot");
+        MetadataLog.replay(snapshotFile, loader);
+        MetadataLog log = MetadataLog.open(dir.resolve("metadata.log"), loader);
+        return new MetadataStore(snapshotFile, index, log);
+    }
+
+    public FileMetadata get(String name) {
+        return index.get(name);
+    }
+
+    /**
+     * Records that {@code nodes} hold the current contents of {@code name}. The stored entry
+     * gets the next version and is on disk before this returns.
+     */
+    public FileMetadata put(String name, long size, int checksum, List<String> nodes) throws IOException {
+        FileMetadata stored;
+        snapshotLock.readLock().lock();
+        try {
+            ReentrantLock stripe = stripe(name);
+            stripe.lock();
+            try {
+                FileMetadata previous = index.get(name);
+                stored = new FileMetadata(name, size, previous == null ? 1 : previous.getVersion() + 1, checksum, nodes);
+                log.sync(log.append(MetadataLog.putRecord(stored)));
+                index.put(stored);
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        snapshotIfLogFull();
+        return stored;
+    }
+
+    /**
+     * Removes {@code name} and returns the entry it had, or null if there was none.
+     */
+    public FileMetadata remove(String name) throws IOException {
+        FileMetadata previous;
+        snapshotLock.readLock().lock();
+        try {
+            ReentrantLock stripe = stripe(name);
+            stripe.lock();
+            try {
+                previous = index.get(name);
+                if (previous == null) {
+                    return null;
+                }
+                log.sync(log.append(MetadataLog.removeRecord(name)));
+                index.remove(name);
+            } finally {
+                stripe.unlock();
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        snapshotIfLogFull();
+        return previous;
+    }
+
+    /**
+     * Makes {@code changes} in order, as {@link #put} and {@link #remove} would one at a time,
+     * but forces the log once for all of them. Returns, for each change, the stored entry of a
+     * put, or the entry a remove removed and null if there was none. Writers of the names
+     * involved wait until the whole batch is on disk.
+     */
+    List<FileMetadata> apply(List<Change> changes) throws IOException {
+        TreeSet<Integer> held = new TreeSet<>();
+        for (Change change : changes) {
+            held.add(stripeIndex(change.name));
+        }
+        List<FileMetadata> results = new ArrayList<>(changes.size());
+        snapshotLock.readLock().lock();
+        try {
+            // Taken in order, so two batches never wait for each other.
+            for (int stripe : held) {
+                stripes[stripe].lock();
+            }
+            try {
+                Map<String, FileMetadata> latest = new LinkedHashMap<>();
+                long sequence = 0;
+                for (Change change : changes) {
+                    FileMetadata previous = latest.containsKey(change.name) ? latest.get(change.name) : index.get(change.name);
+                    if (change.entry != null) {
+                        FileMetadata written = change.entry;
+                        FileMetadata stored = new FileMetadata(change.name, written.getSize(), previous == null ? 1 : previous.getVersion() + 1,
+                                written.getChecksum(), written.getNodes());
+                        sequence = log.append(MetadataLog.putRecord(stored));
+                        latest.put(change.name, stored);
+                        results.add(stored);
+                    } else {
+                        if (previous != null) {
+                            sequence = log.append(MetadataLog.removeRecord(change.name));
+                        }
+                        latest.put(change.name, null);
+                        results.add(previous);
+                    }
+                }
+                log.sync(sequence);
+                for (Map.Entry<String, FileMetadata> entry : latest.entrySet()) {
+                    if (entry.getValue() == null) {
+                        index.remove(entry.getKey());
+                    } else {
+                        index.put(entry.getValue());
+                    }
+                }
+            } finally {
+                for (int stripe : held.descendingSet()) {
+                    stripes[stripe].unlock();
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+        snapshotIfLogFull();
+        return results;
+    }
+
+    public List<String> list() {
+        List<String> names = new ArrayList<>();
+        index.forEach(metadata -> names.add(metadata.getName()));
+        Collections.sort(names);
+        return names;
+    }
+
+    /**
+     * One page of the names matching {@code query}, with their sizes, without sorting the
+     * whole namespace.
+     */
+    Listing.Page listPage(Listing.Query query) throws IOException {
+        return listing.page(query);
+    }
+
+    public long size() {
+        return index.size();
+    }
+
+    long offHeapBytes() {
+        return index.offHeapBytes();
+    }
+
+    /**
+     * Writes every entry to a new snapshot, swaps it in atomically and empties the log.
+     * Changes wait while this runs; lookups do not.
+     */
+    public void snapshot() throws IOException {
+        snapshotLock.writeLock().lock();
+        try {
+            Path temporary = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try (FileOutputStream file = new FileOutputStream(temporary.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, BUFFER_SIZE))) {
+                IOException[] failure = new IOException[1];
+                index.forEach(metadata -> {
+                    if (failure[0] == null) {
+                        try {
+                            MetadataLog.writeRecord(out, MetadataLog.putRecord(metadata));
+                        } catch (IOException e) {
+                            failure[0] = e;
+                        }
+                    }
+                });
+                if (failure[0] != null) {
+                    throw failure[0];
+                }
+                out.flush();
+                file.getChannel().force(true);
+            }
+            Files.move(temporary, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            log.reset();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    private void snapshotIfLogFull() throws IOException {
+        if (log.length() >= SNAPSHOT_THRESHOLD && snapshotting.compareAndSet(false, true)) {
+            try {
+                snapshot();
+            } finally {
+                snapshotting.set(false);
+            }
+        }
+    }
+
+    private ReentrantLock stripe(String name) {
+        return stripes[stripeIndex(name)];
+    }
+
+    private static int stripeIndex(String name) {
+        return name.hashCode() & (STRIPES - 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        log.close();
+    }
+}
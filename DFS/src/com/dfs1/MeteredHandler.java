@@ -0,0 +1,125 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps a server's handler to record every request in its {@link ServerMetrics} and to answer
+ * {@link Protocol#METRICS}. An upload is timed from its first byte to its commit, anything
+ * else for the handler's work, not counting the time to send a file body.
+ *
+ * A request is traced, logged with its timings, with probability {@code dfs.trace.sampleRate}
+ * (0 by default, so never), and always if it took longer than {@code dfs.metrics.slowMillis}
+ * (1000).
+ */
+final class MeteredHandler implements RequestHandler {
+    private static final double SAMPLE_RATE = Double.parseDouble(System.getProperty("dfs.trace.sampleRate", "0"));
+    private static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("dfs.metrics.slowMillis", 1000));
+
+    private final RequestHandler handler;
+    private final ServerMetrics metrics;
+
+    /**
+     * An upload counting its bytes and remembering when it began.
+     */
+    private final class MeteredUpload implements FileStore.Upload {
+        final Frame request;
+        final FileStore.Upload upload;
+        final long started = System.nanoTime();
+        long bytes;
+
+        MeteredUpload(Frame request, FileStore.Upload upload) {
+            this.request = request;
+            this.upload = upload;
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+            bytes += data.remaining();
+            upload.write(data);
+        }
+
+        @Override
+        public int commit() throws IOException {
+            return upload.commit();
+        }
+
+        @Override
+        public void abort() {
+            upload.abort();
+            finish(request, started, 0, bytes, 0, Protocol.STATUS_ERROR);
+        }
+    }
+
+    MeteredHandler(RequestHandler handler, ServerMetrics metrics) {
+        this.handler = handler;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public FileStore.Upload beginUpload(Frame request) throws IOException {
+        long started = System.nanoTime();
+        try {
+            return new MeteredUpload(request, handler.beginUpload(request));
+        } catch (IOException e) {
+            finish(request, started, 0, 0, 0, e instanceof QosScheduler.BusyException ? Protocol.STATUS_BUSY : Protocol.STATUS_ERROR);
+            throw e;
+        }
+    }
+
+    @Override
+    public Response finishUpload(Frame request, FileStore.Upload upload) {
+        MeteredUpload metered = (MeteredUpload) upload;
+        long received = System.nanoTime();
+        Response response = handler.finishUpload(request, metered.upload);
+        finish(request, metered.started, received - metered.started, metered.bytes, bodyLength(response), response.getStatus());
+        return response;
+    }
+
+    @Override
+    public Response handle(Frame request, ByteBuffer body) {
+        if (request.getOpcode() == Protocol.METRICS) {
+            return Response.bytes(Protocol.STATUS_OK, request.getName(), metrics.report().getBytes(StandardCharsets.UTF_8));
+        }
+        long started = System.nanoTime();
+        long bytesIn = body.remaining();
+        Response response = handler.handle(request, body);
+        finish(request, started, 0, bytesIn, bodyLength(response), response.getStatus());
+        return response;
+    }
+
+    private static long bodyLength(Response response) {
+        return response.header(0).getPayloadLength();
+    }
+
+    /**
+     * Records a finished request; {@code receiveNanos} is the part of an upload spent
+     * receiving its bytes, 0 for other requests.
+     */
+    private void finish(Frame request, long started, long receiveNanos, long bytesIn, long bytesOut, byte status) {
+        long nanos = System.nanoTime() - started;
+        metrics.record(request.getOpcode(), nanos, bytesIn, bytesOut, status);
+        boolean slow = nanos > SLOW_NANOS;
+        boolean sampled = SAMPLE_RATE > 0 && ThreadLocalRandom.current().nextDouble() < SAMPLE_RATE;
+        if (!slow && !sampled) {
+            return;
+        }
+        if (slow) {
+            metrics.countSlow();
+        }
+        if (sampled) {
+            metrics.countSampled();
+        }
+        Object[] fields = {"node", metrics.getNode(), "op", Protocol.opcodeName(request.getOpcode()), "id", request.getRequestId(),
+                "file", request.getName(), "status", Protocol.opcodeName(status), "micros", nanos / 1000,
+                "receiveMicros", receiveNanos / 1000, "bytesIn", bytesIn, "bytesOut", bytesOut};
+        if (slow) {
+            Log.warn("slow_request", fields);
+        } else {
+            Log.info("trace", fields);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Per-connection state machine for {@link NioServer}. A connection is either waiting for a
+ * request header, consuming that request's payload, or writing the response; it never blocks
+ * on its client, so a slow peer only delays itself.
+ *
+ * Its I/O thread only reads into the connection's buffer. What was read is processed on a
+ * worker, because the handler may block: on the disk, or on the next node of a replication
+ * chain, which may in turn be waiting for this node. Meanwhile the connection is not
+ * selected; the worker hands it back to its I/O thread to wait for more input or for room to
+ * write the rest of a response. When every worker is taken, the I/O thread processes what was
+ * read itself, answering {@link Protocol#STATUS_BUSY} wherever the handler would be called,
+ * so that clients back off as they do when the {@link QosScheduler} refuses them.
+ *
+ * An idle connection holds only a small direct buffer of {@code dfs.nio.headerBufferSize}
+ * bytes (8 KB), which bounds the size of a request header. A payload that does not fit in what
+ * is left of it is read through a transfer buffer borrowed from {@link BufferPool#DIRECT}; no
+ * more than the payload is read into it, so it is empty and handed back once the payload is
+ * consumed.
+ */
+class NioConnection {
+    private enum State { HEADER, PAYLOAD, RESPONSE }
+
+    private static final long SATURATED_RETRY_MILLIS = 10;
+    private static final BufferPool HEADER_BUFFERS =
+            new BufferPool(Integer.getInteger("dfs.nio.headerBufferSize", 8 * 1024), 1024);
+
+    private final SocketChannel channel;
+    private final RequestHandler handler;
+    private final AtomicInteger openConnections;
+    private final Executor workers;
+    private final Consumer<NioConnection> processed;
+    private ByteBuffer headerBuffer = HEADER_BUFFERS.acquire();
+    /** The buffer reads go to: the header buffer, or a transfer buffer while a payload streams. */
+    private ByteBuffer readBuffer = headerBuffer;
+
+    private State state = State.HEADER;
+    private Frame request;
+    private long payloadRemaining;
+    private FileStore.Upload upload;
+    private ByteBuffer body;
+    private String error;
+    /** Whether the request was answered before its payload, which is dropped once that is sent. */
+    private boolean answered;
+
+    private ByteBuffer response;
+    private ByteBuffer payload;
+    private FileTransfer.Send fileBody;
+    /** Whether no worker was free, so the handler must not be called. */
+    private boolean saturated;
+    /** Whether the last processing failed, leaving the connection to be closed. */
+    private boolean failed;
+    /** Whether a worker has the connection, guarded by this. */
+    private boolean working;
+    private boolean closed;
+
+    /**
+     * A connection whose requests are processed on {@code workers}, which pass it to
+     * {@code processed} when they are done.
+     */
+    NioConnection(SocketChannel channel, RequestHandler handler, AtomicInteger openConnections, Executor workers,
+                  Consumer<NioConnection> processed) {
+        this.channel = channel;
+        this.handler = handler;
+        this.openConnections = openConnections;
+        this.workers = workers;
+        this.processed = processed;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Called on the I/O thread when {@code key} is selected.
+     */
+    void handle(SelectionKey key) {
+        try {
+            if (key.isReadable() && read() < 0) {
+                close();
+                return;
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        key.interestOps(0);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            working = true;
+        }
+        try {
+            workers.execute(this::process);
+        } catch (RejectedExecutionException e) {
+            saturated = true;
+            try {
+                process();
+            } finally {
+                saturated = false;
+            }
+        }
+    }
+
+    private int read() throws IOException {
+        if (readBuffer == headerBuffer) {
+            return channel.read(readBuffer);
+        }
+        int limit = readBuffer.limit();
+        readBuffer.limit((int) Math.min(limit, readBuffer.position() + payloadRemaining));
+        try {
+            return channel.read(readBuffer);
+        } finally {
+            readBuffer.limit(limit);
+        }
+    }
+
+    private void process() {
+        try {
+            readBuffer.flip();
+            try {
+                if (state != State.RESPONSE || flushResponse()) {
+                    advance();
+                }
+            } finally {
+                readBuffer.compact();
+            }
+            swapReadBuffer();
+        } catch (IOException | RuntimeException e) {
+            failed = true;
+        }
+        synchronized (this) {
+            working = false;
+            if (closed) {
+                release();
+                return;
+            }
+        }
+        processed.accept(this);
+    }
+
+    /**
+     * Called on the I/O thread once a worker is done with the connection, to select
+     * {@code key} again for whatever the connection waits for now.
+     */
+    void resume(SelectionKey key) {
+        if (failed || key == null || !key.isValid()) {
+            close();
+            return;
+        }
+        key.interestOps(state == State.RESPONSE ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Borrows a transfer buffer once the header buffer is drained and more of a payload is to
+     * come, and hands it back, empty, once the payload has been consumed.
+     */
+    private void swapReadBuffer() {
+        boolean streaming = state == State.PAYLOAD && payloadRemaining > 0;
+        if (streaming && readBuffer == headerBuffer && readBuffer.position() == 0) {
+            readBuffer = BufferPool.DIRECT.acquire();
+        } else if (!streaming && readBuffer != headerBuffer) {
+            BufferPool.DIRECT.release(readBuffer);
+            readBuffer = headerBuffer;
+        }
+    }
+
+    /**
+     * Processes as many buffered requests as possible, stopping when more input is needed or
+     * a response cannot be written without blocking.
+     */
+    private void advance() throws IOException {
+        while (true) {
+            if (state == State.HEADER) {
+                Frame frame = Frame.parse(readBuffer);
+                if (frame == null) {
+                    return;
+                }
+                startRequest(frame);
+            } else if (state == State.PAYLOAD) {
+                if (payloadRemaining > 0 && !readBuffer.hasRemaining()) {
+                    return;
+                }
+                consumePayload();
+            } else if (!flushResponse()) {
+                return;
+            }
+        }
+    }
+
+    private void startRequest(Frame frame) throws IOException {
+        if (frame.isForwarded() && !DistributedServer.isPeer(channel.socket().getInetAddress())) {
+            frame = frame.notForwarded();
+        }
+        request = frame;
+        payloadRemaining = frame.getPayloadLength();
+        upload = null;
+        body = null;
+        error = null;
+        if (saturated) {
+            answered = true;
+            respond(busy());
+            return;
+        }
+        if (RequestHandler.isUpload(frame.getOpcode())) {
+            try {
+                upload = handler.beginUpload(frame);
+            } catch (QosScheduler.BusyException e) {
+                answered = true;
+                respond(QosHandler.busy(frame, e));
+                return;
+            } catch (IOException e) {
+                error = "Upload failed: " + e.getMessage();
+            }
+        } else if (payloadRemaining > RequestHandler.MAX_REQUEST_BODY) {
+            error = "Request body too large.";
+        } else {
+            body = ByteBuffer.allocate((int) payloadRemaining);
+        }
+        state = State.PAYLOAD;
+    }
+
+    private void consumePayload() throws IOException {
+        if (upload != null && saturated) {
+            upload.abort();
+            upload = null;
+            answered = true;
+            respond(busy());
+            return;
+        }
+        int length = (int) Math.min(payloadRemaining, readBuffer.remaining());
+        int end = readBuffer.position() + length;
+        if (upload != null) {
+            ByteBuffer slice = readBuffer.slice();
+            slice.limit(length);
+            try {
+                upload.write(slice);
+            } catch (IOException e) {
+                upload.abort();
+                upload = null;
+                error = "Upload failed: " + e.getMessage();
+            }
+        } else if (body != null) {
+            int limit = readBuffer.limit();
+            readBuffer.limit(end);
+            body.put(readBuffer);
+            readBuffer.limit(limit);
+        }
+        readBuffer.position(end);
+        payloadRemaining -= length;
+        if (payloadRemaining == 0) {
+            if (answered) {
+                answered = false;
+                request = null;
+                state = State.HEADER;
+            } else {
+                finishRequest();
+            }
+        }
+    }
+
+    private void finishRequest() throws IOException {
+        Response result;
+        if (error != null) {
+            result = Response.message(Protocol.STATUS_ERROR, request.getName(), error);
+        } else if (saturated) {
+            result = busy();
+            body = null;
+        } else if (upload != null) {
+            result = handler.finishUpload(request, upload);
+            upload = null;
+        } else {
+            result = handler.handle(request, body.flip());
+            body = null;
+        }
+        respond(result);
+    }
+
+    private Response busy() {
+        return Response.busy(request.getName(), "Server busy, retry later", SATURATED_RETRY_MILLIS);
+    }
+
+    private void respond(Response result) throws IOException {
+        response = result.encodeHeader(request.getRequestId());
+        if (result.getFile() != null) {
+            fileBody = new FileTransfer.Send(result.getFile(), result.getFilePosition(), result.getFileLength(), channel, true);
+        } else {
+            payload = result.getPayload();
+        }
+        state = State.RESPONSE;
+    }
+
+    /**
+     * Returns true once the whole response, including any file body, has been written.
+     */
+    private boolean flushResponse() throws IOException {
+        while (response.hasRemaining()) {
+            if (channel.write(response) == 0) {
+                return false;
+            }
+        }
+        while (payload != null && payload.hasRemaining()) {
+            if (channel.write(payload) == 0) {
+                return false;
+            }
+        }
+        if (fileBody != null && !fileBody.writeTo(channel)) {
+            return false;
+        }
+        closeFileBody();
+        response = null;
+        payload = null;
+        if (answered) {
+            state = State.PAYLOAD;
+            return true;
+        }
+        request = null;
+        state = State.HEADER;
+        return true;
+    }
+
+    private void closeFileBody() {
+        if (fileBody != null) {
+            fileBody.close();
+            fileBody = null;
+        }
+    }
+
+    /**
+     * Closes the connection. One a worker has is only shut, so that the worker fails fast, and
+     * the worker releases the rest when it is done.
+     */
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (working) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+                return;
+            }
+        }
+        release();
+    }
+
+    private void release() {
+        if (upload != null) {
+            upload.abort();
+            upload = null;
+        }
+        closeFileBody();
+        if (readBuffer != headerBuffer) {
+            BufferPool.DIRECT.release(readBuffer);
+        }
+        HEADER_BUFFERS.release(headerBuffer);
+        readBuffer = null;
+        headerBuffer = null;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        openConnections.decrementAndGet();
+    }
+}
@@ -0,0 +1,173 @@
+package com.dfs1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-loop server engine. One thread accepts connections and hands them round robin to a
+ * fixed number of I/O threads, each multiplexing its connections over its own selector, so
+ * idle or slow clients cost a little memory rather than a thread.
+ *
+ * Requests are handled on worker threads, one at a time for each connection that has input,
+ * as handlers may block; see {@link NioConnection}. Workers are made as needed, up to
+ * {@code workerThreads}, and kept a while when idle, so a connection only holds a thread while
+ * it has a request in hand. Input that finds them all taken is answered BUSY rather than
+ * queued, as a queued request could wait on a worker blocked on another node that is in turn
+ * waiting for this one.
+ */
+public class NioServer implements Closeable {
+    private final ServerSocketChannel serverChannel;
+    private final RequestHandler handler;
+    private final IoLoop[] loops;
+    private final ExecutorService workers;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private int nextLoop;
+
+    public NioServer(int port, RequestHandler handler, int ioThreads, int workerThreads) throws IOException {
+        this.handler = handler;
+        AtomicInteger workerCount = new AtomicInteger();
+        int maxWorkers = Math.max(1, workerThreads);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread worker = new Thread(runnable, "dfs-worker-" + port + "-" + workerCount.incrementAndGet());
+            worker.setDaemon(true);
+            return worker;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        this.workers = pool;
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop(port + "-" + i);
+        }
+    }
+
+    public ServerSocket socket() {
+        return serverChannel.socket();
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    /**
+     * Accepts connections until the server socket is closed.
+     */
+    public void run() throws IOException {
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+        try {
+            while (serverChannel.isOpen()) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    break;
+                }
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                openConnections.incrementAndGet();
+                loops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % loops.length;
+            }
+        } finally {
+            for (IoLoop loop : loops) {
+                loop.shutdown();
+            }
+            workers.shutdown();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+    }
+
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> processed = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        IoLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "dfs-io-" + name);
+            thread.setDaemon(true);
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        void resume(NioConnection connection) {
+            processed.add(connection);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    SocketChannel channel;
+                    while ((channel = pending.poll()) != null) {
+                        NioConnection connection = newConnection(channel);
+                        try {
+                            channel.register(selector, SelectionKey.OP_READ, connection);
+                        } catch (ClosedChannelException e) {
+                            connection.close();
+                        }
+                    }
+                    NioConnection connection;
+                    while ((connection = processed.poll()) != null) {
+                        connection.resume(connection.getChannel().keyFor(selector));
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ((NioConnection) key.attachment()).handle(key);
+                    }
+                }
+            } catch (IOException e) {
+                Log.warn("io_loop_failed", "thread", thread.getName(), "error", e.getMessage());
+            } finally {
+                for (SelectionKey key : selector.keys()) {
+                    ((NioConnection) key.attachment()).close();
+                }
+                SocketChannel channel;
+                while ((channel = pending.poll()) != null) {
+                    newConnection(channel).close();
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private NioConnection newConnection(SocketChannel channel) {
+            return new NioConnection(channel, handler, openConnections, workers, this::resume);
+        }
+    }
+}
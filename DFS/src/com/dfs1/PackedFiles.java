@@ -0,0 +1,626 @@
+package com.dfs1;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Small files packed into large append-only segment files, so a node holding millions of them
+ * does not pay an inode, a directory entry and an open and close per file. An upload of at most
+ * {@code dfs.pack.maxFileBytes} (0 by default, which turns packing off; at most one checksum
+ * block) is appended to the active segment as a record: a header with the name, time, length
+ * and CRC32C of the bytes, checksummed itself, then the bytes. Deleting or replacing a packed
+ * file appends a tombstone. An in-memory index maps every name to its newest record, so a read
+ * is a positional read of a segment channel that is already open.
+ *
+ * A segment is sealed when it reaches {@code dfs.pack.segmentBytes} (64 MB) by appending a footer
+ * listing its records, from which the index is rebuilt on startup without reading any data; the
+ * active segment has no footer yet and is scanned instead, cut at the first torn record. A
+ * sealed segment whose bytes are at least {@code dfs.pack.compactRatio} (half) garbage is
+ * compacted in the background: its live files are appended again and the segment is deleted.
+ * Tombstones are carried forward until the segment holding them is the oldest, as an older one
+ * may still hold the record they delete.
+ */
+final class PackedFiles {
+    static final int MAX_FILE_SIZE = Math.min(Integer.getInteger("dfs.pack.maxFileBytes", 0), BlockChecksums.DEFAULT_BLOCK_SIZE);
+    private static final long SEGMENT_SIZE = Long.getLong("dfs.pack.segmentBytes", 64L * 1024 * 1024);
+    private static final double COMPACT_RATIO = Double.parseDouble(System.getProperty("dfs.pack.compactRatio", "0.5"));
+    private static final int RECORD_MAGIC = 0x44465052;
+    private static final int FOOTER_MAGIC = 0x44465046;
+    private static final int TRAILER_LENGTH = 20;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "dfs-pack-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * One record of a segment, as its footer lists it; {@code offset} is where its bytes start.
+     */
+    private static final class Record {
+        final byte kind;
+        final String name;
+        final long modified;
+        final long offset;
+        final int length;
+        final int crc;
+
+        Record(byte kind, String name, long modified, long offset, int length, int crc) {
+            this.kind = kind;
+            this.name = name;
+            this.modified = modified;
+            this.offset = offset;
+            this.length = length;
+            this.crc = crc;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(kind);
+            writeName(out, name);
+            out.writeLong(modified);
+            out.writeLong(offset);
+            out.writeInt(length);
+            out.writeInt(crc);
+        }
+
+        static Record read(DataInputStream in) throws IOException {
+            return new Record(in.readByte(), readName(in), in.readLong(), in.readLong(), in.readInt(), in.readInt());
+        }
+    }
+
+    private static final class Segment {
+        final long id;
+        final File file;
+        final FileChannel channel;
+        final AtomicLong liveBytes = new AtomicLong();
+        final AtomicInteger references = new AtomicInteger(1);
+        long size;
+        volatile boolean sealed;
+        List<Record> records;
+
+        Segment(long id, File file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        /**
+         * Takes a reference for a reader, or returns false if the segment was compacted away.
+         */
+        boolean acquire() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        double garbage() {
+            return size == 0 ? 0 : 1 - (double) liveBytes.get() / size;
+        }
+    }
+
+    /**
+     * Where the newest record of a packed file is.
+     */
+    static final class Entry {
+        private final Segment segment;
+        private final Record record;
+
+        Entry(Segment segment, Record record) {
+            this.segment = segment;
+            this.record = record;
+        }
+
+        long getLength() {
+            return record.length;
+        }
+
+        int getCrc() {
+            return record.crc;
+        }
+
+        long getModified() {
+            return record.modified;
+        }
+    }
+
+    private final File directory;
+    private final UploadCommitter committer;
+    private final Map<String, Entry> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    // A lock rather than a monitor: appenders wait here while the active segment is sealed and forced.
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final ReentrantLock forceLock = new ReentrantLock();
+    // Set while loading, so no compaction starts on a half built index.
+    private final AtomicBoolean compactionPending = new AtomicBoolean(true);
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+    private Segment active;
+    private long nextId = 1;
+    private long appended;
+    private volatile long forced;
+
+    /**
+     * Opens the segments in {@code directory} and rebuilds the index from them.
+     */
+    PackedFiles(File directory, UploadCommitter committer) {
+        this.directory = directory;
+        this.committer = committer;
+        load();
+    }
+
+    static boolean isPackable(long length) {
+        // With packing off not even an empty file is packed.
+        return MAX_FILE_SIZE > 0 && length >= 0 && length <= MAX_FILE_SIZE;
+    }
+
+    private void load() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX));
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            long id;
+            try {
+                id = Long.parseLong(file.getName().substring(SEGMENT_PREFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            nextId = Math.max(nextId, id + 1);
+            try {
+                Segment segment = new Segment(id, file, FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+                List<Record> records = readFooter(segment.channel);
+                segment.sealed = records != null;
+                if (records == null) {
+                    records = scan(segment);
+                } else {
+                    segment.size = segment.channel.size();
+                }
+                segments.put(id, segment);
+                for (Record record : records) {
+                    apply(segment, record);
+                }
+                if (!segment.sealed) {
+                    if (active != null) {
+                        seal(active);
+                    }
+                    segment.records = new ArrayList<>(records);
+                    active = segment;
+                }
+            } catch (IOException e) {
+                Log.warn("packed_segment_unreadable", "segment", file, "error", e.getMessage());
+            }
+        }
+        compactionPending.set(false);
+        scheduleCompaction();
+    }
+
+    /**
+     * Points the index at {@code record}, as appended to {@code segment}.
+     */
+    private void apply(Segment segment, Record record) {
+        Entry previous;
+        if (record.kind == PUT) {
+            segment.liveBytes.addAndGet(record.length);
+            previous = index.put(record.name, new Entry(segment, record));
+        } else {
+            previous = index.remove(record.name);
+        }
+        if (previous != null) {
+            previous.segment.liveBytes.addAndGet(-previous.record.length);
+            if (previous.segment.sealed && previous.segment.garbage() >= COMPACT_RATIO) {
+                scheduleCompaction();
+            }
+        }
+    }
+
+    /**
+     * Reads the records of a sealed segment from its footer, or returns null if it has no
+     * intact footer.
+     */
+    private static List<Record> readFooter(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < TRAILER_LENGTH) {
+            return null;
+        }
+        ByteBuffer trailer = readFully(channel, size - TRAILER_LENGTH, TRAILER_LENGTH);
+        long footerStart = trailer.getLong();
+        int count = trailer.getInt();
+        int crc = trailer.getInt();
+        if (trailer.getInt() != FOOTER_MAGIC || footerStart < 0 || footerStart > size - TRAILER_LENGTH || count < 0) {
+            return null;
+        }
+        ByteBuffer footer = readFully(channel, footerStart, (int) (size - TRAILER_LENGTH - footerStart));
+        CRC32C check = new CRC32C();
+        check.update(footer.duplicate());
+        if ((int) check.getValue() != crc) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer.array(), 0, footer.limit()));
+        List<Record> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add(Record.read(in));
+        }
+        return records;
+    }
+
+    /**
+     * Reads the records of a segment without a footer one by one, checking each, and cuts the
+     * segment after the last whole record.
+     */
+    private static List<Record> scan(Segment segment) throws IOException {
+        long size = segment.channel.size();
+        CRC32C crc = new CRC32C();
+        CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Channels.newInputStream(segment.channel.position(0)), 64 * 1024), crc);
+        DataInputStream in = new DataInputStream(checked);
+        List<Record> records = new ArrayList<>();
+        long position = 0;
+        byte[] data = new byte[MAX_FILE_SIZE];
+        try {
+            while (position < size) {
+                crc.reset();
+                if (in.readInt() != RECORD_MAGIC) {
+                    break;
+                }
+                byte kind = in.readByte();
+                String name = readName(in);
+                long modified = in.readLong();
+                int length = in.readInt();
+                int dataCrc = in.readInt();
+                int headerCrc = (int) crc.getValue();
+                long dataStart = position + headerLength(name);
+                if (in.readInt() != headerCrc || (kind != PUT && kind != DELETE) || length < 0 || dataStart + length > size) {
+                    break;
+                }
+                if (data.length < length) {
+                    data = new byte[length];
+                }
+                in.readFully(data, 0, length);
+                crc.reset();
+                crc.update(data, 0, length);
+                if ((int) crc.getValue() != dataCrc) {
+                    break;
+                }
+                records.add(new Record(kind, name, modified, dataStart, length, dataCrc));
+                position = dataStart + length;
+            }
+        } catch (EOFException e) {
+            // A record cut short by a crash.
+        }
+        if (position < size) {
+            Log.warn("packed_segment_truncated", "segment", segment.file, "at", position, "size", size);
+            segment.channel.truncate(position);
+        }
+        segment.size = position;
+        return records;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Segment ends before " + (position + length));
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readName(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int headerLength(String name) {
+        return 4 + 1 + 2 + name.getBytes(StandardCharsets.UTF_8).length + 8 + 4 + 4 + 4;
+    }
+
+    /**
+     * Appends a record to the active segment, starting a new one if it would grow past the
+     * segment size, and returns it. A failed write is cut off again. Called holding the append
+     * lock.
+     */
+    private Record append(byte kind, String name, long modified, ByteBuffer data, int dataCrc) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(headerLength(name));
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(RECORD_MAGIC);
+        header.writeByte(kind);
+        writeName(header, name);
+        header.writeLong(modified);
+        header.writeInt(data.remaining());
+        header.writeInt(dataCrc);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        header.writeInt((int) crc.getValue());
+        int length = data.remaining();
+        if (active == null || active.size > 0 && active.size + bytes.size() + length > SEGMENT_SIZE) {
+            if (active != null) {
+                seal(active);
+            }
+            File file = new File(directory, String.format("%s%08d", SEGMENT_PREFIX, nextId));
+            directory.mkdirs();
+            Segment segment = new Segment(nextId++, file, FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE));
+            segment.records = new ArrayList<>();
+            segments.put(segment.id, segment);
+            active = segment;
+        }
+        long start = active.size;
+        ByteBuffer[] buffers = {ByteBuffer.wrap(bytes.toByteArray()), data.duplicate()};
+        try {
+            active.channel.position(start);
+            while (buffers[1].hasRemaining() || buffers[0].hasRemaining()) {
+                active.channel.write(buffers);
+            }
+        } catch (IOException e) {
+            active.channel.truncate(start);
+            throw e;
+        }
+        Record record = new Record(kind, name, modified, start + bytes.size(), length, dataCrc);
+        active.size = record.offset + length;
+        active.records.add(record);
+        appended++;
+        return record;
+    }
+
+    /**
+     * Appends the footer of {@code segment}, after which it is never written again. Called
+     * holding the append lock, or while loading.
+     */
+    private void seal(Segment segment) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream footer = new DataOutputStream(bytes);
+        for (Record record : segment.records) {
+            record.write(footer);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        footer.writeLong(segment.size);
+        footer.writeInt(segment.records.size());
+        footer.writeInt((int) crc.getValue());
+        footer.writeInt(FOOTER_MAGIC);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        while (buffer.hasRemaining()) {
+            segment.channel.write(buffer, segment.size + buffer.position());
+        }
+        committer.force(segment.channel);
+        segment.size += buffer.capacity();
+        segment.records = null;
+        segment.sealed = true;
+        if (segment.garbage() >= COMPACT_RATIO) {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Packs {@code data}, whose CRC32C is {@code crc}, as {@code name}, replacing any packed file
+     * of that name. Callers publish and delete under the name's lock, and {@link #force} once
+     * they let go of it.
+     */
+    void put(String name, ByteBuffer data, int crc) throws IOException {
+        appendLock.lock();
+        try {
+            Record record = append(PUT, name, System.currentTimeMillis(), data, crc);
+            apply(active, record);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Appends a tombstone for {@code name} and returns true if it was packed.
+     */
+    boolean delete(String name) throws IOException {
+        appendLock.lock();
+        try {
+            if (!index.containsKey(name)) {
+                return false;
+            }
+            Record record = append(DELETE, name, System.currentTimeMillis(), EMPTY, 0);
+            apply(active, record);
+            return true;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Makes the records appended so far as durable as the sync mode asks. A caller that finds
+     * a force already in progress waits for it and usually finds its records covered, as in
+     * {@link MetadataLog#sync}; sealed segments were forced when they were sealed.
+     */
+    void force() throws IOException {
+        long target;
+        appendLock.lock();
+        try {
+            target = appended;
+        } finally {
+            appendLock.unlock();
+        }
+        forceLock.lock();
+        try {
+            if (forced >= target) {
+                return;
+            }
+            Segment segment;
+            appendLock.lock();
+            try {
+                target = appended;
+                segment = active;
+            } finally {
+                appendLock.unlock();
+            }
+            if (segment != null && segment.acquire()) {
+                try {
+                    committer.force(segment.channel);
+                } finally {
+                    segment.release();
+                }
+            }
+            forced = target;
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    Entry get(String name) {
+        return index.get(name);
+    }
+
+    Set<String> names() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    /**
+     * Opens the packed file {@code name} for reading, or returns null if it is not packed.
+     */
+    FileChannel open(String name) {
+        while (true) {
+            Entry entry = index.get(name);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.segment.acquire()) {
+                return new PackedChannel(entry.segment.channel, entry.record.offset, entry.record.length, entry.segment::release);
+            }
+            // Compacted away since the lookup; the index already points at the copy.
+        }
+    }
+
+    private void scheduleCompaction() {
+        if (compactionPending.compareAndSet(false, true)) {
+            COMPACTOR.execute(() -> {
+                compactionPending.set(false);
+                compact();
+            });
+        }
+    }
+
+    /**
+     * Compacts every sealed segment that is garbage enough, oldest first.
+     */
+    void compact() {
+        for (Segment segment : segments.values()) {
+            if (segment.sealed && segment.garbage() >= COMPACT_RATIO) {
+                try {
+                    compact(segment);
+                } catch (IOException e) {
+                    Log.warn("packed_compaction_failed", "segment", segment.file, "error", e.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    private void compact(Segment segment) throws IOException {
+        List<Record> records = readFooter(segment.channel);
+        if (records == null) {
+            throw new IOException("Footer of " + segment.file + " is damaged");
+        }
+        boolean oldest = segments.firstKey() == segment.id;
+        long copied = 0;
+        for (Record record : records) {
+            Entry entry = index.get(record.name);
+            if (record.kind == PUT && (entry == null || entry.record.offset != record.offset || entry.segment != segment)) {
+                continue;
+            }
+            if (record.kind == DELETE && (oldest || entry != null)) {
+                continue;
+            }
+            ByteBuffer data = record.kind == PUT ? readFully(segment.channel, record.offset, record.length) : EMPTY;
+            appendLock.lock();
+            try {
+                // Checked again under the lock, so nothing appended since is overtaken by the copy.
+                if (record.kind == PUT ? index.get(record.name) == entry : !index.containsKey(record.name)) {
+                    Record copy = append(record.kind, record.name, record.modified, data, record.crc);
+                    apply(active, copy);
+                    copied += data.limit();
+                }
+            } finally {
+                appendLock.unlock();
+            }
+        }
+        force();
+        segments.remove(segment.id);
+        segment.release();
+        segment.file.delete();
+        compactions.increment();
+        reclaimedBytes.add(segment.size - copied);
+        Log.info("packed_segment_compacted", "segment", segment.file.getName(), "bytes", segment.size, "copied", copied);
+    }
+
+    public int getFileCount() {
+        return index.size();
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    public long getReclaimedBytes() {
+        return reclaimedBytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("packed files=%d segments=%d maxFile=%d segment=%d compactions=%d reclaimed=%d",
+                index.size(), segments.size(), MAX_FILE_SIZE, SEGMENT_SIZE, compactions.sum(), reclaimedBytes.sum());
+    }
+}
@@ -0,0 +1,314 @@
+package com.dfs1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * A file being assembled from fixed-size chunks: a chunked upload on the server, or a ranged
+ * download on the client. Chunks may arrive in any order and over several connections. The
+ * data lives in {@code <name>.part} and every completed chunk is appended to
+ * {@code <name>.chunks} with its CRC32C, so an interrupted transfer can be resumed after a
+ * restart. The chunks of an encoded upload are {@link BlockCodec} streams of unknown length,
+ * so each is kept in a file of its own, {@code <name>.part<index>}, until they are joined.
+ */
+class PartialFile {
+    static final int MIN_CHUNK_SIZE = 4 * 1024;
+    static final int MAX_CHUNK_SIZE = 256 * 1024 * 1024;
+    private static final int HEADER_LENGTH = 16;
+    private static final int RECORD_LENGTH = 8;
+
+    private final File dataFile;
+    private final File chunkFile;
+    private final long totalSize;
+    private final int chunkSize;
+    private final boolean encoded;
+    private final FileChannel data;
+    private final FileChannel chunkLog;
+    private final BitSet received = new BitSet();
+    private final int[] checksums;
+
+    private PartialFile(File dataFile, File chunkFile, long totalSize, int chunkSize, boolean encoded) throws IOException {
+        this.dataFile = dataFile;
+        this.chunkFile = chunkFile;
+        this.totalSize = totalSize;
+        this.chunkSize = chunkSize;
+        this.encoded = encoded;
+        this.checksums = new int[chunkCount(totalSize, chunkSize)];
+        this.data = encoded ? null : FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.chunkLog = FileChannel.open(chunkFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    static int chunkCount(long totalSize, int chunkSize) {
+        return (int) ((totalSize + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Resumes the partial file for {@code name} if it was started with the same size and
+     * chunk size, otherwise starts it over.
+     */
+    static PartialFile open(File partialDirectory, String name, long totalSize, int chunkSize) throws IOException {
+        return open(partialDirectory, name, totalSize, chunkSize, false);
+    }
+
+    static PartialFile open(File partialDirectory, String name, long totalSize, int chunkSize, boolean encoded) throws IOException {
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("Chunk size must be between " + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE + " bytes");
+        }
+        if (totalSize < 0 || chunkCount(totalSize, chunkSize) > Integer.MAX_VALUE / 2) {
+            throw new IOException("Invalid upload size: " + totalSize);
+        }
+        if (!partialDirectory.isDirectory() && !partialDirectory.mkdirs()) {
+            throw new IOException("Error creating directory: " + partialDirectory);
+        }
+        File dataFile = new File(partialDirectory, name + ".part");
+        File chunkFile = new File(partialDirectory, name + ".chunks");
+        PartialFile upload = new PartialFile(dataFile, chunkFile, totalSize, chunkSize, encoded);
+        try {
+            if (!upload.loadChunkLog()) {
+                if (upload.data != null) {
+                    upload.data.truncate(0);
+                }
+                upload.chunkLog.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putLong(totalSize).putInt(chunkSize).putInt(encoded ? 1 : 0).flip();
+                while (header.hasRemaining()) {
+                    upload.chunkLog.write(header, HEADER_LENGTH - header.remaining());
+                }
+            }
+            return upload;
+        } catch (IOException e) {
+            upload.close();
+            throw e;
+        }
+    }
+
+    private boolean loadChunkLog() throws IOException {
+        long logSize = chunkLog.size();
+        if (logSize < HEADER_LENGTH) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        chunkLog.read(header, 0);
+        header.flip();
+        if (header.getLong() != totalSize || header.getInt() != chunkSize || header.getInt() != (encoded ? 1 : 0)) {
+            return false;
+        }
+        long records = (logSize - HEADER_LENGTH) / RECORD_LENGTH;
+        ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH);
+        for (long r = 0; r < records; r++) {
+            record.clear();
+            chunkLog.read(record, HEADER_LENGTH + r * RECORD_LENGTH);
+            record.flip();
+            int index = record.getInt();
+            int checksum = record.getInt();
+            if (index >= 0 && index < checksums.length) {
+                received.set(index);
+                checksums[index] = checksum;
+            }
+        }
+        // Drop a record torn by a crash so that new records stay aligned.
+        chunkLog.truncate(HEADER_LENGTH + records * RECORD_LENGTH);
+        return true;
+    }
+
+    long getTotalSize() {
+        return totalSize;
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    int getChunkCount() {
+        return checksums.length;
+    }
+
+    boolean isEncoded() {
+        return encoded;
+    }
+
+    boolean matches(long otherTotalSize, int otherChunkSize, boolean otherEncoded) {
+        return totalSize == otherTotalSize && chunkSize == otherChunkSize && encoded == otherEncoded;
+    }
+
+    File encodedChunk(int index) {
+        return new File(dataFile.getParentFile(), dataFile.getName() + index);
+    }
+
+    FileStore.Upload beginChunk(long offset, long length) throws IOException {
+        if (encoded) {
+            return beginEncodedChunk(offset, length);
+        }
+        if (offset % chunkSize != 0 || offset >= Math.max(totalSize, 1)
+                || length != Math.min(chunkSize, totalSize - offset)) {
+            throw new IOException("Range " + offset + "+" + length + " is not a chunk of size " + chunkSize);
+        }
+        int index = (int) (offset / chunkSize);
+        return new FileStore.Upload() {
+            private final CRC32C crc = new CRC32C();
+            private long position = offset;
+
+            @Override
+            public void write(ByteBuffer buffer) throws IOException {
+                if (position + buffer.remaining() > offset + length) {
+                    throw new IOException("Chunk " + index + " is longer than " + length + " bytes");
+                }
+                ByteBuffer checksummed = buffer.duplicate();
+                while (buffer.hasRemaining()) {
+                    position += data.write(buffer, position);
+                }
+                crc.update(checksummed);
+            }
+
+            @Override
+            public int commit() throws IOException {
+                if (position != offset + length) {
+                    throw new IOException("Chunk " + index + " is incomplete");
+                }
+                int checksum = (int) crc.getValue();
+                record(index, checksum);
+                return checksum;
+            }
+
+            @Override
+            public void abort() {
+            }
+        };
+    }
+
+    /**
+     * Receives the block stream of the chunk at {@code offset}, {@code length} bytes long,
+     * into its own file. It is only decoded when the chunks are joined.
+     */
+    private FileStore.Upload beginEncodedChunk(long offset, long length) throws IOException {
+        if (offset % chunkSize != 0 || offset >= totalSize || length > BlockCodec.maxEncodedLength(Math.min(chunkSize, totalSize - offset))) {
+            throw new IOException("Range " + offset + "+" + length + " is not an encoded chunk of size " + chunkSize);
+        }
+        int index = (int) (offset / chunkSize);
+        FileChannel chunk = FileChannel.open(encodedChunk(index).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new FileStore.Upload() {
+            private final CRC32C crc = new CRC32C();
+            private long written;
+
+            @Override
+            public void write(ByteBuffer buffer) throws IOException {
+                if (written + buffer.remaining() > length) {
+                    throw new IOException("Chunk " + index + " is longer than " + length + " bytes");
+                }
+                crc.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    written += chunk.write(buffer);
+                }
+            }
+
+            @Override
+            public int commit() throws IOException {
+                chunk.close();
+                if (written != length) {
+                    throw new IOException("Chunk " + index + " is incomplete");
+                }
+                int checksum = (int) crc.getValue();
+                record(index, checksum);
+                return checksum;
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    chunk.close();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+    }
+
+    private synchronized void record(int index, int checksum) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_LENGTH).putInt(index).putInt(checksum).flip();
+        long position = chunkLog.size();
+        while (record.hasRemaining()) {
+            position += chunkLog.write(record, position);
+        }
+        received.set(index);
+        checksums[index] = checksum;
+    }
+
+    /**
+     * Encodes total size, chunk size and the index and CRC32C of every chunk received so far.
+     */
+    synchronized byte[] encodeStatus() {
+        ByteBuffer status = ByteBuffer.allocate(16 + received.cardinality() * RECORD_LENGTH);
+        status.putLong(totalSize).putInt(chunkSize).putInt(received.cardinality());
+        for (int index = received.nextSetBit(0); index >= 0; index = received.nextSetBit(index + 1)) {
+            status.putInt(index).putInt(checksums[index]);
+        }
+        return status.array();
+    }
+
+    synchronized List<Integer> missingChunks() {
+        List<Integer> missing = new ArrayList<>();
+        for (int index = received.nextClearBit(0); index < checksums.length; index = received.nextClearBit(index + 1)) {
+            missing.add(index);
+        }
+        return missing;
+    }
+
+    synchronized boolean isComplete() {
+        return received.cardinality() == checksums.length;
+    }
+
+    /**
+     * Makes the staged data visible under its final name in one atomic rename.
+     */
+    void publish(File target) throws IOException {
+        Files.move(seal().toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteChunkLog();
+    }
+
+    /**
+     * Forces and closes the assembled data so it can be renamed into place, and returns its file.
+     */
+    File seal() throws IOException {
+        data.force(true);
+        close();
+        return dataFile;
+    }
+
+    void deleteChunkLog() throws IOException {
+        Files.deleteIfExists(chunkFile.toPath());
+        deleteEncodedChunks();
+    }
+
+    private void deleteEncodedChunks() {
+        for (int index = 0; encoded && index < checksums.length; index++) {
+            encodedChunk(index).delete();
+        }
+    }
+
+    void discard() {
+        close();
+        dataFile.delete();
+        chunkFile.delete();
+        deleteEncodedChunks();
+    }
+
+    void close() {
+        try {
+            if (data != null) {
+                data.close();
+            }
+        } catch (IOException ignored) {
+        }
+        try {
+            chunkLog.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
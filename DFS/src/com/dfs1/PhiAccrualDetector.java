@@ -0,0 +1,73 @@
+package com.dfs1;
+
+/**
+ * The phi accrual failure detector of Hayashibara et al. Rather than a yes or no after a fixed
+ * timeout, it reports phi: minus the log10 of the probability that a heartbeat would still be
+ * on its way after the time that has passed since the last one, judged against a normal
+ * distribution fitted to the recent intervals. Phi 1 means a 10% chance the node is still up,
+ * phi 8 one in a hundred million, so the threshold trades detection time for false alarms and
+ * adapts by itself to how regularly heartbeats arrive.
+ *
+ * Until enough intervals are known, the expected interval stands in for them. A pause the
+ * caller accepts is added to the mean, and the deviation never drops below a floor, so a
+ * perfectly regular sender is not declared dead one jitter after its usual interval.
+ */
+final class PhiAccrualDetector {
+    private final long[] intervals;
+    private final long acceptablePauseMillis;
+    private final double minDeviationMillis;
+    private int count;
+    private int next;
+    private double sum;
+    private double sumOfSquares;
+    private long lastMillis = -1;
+
+    PhiAccrualDetector(int window, long expectedIntervalMillis, long acceptablePauseMillis, long minDeviationMillis) {
+        this.intervals = new long[Math.max(2, window)];
+        this.acceptablePauseMillis = acceptablePauseMillis;
+        this.minDeviationMillis = Math.max(1, minDeviationMillis);
+        long deviation = expectedIntervalMillis / 4;
+        add(expectedIntervalMillis - deviation);
+        add(expectedIntervalMillis + deviation);
+    }
+
+    synchronized void heartbeat(long nowMillis) {
+        if (lastMillis >= 0) {
+            add(Math.max(0, nowMillis - lastMillis));
+        }
+        lastMillis = nowMillis;
+    }
+
+    synchronized boolean hasHeartbeat() {
+        return lastMillis >= 0;
+    }
+
+    /**
+     * Phi at {@code nowMillis}, or 0 before the first heartbeat.
+     */
+    synchronized double phi(long nowMillis) {
+        if (lastMillis < 0) {
+            return 0;
+        }
+        double mean = sum / count;
+        double deviation = Math.max(minDeviationMillis, Math.sqrt(Math.max(0, sumOfSquares / count - mean * mean)));
+        double y = (nowMillis - lastMillis - mean - acceptablePauseMillis) / deviation;
+        // Logistic approximation of the normal tail, accurate to 1e-4 and cheap to evaluate.
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        return y > 0 ? -Math.log10(e / (1 + e)) : -Math.log10(1 - 1 / (1 + e));
+    }
+
+    private void add(long interval) {
+        if (count == intervals.length) {
+            long dropped = intervals[next];
+            sum -= dropped;
+            sumOfSquares -= (double) dropped * dropped;
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        next = (next + 1) % intervals.length;
+        sum += interval;
+        sumOfSquares += (double) interval * interval;
+    }
+}
@@ -0,0 +1,180 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Decides which nodes hold a file and writes its replicas. A file lives on the first
+ * {@code replicationFactor} nodes of its preference list on the hash ring; writes go to those
+ * nodes as one replication chain, and replicas that fail are replaced by the next nodes in the
+ * list so the file still ends up with enough copies while an owner is down. Given a
+ * {@link ClusterView}, nodes the cluster sees as down are moved to the end of the list, so
+ * they are only tried once the live ones have been.
+ */
+public class Placement {
+    public interface ReplicaCall {
+        String run(InetSocketAddress node) throws IOException;
+    }
+
+    public interface ChainCall {
+        List<ReplicaResult> run(List<InetSocketAddress> chain) throws IOException;
+    }
+
+    public static final class ReplicaResult {
+        private final InetSocketAddress node;
+        private final String message;
+        private final IOException error;
+
+        ReplicaResult(InetSocketAddress node, String message, IOException error) {
+            this.node = node;
+            this.message = message;
+            this.error = error;
+        }
+
+        public InetSocketAddress getNode() {
+            return node;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public String getMessage() {
+            return error == null ? message : error.getMessage();
+        }
+    }
+
+    private final HashRing<InetSocketAddress> ring;
+    private final int replicationFactor;
+    private final ExecutorService executor;
+    private final ClusterView view;
+
+    public Placement(HashRing<InetSocketAddress> ring, int replicationFactor, ExecutorService executor) {
+        this(ring, replicationFactor, executor, null);
+    }
+
+    public Placement(ClusterView view, int replicationFactor, ExecutorService executor) {
+        this(view.getRing(), replicationFactor, executor, view);
+    }
+
+    private Placement(HashRing<InetSocketAddress> ring, int replicationFactor, ExecutorService executor, ClusterView view) {
+        this.ring = ring;
+        this.replicationFactor = replicationFactor;
+        this.executor = executor;
+        this.view = view;
+    }
+
+    public HashRing<InetSocketAddress> getRing() {
+        return ring;
+    }
+
+    /**
+     * The configured number of replicas, which does not shrink with the ring: while fewer nodes
+     * are on the ring a write ends up with fewer replicas than this.
+     */
+    public int getReplicationFactor() {
+        return replicationFactor;
+    }
+
+    /**
+     * Every node, ordered by preference for {@code name}: owners first, then fallbacks.
+     */
+    public List<InetSocketAddress> candidates(String name) {
+        if (view != null) {
+            view.refreshIfStale();
+        }
+        return preferLive(ring.preferenceList(name, ring.nodes().size()));
+    }
+
+    /**
+     * {@code nodes} with those the cluster sees as down moved to the end.
+     */
+    public List<InetSocketAddress> preferLive(List<InetSocketAddress> nodes) {
+        return view == null ? nodes : view.liveFirst(nodes);
+    }
+
+    public List<InetSocketAddress> owners(String name) {
+        return ring.owners(name, getReplicationFactor());
+    }
+
+    /**
+     * Writes {@code name} through {@code call}, first as one chain over its owners. If some
+     * replicas fail, a shorter chain over the next nodes of the preference list replaces them,
+     * until {@code replicationFactor} replicas succeed or every node has been tried. If the head
+     * of a chain cannot be reached at all, only the head is counted as failed and the chain is
+     * retried without it. Returns one result per attempted node.
+     */
+    public List<ReplicaResult> writeChain(String name, ChainCall call) {
+        List<InetSocketAddress> candidates = candidates(name);
+        int wanted = getReplicationFactor();
+        List<ReplicaResult> results = new ArrayList<>();
+        int succeeded = 0;
+        int next = 0;
+        while (succeeded < wanted && next < candidates.size()) {
+            List<InetSocketAddress> chain = candidates.subList(next, Math.min(candidates.size(), next + wanted - succeeded));
+            List<ReplicaResult> chainResults;
+            try {
+                chainResults = call.run(chain);
+                next += chain.size();
+            } catch (IOException e) {
+                chainResults = Collections.singletonList(new ReplicaResult(chain.get(0), null, e));
+                next++;
+            }
+            for (ReplicaResult result : chainResults) {
+                results.add(result);
+                if (result.isSuccess()) {
+                    succeeded++;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Runs {@code call} on every node in parallel, for operations such as DELETE that must
+     * reach copies written to fallback nodes too.
+     */
+    public List<ReplicaResult> broadcast(ReplicaCall call) throws InterruptedException {
+        if (view != null) {
+            view.refreshIfStale();
+        }
+        return runOn(ring.nodes(), call);
+    }
+
+    /**
+     * Runs {@code call} on each of {@code nodes} in parallel.
+     */
+    public List<ReplicaResult> runOn(List<InetSocketAddress> nodes, ReplicaCall call) throws InterruptedException {
+        CompletionService<ReplicaResult> completion = new ExecutorCompletionService<>(executor);
+        for (InetSocketAddress node : nodes) {
+            submit(completion, node, call);
+        }
+        List<ReplicaResult> results = new ArrayList<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            results.add(await(completion.take()));
+        }
+        return results;
+    }
+
+    private static void submit(CompletionService<ReplicaResult> completion, InetSocketAddress node, ReplicaCall call) {
+        completion.submit(() -> {
+            try {
+                return new ReplicaResult(node, call.run(node), null);
+            } catch (IOException e) {
+                return new ReplicaResult(node, null, e);
+            }
+        });
+    }
+
+    private static ReplicaResult await(Future<ReplicaResult> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Replica call failed unexpectedly", e.getCause());
+        }
+    }
+}
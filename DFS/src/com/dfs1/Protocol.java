@@ -0,0 +1,103 @@
+package com.dfs1;
+
+public final class Protocol {
+    public static final byte VERSION = 2;
+    /** Header version of requests that name a tenant, see {@link Frame}. */
+    public static final byte VERSION_TENANT = 3;
+
+    public static final byte UPLOAD = 1;
+    public static final byte DOWNLOAD = 2;
+    public static final byte DELETE = 3;
+    public static final byte LIST = 4;
+    public static final byte PING = 5;
+    public static final byte STAT = 6;
+    public static final byte UPLOAD_RANGE = 7;
+    public static final byte DOWNLOAD_RANGE = 8;
+    public static final byte CHUNK_STATUS = 9;
+    public static final byte COMMIT = 10;
+    public static final byte META_LOOKUP = 11;
+    public static final byte META_PUT = 12;
+    public static final byte META_REMOVE = 13;
+    public static final byte META_LIST = 14;
+    public static final byte UPLOAD_CHAIN = 15;
+    public static final byte CHUNK_QUERY = 16;
+    public static final byte CHUNK_PUT = 17;
+    public static final byte MANIFEST_PUT = 18;
+    public static final byte CHECKSUMS = 19;
+    public static final byte UPLOAD_ENCODED = 20;
+    public static final byte DOWNLOAD_ENCODED = 21;
+    public static final byte GOSSIP = 22;
+    public static final byte LIST_PAGE = 23;
+    public static final byte METRICS = 24;
+    public static final byte READ = 25;
+    public static final byte BATCH_UPLOAD = 26;
+    public static final byte BATCH_DOWNLOAD = 27;
+    public static final byte BATCH_DELETE = 28;
+    public static final byte META_BATCH = 29;
+    public static final byte SYNC_TREE = 30;
+    public static final byte SYNC_ENTRIES = 31;
+
+    /** First byte of a DOWNLOAD_ENCODED body: the bytes that follow are the file as stored. */
+    public static final byte ENCODING_IDENTITY = 0;
+    /** First byte of a DOWNLOAD_ENCODED body: the bytes that follow are a {@link BlockCodec} stream. */
+    public static final byte ENCODING_BLOCKS = 1;
+
+    public static final byte STATUS_OK = (byte) 0x80;
+    public static final byte STATUS_NOT_FOUND = (byte) 0x81;
+    public static final byte STATUS_ERROR = (byte) 0x82;
+    /**
+     * The server refused the request for now; the response's offset is how many milliseconds
+     * to wait before retrying. See {@link QosScheduler}.
+     */
+    public static final byte STATUS_BUSY = (byte) 0x83;
+
+    public static final int MAX_NAME_LENGTH = 0xFFFF;
+
+    private Protocol() {
+    }
+
+    public static boolean isStatus(byte opcode) {
+        return (opcode & 0x80) != 0;
+    }
+
+    public static String opcodeName(byte opcode) {
+        switch (opcode) {
+            case UPLOAD: return "UPLOAD";
+            case DOWNLOAD: return "DOWNLOAD";
+            case DELETE: return "DELETE";
+            case LIST: return "LIST";
+            case PING: return "PING";
+            case STAT: return "STAT";
+            case UPLOAD_RANGE: return "UPLOAD_RANGE";
+            case DOWNLOAD_RANGE: return "DOWNLOAD_RANGE";
+            case CHUNK_STATUS: return "CHUNK_STATUS";
+            case COMMIT: return "COMMIT";
+            case META_LOOKUP: return "META_LOOKUP";
+            case META_PUT: return "META_PUT";
+            case META_REMOVE: return "META_REMOVE";
+            case META_LIST: return "META_LIST";
+            case UPLOAD_CHAIN: return "UPLOAD_CHAIN";
+            case CHUNK_QUERY: return "CHUNK_QUERY";
+            case CHUNK_PUT: return "CHUNK_PUT";
+            case MANIFEST_PUT: return "MANIFEST_PUT";
+            case CHECKSUMS: return "CHECKSUMS";
+            case UPLOAD_ENCODED: return "UPLOAD_ENCODED";
+            case DOWNLOAD_ENCODED: return "DOWNLOAD_ENCODED";
+            case GOSSIP: return "GOSSIP";
+            case LIST_PAGE: return "LIST_PAGE";
+            case METRICS: return "METRICS";
+            case READ: return "READ";
+            case BATCH_UPLOAD: return "BATCH_UPLOAD";
+            case BATCH_DOWNLOAD: return "BATCH_DOWNLOAD";
+            case BATCH_DELETE: return "BATCH_DELETE";
+            case META_BATCH: return "META_BATCH";
+            case SYNC_TREE: return "SYNC_TREE";
+            case SYNC_ENTRIES: return "SYNC_ENTRIES";
+            case STATUS_OK: return "OK";
+            case STATUS_NOT_FOUND: return "NOT_FOUND";
+            case STATUS_ERROR: return "ERROR";
+            case STATUS_BUSY: return "BUSY";
+            default: return "0x" + Integer.toHexString(opcode & 0xFF);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.dfs1;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs two tenants against the configured cluster, started in this process as
+ * {@link LoadGenerator} does: "backup", whose clients upload large files back to back, and
+ * "interactive", one client downloading small files one at a time. The interactive latency, the
+ * backup throughput and the tenants' figures from the first node's {@link QosScheduler} are
+ * printed. Run it again with {@code -Ddfs.qos.slots=0} for first-come first-served, or with
+ * {@code -Ddfs.qos.tenant.backup.bytesPerSecond} to cap the backup.
+ *
+ * Usage: QosBenchmark [seconds] [backupClients] [backupMB]
+ */
+public class QosBenchmark {
+    private static final int INTERACTIVE_FILES = 50;
+    private static final int INTERACTIVE_BYTES = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int backupClients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long backupBytes = (args.length > 2 ? Long.parseLong(args[2]) : 8) * 1024 * 1024;
+
+        Path directory = Files.createTempDirectory("dfs-qos-bench");
+        LoadGenerator.startCluster(directory);
+        File small = directory.resolve("small.bin").toFile();
+        writeFile(small, INTERACTIVE_BYTES, new Random(3));
+
+        try (DfsClient backup = new DfsClient(ClusterConfig.SEEDS, ClusterConfig.METADATA, backupClients, "backup");
+             DfsClient interactive = new DfsClient(ClusterConfig.SEEDS, ClusterConfig.METADATA, 4, "interactive")) {
+            for (int i = 0; i < INTERACTIVE_FILES; i++) {
+                interactive.upload(small, "interactive-" + i).join();
+            }
+
+            AtomicBoolean running = new AtomicBoolean(true);
+            LongAdder backedUp = new LongAdder();
+            LongAdder backupErrors = new LongAdder();
+            List<Thread> writers = new ArrayList<>();
+            for (int c = 0; c < backupClients; c++) {
+                int client = c;
+                File large = directory.resolve("backup-" + client + ".bin").toFile();
+                Thread writer = new Thread(() -> {
+                    for (int i = 0; running.get(); i++) {
+                        try {
+                            // New bytes every time, so that deduplication does not turn the backup into references.
+                            writeFile(large, backupBytes, ThreadLocalRandom.current());
+                            backup.upload(large, "backup-" + client + "-" + (i % 4)).join();
+                            backedUp.add(backupBytes);
+                        } catch (IOException | CompletionException e) {
+                            backupErrors.increment();
+                        }
+                    }
+                });
+                writer.start();
+                writers.add(writer);
+            }
+
+            LatencyHistogram latencies = new LatencyHistogram();
+            long errors = 0;
+            File target = directory.resolve("download.bin").toFile();
+            long start = System.nanoTime();
+            long end = start + seconds * 1_000_000_000L;
+            while (System.nanoTime() < end) {
+                long begin = System.nanoTime();
+                try {
+                    interactive.download("interactive-" + ThreadLocalRandom.current().nextInt(INTERACTIVE_FILES), target).join();
+                    latencies.record(System.nanoTime() - begin);
+                } catch (CompletionException e) {
+                    errors++;
+                }
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            running.set(false);
+            for (Thread writer : writers) {
+                writer.join();
+            }
+
+            System.out.printf("interactive downloads: %s, %.0f/s, %d errors%n", latencies.summary(), latencies.getCount() / elapsed, errors);
+            System.out.printf("backup uploads: %.1f MB/s, %d errors%n", backedUp.sum() / elapsed / (1024 * 1024), backupErrors.sum());
+            interactive.metrics(ClusterConfig.NODES.get(0)).join().lines()
+                    .filter(line -> line.startsWith("dfs_tenant_") || line.startsWith("dfs_qos_"))
+                    .forEach(System.out::println);
+        }
+        System.exit(0);
+    }
+
+    private static void writeFile(File file, long size, Random random) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            byte[] block = new byte[(int) Math.min(size, 1024 * 1024)];
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+}
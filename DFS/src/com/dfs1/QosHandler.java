@@ -0,0 +1,96 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Wraps a server's handler to pass every request through its {@link QosScheduler} first. A
+ * refused request is answered with {@link Protocol#STATUS_BUSY}. A refused upload throws the
+ * {@link QosScheduler.BusyException} from {@link #beginUpload}, so that the engines answer it
+ * before reading its payload, which the client may then stop sending. The slot of an admitted
+ * upload is held from its first byte to its commit. Other requests hold theirs only while the
+ * handler works, not while a file body is sent.
+ */
+final class QosHandler implements RequestHandler {
+    private final RequestHandler handler;
+    private final QosScheduler scheduler;
+
+    private static final class AdmittedUpload implements FileStore.Upload {
+        final QosScheduler.Ticket ticket;
+        final FileStore.Upload upload;
+
+        AdmittedUpload(QosScheduler.Ticket ticket, FileStore.Upload upload) {
+            this.ticket = ticket;
+            this.upload = upload;
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+            upload.write(data);
+        }
+
+        @Override
+        public int commit() throws IOException {
+            return upload.commit();
+        }
+
+        @Override
+        public void abort() {
+            upload.abort();
+            ticket.finish(0);
+        }
+    }
+
+    QosHandler(RequestHandler handler, QosScheduler scheduler) {
+        this.handler = handler;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public FileStore.Upload beginUpload(Frame request) throws IOException {
+        QosScheduler.Ticket ticket = scheduler.admit(request);
+        try {
+            return new AdmittedUpload(ticket, handler.beginUpload(request));
+        } catch (IOException | RuntimeException e) {
+            ticket.finish(0);
+            throw e;
+        }
+    }
+
+    @Override
+    public Response finishUpload(Frame request, FileStore.Upload upload) {
+        AdmittedUpload admitted = (AdmittedUpload) upload;
+        Response response = null;
+        try {
+            response = handler.finishUpload(request, admitted.upload);
+            return response;
+        } finally {
+            admitted.ticket.finish(response == null ? 0 : bodyLength(response));
+        }
+    }
+
+    @Override
+    public Response handle(Frame request, ByteBuffer body) {
+        QosScheduler.Ticket ticket;
+        try {
+            ticket = scheduler.admit(request);
+        } catch (QosScheduler.BusyException e) {
+            return busy(request, e);
+        }
+        Response response = null;
+        try {
+            response = handler.handle(request, body);
+            return response;
+        } finally {
+            ticket.finish(response == null ? 0 : bodyLength(response));
+        }
+    }
+
+    static Response busy(Frame request, QosScheduler.BusyException refusal) {
+        return Response.busy(request.getName(), refusal.getMessage(), refusal.getRetryAfterMillis());
+    }
+
+    private static long bodyLength(Response response) {
+        return response.header(0).getPayloadLength();
+    }
+}
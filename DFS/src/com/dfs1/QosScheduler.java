@@ -0,0 +1,392 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits and schedules a server's requests by tenant, the name a client sends with
+ * {@code dfs.tenant} ({@link Frame#getTenant}), or "default" for clients that send none.
+ *
+ * Every tenant has two token buckets, {@link RateLimiter}s of operations and of bytes per
+ * second: by default {@code dfs.qos.opsPerSecond} and {@code dfs.qos.bytesPerSecond} (0, no
+ * limit), and for one tenant {@code dfs.qos.tenant.<name>.opsPerSecond} and
+ * {@code dfs.qos.tenant.<name>.bytesPerSecond}. An upload is charged its payload when it is
+ * admitted. Any other request is charged the bytes it answered with once it is done, which
+ * delays the tenant's next requests instead. One larger than a bucket holds is admitted once
+ * the bucket is full and leaves it in debt for the tenant's next requests to wait out.
+ *
+ * At most {@code dfs.qos.slots} (16) requests are in the handler at once. The rest wait in
+ * weighted fair queues, two per tenant:
+ * <ul>
+ *   <li>foreground requests such as reads and lookups, weighted {@code dfs.qos.foregroundWeight} (4)</li>
+ *   <li>bulk ones, uploads and batches, weighted {@code dfs.qos.bulkWeight} (1)</li>
+ * </ul>
+ * Both weights are multiplied by {@code dfs.qos.tenant.<name>.weight} (1).
+ *
+ * A freed slot goes to the waiting request with the smallest virtual start time. That is the
+ * later of the current virtual time and the finish of the request before it in its queue; a
+ * request finishes its cost over its queue's weight later. So a flood of bulk writes from one
+ * tenant holds back everybody else's reads only by its share, however deep it queues.
+ *
+ * Rather than queue without bound, a request is refused with {@link Protocol#STATUS_BUSY} and
+ * a hint of when to retry if:
+ * <ul>
+ *   <li>its tenant already has {@code dfs.qos.maxQueued} (256) requests waiting</li>
+ *   <li>its token buckets would hold it longer than {@code dfs.qos.maxWaitMillis} (2000)</li>
+ *   <li>it waited that long for a slot</li>
+ * </ul>
+ * A scheduler that may not block, such as the nio engine's, which serves many connections
+ * on few threads, has no slots and refuses any request that would have to wait at all.
+ *
+ * Pings, gossip and requests forwarded by another node, such as the later hops of a
+ * replication chain, are never held back. Their head was already charged, and making them wait
+ * for slots held by the chains they belong to could deadlock.
+ */
+final class QosScheduler {
+    static final String DEFAULT_TENANT = "default";
+    static final String OTHER_TENANT = "other";
+
+    private static final int SLOTS = Integer.getInteger("dfs.qos.slots", 16);
+    private static final double FOREGROUND_WEIGHT = Double.parseDouble(System.getProperty("dfs.qos.foregroundWeight", "4"));
+    private static final double BULK_WEIGHT = Double.parseDouble(System.getProperty("dfs.qos.bulkWeight", "1"));
+    private static final int MAX_QUEUED = Integer.getInteger("dfs.qos.maxQueued", 256);
+    private static final long MAX_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("dfs.qos.maxWaitMillis", 2000));
+    private static final long OPS_PER_SECOND = Long.getLong("dfs.qos.opsPerSecond", 0);
+    private static final long BYTES_PER_SECOND = Long.getLong("dfs.qos.bytesPerSecond", 0);
+    private static final int MAX_TENANTS = Integer.getInteger("dfs.qos.maxTenants", 1024);
+    /** The bytes that cost as much as one request in the fair queues. */
+    private static final long COST_UNIT = 64 * 1024;
+
+    /**
+     * A request refused for now, answered with {@link Protocol#STATUS_BUSY}.
+     */
+    static final class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterMillis;
+
+        BusyException(String message, long retryAfterNanos) {
+            super(message);
+            this.retryAfterMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(retryAfterNanos));
+        }
+
+        long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+
+    /**
+     * A tenant's limits, fair queues and figures.
+     */
+    static final class Tenant {
+        private final String name;
+        private final RateLimiter operations;
+        private final RateLimiter bytes;
+        private final Flow foreground;
+        private final Flow bulk;
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder refused = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+        /** Requests waiting for a slot, guarded by the scheduler's lock. */
+        private int queued;
+
+        Tenant(String name) {
+            this.name = name;
+            String prefix = "dfs.qos.tenant." + name + ".";
+            this.operations = new RateLimiter(Long.getLong(prefix + "opsPerSecond", OPS_PER_SECOND));
+            this.bytes = new RateLimiter(Long.getLong(prefix + "bytesPerSecond", BYTES_PER_SECOND));
+            double weight = Double.parseDouble(System.getProperty(prefix + "weight", "1"));
+            this.foreground = new Flow(this, FOREGROUND_WEIGHT * weight);
+            this.bulk = new Flow(this, BULK_WEIGHT * weight);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getRequests() {
+            return requests.sum();
+        }
+
+        long getRefused() {
+            return refused.sum();
+        }
+
+        long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        /**
+         * The time requests waited to be admitted, for their token buckets and for a slot.
+         */
+        LatencyHistogram getQueueWait() {
+            return queueWait;
+        }
+    }
+
+    /**
+     * One of a tenant's fair queues.
+     */
+    private static final class Flow {
+        final Tenant tenant;
+        final double weight;
+        /** Virtual finish time of the last request admitted, guarded by the scheduler's lock. */
+        double finish;
+
+        Flow(Tenant tenant, double weight) {
+            this.tenant = tenant;
+            this.weight = Math.max(weight, 1e-6);
+        }
+    }
+
+    private static final class Waiter {
+        final Flow flow;
+        final double start;
+        final long sequence;
+        boolean granted;
+
+        Waiter(Flow flow, double start, long sequence) {
+            this.flow = flow;
+            this.start = start;
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * An admitted request, which must be finished exactly once when the handler is done with it.
+     */
+    final class Ticket {
+        private final Flow flow;
+        private final boolean slot;
+        private boolean finished;
+
+        private Ticket(Flow flow, boolean slot) {
+            this.flow = flow;
+            this.slot = slot;
+        }
+
+        /**
+         * Frees the request's slot and charges its tenant the {@code bytesOut} it answered with.
+         */
+        void finish(long bytesOut) {
+            if (finished || flow == null) {
+                return;
+            }
+            finished = true;
+            Tenant tenant = flow.tenant;
+            tenant.bytesOut.add(bytesOut);
+            tenant.bytes.charge(bytesOut);
+            lock.lock();
+            try {
+                flow.finish += (double) bytesOut / COST_UNIT / flow.weight;
+                if (slot) {
+                    release();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final boolean blocking;
+    private final int slots;
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition granted = lock.newCondition();
+    private final PriorityQueue<Waiter> waiting = new PriorityQueue<>(
+            Comparator.<Waiter>comparingDouble(waiter -> waiter.start).thenComparingLong(waiter -> waiter.sequence));
+    private final Ticket exempt = new Ticket(null, false);
+    private double virtualTime;
+    private long sequence;
+    private int free;
+
+    /**
+     * A scheduler for one server. If {@code blocking} is false it never makes a request wait.
+     */
+    QosScheduler(boolean blocking) {
+        this.blocking = blocking;
+        this.slots = blocking ? Math.max(0, SLOTS) : 0;
+        this.free = slots;
+    }
+
+    /**
+     * Admits {@code request}, waiting for its tenant's token buckets and for a slot first if it
+     * must, or refuses it.
+     */
+    Ticket admit(Frame request) throws BusyException {
+        byte opcode = request.getOpcode();
+        if (request.isForwarded() || opcode == Protocol.PING || opcode == Protocol.GOSSIP) {
+            return exempt;
+        }
+        long started = System.nanoTime();
+        Tenant tenant = tenant(request.getTenant());
+        tenant.requests.increment();
+        long bytesIn = request.getPayloadLength();
+        long maxWait = blocking ? MAX_WAIT_NANOS : 0;
+        long operationWait = tenant.operations.reserve(1, maxWait);
+        if (operationWait < 0) {
+            throw refuse(tenant, "is over its operation rate", -operationWait);
+        }
+        long bytesWait = tenant.bytes.reserve(bytesIn, maxWait);
+        if (bytesWait < 0) {
+            throw refuse(tenant, "is over its byte rate", -bytesWait);
+        }
+        long wait = Math.max(operationWait, bytesWait);
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw refuse(tenant, "was interrupted waiting for its rate", wait);
+            }
+        }
+        tenant.bytesIn.add(bytesIn);
+        Flow flow = isBulk(opcode) ? tenant.bulk : tenant.foreground;
+        double cost = 1 + (double) bytesIn / COST_UNIT;
+        boolean slot = slots > 0;
+        if (slot) {
+            acquireSlot(tenant, flow, cost, started);
+        } else {
+            lock.lock();
+            try {
+                flow.finish = Math.max(virtualTime, flow.finish) + cost / flow.weight;
+            } finally {
+                lock.unlock();
+            }
+        }
+        tenant.queueWait.record(System.nanoTime() - started);
+        return new Ticket(flow, slot);
+    }
+
+    private void acquireSlot(Tenant tenant, Flow flow, double cost, long started) throws BusyException {
+        lock.lock();
+        try {
+            double start = Math.max(virtualTime, flow.finish);
+            if (free > 0 && waiting.isEmpty()) {
+                free--;
+                virtualTime = start;
+                flow.finish = start + cost / flow.weight;
+                return;
+            }
+            if (tenant.queued >= MAX_QUEUED) {
+                throw refuse(tenant, "has " + tenant.queued + " requests waiting", MAX_WAIT_NANOS / 4);
+            }
+            flow.finish = start + cost / flow.weight;
+            Waiter waiter = new Waiter(flow, start, sequence++);
+            waiting.add(waiter);
+            tenant.queued++;
+            try {
+                long remaining = started + MAX_WAIT_NANOS - System.nanoTime();
+                while (!waiter.granted && remaining > 0) {
+                    remaining = granted.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                tenant.queued--;
+            }
+            if (!waiter.granted) {
+                waiting.remove(waiter);
+                throw refuse(tenant, "waited too long for a slot", MAX_WAIT_NANOS / 4);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands a freed slot to the first waiter, or returns it to the free ones. Called with the
+     * lock held.
+     */
+    private void release() {
+        Waiter next = waiting.poll();
+        if (next == null) {
+            free++;
+            return;
+        }
+        next.granted = true;
+        virtualTime = Math.max(virtualTime, next.start);
+        granted.signalAll();
+    }
+
+    private BusyException refuse(Tenant tenant, String reason, long retryAfterNanos) {
+        tenant.refused.increment();
+        return new BusyException("Tenant " + tenant.name + " " + reason + ", retry later", retryAfterNanos);
+    }
+
+    private Tenant tenant(String name) {
+        String key = name.isEmpty() ? DEFAULT_TENANT : name;
+        Tenant tenant = tenants.get(key);
+        if (tenant != null) {
+            return tenant;
+        }
+        // Clients choose their tenant names, so cap how many this server keeps figures for.
+        if (tenants.size() >= MAX_TENANTS) {
+            key = OTHER_TENANT;
+        }
+        return tenants.computeIfAbsent(key, Tenant::new);
+    }
+
+    /**
+     * Whether requests with {@code opcode} queue as bulk work rather than foreground.
+     */
+    static boolean isBulk(byte opcode) {
+        return RequestHandler.isUpload(opcode) || opcode == Protocol.BATCH_DOWNLOAD || opcode == Protocol.BATCH_DELETE;
+    }
+
+    Collection<Tenant> getTenants() {
+        List<Tenant> list = new ArrayList<>(tenants.values());
+        list.sort(Comparator.comparing(Tenant::getName));
+        return list;
+    }
+
+    int getSlots() {
+        return slots;
+    }
+
+    int getBusySlots() {
+        lock.lock();
+        try {
+            return slots - free;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getQueued() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The requests a tenant has waiting for a slot.
+     */
+    int getQueued(Tenant tenant) {
+        lock.lock();
+        try {
+            return tenant.queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.dfs1;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+
+/**
+ * Compares partial reads of a large file on one local server: random slices read with
+ * {@link Protocol#DOWNLOAD_RANGE}, which opens the file and sends the range for every request,
+ * and with {@link Protocol#READ}, answered from mapped segments; then the access pattern of a
+ * columnar reader, footer first and a few row groups after, through a {@link RemoteFileChannel}.
+ * Latency percentiles of each are printed.
+ *
+ * Usage: RangeReadBenchmark [fileMB] [reads] [sliceKB]
+ */
+public class RangeReadBenchmark {
+    private static final int PORT = 5341;
+
+    public static void main(String[] args) throws Exception {
+        int fileMb = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+        int reads = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int sliceBytes = (args.length > 2 ? Integer.parseInt(args[2]) : 16) * 1024;
+        long size = (long) fileMb * 1024 * 1024;
+
+        Path directory = Files.createTempDirectory("dfs-range-bench");
+        writeFile(directory.resolve("table.bin").toFile(), size);
+        Thread server = new Thread(() -> DistributedServer.startServer(PORT, directory.toString(), 0));
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(500);
+        InetSocketAddress node = new InetSocketAddress("127.0.0.1", PORT);
+
+        System.out.printf("file=%d MB, %d random reads of %d KB%n", fileMb, reads, sliceBytes / 1024);
+        try (ConnectionPool pool = new ConnectionPool(1000, 4)) {
+            for (byte opcode : new byte[] {Protocol.DOWNLOAD_RANGE, Protocol.READ, Protocol.DOWNLOAD_RANGE, Protocol.READ}) {
+                LatencyHistogram latencies = new LatencyHistogram();
+                Random random = new Random(7);
+                byte[] slice = new byte[sliceBytes];
+                long start = System.nanoTime();
+                for (int i = 0; i < reads; i++) {
+                    long offset = (long) (random.nextDouble() * (size - sliceBytes));
+                    long begin = System.nanoTime();
+                    readSlice(pool, node, opcode, offset, slice);
+                    latencies.record(System.nanoTime() - begin);
+                }
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%-15s %s, %.0f reads/s, %.1f MB/s%n", Protocol.opcodeName(opcode), latencies.summary(),
+                        reads / seconds, (double) reads * sliceBytes / seconds / (1024 * 1024));
+            }
+
+            LatencyHistogram footers = new LatencyHistogram();
+            long requests = 0;
+            Random random = new Random(11);
+            for (int i = 0; i < reads / 10; i++) {
+                long begin = System.nanoTime();
+                try (RemoteFileChannel channel = new RemoteFileChannel(pool, Collections.singletonList(node), "table.bin", size)) {
+                    ByteBuffer footerLength = ByteBuffer.allocate(8);
+                    channel.position(size - footerLength.capacity()).read(footerLength);
+                    ByteBuffer footer = ByteBuffer.allocate(4096);
+                    channel.position(size - footerLength.capacity() - footer.capacity()).read(footer);
+                    for (int group = 0; group < 3; group++) {
+                        ByteBuffer rowGroup = ByteBuffer.allocate(sliceBytes);
+                        channel.position((long) (random.nextDouble() * (size - sliceBytes)));
+                        while (rowGroup.hasRemaining() && channel.read(rowGroup) > 0) {
+                        }
+                    }
+                    requests += channel.getRequestCount();
+                }
+                footers.record(System.nanoTime() - begin);
+            }
+            System.out.printf("%-15s %s, %.1f READs per file%n", "footer+3 groups", footers.summary(), (double) requests / (reads / 10));
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Fills {@code slice} from {@code offset}, asking again where a READ stopped short at the
+     * end of a mapped segment.
+     */
+    private static void readSlice(ConnectionPool pool, InetSocketAddress node, byte opcode, long offset, byte[] slice) throws IOException {
+        int filled = 0;
+        while (filled < slice.length) {
+            int from = filled;
+            filled += pool.call(node, connection -> {
+                int requestId = connection.send(opcode, "table.bin", offset + from, 8);
+                connection.out().writeLong(slice.length - from);
+                connection.flush();
+                long length = connection.readOk(requestId).getPayloadLength();
+                if (length == 0 || length > slice.length - from) {
+                    throw new IOException("Asked for " + (slice.length - from) + " bytes from " + (offset + from) + " but got " + length);
+                }
+                connection.in().readFully(slice, from, (int) length);
+                return (int) length;
+            });
+        }
+    }
+
+    private static void writeFile(File file, long size) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            byte[] block = new byte[(int) Math.min(size, 1024 * 1024)];
+            new Random(3).nextBytes(block);
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Paces background I/O to a fixed number of bytes per second. Each caller is charged for the
+ * bytes it moves and sleeps until the budget has caught up, with up to one second of unused
+ * budget saved up for bursts, and as much to start with. {@link QosScheduler} uses the same
+ * bucket for a tenant's bytes and operations, through {@link #reserve} and {@link #charge},
+ * which do not sleep.
+ *
+ * A caller never waits for more than a full bucket: one that needs more than a second of
+ * budget goes ahead once the bucket is full and leaves it in debt, which whoever comes next
+ * waits out. Otherwise a request larger than the burst could never fit.
+ */
+final class RateLimiter {
+    private static final long BURST_NANOS = 1_000_000_000L;
+
+    private final long bytesPerSecond;
+    private long paceUntilNanos = System.nanoTime() - BURST_NANOS;
+
+    RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Waits until {@code bytes} more bytes fit in the budget. Never waits if the rate is zero
+     * or negative.
+     */
+    void acquire(long bytes) throws IOException {
+        long wait = reserve(bytes, Long.MAX_VALUE);
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while pacing I/O");
+            }
+        }
+    }
+
+    /**
+     * Charges {@code bytes} if they fit in the budget within {@code maxWaitNanos} and returns
+     * how long the caller must wait before moving them. If they do not fit, nothing is charged
+     * and the wait they would have needed is returned negated.
+     */
+    long reserve(long bytes, long maxWaitNanos) {
+        if (bytesPerSecond <= 0) {
+            return 0;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            long paced = Math.max(paceUntilNanos, now - BURST_NANOS);
+            long cost = nanosFor(bytes);
+            long wait = paced + Math.min(cost, BURST_NANOS) - now;
+            if (wait > maxWaitNanos) {
+                return -wait;
+            }
+            paceUntilNanos = paced + cost;
+            return Math.max(0, wait);
+        }
+    }
+
+    /**
+     * Charges {@code bytes} already moved without waiting, delaying whoever reserves next.
+     */
+    void charge(long bytes) {
+        if (bytesPerSecond <= 0 || bytes <= 0) {
+            return;
+        }
+        synchronized (this) {
+            paceUntilNanos = Math.max(paceUntilNanos, System.nanoTime() - BURST_NANOS) + nanosFor(bytes);
+        }
+    }
+
+    private long nanosFor(long bytes) {
+        return bytes >= Long.MAX_VALUE / 1_000_000_000L ? Long.MAX_VALUE / 2 : bytes * 1_000_000_000L / bytesPerSecond;
+    }
+}
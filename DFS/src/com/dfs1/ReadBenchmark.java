@@ -0,0 +1,207 @@
+package com.dfs1;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares replica read strategies against three local servers, each behind a proxy that
+ * stalls a fraction of its responses and caps its bandwidth, standing in for a slow node.
+ * Small files are read with the old sequential loop (first replica, then the next only on
+ * failure) and with hedged requests; the latency percentiles of both are printed. A large
+ * file is then downloaded from one replica and from all three in parallel.
+ *
+ * Usage: ReadBenchmark [smallReads] [stallPercent] [stallMillis] [largeFileMB] [nodeMBps]
+ */
+public class ReadBenchmark {
+    private static final int SERVER_PORT = 5241;
+    private static final int PROXY_PORT = 5251;
+    private static final int REPLICAS = 3;
+    private static final int SMALL_FILE_SIZE = 4096;
+
+    public static void main(String[] args) throws Exception {
+        int reads = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        double stallPercent = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        int stallMillis = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int largeMb = args.length > 3 ? Integer.parseInt(args[3]) : 256;
+        int nodeMbps = args.length > 4 ? Integer.parseInt(args[4]) : 100;
+
+        List<InetSocketAddress> replicas = new ArrayList<>();
+        List<DelayProxy> proxies = new ArrayList<>();
+        for (int i = 0; i < REPLICAS; i++) {
+            Path directory = Files.createTempDirectory("dfs-read-bench");
+            writeFile(directory.resolve("small.bin").toFile(), SMALL_FILE_SIZE);
+            writeFile(directory.resolve("large.bin").toFile(), (long) largeMb * 1024 * 1024);
+            int index = i;
+            Thread server = new Thread(() -> DistributedServer.startServer(SERVER_PORT + index, directory.toString(), index));
+            server.setDaemon(true);
+            server.start();
+            DelayProxy proxy = new DelayProxy(PROXY_PORT + i, new InetSocketAddress("127.0.0.1", SERVER_PORT + i));
+            proxies.add(proxy);
+            replicas.add(new InetSocketAddress("127.0.0.1", PROXY_PORT + i));
+        }
+        Thread.sleep(500);
+
+        ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        ConnectionPool pool = new ConnectionPool(1000, 16);
+        ChunkedTransfer chunkedTransfer = new ChunkedTransfer(pool);
+        ReplicaReader reader = new ReplicaReader(pool, chunkedTransfer, executor);
+
+        for (DelayProxy proxy : proxies) {
+            proxy.stallPercent = stallPercent;
+            proxy.stallMillis = stallMillis;
+        }
+        System.out.printf("small reads=%d size=%d B, each replica stalls %.1f%% of responses by %d ms%n",
+                reads, SMALL_FILE_SIZE, stallPercent, stallMillis);
+        LatencyHistogram sequential = new LatencyHistogram();
+        for (int i = 0; i < reads; i++) {
+            long start = System.nanoTime();
+            readSequential(pool, replicas, "small.bin");
+            sequential.record(System.nanoTime() - start);
+        }
+        LatencyHistogram hedged = new LatencyHistogram();
+        for (int i = 0; i < reads; i++) {
+            long start = System.nanoTime();
+            reader.read(replicas, "small.bin");
+            hedged.record(System.nanoTime() - start);
+        }
+        System.out.println("sequential " + sequential.summary());
+        System.out.println("hedged     " + hedged.summary() + " hedges=" + reader.getHedgeCount());
+
+        for (DelayProxy proxy : proxies) {
+            proxy.stallPercent = 0;
+            proxy.bytesPerSecond = (long) nodeMbps * 1024 * 1024;
+        }
+        System.out.printf("large file=%d MB, each replica capped at %d MB/s%n", largeMb, nodeMbps);
+        for (int count = 1; count <= REPLICAS; count += REPLICAS - 1) {
+            File target = Files.createTempFile("dfs-read-bench", ".bin").toFile();
+            long start = System.nanoTime();
+            chunkedTransfer.download(replicas.subList(0, count), "large.bin", (long) largeMb * 1024 * 1024, target);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d replica(s): %.1f MB/s%n", count, largeMb / seconds);
+            target.delete();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * The read loop the client used before hedging: one replica at a time, moving on only
+     * after a failure.
+     */
+    private static byte[] readSequential(ConnectionPool pool, List<InetSocketAddress> replicas, String name) throws IOException {
+        IOException failure = null;
+        for (InetSocketAddress replica : replicas) {
+            try {
+                return pool.call(replica, connection -> {
+                    int requestId = connection.send(Protocol.DOWNLOAD, name, 0);
+                    connection.flush();
+                    byte[] contents = new byte[(int) connection.readOk(requestId).getPayloadLength()];
+                    connection.in().readFully(contents);
+                    return contents;
+                });
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private static void writeFile(File file, long size) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            byte[] block = new byte[(int) Math.min(size, 1024 * 1024)];
+            ThreadLocalRandom.current().nextBytes(block);
+            for (long written = 0; written < size; written += block.length) {
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    /**
+     * TCP proxy in front of one server. Each read from the server is stalled with probability
+     * {@code stallPercent}, and all connections together are paced to {@code bytesPerSecond}.
+     */
+    private static final class DelayProxy {
+        private final InetSocketAddress target;
+        volatile double stallPercent;
+        volatile int stallMillis;
+        volatile long bytesPerSecond;
+        private long paceUntilNanos;
+
+        DelayProxy(int port, InetSocketAddress target) throws IOException {
+            this.target = target;
+            ServerSocket listener = new ServerSocket(port);
+            daemon(() -> {
+                while (true) {
+                    try {
+                        Socket client = listener.accept();
+                        Socket server = new Socket(target.getAddress(), target.getPort());
+                        client.setTcpNoDelay(true);
+                        server.setTcpNoDelay(true);
+                        daemon(() -> pump(client, server, false));
+                        daemon(() -> pump(server, client, true));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+        }
+
+        private void pump(Socket from, Socket to, boolean response) {
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = from.getInputStream(); OutputStream out = to.getOutputStream()) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    if (response) {
+                        delay(read);
+                    }
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException | InterruptedException ignored) {
+            } finally {
+                try {
+                    from.close();
+                    to.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void delay(int bytes) throws InterruptedException {
+            if (stallPercent > 0 && ThreadLocalRandom.current().nextDouble(100) < stallPercent) {
+                Thread.sleep(stallMillis);
+            }
+            long rate = bytesPerSecond;
+            if (rate > 0) {
+                long wait;
+                synchronized (this) {
+                    long now = System.nanoTime();
+                    paceUntilNanos = Math.max(paceUntilNanos, now) + bytes * 1_000_000_000L / rate;
+                    wait = paceUntilNanos - now;
+                }
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+        }
+
+        private static void daemon(Runnable task) {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
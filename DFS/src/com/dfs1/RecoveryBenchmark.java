@@ -0,0 +1,122 @@
+package com.dfs1;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+
+/**
+ * Measures how a data node catches up through {@link AntiEntropy}. Starts the configured
+ * cluster in this process as {@link LoadGenerator} does and uploads a set of files, then shuts
+ * the second node down and runs a number of operations it misses: new files, overwrites and
+ * deletes in equal parts. The node is restarted and one anti-entropy round run on it, whose
+ * time, files fetched and deleted and bytes moved are printed, and a second round checks that
+ * nothing is left to do. Then the same node is started again with an empty disk and recovers
+ * everything it owns, and finally a round between nodes that agree shows the steady-state cost.
+ *
+ * Usage: RecoveryBenchmark [files] [missedOperations] [fileKB]
+ */
+public class RecoveryBenchmark {
+    private static final int NODE = 1;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int missed = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        int fileBytes = (args.length > 2 ? Integer.parseInt(args[2]) : 64) * 1024;
+        // Rounds are run here, so the background ones would only get in the way.
+        System.setProperty("dfs.antiEntropy.intervalSeconds", "0");
+
+        Path directory = Files.createTempDirectory("dfs-recovery-bench");
+        LoadGenerator.startCluster(directory);
+        Path nodeDirectory = directory.resolve("node-" + (NODE + 1));
+        Random random = new Random(11);
+        try (DfsClient client = new DfsClient(ClusterConfig.SEEDS, ClusterConfig.METADATA, 16)) {
+            List<CompletableFuture<?>> pending = new ArrayList<>();
+            for (int i = 0; i < files; i++) {
+                pending.add(client.upload(sample(directory, "file-" + i, fileBytes, random), "file-" + i));
+            }
+            System.out.printf("uploaded %d files of %d KB, %d errors%n", files, fileBytes / 1024, await(pending));
+
+            stopNode();
+            pending.clear();
+            int deletes = 0;
+            for (int i = 0; i < missed; i++) {
+                String name;
+                switch (i % 3) {
+                    case 0:
+                        name = "missed-" + i;
+                        break;
+                    case 1:
+                        name = "file-" + random.nextInt(files);
+                        break;
+                    default:
+                        pending.add(client.delete("file-" + (files - 1 - deletes++)));
+                        continue;
+                }
+                pending.add(client.upload(sample(directory, name, fileBytes, random), name));
+            }
+            System.out.printf("node %d missed %d operations (%d deletes), %d errors%n", NODE + 1, missed, deletes, await(pending));
+
+            AntiEntropy.Round recovery = restartNode(nodeDirectory);
+            System.out.println("recovery after missed operations: " + recovery);
+            System.out.println("second round: " + DistributedServer.getAntiEntropy(NODE).sync());
+
+            stopNode();
+            try (Stream<Path> paths = Files.walk(nodeDirectory)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+            AntiEntropy.Round rebuild = restartNode(nodeDirectory);
+            System.out.println("recovery of an empty node: " + rebuild);
+            System.out.printf("  %.1f files/s, %.1f MB/s%n", rebuild.getFetched() / rebuild.getSeconds(),
+                    rebuild.getBytesFetched() / rebuild.getSeconds() / (1024 * 1024));
+            System.out.println("second round: " + DistributedServer.getAntiEntropy(NODE).sync());
+            System.out.println("steady state, node 1: " + DistributedServer.getAntiEntropy(0).sync());
+        }
+        System.exit(0);
+    }
+
+    private static void stopNode() throws InterruptedException {
+        DistributedServer.shutdownServer(NODE);
+        while (DistributedServer.getAntiEntropy(NODE) != null) {
+            Thread.sleep(50);
+        }
+        // Let the others notice, so that clients stop placing files on it.
+        Thread.sleep(3L * Membership.INTERVAL_MILLIS);
+    }
+
+    private static AntiEntropy.Round restartNode(Path directory) throws InterruptedException {
+        int port = ClusterConfig.NODES.get(NODE).getPort();
+        Thread server = new Thread(() -> DistributedServer.startServer(port, directory.toString(), NODE));
+        server.setDaemon(true);
+        server.start();
+        LoadGenerator.waitForServer(ClusterConfig.NODES.get(NODE));
+        return DistributedServer.getAntiEntropy(NODE).sync();
+    }
+
+    private static File sample(Path directory, String name, int size, Random random) throws IOException {
+        byte[] contents = new byte[size];
+        random.nextBytes(contents);
+        File file = directory.resolve(name + ".bin").toFile();
+        Files.write(file.toPath(), contents);
+        return file;
+    }
+
+    private static int await(List<CompletableFuture<?>> pending) {
+        int errors = 0;
+        for (CompletableFuture<?> future : pending) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                errors++;
+            }
+        }
+        return errors;
+    }
+}
@@ -0,0 +1,176 @@
+package com.dfs1;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.List;
+
+/**
+ * A stored file read at random, for readers that want a footer, an index block or a few row
+ * groups of a large file rather than all of it. Every read that misses the channel's buffer is
+ * one {@link Protocol#READ} of the bytes at the position, which the node answers from memory
+ * mapped segments of the file; a read smaller than {@code dfs.read.aheadBytes} (64 KB) fetches
+ * that much, so a run of small reads costs one round trip. A replica that fails is replaced by
+ * the next. Bytes are not checked against the block checksums here; the node's scrubber keeps
+ * its copies sound.
+ *
+ * The size is taken when the channel is opened. If the file is replaced while it is open, reads
+ * return the new contents, and reading past a new, shorter end fails. The channel is read-only
+ * and, like other channels, not safe for concurrent use.
+ */
+public class RemoteFileChannel implements SeekableByteChannel {
+    public static final int READ_AHEAD = Integer.getInteger("dfs.read.aheadBytes", 64 * 1024);
+
+    private final ConnectionPool pool;
+    private final List<InetSocketAddress> replicas;
+    private final String name;
+    private final long size;
+    private final byte[] buffer = new byte[READ_AHEAD];
+    private long bufferStart;
+    private int buffered;
+    private long position;
+    private int preferred;
+    private long requests;
+    private boolean open = true;
+
+    RemoteFileChannel(ConnectionPool pool, List<InetSocketAddress> replicas, String name, long size) {
+        this.pool = pool;
+        this.replicas = replicas;
+        this.name = name;
+        this.size = size;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The number of READ requests made so far.
+     */
+    public long getRequestCount() {
+        return requests;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (position < bufferStart || position >= bufferStart + buffered) {
+            int wanted = (int) Math.min(dst.remaining(), size - position);
+            if (wanted >= READ_AHEAD && dst.hasArray()) {
+                int read = fetch(position, dst.array(), dst.arrayOffset() + dst.position(), wanted);
+                dst.position(dst.position() + read);
+                position += read;
+                return read;
+            }
+            // Emptied first, as a fetch that fails may have overwritten part of the buffer.
+            buffered = 0;
+            bufferStart = position;
+            buffered = fetch(position, buffer, 0, (int) Math.min(buffer.length, size - position));
+        }
+        int from = (int) (position - bufferStart);
+        int length = Math.min(dst.remaining(), buffered - from);
+        dst.put(buffer, from, length);
+        position += length;
+        return length;
+    }
+
+    /**
+     * Reads up to {@code length} bytes from {@code offset} into {@code into} with one READ and
+     * returns how many came, at least one.
+     */
+    private int fetch(long offset, byte[] into, int at, int length) throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < replicas.size(); attempt++) {
+            InetSocketAddress replica = replicas.get(preferred);
+            int read;
+            try {
+                requests++;
+                read = pool.call(replica, connection -> {
+                    int requestId = connection.send(Protocol.READ, name, offset, 8);
+                    connection.out().writeLong(length);
+                    connection.flush();
+                    Frame response = connection.readOk(requestId);
+                    long count = response.getPayloadLength();
+                    if (count > length || (count > 0 && response.getOffset() != offset)) {
+                        throw new IOException("Server returned " + response + " for " + name + " from " + offset);
+                    }
+                    connection.in().readFully(into, at, (int) count);
+                    return (int) count;
+                });
+            } catch (DfsServerException e) {
+                if (!e.isNotFound() || failure == null) {
+                    failure = e;
+                }
+                preferred = (preferred + 1) % replicas.size();
+                continue;
+            } catch (IOException e) {
+                failure = e;
+                preferred = (preferred + 1) % replicas.size();
+                continue;
+            }
+            if (read == 0) {
+                throw new EOFException(name + " ends before " + offset + " though it was " + size + " bytes when opened");
+            }
+            return read;
+        }
+        throw failure != null ? failure : new IOException("No replicas of " + name);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Negative position: " + newPosition);
+        }
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long newSize) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
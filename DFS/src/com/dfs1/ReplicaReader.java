@@ -0,0 +1,249 @@
+package com.dfs1;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reads a file from whichever of its replicas answers first. Small files are fetched whole
+ * with hedged requests: if the first replica has not answered within the usual read latency
+ * (the {@code dfs.hedge.percentile}th percentile of past reads, 95 by default), the same read
+ * goes to the next replica as well and the first answer wins. Larger files are fetched in
+ * chunks from all replicas in parallel by {@link ChunkedTransfer}. Either way the bytes are
+ * checked against the block checksums the replica stores with the file, and a replica whose
+ * copy does not match is treated like one that failed.
+ */
+public class ReplicaReader {
+    public static final long HEDGE_MAX_BYTES = Long.getLong("dfs.hedge.maxBytes", 1024 * 1024);
+    private static final double HEDGE_PERCENTILE = Double.parseDouble(System.getProperty("dfs.hedge.percentile", "95"));
+    private static final long MIN_HEDGE_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("dfs.hedge.minMicros", 500));
+    private static final long INITIAL_HEDGE_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int WARMUP_READS = 20;
+
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int CANCELLED = 2;
+
+    private final ConnectionPool pool;
+    private final ChunkedTransfer chunkedTransfer;
+    private final ExecutorService executor;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder checksumFailures = new LongAdder();
+
+    public ReplicaReader(ConnectionPool pool, ChunkedTransfer chunkedTransfer, ExecutorService executor) {
+        this.pool = pool;
+        this.chunkedTransfer = chunkedTransfer;
+        this.executor = executor;
+    }
+
+    /**
+     * Latencies of individual replica reads, which set the hedging delay.
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    public long getHedgeCount() {
+        return hedges.sum();
+    }
+
+    /**
+     * Reads that failed over to another replica because the bytes did not match their checksums.
+     */
+    public long getChecksumFailureCount() {
+        return checksumFailures.sum();
+    }
+
+    /**
+     * Downloads {@code name} into {@code target}, trying {@code replicas} in the given order of preference.
+     */
+    public void download(List<InetSocketAddress> replicas, String name, File target) throws IOException {
+        long size = chunkedTransfer.stat(replicas, name);
+        if (size > HEDGE_MAX_BYTES) {
+            chunkedTransfer.download(replicas, name, size, target);
+            return;
+        }
+        byte[] contents = read(replicas, name);
+        Path destination = target.getAbsoluteFile().toPath();
+        Path temporary = destination.resolveSibling(destination.getFileName() + ".tmp");
+        Files.write(temporary, contents);
+        Files.move(temporary, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads all of {@code name} into memory. A replica that fails is replaced by the next one
+     * straight away; one that is merely slow gets a hedged request alongside it.
+     */
+    public byte[] read(List<InetSocketAddress> replicas, String name) throws IOException {
+        if (replicas.isEmpty()) {
+            throw new IOException("No replicas of " + name);
+        }
+        CompletionService<byte[]> completion = new ExecutorCompletionService<>(executor);
+        List<Attempt> attempts = new ArrayList<>();
+        IOException failure = null;
+        int running = 0;
+        try {
+            attempts.add(launch(completion, replicas.get(0), name));
+            running++;
+            while (running > 0) {
+                Future<byte[]> done;
+                if (attempts.size() < replicas.size()) {
+                    done = completion.poll(hedgeDelayNanos(), TimeUnit.NANOSECONDS);
+                    if (done == null) {
+                        hedges.increment();
+                        attempts.add(launch(completion, replicas.get(attempts.size()), name));
+                        running++;
+                        continue;
+                    }
+                } else {
+                    done = completion.take();
+                }
+                running--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    if (attempts.size() < replicas.size()) {
+                        attempts.add(launch(completion, replicas.get(attempts.size()), name));
+                        running++;
+                    }
+                }
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Read of " + name + " interrupted");
+        } finally {
+            for (Attempt attempt : attempts) {
+                attempt.cancel();
+            }
+        }
+    }
+
+    private long hedgeDelayNanos() {
+        if (latencies.getCount() < WARMUP_READS) {
+            return INITIAL_HEDGE_DELAY_NANOS;
+        }
+        return Math.max(MIN_HEDGE_DELAY_NANOS, latencies.getPercentileNanos(HEDGE_PERCENTILE));
+    }
+
+    private Attempt launch(CompletionService<byte[]> completion, InetSocketAddress replica, String name) {
+        Attempt attempt = new Attempt(replica, name);
+        completion.submit(attempt);
+        return attempt;
+    }
+
+    /**
+     * A file read into memory, sized up front so the common case needs no copy at the end.
+     */
+    private static final class Contents {
+        private byte[] bytes;
+        private int length;
+
+        Contents(int expected) {
+            bytes = new byte[expected];
+        }
+
+        void accept(byte[] data, int offset, int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + count, bytes.length * 2));
+            }
+            System.arraycopy(data, offset, bytes, length, count);
+            length += count;
+        }
+
+        byte[] toArray() {
+            return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+        }
+    }
+
+    /**
+     * One replica's read. The losing attempts of a hedged read are cancelled by closing their
+     * connection; the state guards against closing a connection already handed back to the pool.
+     */
+    private final class Attempt implements Callable<byte[]> {
+        private final InetSocketAddress replica;
+        private final String name;
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+        private volatile DfsConnection connection;
+
+        Attempt(InetSocketAddress replica, String name) {
+            this.replica = replica;
+            this.name = name;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            long start = System.nanoTime();
+            DfsConnection borrowed = pool.borrow(replica);
+            connection = borrowed;
+            if (state.get() == CANCELLED) {
+                pool.discard(borrowed);
+                throw new InterruptedIOException("Read of " + name + " from " + replica + " cancelled");
+            }
+            try {
+                int checksumsId = ChunkedTransfer.requestChecksums(borrowed, name, 0, Long.MAX_VALUE);
+                int requestId = chunkedTransfer.requestDownload(borrowed, name, 0, Long.MAX_VALUE);
+                borrowed.flush();
+                BlockChecksums.Verifier verifier = ChunkedTransfer.readChecksums(borrowed, checksumsId, name, 0);
+                Frame response = borrowed.readOk(requestId);
+                long expected = verifier != null ? verifier.getFileLength() : response.getPayloadLength();
+                if (expected > Integer.MAX_VALUE - 8) {
+                    throw new IOException(name + " is too large to read into memory");
+                }
+                Contents contents = new Contents((int) expected);
+                try {
+                    ChunkedTransfer.readDownload(borrowed, response, name, 0, Long.MAX_VALUE, (bytes, offset, length) -> {
+                        if (verifier != null) {
+                            verifier.update(bytes, offset, length);
+                        }
+                        contents.accept(bytes, offset, length);
+                    });
+                    if (verifier != null) {
+                        verifier.checkComplete();
+                    }
+                } catch (ChecksumException e) {
+                    checksumFailures.increment();
+                    throw new ChecksumException(e.getMessage() + " from " + replica);
+                }
+                finish(borrowed);
+                latencies.record(System.nanoTime() - start);
+                return contents.toArray();
+            } catch (DfsServerException e) {
+                finish(borrowed);
+                throw e;
+            } catch (IOException | RuntimeException e) {
+                pool.discard(borrowed);
+                throw e;
+            }
+        }
+
+        private void finish(DfsConnection borrowed) {
+            if (state.compareAndSet(RUNNING, DONE)) {
+                pool.release(borrowed);
+            } else {
+                pool.discard(borrowed);
+            }
+        }
+
+        void cancel() {
+            if (state.compareAndSet(RUNNING, CANCELLED)) {
+                DfsConnection current = connection;
+                if (current != null) {
+                    pool.discard(current);
+                }
+            }
+        }
+    }
+}
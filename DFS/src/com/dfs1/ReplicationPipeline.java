@@ -0,0 +1,154 @@
+package com.dfs1;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Writes a file to a chain of replicas while sending it only once. The client streams the
+ * file to the first node of the chain, which forwards every buffer to the next node as it
+ * writes its own copy. Each node answers once its copy is committed and the rest of the
+ * chain has answered, so the acknowledgements flow back up the chain to the client.
+ *
+ * An {@link Protocol#UPLOAD_CHAIN} payload starts with a chain header: an unsigned short
+ * length, followed by the wrapped upload opcode ({@link Protocol#UPLOAD},
+ * {@link Protocol#UPLOAD_ENCODED}, {@link Protocol#UPLOAD_RANGE}, {@link Protocol#CHUNK_PUT} or
+ * {@link Protocol#MANIFEST_PUT}),
+ * the number of downstream nodes and their host:port names.
+ * The file data follows. The reply carries one acknowledgement per chain node, in chain
+ * order: a status, the CRC32C the node stored and a message.
+ */
+public class ReplicationPipeline {
+    static final class Ack {
+        final byte status;
+        final int checksum;
+        final String message;
+
+        Ack(byte status, int checksum, String message) {
+            this.status = status;
+            this.checksum = checksum;
+            this.message = message;
+        }
+
+        boolean isOk() {
+            return status == Protocol.STATUS_OK;
+        }
+    }
+
+
+    private final ConnectionPool pool;
+    private final ChunkedTransfer chunkedTransfer;
+
+    public ReplicationPipeline(ConnectionPool pool, ChunkedTransfer chunkedTransfer) {
+        this.pool = pool;
+        this.chunkedTransfer = chunkedTransfer;
+    }
+
+    /**
+     * Uploads {@code file} as {@code name} to every node of {@code chain} and returns one
+     * result per node. Files larger than a chunk travel as chained, resumable chunks. Smaller
+     * ones are compressed with the transfer's codec first and sent as
+     * {@link Protocol#UPLOAD_ENCODED} if that made them smaller, and as they are otherwise.
+     */
+    public List<Placement.ReplicaResult> upload(List<InetSocketAddress> chain, File file, String name) throws IOException {
+        if (file.length() > chunkedTransfer.getChunkSize()) {
+            return chunkedTransfer.uploadChain(chain, file, name);
+        }
+        byte[] encoded = null;
+        if (chunkedTransfer.getCodec() != Codec.NONE) {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long length = in.size();
+                encoded = ChunkedTransfer.encode(in, 0, length, chunkedTransfer.getCodec());
+                if (encoded.length >= length) {
+                    encoded = null;
+                }
+            }
+        }
+        byte[] body = encoded;
+        byte[] header = chainHeader(body != null ? Protocol.UPLOAD_ENCODED : Protocol.UPLOAD, chain.subList(1, chain.size()));
+        return pool.call(chain.get(0), connection -> {
+            CRC32C crc = new CRC32C();
+            if (body != null) {
+                int requestId = connection.send(Protocol.UPLOAD_CHAIN, name, header.length + body.length);
+                connection.out().write(header);
+                crc.update(body);
+                connection.out().write(body);
+                connection.flush();
+                connection.readOk(requestId);
+            } else {
+                try (FileInputStream in = new FileInputStream(file)) {
+                    long length = in.getChannel().size();
+                    int requestId = connection.send(Protocol.UPLOAD_CHAIN, name, header.length + length);
+                    connection.out().write(header);
+                    ByteBuffer pooled = BufferPool.HEAP.acquire();
+                    try {
+                        byte[] buffer = pooled.array();
+                        long remaining = length;
+                        while (remaining > 0) {
+                            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                            if (read == -1) {
+                                throw new EOFException("File " + file.getName() + " shrank while it was being uploaded");
+                            }
+                            crc.update(buffer, 0, read);
+                            connection.out().write(buffer, 0, read);
+                            remaining -= read;
+                            connection.checkAnswered(requestId);
+                        }
+                    } finally {
+                        BufferPool.HEAP.release(pooled);
+                    }
+                    connection.flush();
+                    connection.readOk(requestId);
+                }
+            }
+            List<Ack> acks = readAcks(connection.in());
+            List<Placement.ReplicaResult> results = new ArrayList<>(chain.size());
+            for (int i = 0; i < chain.size(); i++) {
+                Ack ack = i < acks.size() ? acks.get(i) : new Ack(Protocol.STATUS_ERROR, 0, "No acknowledgement");
+                if (!ack.isOk()) {
+                    results.add(new Placement.ReplicaResult(chain.get(i), null, new DfsServerException(ack.status, ack.message)));
+                } else if (ack.checksum != (int) crc.getValue()) {
+                    results.add(new Placement.ReplicaResult(chain.get(i), null, new IOException("Checksum mismatch on " + name)));
+                } else {
+                    results.add(new Placement.ReplicaResult(chain.get(i), ack.message, null));
+                }
+            }
+            return results;
+        });
+    }
+
+    static byte[] chainHeader(byte opcode, List<InetSocketAddress> downstream) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+        out.writeByte(opcode);
+        out.writeByte(downstream.size());
+        for (InetSocketAddress node : downstream) {
+            out.writeUTF(ClusterConfig.describe(node));
+        }
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeShort(body.size());
+        body.writeTo(headerOut);
+        return header.toByteArray();
+    }
+
+    static void writeAck(DataOutputStream out, Ack ack) throws IOException {
+        out.writeByte(ack.status);
+        out.writeInt(ack.checksum);
+        out.writeUTF(ack.message);
+    }
+
+    static List<Ack> readAcks(DataInputStream in) throws IOException {
+        int count = in.readUnsignedByte();
+        List<Ack> acks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            acks.add(new Ack(in.readByte(), in.readInt(), in.readUTF()));
+        }
+        return acks;
+    }
+}
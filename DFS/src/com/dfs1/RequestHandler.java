@@ -0,0 +1,25 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The operations a server answers, independent of how the engine moves bytes. Uploads stream
+ * their payload through {@link #beginUpload}; every other request has a small body that the
+ * engine reads in full and passes to {@link #handle}.
+ */
+interface RequestHandler {
+    int MAX_REQUEST_BODY = 1024 * 1024;
+
+    static boolean isUpload(byte opcode) {
+        return opcode == Protocol.UPLOAD || opcode == Protocol.UPLOAD_RANGE || opcode == Protocol.UPLOAD_CHAIN
+                || opcode == Protocol.CHUNK_PUT || opcode == Protocol.MANIFEST_PUT || opcode == Protocol.UPLOAD_ENCODED
+                || opcode == Protocol.BATCH_UPLOAD;
+    }
+
+    FileStore.Upload beginUpload(Frame request) throws IOException;
+
+    Response finishUpload(Frame request, FileStore.Upload upload);
+
+    Response handle(Frame request, ByteBuffer body);
+}
@@ -0,0 +1,125 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A response produced by {@link RequestHandler}: a status and either an in-memory payload,
+ * possibly a view of a cached direct buffer, or a region of an open file, which the engine
+ * sends and then closes. Either may follow a few bytes of prefix.
+ */
+class Response {
+    private static final byte[] NO_PREFIX = new byte[0];
+
+    private final byte status;
+    private final String name;
+    private final long offset;
+    private final byte[] prefix;
+    private final ByteBuffer payload;
+    private final FileChannel file;
+    private final long filePosition;
+    private final long fileLength;
+
+    private Response(byte status, String name, long offset, byte[] prefix, ByteBuffer payload, FileChannel file, long filePosition, long fileLength) {
+        this.status = status;
+        this.name = name;
+        this.offset = offset;
+        this.prefix = prefix;
+        this.payload = payload;
+        this.file = file;
+        this.filePosition = filePosition;
+        this.fileLength = fileLength;
+    }
+
+    static Response message(byte status, String name, String message) {
+        return bytes(status, name, message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * A {@link Protocol#STATUS_BUSY} refusal, telling the client in the offset how many
+     * milliseconds to wait before retrying.
+     */
+    static Response busy(String name, String message, long retryAfterMillis) {
+        return new Response(Protocol.STATUS_BUSY, name, retryAfterMillis, NO_PREFIX, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)), null, 0, 0);
+    }
+
+    static Response bytes(byte status, String name, byte[] payload) {
+        return new Response(status, name, 0, NO_PREFIX, ByteBuffer.wrap(payload), null, 0, 0);
+    }
+
+    static Response buffer(String name, long offset, ByteBuffer payload) {
+        return new Response(Protocol.STATUS_OK, name, offset, NO_PREFIX, payload, null, 0, 0);
+    }
+
+    static Response file(String name, FileChannel file, long offset, long length) {
+        return new Response(Protocol.STATUS_OK, name, offset, NO_PREFIX, null, file, offset, length);
+    }
+
+    /**
+     * Sends {@code length} bytes of {@code file} from {@code position}, telling the client
+     * they hold the file from {@code offset}, for files stored in another form than they
+     * are read.
+     */
+    static Response fileRegion(String name, long offset, FileChannel file, long position, long length) {
+        return new Response(Protocol.STATUS_OK, name, offset, NO_PREFIX, null, file, position, length);
+    }
+
+    /**
+     * This response with {@code prefix} sent before its body.
+     */
+    Response prefixed(byte[] prefix) {
+        return new Response(status, name, offset, prefix, payload, file, filePosition, fileLength);
+    }
+
+    byte getStatus() {
+        return status;
+    }
+
+    ByteBuffer getPayload() {
+        return payload;
+    }
+
+    FileChannel getFile() {
+        return file;
+    }
+
+    byte[] getPrefix() {
+        return prefix;
+    }
+
+    long getFilePosition() {
+        return filePosition;
+    }
+
+    long getFileLength() {
+        return fileLength;
+    }
+
+    Frame header(int requestId) {
+        long length = file != null ? fileLength : payload.remaining();
+        return new Frame(status, requestId, name, offset, prefix.length + length);
+    }
+
+    /**
+     * The encoded header followed by the prefix, ready to be written.
+     */
+    ByteBuffer encodeHeader(int requestId) throws ProtocolException {
+        ByteBuffer header = header(requestId).encode();
+        if (prefix.length == 0) {
+            return header;
+        }
+        return ByteBuffer.allocate(header.remaining() + prefix.length).put(header).put(prefix).flip();
+    }
+
+    void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
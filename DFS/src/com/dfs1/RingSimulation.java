@@ -0,0 +1,105 @@
+package com.dfs1;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Places synthetic keys on a {@link HashRing} and reports how evenly they spread across nodes
+ * for several virtual-node counts, and what fraction of keys change owner when a node joins
+ * or leaves, compared with the ideal 1/N and with plain modulo hashing.
+ *
+ * Usage: RingSimulation [nodes] [keys]
+ */
+public class RingSimulation {
+    private static final int[] VIRTUAL_NODE_COUNTS = {1, 8, 32, 128, 512};
+
+    public static void main(String[] args) {
+        int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int keyCount = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.add("10.0.0." + (i + 1) + ":5001");
+        }
+        String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "file-" + i + ".bin";
+        }
+
+        System.out.printf("nodes=%d keys=%d%n", nodeCount, keyCount);
+        System.out.printf("%-7s %9s %9s %11s %11s%n", "vnodes", "max/mean", "stddev%", "moved join", "moved leave");
+        for (int vnodes : VIRTUAL_NODE_COUNTS) {
+            HashRing<String> ring = new HashRing<>(nodes, vnodes);
+            String[] before = primaries(ring, keys);
+            int[] load = new int[nodeCount];
+            for (String owner : before) {
+                load[nodes.indexOf(owner)]++;
+            }
+
+            ring.addNode("10.0.0." + (nodeCount + 1) + ":5001");
+            double joined = movedFraction(before, primaries(ring, keys));
+            ring.removeNode("10.0.0." + (nodeCount + 1) + ":5001");
+            ring.removeNode(nodes.get(0));
+            double left = movedFraction(before, primaries(ring, keys));
+
+            System.out.printf("%-7d %9.3f %9.2f %10.2f%% %10.2f%%%n", vnodes, maxOverMean(load),
+                    100 * stddev(load) / ((double) keyCount / nodeCount), 100 * joined, 100 * left);
+        }
+
+        System.out.printf("ideal   join %.2f%%  leave %.2f%%%n", 100.0 / (nodeCount + 1), 100.0 / nodeCount);
+        System.out.printf("modulo  join %.2f%%  leave %.2f%%%n",
+                100 * moduloMoved(keys, nodeCount, nodeCount + 1), 100 * moduloMoved(keys, nodeCount, nodeCount - 1));
+    }
+
+    private static String[] primaries(HashRing<String> ring, String[] keys) {
+        String[] owners = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            owners[i] = ring.preferenceList(keys[i], 1).get(0);
+        }
+        return owners;
+    }
+
+    private static double movedFraction(String[] before, String[] after) {
+        int moved = 0;
+        for (int i = 0; i < before.length; i++) {
+            if (!before[i].equals(after[i])) {
+                moved++;
+            }
+        }
+        return (double) moved / before.length;
+    }
+
+    private static double moduloMoved(String[] keys, int from, int to) {
+        int moved = 0;
+        for (String key : keys) {
+            long hash = HashRing.hash(key);
+            if (Long.remainderUnsigned(hash, from) != Long.remainderUnsigned(hash, to)) {
+                moved++;
+            }
+        }
+        return (double) moved / keys.length;
+    }
+
+    private static double maxOverMean(int[] load) {
+        long total = 0;
+        int max = 0;
+        for (int count : load) {
+            total += count;
+            max = Math.max(max, count);
+        }
+        return max / ((double) total / load.length);
+    }
+
+    private static double stddev(int[] load) {
+        double mean = 0;
+        for (int count : load) {
+            mean += count;
+        }
+        mean /= load.length;
+        double variance = 0;
+        for (int count : load) {
+            variance += (count - mean) * (count - mean);
+        }
+        return Math.sqrt(variance / load.length);
+    }
+}
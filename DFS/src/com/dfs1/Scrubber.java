@@ -0,0 +1,393 @@
+package com.dfs1;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+/**
+ * Walks a node's files in the background and checks every byte against the block checksums
+ * stored with it, and the chunks of deduplicated files against their hashes. A damaged file is
+ * replaced by a checked copy from another replica and a damaged chunk by the same range of a
+ * file that uses it; files the metadata server places on this node but the node lacks are
+ * fetched the same way.
+ *
+ * Scrubbing reads and repairs share one budget ({@code dfs.scrub.bytesPerSecond}, 8 MB/s by
+ * default, 0 to turn the scrubber off) and run on a single low-priority thread, so they stay
+ * well clear of foreground traffic. A pass starts {@code dfs.scrub.initialDelaySeconds} after
+ * the node starts (60) and then every {@code dfs.scrub.intervalSeconds} (six hours).
+ */
+final class Scrubber implements Closeable {
+    static final long BYTES_PER_SECOND = Long.getLong("dfs.scrub.bytesPerSecond", 8L * 1024 * 1024);
+    private static final long INITIAL_DELAY_MILLIS = Long.getLong("dfs.scrub.initialDelaySeconds", 60) * 1000;
+    private static final long INTERVAL_MILLIS = Long.getLong("dfs.scrub.intervalSeconds", 6 * 3600) * 1000;
+
+    private final FileStore store;
+    private final InetSocketAddress self;
+    private final Membership membership;
+    private final RateLimiter limiter;
+    private final ConnectionPool pool = new ConnectionPool(1000, 2);
+    private final MetadataClient metadataClient = new MetadataClient(pool, ClusterConfig.METADATA);
+    private final LongAdder passes = new LongAdder();
+    private final LongAdder filesChecked = new LongAdder();
+    private final LongAdder bytesChecked = new LongAdder();
+    private final LongAdder damaged = new LongAdder();
+    private final LongAdder missing = new LongAdder();
+    private final LongAdder repaired = new LongAdder();
+    private final LongAdder unrepaired = new LongAdder();
+    private Thread thread;
+
+    Scrubber(FileStore store, Membership membership, long bytesPerSecond) {
+        this.store = store;
+        this.self = membership.getSelf();
+        this.membership = membership;
+        this.limiter = new RateLimiter(bytesPerSecond);
+    }
+
+    /**
+     * Starts scrubbing in the background, unless the budget is zero.
+     */
+    synchronized void start() {
+        if (limiter.getBytesPerSecond() <= 0 || thread != null) {
+            return;
+        }
+        thread = new Thread(() -> {
+            try {
+                Thread.sleep(INITIAL_DELAY_MILLIS);
+                while (true) {
+                    scrub();
+                    Thread.sleep(INTERVAL_MILLIS);
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }, "dfs-scrubber-" + self.getPort());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Runs one pass over every file of the node.
+     */
+    void scrub() {
+        for (String name : store.list()) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                check(name);
+            } catch (IOException e) {
+                Log.warn("scrub_failed", "node", ClusterConfig.describe(self), "file", name, "error", e.getMessage());
+            }
+        }
+        restoreMissing();
+        passes.increment();
+    }
+
+    private void check(String name) throws IOException {
+        long modified = store.modifiedTime(name);
+        if (modified == 0) {
+            return;
+        }
+        BlockChecksums stored;
+        boolean sidecarDamaged = false;
+        try {
+            stored = store.readChecksums(name);
+        } catch (IOException e) {
+            stored = null;
+            sidecarDamaged = true;
+        }
+        int blockSize = stored == null ? BlockChecksums.DEFAULT_BLOCK_SIZE : stored.getBlockSize();
+        boolean deduplicated = store.isDeduplicated(name);
+        BlockChecksums actual;
+        if (deduplicated) {
+            actual = checkChunks(name, blockSize);
+        } else {
+            try (FileChannel channel = store.openForRead(name)) {
+                if (channel == null) {
+                    return;
+                }
+                actual = BlockChecksums.compute(channel, blockSize, limiter);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                if (store.modifiedTime(name) != modified) {
+                    return;
+                }
+                // A compressed file whose blocks no longer decode.
+                damaged.increment();
+                Log.warn("scrub_damaged", "node", ClusterConfig.describe(self), "file", name, "error", e.getMessage());
+                repair(name, modified);
+                return;
+            }
+        }
+        filesChecked.increment();
+        bytesChecked.add(actual.getLength());
+        if (stored != null && stored.firstMismatch(actual) < 0 || store.modifiedTime(name) != modified) {
+            return;
+        }
+        if (deduplicated || stored == null && !sidecarDamaged) {
+            // The chunks were just checked against their hashes, and a file written before
+            // checksums were kept has nothing better to go by, so the data is taken as is.
+            store.rewriteChecksums(name, actual, modified);
+            return;
+        }
+        damaged.increment();
+        if (sidecarDamaged) {
+            Log.warn("scrub_damaged", "node", ClusterConfig.describe(self), "file", name, "error", "checksums unreadable");
+        } else {
+            Log.warn("scrub_damaged", "node", ClusterConfig.describe(self), "file", name, "block", stored.firstMismatch(actual));
+        }
+        repair(name, modified);
+    }
+
+    /**
+     * Checks each chunk of a deduplicated file against its hash, repairing the damaged ones,
+     * and returns the block checksums of the file.
+     */
+    private BlockChecksums checkChunks(String name, int blockSize) throws IOException {
+        Manifest manifest = store.readManifest(name);
+        BlockChecksums.Builder builder = new BlockChecksums.Builder(blockSize);
+        for (int i = 0; i < manifest.getChunkCount(); i++) {
+            byte[] contents = readChunk(manifest, i);
+            if (contents == null) {
+                damaged.increment();
+                Log.warn("scrub_damaged", "node", ClusterConfig.describe(self), "file", name, "chunk", manifest.hashHex(i));
+                contents = repairChunk(name, manifest, i);
+            }
+            builder.update(contents, 0, contents.length);
+        }
+        return builder.finish();
+    }
+
+    /**
+     * Reads a chunk and returns its contents, or null if it is missing or does not match its hash.
+     */
+    private byte[] readChunk(Manifest manifest, int index) throws IOException {
+        byte[] contents = new byte[manifest.length(index)];
+        try (FileChannel chunk = store.getChunks().open(manifest.hashHex(index))) {
+            if (chunk.size() != contents.length) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+            while (buffer.hasRemaining()) {
+                if (chunk.read(buffer, buffer.position()) < 0) {
+                    return null;
+                }
+            }
+        } catch (IOException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+            return null;
+        }
+        limiter.acquire(contents.length);
+        return Arrays.equals(ContentChunker.sha256().digest(contents), manifest.hash(index)) ? contents : null;
+    }
+
+    private byte[] repairChunk(String name, Manifest manifest, int index) throws IOException {
+        String hash = manifest.hashHex(index);
+        IOException failure = new IOException("No other replica of " + name);
+        for (InetSocketAddress peer : peers(name, lookup(name))) {
+            try {
+                byte[] contents = pool.call(peer, connection -> {
+                    int requestId = connection.send(Protocol.DOWNLOAD_RANGE, name, manifest.offset(index), 8);
+                    connection.out().writeLong(manifest.length(index));
+                    connection.flush();
+                    Frame response = connection.readOk(requestId);
+                    if (response.getPayloadLength() != manifest.length(index)) {
+                        connection.in().skipNBytes(response.getPayloadLength());
+                        throw new IOException(ClusterConfig.describe(peer) + " returned " + response.getPayloadLength() + " bytes");
+                    }
+                    byte[] bytes = new byte[manifest.length(index)];
+                    connection.in().readFully(bytes);
+                    return bytes;
+                });
+                limiter.acquire(contents.length);
+                MessageDigest sha = ContentChunker.sha256();
+                if (!Arrays.equals(sha.digest(contents), manifest.hash(index))) {
+                    throw new ChecksumException("Copy of chunk " + hash + " from " + ClusterConfig.describe(peer) + " is damaged too");
+                }
+                FileStore.Upload upload = store.getChunks().beginRepair(hash, contents.length);
+                try {
+                    upload.write(ByteBuffer.wrap(contents));
+                    upload.commit();
+                } catch (IOException e) {
+                    upload.abort();
+                    throw e;
+                }
+                repaired.increment();
+                Log.info("scrub_repaired", "node", ClusterConfig.describe(self), "chunk", hash, "peer", ClusterConfig.describe(peer));
+                return contents;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        unrepaired.increment();
+        throw failure;
+    }
+
+    /**
+     * Replaces {@code name} by a copy from another replica that matches its own checksums and,
+     * if the metadata server is up, the size and checksum recorded there. Gives up if the file
+     * is changed meanwhile; the next pass looks at it again.
+     */
+    private void repair(String name, long modified) {
+        FileMetadata metadata = lookup(name);
+        IOException failure = new IOException("no other replica");
+        for (InetSocketAddress peer : peers(name, metadata)) {
+            try {
+                fetch(pool, limiter, store, peer, name, modified, metadata);
+                repaired.increment();
+                Log.info("scrub_repaired", "node", ClusterConfig.describe(self), "file", name, "peer", ClusterConfig.describe(peer));
+                return;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        unrepaired.increment();
+        Log.warn("scrub_unrepaired", "node", ClusterConfig.describe(self), "file", name, "error", failure.getMessage());
+    }
+
+    /**
+     * Copies {@code name} from {@code peer} into {@code store} through {@code limiter}, checked
+     * against the peer's block checksums and {@code metadata} if there is any, unless the local
+     * file changed since it was last modified at {@code modified} (0 if it did not exist).
+     * Returns the bytes copied.
+     */
+    static long fetch(ConnectionPool pool, RateLimiter limiter, FileStore store, InetSocketAddress peer, String name, long modified,
+            FileMetadata metadata) throws IOException {
+        return pool.call(peer, connection -> {
+            int checksumsId = ChunkedTransfer.requestChecksums(connection, name, 0, Long.MAX_VALUE);
+            int requestId = connection.send(Protocol.DOWNLOAD, name, 0);
+            connection.flush();
+            BlockChecksums.Verifier verifier = ChunkedTransfer.readChecksums(connection, checksumsId, name, 0);
+            Frame response = connection.readOk(requestId);
+            if (verifier == null && metadata == null) {
+                connection.in().skipNBytes(response.getPayloadLength());
+                throw new IOException(ClusterConfig.describe(peer) + " has no checksums to check its copy against");
+            }
+            FileStore.Upload upload = store.beginRepair(name, modified);
+            try {
+                CRC32C crc = new CRC32C();
+                ByteBuffer pooled = BufferPool.HEAP.acquire();
+                try {
+                    byte[] buffer = pooled.array();
+                    long remaining = response.getPayloadLength();
+                    while (remaining > 0) {
+                        int read = (int) Math.min(buffer.length, remaining);
+                        connection.in().readFully(buffer, 0, read);
+                        limiter.acquire(read);
+                        if (verifier != null) {
+                            verifier.update(buffer, 0, read);
+                        }
+                        crc.update(buffer, 0, read);
+                        upload.write(pooled.clear().limit(read));
+                        remaining -= read;
+                    }
+                } finally {
+                    BufferPool.HEAP.release(pooled);
+                }
+                if (verifier != null) {
+                    verifier.checkComplete();
+                }
+                if (metadata != null && (metadata.getSize() != response.getPayloadLength() || metadata.getChecksum() != (int) crc.getValue())) {
+                    throw new ChecksumException("Copy of " + name + " on " + ClusterConfig.describe(peer) + " is not the version the metadata server has");
+                }
+                upload.commit();
+                return response.getPayloadLength();
+            } catch (IOException e) {
+                upload.abort();
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Fetches the files the metadata server says this node holds but the node does not have.
+     * Only files this node owns on the ring are looked up, which keeps it to one lookup per
+     * missing replica rather than one per file.
+     */
+    private void restoreMissing() {
+        List<String> names;
+        try {
+            names = metadataClient.list();
+        } catch (IOException e) {
+            return;
+        }
+        Set<String> local = new HashSet<>(Arrays.asList(store.list()));
+        String node = ClusterConfig.describe(self);
+        for (String name : names) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (local.contains(name) || !membership.getRing().owners(name, ClusterConfig.REPLICATION_FACTOR).contains(self)) {
+                continue;
+            }
+            FileMetadata metadata = lookup(name);
+            if (metadata != null && metadata.getNodes().contains(node)) {
+                missing.increment();
+                Log.warn("scrub_missing", "node", node, "file", name);
+                repair(name, 0);
+            }
+        }
+    }
+
+    private FileMetadata lookup(String name) {
+        try {
+            return metadataClient.lookup(name);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The other nodes holding {@code name} according to its {@code metadata}, or without it,
+     * the other nodes in ring order; in either case those the node sees as down come last.
+     */
+    private List<InetSocketAddress> peers(String name, FileMetadata metadata) {
+        List<InetSocketAddress> peers = new ArrayList<>();
+        if (metadata != null) {
+            for (String node : metadata.getNodes()) {
+                peers.add(ClusterConfig.parseNode(node));
+            }
+        } else {
+            HashRing<InetSocketAddress> ring = membership.getRing();
+            peers.addAll(ring.preferenceList(name, ring.nodes().size()));
+        }
+        peers.remove(self);
+        List<InetSocketAddress> ordered = new ArrayList<>(peers.size());
+        List<InetSocketAddress> down = new ArrayList<>();
+        for (InetSocketAddress peer : peers) {
+            (membership.isAlive(peer) ? ordered : down).add(peer);
+        }
+        ordered.addAll(down);
+        return ordered;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+        pool.close();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("scrubber passes=%d files=%d bytes=%d damaged=%d missing=%d repaired=%d unrepaired=%d budget=%d B/s",
+                passes.sum(), filesChecked.sum(), bytesChecked.sum(), damaged.sum(), missing.sum(), repaired.sum(),
+                unrepaired.sum(), limiter.getBytesPerSecond());
+    }
+}
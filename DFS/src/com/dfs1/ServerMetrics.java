@@ -0,0 +1,380 @@
+package com.dfs1;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * One server's request metrics: per opcode the requests, errors, bytes in and out and a
+ * {@link LatencyHistogram} of the time the handler took, all updated without locks, plus
+ * gauges read when asked for: open connections, the connection pool's active threads and
+ * queue, each tenant's requests, refusals, bytes and queue wait in the {@link QosScheduler},
+ * for a data node its cache, mapped and packed files, disk and {@link AntiEntropy}, and the
+ * process's transfer {@link BufferPool}s. {@link #report} renders everything in the Prometheus
+ * text format; it is what {@link Protocol#METRICS} returns and the console's "stats" prints.
+ * The same figures are published over JMX.
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private static final class Operation {
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder notFound = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    private final String node;
+    private final AtomicReferenceArray<Operation> operations = new AtomicReferenceArray<>(128);
+    private final LongAdder sampled = new LongAdder();
+    private final LongAdder slow = new LongAdder();
+    private volatile IntSupplier openConnections = () -> 0;
+    private volatile ThreadPoolExecutor pool;
+    private volatile FileStore store;
+    private volatile QosScheduler qos;
+    private volatile AntiEntropy antiEntropy;
+    private ObjectName registered;
+
+    public ServerMetrics(String node) {
+        this.node = node;
+    }
+
+    @Override
+    public String getNode() {
+        return node;
+    }
+
+    void watchConnections(IntSupplier openConnections) {
+        this.openConnections = openConnections;
+    }
+
+    /**
+     * Reports the threads and queue of {@code executor} if it is a thread pool; executors
+     * without a bound, like a thread per connection, have nothing to report.
+     */
+    void watchPool(ExecutorService executor) {
+        this.pool = executor instanceof ThreadPoolExecutor ? (ThreadPoolExecutor) executor : null;
+    }
+
+    void watchStore(FileStore store) {
+        this.store = store;
+    }
+
+    void watchQos(QosScheduler qos) {
+        this.qos = qos;
+    }
+
+    void watchAntiEntropy(AntiEntropy antiEntropy) {
+        this.antiEntropy = antiEntropy;
+    }
+
+    private Operation operation(byte opcode) {
+        int index = opcode & 0x7F;
+        Operation operation = operations.get(index);
+        if (operation == null) {
+            operations.compareAndSet(index, null, new Operation());
+            operation = operations.get(index);
+        }
+        return operation;
+    }
+
+    void record(byte opcode, long nanos, long bytesIn, long bytesOut, byte status) {
+        Operation operation = operation(opcode);
+        operation.requests.increment();
+        operation.bytesIn.add(bytesIn);
+        operation.bytesOut.add(bytesOut);
+        operation.latency.record(nanos);
+        if (status == Protocol.STATUS_ERROR) {
+            operation.errors.increment();
+        } else if (status == Protocol.STATUS_NOT_FOUND) {
+            operation.notFound.increment();
+        }
+    }
+
+    void countSampled() {
+        sampled.increment();
+    }
+
+    void countSlow() {
+        slow.increment();
+    }
+
+    private long sum(Function<Operation, LongAdder> field) {
+        long total = 0;
+        for (int i = 0; i < operations.length(); i++) {
+            Operation operation = operations.get(i);
+            if (operation != null) {
+                total += field.apply(operation).sum();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getRequests() {
+        return sum(operation -> operation.requests);
+    }
+
+    @Override
+    public long getErrors() {
+        return sum(operation -> operation.errors);
+    }
+
+    @Override
+    public long getBytesIn() {
+        return sum(operation -> operation.bytesIn);
+    }
+
+    @Override
+    public long getBytesOut() {
+        return sum(operation -> operation.bytesOut);
+    }
+
+    @Override
+    public int getOpenConnections() {
+        return openConnections.getAsInt();
+    }
+
+    @Override
+    public int getActiveThreads() {
+        ThreadPoolExecutor executor = pool;
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    @Override
+    public int getQueuedRequests() {
+        ThreadPoolExecutor executor = pool;
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    @Override
+    public long getCacheHits() {
+        FileStore fileStore = store;
+        return fileStore == null ? 0 : fileStore.getCache().getHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        FileStore fileStore = store;
+        return fileStore == null ? 0 : fileStore.getCache().getMisses();
+    }
+
+    @Override
+    public long getDiskUsableBytes() {
+        FileStore fileStore = store;
+        return fileStore == null ? 0 : fileStore.getDirectory().getUsableSpace();
+    }
+
+    @Override
+    public long getLogLinesDropped() {
+        return Log.getDropped();
+    }
+
+    @Override
+    public Map<String, Long> getRequestsByOperation() {
+        Map<String, Long> requests = new TreeMap<>();
+        for (int i = 0; i < operations.length(); i++) {
+            Operation operation = operations.get(i);
+            if (operation != null) {
+                requests.put(Protocol.opcodeName((byte) i), operation.requests.sum());
+            }
+        }
+        return requests;
+    }
+
+    @Override
+    public Map<String, Long> getRequestsByTenant() {
+        Map<String, Long> requests = new TreeMap<>();
+        QosScheduler scheduler = qos;
+        if (scheduler != null) {
+            for (QosScheduler.Tenant tenant : scheduler.getTenants()) {
+                requests.put(tenant.getName(), tenant.getRequests());
+            }
+        }
+        return requests;
+    }
+
+    @Override
+    public Map<String, Long> getRefusedByTenant() {
+        Map<String, Long> refused = new TreeMap<>();
+        QosScheduler scheduler = qos;
+        if (scheduler != null) {
+            for (QosScheduler.Tenant tenant : scheduler.getTenants()) {
+                refused.put(tenant.getName(), tenant.getRefused());
+            }
+        }
+        return refused;
+    }
+
+    @Override
+    public double getQueueWaitMillis(String tenantName, double percentile) {
+        QosScheduler scheduler = qos;
+        if (scheduler != null) {
+            for (QosScheduler.Tenant tenant : scheduler.getTenants()) {
+                if (tenant.getName().equals(tenantName)) {
+                    return tenant.getQueueWait().getPercentileNanos(percentile) / 1e6;
+                }
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public double getLatencyMillis(String operationName, double percentile) {
+        for (int i = 0; i < operations.length(); i++) {
+            Operation operation = operations.get(i);
+            if (operation != null && Protocol.opcodeName((byte) i).equalsIgnoreCase(operationName)) {
+                return operation.latency.getPercentileNanos(percentile) / 1e6;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String getReport() {
+        return report();
+    }
+
+    /**
+     * Every metric, one {@code name{labels} value} line each.
+     */
+    public String report() {
+        StringBuilder out = new StringBuilder(4096);
+        String labels = "node=\"" + node + "\"";
+        for (int i = 0; i < operations.length(); i++) {
+            Operation operation = operations.get(i);
+            if (operation == null) {
+                continue;
+            }
+            String op = labels + ",op=\"" + Protocol.opcodeName((byte) i) + "\"";
+            line(out, "dfs_requests_total", op, operation.requests.sum());
+            line(out, "dfs_request_errors_total", op, operation.errors.sum());
+            line(out, "dfs_request_not_found_total", op, operation.notFound.sum());
+            line(out, "dfs_request_bytes_in_total", op, operation.bytesIn.sum());
+            line(out, "dfs_request_bytes_out_total", op, operation.bytesOut.sum());
+            for (int q = 0; q < PERCENTILES.length; q++) {
+                line(out, "dfs_request_latency_seconds", op + ",quantile=\"" + QUANTILES[q] + "\"",
+                        operation.latency.getPercentileNanos(PERCENTILES[q]) / 1e9);
+            }
+            line(out, "dfs_request_latency_seconds_max", op, operation.latency.getMaxNanos() / 1e9);
+        }
+        line(out, "dfs_connections_open", labels, getOpenConnections());
+        ThreadPoolExecutor executor = pool;
+        if (executor != null) {
+            line(out, "dfs_pool_threads", labels, executor.getPoolSize());
+            line(out, "dfs_pool_threads_max", labels, executor.getMaximumPoolSize());
+            line(out, "dfs_pool_threads_active", labels, executor.getActiveCount());
+            line(out, "dfs_pool_queue_depth", labels, executor.getQueue().size());
+        }
+        QosScheduler scheduler = qos;
+        if (scheduler != null) {
+            line(out, "dfs_qos_slots", labels, scheduler.getSlots());
+            line(out, "dfs_qos_slots_busy", labels, scheduler.getBusySlots());
+            line(out, "dfs_qos_queued", labels, scheduler.getQueued());
+            for (QosScheduler.Tenant tenant : scheduler.getTenants()) {
+                String tenantLabels = labels + ",tenant=\"" + tenant.getName().replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+                line(out, "dfs_tenant_requests_total", tenantLabels, tenant.getRequests());
+                line(out, "dfs_tenant_refused_total", tenantLabels, tenant.getRefused());
+                line(out, "dfs_tenant_bytes_in_total", tenantLabels, tenant.getBytesIn());
+                line(out, "dfs_tenant_bytes_out_total", tenantLabels, tenant.getBytesOut());
+                line(out, "dfs_tenant_queued", tenantLabels, scheduler.getQueued(tenant));
+                for (int q = 0; q < PERCENTILES.length; q++) {
+                    line(out, "dfs_tenant_queue_wait_seconds", tenantLabels + ",quantile=\"" + QUANTILES[q] + "\"",
+                            tenant.getQueueWait().getPercentileNanos(PERCENTILES[q]) / 1e9);
+                }
+            }
+        }
+        FileStore fileStore = store;
+        if (fileStore != null) {
+            FileCache cache = fileStore.getCache();
+            line(out, "dfs_cache_hits_total", labels, cache.getHits());
+            line(out, "dfs_cache_misses_total", labels, cache.getMisses());
+            line(out, "dfs_cache_evictions_total", labels, cache.getEvictions());
+            line(out, "dfs_cache_bytes", labels, cache.getCachedBytes());
+            MappedFiles mappings = fileStore.getMappings();
+            line(out, "dfs_mmap_bytes", labels, mappings.getMappedBytes());
+            line(out, "dfs_mmap_hits_total", labels, mappings.getHits());
+            line(out, "dfs_mmap_maps_total", labels, mappings.getMaps());
+            PackedFiles packed = fileStore.getPacked();
+            line(out, "dfs_packed_files", labels, packed.getFileCount());
+            line(out, "dfs_packed_segments", labels, packed.getSegmentCount());
+            line(out, "dfs_packed_compactions_total", labels, packed.getCompactions());
+            line(out, "dfs_packed_reclaimed_bytes_total", labels, packed.getReclaimedBytes());
+            line(out, "dfs_disk_usable_bytes", labels, fileStore.getDirectory().getUsableSpace());
+            line(out, "dfs_disk_total_bytes", labels, fileStore.getDirectory().getTotalSpace());
+        }
+        AntiEntropy sync = antiEntropy;
+        if (sync != null) {
+            line(out, "dfs_sync_rounds_total", labels, sync.getRounds());
+            line(out, "dfs_sync_differences_total", labels, sync.getDifferences());
+            line(out, "dfs_sync_files_fetched_total", labels, sync.getFilesFetched());
+            line(out, "dfs_sync_files_deleted_total", labels, sync.getFilesDeleted());
+            line(out, "dfs_sync_bytes_fetched_total", labels, sync.getBytesFetched());
+            line(out, "dfs_sync_failures_total", labels, sync.getFailures());
+            AntiEntropy.Round last = sync.getLastRound();
+            if (last != null) {
+                line(out, "dfs_sync_last_round_seconds", labels, last.getSeconds());
+            }
+        }
+        line(out, "dfs_traces_sampled_total", labels, sampled.sum());
+        line(out, "dfs_slow_requests_total", labels, slow.sum());
+        line(out, "dfs_log_lines_dropped_total", labels, Log.getDropped());
+        for (BufferPool pool : new BufferPool[] {BufferPool.DIRECT, BufferPool.HEAP}) {
+            String poolLabels = labels + ",pool=\"" + (pool.isDirect() ? "direct" : "heap") + "\"";
+            line(out, "dfs_buffers_allocated_total", poolLabels, pool.getAllocated());
+            line(out, "dfs_buffers_outstanding", poolLabels, pool.getOutstanding());
+            line(out, "dfs_buffers_leaked_total", poolLabels, pool.getLeaked());
+        }
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append('{').append(labels).append("} ");
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(String.format(Locale.ROOT, "%.6f", value));
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Publishes these metrics over JMX until {@link #unregister}.
+     */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.dfs1:type=Server,node=" + ObjectName.quote(node));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registered = name;
+        } catch (JMException e) {
+            Log.warn("jmx_register_failed", "node", node, "error", e.getMessage());
+        }
+    }
+
+    void unregister() {
+        if (registered != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+            } catch (JMException ignored) {
+            }
+            registered = null;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.dfs1;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a server's {@link ServerMetrics}, registered as
+ * {@code com.dfs1:type=Server,node="host:port"} while the server runs.
+ */
+public interface ServerMetricsMXBean {
+    String getNode();
+
+    long getRequests();
+
+    long getErrors();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    int getOpenConnections();
+
+    int getActiveThreads();
+
+    int getQueuedRequests();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getDiskUsableBytes();
+
+    long getLogLinesDropped();
+
+    Map<String, Long> getRequestsByOperation();
+
+    Map<String, Long> getRequestsByTenant();
+
+    /**
+     * Per tenant, the requests refused as busy by the {@link QosScheduler}.
+     */
+    Map<String, Long> getRefusedByTenant();
+
+    /**
+     * The time in milliseconds below which {@code percentile} percent of {@code tenant}'s
+     * requests waited to be admitted.
+     */
+    double getQueueWaitMillis(String tenant, double percentile);
+
+    /**
+     * The latency in milliseconds below which {@code percentile} percent of the requests of
+     * {@code operation}, an opcode name such as "DOWNLOAD", completed.
+     */
+    double getLatencyMillis(String operation, double percentile);
+
+    String getReport();
+}
@@ -0,0 +1,179 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares how the server's threading models hold up as concurrent clients grow: the fixed
+ * pool ("pool", {@code dfs.server.threads} threads), a virtual thread per connection
+ * ("virtual", Java 21 and later) and a platform thread per connection ("thread", the model of
+ * {@code com.dfs.Server}, measured through the same protocol so only the threading differs).
+ *
+ * Every client keeps one connection and uploads and downloads a small file in a loop. A client
+ * counts as served once one round trip completes; with the fixed pool only as many clients as
+ * it has threads are. The clients run on virtual threads where the runtime has them. Each row
+ * also gives the peak number of live threads in the process, clients included.
+ *
+ * Usage: ThreadingBenchmark [clients,clients,...] [fileSizeBytes] [seconds]
+ */
+public class ThreadingBenchmark {
+    private static final int BASE_PORT = 5301;
+    private static final int CONNECT_ATTEMPTS = 20;
+
+    public static void main(String[] args) throws Exception {
+        String[] counts = (args.length > 0 ? args[0] : "100,1000,10000").split(",");
+        int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 16 * 1024;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        String[] engines = {"pool", "virtual", "thread"};
+
+        System.out.printf("fileSize=%d seconds=%d java=%d virtualThreads=%s%n", fileSize, seconds, Runtime.version().feature(),
+                VirtualThreads.AVAILABLE);
+        System.out.printf("%-8s %8s %8s %10s %10s %10s %10s %8s %8s%n", "engine", "clients", "served", "ops/s", "MB/s",
+                "p50 ms", "p99 ms", "errors", "threads");
+        int run = 0;
+        for (String count : counts) {
+            for (String engine : engines) {
+                if (engine.equals("virtual") && !VirtualThreads.AVAILABLE) {
+                    System.out.printf("%-8s %8s   needs Java 21%n", engine, count.trim());
+                    continue;
+                }
+                run(engine, BASE_PORT + run, 100 + run, Integer.parseInt(count.trim()), fileSize, seconds);
+                run++;
+            }
+        }
+        if (VirtualThreads.AVAILABLE) {
+            System.out.println("pinned virtual threads reported: " + VirtualThreads.getPinCount());
+        }
+        System.exit(0);
+    }
+
+    private static void run(String engine, int port, int serverIndex, int clients, int fileSize, int seconds) throws Exception {
+        String directory = Files.createTempDirectory("dfs-threads-" + engine).toString();
+        Thread server = new Thread(() -> DistributedServer.startServer(port, directory, serverIndex, engine));
+        server.setDaemon(true);
+        server.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        waitForServer(address);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicInteger served = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        byte[] payload = new byte[fileSize];
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService drivers = VirtualThreads.AVAILABLE ? VirtualThreads.newPerTaskExecutor("bench")
+                : Executors.newCachedThreadPool(VirtualThreads.clientThreads("bench"));
+        try {
+            for (int c = 0; c < clients; c++) {
+                String fileName = "threads-" + c;
+                drivers.execute(() -> drive(address, fileName, payload, deadline, seconds, latency, served, bytes, errors));
+            }
+            drivers.shutdown();
+            drivers.awaitTermination(2L * seconds + 60, TimeUnit.SECONDS);
+            double elapsed = Math.max(seconds, (System.nanoTime() - start) / 1e9);
+            System.out.printf("%-8s %8d %8d %10.0f %10.1f %10.2f %10.2f %8d %8d%n", engine, clients, served.get(),
+                    latency.getCount() / elapsed, bytes.get() / elapsed / (1024 * 1024), latency.getPercentileNanos(50) / 1e6,
+                    latency.getPercentileNanos(99) / 1e6, errors.get(), threads.getPeakThreadCount());
+        } finally {
+            drivers.shutdownNow();
+            DistributedServer.shutdownServer(serverIndex);
+        }
+    }
+
+    /**
+     * One client: a round trip of upload and download at a time until the deadline. A client
+     * still waiting for the server when the run ends gives up and counts an error.
+     */
+    private static void drive(InetSocketAddress address, String fileName, byte[] payload, long deadline, int seconds,
+                              LatencyHistogram latency, AtomicInteger served, AtomicLong bytes, AtomicLong errors) {
+        byte[] buffer = new byte[payload.length];
+        DfsConnection connection = null;
+        boolean counted = false;
+        try {
+            while (System.nanoTime() < deadline) {
+                try {
+                    if (connection == null) {
+                        connection = connect(address);
+                        connection.setReadTimeout(seconds * 1000 + 5000);
+                    }
+                    long started = System.nanoTime();
+                    int uploadId = connection.send(Protocol.UPLOAD, fileName, payload.length);
+                    connection.out().write(payload);
+                    connection.flush();
+                    connection.readMessage(connection.readResponse(uploadId));
+
+                    int downloadId = connection.send(Protocol.DOWNLOAD, fileName, 0);
+                    connection.flush();
+                    Frame response = connection.readResponse(downloadId);
+                    connection.in().readFully(buffer, 0, (int) response.getPayloadLength());
+                    latency.record(System.nanoTime() - started);
+                    bytes.addAndGet(2L * payload.length);
+                    if (!counted) {
+                        counted = true;
+                        served.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                    close(connection);
+                    connection = null;
+                }
+            }
+        } finally {
+            close(connection);
+        }
+    }
+
+    /**
+     * Connects, retrying while the server's accept backlog is full.
+     */
+    private static DfsConnection connect(InetSocketAddress address) throws IOException {
+        IOException last = null;
+        for (int attempt = 0; attempt < CONNECT_ATTEMPTS; attempt++) {
+            try {
+                return DfsConnection.open(address, 5000);
+            } catch (IOException e) {
+                last = e;
+                try {
+                    Thread.sleep(50L << Math.min(attempt, 4));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while connecting", interrupted);
+                }
+            }
+        }
+        throw last;
+    }
+
+    private static void close(DfsConnection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static void waitForServer(InetSocketAddress address) throws InterruptedException {
+        for (int attempt = 0; attempt < 50; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(address, 200);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Server on " + address + " did not start");
+    }
+}
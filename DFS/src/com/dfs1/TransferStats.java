@@ -0,0 +1,88 @@
+package com.dfs1;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bytes, busy time and CPU time spent sending file bodies, kept separately for each
+ * {@link FileTransfer.Mode} so the copy strategies can be compared on a live server.
+ */
+public final class TransferStats {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported();
+    private static final TransferStats[] BY_MODE = new TransferStats[FileTransfer.Mode.values().length];
+
+    static {
+        for (FileTransfer.Mode mode : FileTransfer.Mode.values()) {
+            BY_MODE[mode.ordinal()] = new TransferStats(mode);
+        }
+    }
+
+    private final FileTransfer.Mode mode;
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder cpuNanos = new LongAdder();
+
+    private TransferStats(FileTransfer.Mode mode) {
+        this.mode = mode;
+    }
+
+    public static TransferStats of(FileTransfer.Mode mode) {
+        return BY_MODE[mode.ordinal()];
+    }
+
+    static long cpuTime() {
+        return CPU_TIME_SUPPORTED ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    void record(long byteCount, long startNanos, long startCpu) {
+        bytes.add(byteCount);
+        busyNanos.add(System.nanoTime() - startNanos);
+        cpuNanos.add(cpuTime() - startCpu);
+    }
+
+    void countTransfer() {
+        transfers.increment();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getCpuNanos() {
+        return cpuNanos.sum();
+    }
+
+    public double getBytesPerSecond() {
+        long busy = busyNanos.sum();
+        return busy == 0 ? 0 : bytes.sum() * 1e9 / busy;
+    }
+
+    public double getCpuMillisPerGigabyte() {
+        long total = bytes.sum();
+        return total == 0 ? 0 : cpuNanos.sum() / 1e6 / (total / 1e9);
+    }
+
+    public void reset() {
+        transfers.reset();
+        bytes.reset();
+        busyNanos.reset();
+        cpuNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-13s transfers=%d bytes=%d rate=%.1f MB/s cpu=%.1f ms/GB", mode, transfers.sum(), bytes.sum(),
+                getBytesPerSecond() / (1024 * 1024), getCpuMillisPerGigabyte());
+    }
+
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        for (TransferStats stats : BY_MODE) {
+            report.append(stats).append(System.lineSeparator());
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,159 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publishes staged uploads, which are written to a temporary file and then renamed over their
+ * final name so readers only ever see a complete file. {@code dfs.upload.sync} sets how
+ * durable a publish is before the upload is acknowledged:
+ * <ul>
+ * <li>{@code none}: the rename only, leaving flushing to the operating system;</li>
+ * <li>{@code always}: the uploader forces its file, renames it and forces the directory;</li>
+ * <li>{@code group} (the default): uploaders force their own files concurrently, then one of
+ * them renames every upload waiting at that moment and forces each directory once for the
+ * whole batch, as {@link MetadataLog#sync} does for log records.</li>
+ * </ul>
+ */
+final class UploadCommitter {
+    enum SyncMode { NONE, ALWAYS, GROUP }
+
+    static final SyncMode DEFAULT_MODE = SyncMode.valueOf(System.getProperty("dfs.upload.sync", "group").toUpperCase(Locale.ROOT));
+
+    /**
+     * The rename and whatever must happen atomically with it for the same name.
+     */
+    interface Publication {
+        void run() throws IOException;
+    }
+
+    private static final class Pending {
+        final Object lock;
+        final Path[] directories;
+        final Publication publication;
+        IOException failure;
+        boolean done;
+
+        Pending(Object lock, Path[] directories, Publication publication) {
+            this.lock = lock;
+            this.directories = directories;
+            this.publication = publication;
+        }
+    }
+
+    private final SyncMode mode;
+    // A lock rather than a monitor: uploaders wait here through a directory force, which would
+    // pin their carriers if they ran on virtual threads.
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final List<Pending> waiting = new ArrayList<>();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder directorySyncs = new LongAdder();
+
+    UploadCommitter(SyncMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Forces a staged file's contents to disk if the mode asks for it. Called by the uploader
+     * before {@link #publish}, so that the files of a group are forced in parallel.
+     */
+    void force(FileChannel staged) throws IOException {
+        if (mode != SyncMode.NONE) {
+            staged.force(false);
+        }
+    }
+
+    /**
+     * Runs {@code publication} while holding {@code lock}, the stripe of the name it publishes,
+     * and returns once its renames into {@code directories} are as durable as the mode requires.
+     */
+    void publish(Object lock, Publication publication, Path... directories) throws IOException {
+        if (mode != SyncMode.GROUP) {
+            synchronized (lock) {
+                publication.run();
+            }
+            published.increment();
+            if (mode == SyncMode.ALWAYS) {
+                for (Path directory : directories) {
+                    syncDirectory(directory);
+                }
+            }
+            return;
+        }
+        Pending pending = new Pending(lock, directories, publication);
+        synchronized (waiting) {
+            waiting.add(pending);
+        }
+        commitLock.lock();
+        try {
+            if (!pending.done) {
+                commitWaiting();
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        if (pending.failure != null) {
+            throw pending.failure;
+        }
+    }
+
+    private void commitWaiting() {
+        List<Pending> batch;
+        synchronized (waiting) {
+            batch = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        Set<Path> directories = new LinkedHashSet<>();
+        for (Pending pending : batch) {
+            try {
+                synchronized (pending.lock) {
+                    pending.publication.run();
+                }
+                published.increment();
+                Collections.addAll(directories, pending.directories);
+            } catch (IOException e) {
+                pending.failure = e;
+            }
+        }
+        for (Path directory : directories) {
+            try {
+                syncDirectory(directory);
+            } catch (IOException e) {
+                for (Pending pending : batch) {
+                    if (pending.failure == null && Arrays.asList(pending.directories).contains(directory)) {
+                        pending.failure = e;
+                    }
+                }
+            }
+        }
+        for (Pending pending : batch) {
+            pending.done = true;
+        }
+    }
+
+    private void syncDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        directorySyncs.increment();
+    }
+
+    long getPublished() {
+        return published.sum();
+    }
+
+    long getDirectorySyncs() {
+        return directorySyncs.sum();
+    }
+}
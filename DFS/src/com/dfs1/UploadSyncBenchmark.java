@@ -0,0 +1,79 @@
+package com.dfs1;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Commits small uploads from many threads at once under each {@link UploadCommitter.SyncMode}
+ * and prints the upload rate and how many renames each directory fsync covered. Half of the
+ * threads keep overwriting a shared set of names, so concurrent writers of one file are part
+ * of the load.
+ *
+ * Usage: UploadSyncBenchmark [threads] [uploadsPerThread] [fileBytes] [directory]
+ */
+public class UploadSyncBenchmark {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int uploads = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int fileBytes = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+        File parent = args.length > 3 ? new File(args[3]) : null;
+
+        byte[] contents = new byte[fileBytes];
+        new Random(11).nextBytes(contents);
+        System.out.printf("%d threads x %d uploads of %d bytes%n", threads, uploads, fileBytes);
+        for (UploadCommitter.SyncMode mode : UploadCommitter.SyncMode.values()) {
+            File directory = parent == null ? Files.createTempDirectory("dfs-sync-bench").toFile()
+                    : Files.createTempDirectory(parent.toPath(), "dfs-sync-bench").toFile();
+            FileStore store = new FileStore(directory, new FileCache(0, 0), mode);
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            long start = System.nanoTime();
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < uploads; i++) {
+                        String name = thread % 2 == 0 ? "shared-" + (i % 8) : "file-" + thread + "-" + i;
+                        FileStore.Upload upload = store.beginUpload(name);
+                        upload.write(ByteBuffer.wrap(contents));
+                        upload.commit();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) {
+                future.get();
+            }
+            long nanos = System.nanoTime() - start;
+            pool.shutdown();
+            UploadCommitter committer = store.getCommitter();
+            System.out.printf("%-6s %8.0f uploads/s  %6d directory syncs  %5.1f renames/sync%n",
+                    mode.name().toLowerCase(), threads * (double) uploads * 1e9 / nanos, committer.getDirectorySyncs(),
+                    committer.getDirectorySyncs() == 0 ? 0 : (double) committer.getPublished() / committer.getDirectorySyncs());
+            for (String name : store.list()) {
+                if (new File(directory, name).length() != fileBytes) {
+                    throw new IllegalStateException(name + " was published incomplete");
+                }
+            }
+            deleteAll(directory);
+        }
+    }
+
+    private static void deleteAll(File directory) {
+        File[] files = directory.listFiles();
+        for (File file : files == null ? new File[0] : files) {
+            if (file.isDirectory()) {
+                deleteAll(file);
+            } else {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,155 @@
+package com.dfs1;
+
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Virtual threads, found by reflection, as the build targets Java 17 (the release of both Maven
+ * builds and of the Eclipse project). Before Java 21, where they were at most a preview,
+ * {@link #AVAILABLE} is false and callers fall back to platform threads. Servers use them with
+ * the "virtual" engine; clients with {@code dfs.client.virtualThreads}, which runs client
+ * operations, replica transfers and chunk workers on virtual threads under the same bounds.
+ *
+ * A virtual thread blocked inside a {@code synchronized} block, or in a native call, keeps its
+ * carrier thread, and enough of them at once stall every other virtual thread. When the first
+ * virtual executor is made, pins longer than {@code dfs.virtual.pinnedMillis} (20; negative
+ * turns this off) are reported from the JDK's {@code jdk.VirtualThreadPinned} flight recorder
+ * event, with the frames that held the carrier. {@code -Djdk.tracePinnedThreads=full} gives
+ * the same from the JVM itself.
+ */
+final class VirtualThreads {
+    // Thread.ofVirtual(), OfVirtual.name(prefix, start), OfVirtual.factory(), Executors.newThreadPerTaskExecutor(factory), Thread.isVirtual()
+    private static final Method[] METHODS = find();
+    static final boolean AVAILABLE = METHODS != null;
+    static final boolean FOR_CLIENTS = Boolean.getBoolean("dfs.client.virtualThreads");
+    private static final long PINNED_MILLIS = Long.getLong("dfs.virtual.pinnedMillis", 20);
+    private static final int PINNED_FRAMES = 8;
+    private static final AtomicBoolean monitoring = new AtomicBoolean();
+    private static final AtomicBoolean warned = new AtomicBoolean();
+    private static final LongAdder pins = new LongAdder();
+
+    private VirtualThreads() {
+    }
+
+    private static Method[] find() {
+        if (Runtime.version().feature() < 21) {
+            return null;
+        }
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            return new Method[] {
+                    Thread.class.getMethod("ofVirtual"),
+                    builder.getMethod("name", String.class, long.class),
+                    builder.getMethod("factory"),
+                    Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class),
+                    Thread.class.getMethod("isVirtual")};
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A factory of virtual threads named {@code prefix} and a number.
+     *
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    static ThreadFactory factory(String prefix) {
+        if (!AVAILABLE) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later; this is Java "
+                    + Runtime.version().feature());
+        }
+        monitorPinning();
+        try {
+            Object builder = METHODS[1].invoke(METHODS[0].invoke(null), prefix + "-", 0L);
+            return (ThreadFactory) METHODS[2].invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create virtual threads", e);
+        }
+    }
+
+    /**
+     * An executor that runs each task on a new virtual thread.
+     *
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    static ExecutorService newPerTaskExecutor(String prefix) {
+        ThreadFactory factory = factory(prefix);
+        try {
+            return (ExecutorService) METHODS[3].invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create virtual threads", e);
+        }
+    }
+
+    /**
+     * The factory for a client's threads: virtual if {@code dfs.client.virtualThreads} is set
+     * and the runtime has them, otherwise daemon platform threads.
+     */
+    static ThreadFactory clientThreads(String prefix) {
+        if (FOR_CLIENTS) {
+            if (AVAILABLE) {
+                return factory(prefix);
+            }
+            if (warned.compareAndSet(false, true)) {
+                Log.warn("virtual_threads_unavailable", "java", Runtime.version().feature(), "fallback", "platform_threads");
+            }
+        }
+        AtomicInteger next = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + next.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Whether {@code thread} is a virtual thread; never before Java 21.
+     */
+    static boolean isVirtual(Thread thread) {
+        if (!AVAILABLE) {
+            return false;
+        }
+        try {
+            return (Boolean) METHODS[4].invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * How many pins have been reported so far.
+     */
+    static long getPinCount() {
+        return pins.sum();
+    }
+
+    private static void monitorPinning() {
+        if (PINNED_MILLIS < 0 || !monitoring.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            RecordingStream stream = new RecordingStream();
+            stream.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ofMillis(PINNED_MILLIS)).withStackTrace();
+            stream.onEvent("jdk.VirtualThreadPinned", event -> {
+                pins.increment();
+                StringBuilder frames = new StringBuilder();
+                if (event.getStackTrace() != null) {
+                    event.getStackTrace().getFrames().stream().limit(PINNED_FRAMES).forEach(frame -> frames
+                            .append(frames.length() > 0 ? " < " : "").append(frame.getMethod().getType().getName()).append('.')
+                            .append(frame.getMethod().getName()).append(':').append(frame.getLineNumber()));
+                }
+                Log.warn("virtual_thread_pinned", "millis", event.getDuration().toMillis(), "frames", frames);
+            });
+            stream.startAsync();
+        } catch (RuntimeException e) {
+            Log.warn("pin_reporting_unavailable", "error", e.getMessage());
+        }
+    }
+}
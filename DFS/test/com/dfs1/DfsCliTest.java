@@ -0,0 +1,76 @@
+package com.dfs1;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DfsCliTest {
+    private static DfsClient client;
+
+    @BeforeAll
+    static void startCluster() throws InterruptedException {
+        TestCluster.start();
+        client = new DfsClient();
+    }
+
+    @AfterAll
+    static void closeClient() {
+        client.close();
+    }
+
+    @Test
+    void listsATreeByThePathsItWasPutUnder(@TempDir Path local) throws IOException {
+        Path tree = local.resolve("tree");
+        Files.createDirectories(tree.resolve("sub"));
+        Files.writeString(tree.resolve("f1.txt"), "one");
+        Files.writeString(tree.resolve("sub/f2.txt"), "two!");
+
+        assertTrue(DfsCli.run(client, new String[] {"put", tree.toString(), "ls-test/"}));
+
+        assertEquals(List.of("3\tls-test/f1.txt", "4\tls-test/sub/f2.txt"), files("ls", "ls-test/"));
+        assertEquals(List.of("4\tls-test/sub/f2.txt"), files("ls", "ls-test/sub/"));
+        assertEquals(List.of("3\tls-test/f1.txt"), files("ls", "ls-test/", "--glob", "ls-test/f*"));
+        assertTrue(files("ls").contains("3\tls-test/f1.txt"));
+    }
+
+    @Test
+    void removingAMissingFileFails(@TempDir Path local) throws IOException {
+        Path file = local.resolve("rm-test.txt");
+        Files.writeString(file, "gone");
+        assertTrue(DfsCli.run(client, new String[] {"put", file.toString(), "rm-test.txt"}));
+
+        assertTrue(DfsCli.run(client, new String[] {"rm", "rm-test.txt"}));
+        assertFalse(DfsCli.run(client, new String[] {"rm", "rm-test.txt"}));
+        assertFalse(DfsCli.run(client, new String[] {"rm", "rm-test-never-put.txt"}));
+    }
+
+    /** The files {@code args} lists, without the closing count. */
+    private static List<String> files(String... args) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(printed, true, StandardCharsets.UTF_8));
+        try {
+            assertTrue(DfsCli.run(client, args));
+        } finally {
+            System.setOut(out);
+        }
+        return Arrays.stream(printed.toString(StandardCharsets.UTF_8).split("\n"))
+                .filter(line -> line.contains("\t"))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,46 @@
+package com.dfs1;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+class FrameTest {
+    @Test
+    void parsesAHeaderThatArrivesInParts() throws ProtocolException {
+        ByteBuffer encoded = new Frame(Protocol.UPLOAD, 7, "name", 0, 42, "tenant", true).encode();
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+
+        buffer.put(encoded.slice().limit(30)).flip();
+        assertNull(Frame.parse(buffer));
+        assertEquals(0, buffer.position());
+
+        buffer.compact().put(encoded.position(30)).flip();
+        Frame frame = Frame.parse(buffer);
+        assertEquals("name", frame.getName());
+        assertEquals("tenant", frame.getTenant());
+        assertEquals(42, frame.getPayloadLength());
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    void refusesANameThatCannotFitInTheBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.put(Protocol.VERSION).put(Protocol.UPLOAD).putInt(1).putShort((short) 2000).put(new byte[1000]).flip();
+
+        assertThrows(ProtocolException.class, () -> Frame.parse(buffer));
+    }
+
+    @Test
+    void refusesATenantThatCannotFitInTheBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        buffer.put(Protocol.VERSION_TENANT).put(Protocol.UPLOAD).putInt(1).putShort((short) 4).put(new byte[4])
+                .putLong(0).putLong(0).put((byte) 0).putShort((short) 0xFFFF).flip();
+
+        assertThrows(ProtocolException.class, () -> Frame.parse(buffer));
+    }
+}
@@ -0,0 +1,167 @@
+package com.dfs1;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class NioServerTest {
+    @TempDir
+    Path directory;
+    private NioServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = new NioServer(0, new DataNodeHandler(new FileStore(directory.toFile())), 1, 4);
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException ignored) {
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @AfterEach
+    void stop() throws IOException {
+        server.close();
+    }
+
+    @Test
+    void streamsPayloadsLargerThanTheHeaderBuffer() throws IOException {
+        byte[] data = new byte[3 * BufferPool.TRANSFER_SIZE + 5];
+        new Random(1).nextBytes(data);
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            for (int i = 0; i < 2; i++) {
+                new Frame(Protocol.UPLOAD, i, "big-" + i, data.length).write(out);
+                out.write(data);
+                // A small request right behind the payload, read together with its end.
+                new Frame(Protocol.DOWNLOAD, 100 + i, "big-" + i, 0).write(out);
+                out.flush();
+
+                Frame uploaded = Frame.read(in);
+                assertEquals(Protocol.STATUS_OK, uploaded.getOpcode(), Frame.readMessage(in, uploaded));
+                Frame downloaded = Frame.read(in);
+                assertEquals(Protocol.STATUS_OK, downloaded.getOpcode());
+                byte[] read = new byte[(int) downloaded.getPayloadLength()];
+                in.readFully(read);
+                assertArrayEquals(data, read);
+            }
+        }
+        assertArrayEquals(data, Files.readAllBytes(directory.resolve("big-1")));
+    }
+
+    @Test
+    void closesAConnectionWhoseHeaderCannotFit() throws IOException {
+        try (Socket socket = connect()) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeByte(Protocol.VERSION);
+            out.writeByte(Protocol.UPLOAD);
+            out.writeInt(1);
+            out.writeShort(Protocol.MAX_NAME_LENGTH);
+            out.write(new byte[Protocol.MAX_NAME_LENGTH]);
+            out.flush();
+
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                try {
+                    assertEquals(-1, socket.getInputStream().read());
+                } catch (SocketException e) {
+                    // Reset, as the server closed with input unread.
+                }
+            });
+        }
+    }
+
+    @Test
+    void answersBusyWhenEveryWorkerIsTaken() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RequestHandler blocking = new DataNodeHandler(new FileStore(directory.toFile())) {
+            @Override
+            public Response handle(Frame request, ByteBuffer body) {
+                if (request.getName().equals("block")) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return Response.message(Protocol.STATUS_OK, request.getName(), "done");
+            }
+        };
+        server.close();
+        server = new NioServer(0, blocking, 1, 1);
+        Thread thread = new Thread(() -> {
+            try {
+                server.run();
+            } catch (IOException ignored) {
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        try (Socket first = connect(); Socket second = connect()) {
+            send(first, "block");
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+            send(second, "other");
+            DataInputStream in = new DataInputStream(second.getInputStream());
+            Frame refused = Frame.read(in);
+            assertEquals(Protocol.STATUS_BUSY, refused.getOpcode());
+            in.skipNBytes(refused.getPayloadLength());
+
+            release.countDown();
+            DataInputStream firstIn = new DataInputStream(first.getInputStream());
+            Frame answered = Frame.read(firstIn);
+            assertEquals(Protocol.STATUS_OK, answered.getOpcode());
+            assertEquals("done", Frame.readMessage(firstIn, answered));
+
+            // The worker may not be back in the pool the moment it has answered.
+            Frame retried = refused;
+            for (int attempt = 0; attempt < 100 && retried.getOpcode() == Protocol.STATUS_BUSY; attempt++) {
+                Thread.sleep(10);
+                send(second, "other");
+                retried = Frame.read(in);
+                in.skipNBytes(retried.getPayloadLength());
+            }
+            assertEquals(Protocol.STATUS_OK, retried.getOpcode());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static void send(Socket socket, String name) throws IOException {
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        new Frame(Protocol.METRICS, 1, name, 0).write(out);
+        out.flush();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress("127.0.0.1", server.socket().getLocalPort()), 2000);
+        return socket;
+    }
+}
@@ -0,0 +1,39 @@
+package com.dfs1;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Packing as the tests run it, with {@code dfs.pack.maxFileBytes} unset and so off.
+ */
+class PackedFilesTest {
+    @Test
+    void packsNothingWhenOff() {
+        assertEquals(0, PackedFiles.MAX_FILE_SIZE);
+        assertFalse(PackedFiles.isPackable(0));
+        assertFalse(PackedFiles.isPackable(1));
+    }
+
+    @Test
+    void storesAnEmptyUploadAsAFileWhenOff(@TempDir Path directory) throws IOException {
+        FileStore store = new FileStore(directory.toFile());
+        DataNodeHandler handler = new DataNodeHandler(store);
+        Frame request = new Frame(Protocol.UPLOAD, 1, "empty.txt", 0);
+
+        FileStore.Upload upload = handler.beginUpload(request);
+        upload.write(ByteBuffer.allocate(0));
+        upload.commit();
+
+        assertEquals(0, store.getPacked().getFileCount());
+        assertTrue(new File(directory.toFile(), "empty.txt").isFile());
+    }
+}
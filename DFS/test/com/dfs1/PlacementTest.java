@@ -0,0 +1,47 @@
+package com.dfs1;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class PlacementTest {
+    private static final InetSocketAddress A = InetSocketAddress.createUnresolved("a", 1);
+    private static final InetSocketAddress B = InetSocketAddress.createUnresolved("b", 1);
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @AfterEach
+    void shutDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void keepsTheConfiguredReplicationFactorOnASmallerRing() {
+        Placement placement = new Placement(new HashRing<>(List.of(A, B), 16), 3, executor);
+
+        assertEquals(3, placement.getReplicationFactor());
+        assertEquals(2, placement.owners("file").size());
+    }
+
+    @Test
+    void writesFewerReplicasThanConfiguredWhenTheRingIsSmaller() {
+        Placement placement = new Placement(new HashRing<>(List.of(A, B), 16), 3, executor);
+
+        List<Placement.ReplicaResult> results = placement.writeChain("file", chain -> {
+            List<Placement.ReplicaResult> written = new ArrayList<>();
+            for (InetSocketAddress node : chain) {
+                written.add(new Placement.ReplicaResult(node, "OK", null));
+            }
+            return written;
+        });
+
+        assertEquals(2, results.size());
+    }
+}
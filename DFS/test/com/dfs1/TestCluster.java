@@ -0,0 +1,29 @@
+package com.dfs1;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The cluster of {@link ClusterConfig}, started in-process once for all the tests of a JVM,
+ * with its data in a temporary directory.
+ */
+final class TestCluster {
+    private static Path directory;
+
+    private TestCluster() {
+    }
+
+    static synchronized Path start() throws InterruptedException {
+        if (directory == null) {
+            try {
+                directory = Files.createTempDirectory("dfs-test-cluster");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            LoadGenerator.startCluster(directory);
+        }
+        return directory;
+    }
+}